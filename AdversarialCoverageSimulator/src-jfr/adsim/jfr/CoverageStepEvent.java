@@ -0,0 +1,33 @@
+package adsim.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for a coverage simulation step. Only one in every
+ * <code>jfr.step_sample_interval</code> steps is recorded.
+ *
+ * @author Mike D'Arcy
+ *
+ */
+@Name("adsim.Step")
+@Label("Step")
+@Description("A sampled simulation step")
+@Category({ "Adversarial Coverage Simulator", "Coverage" })
+@StackTrace(false)
+class CoverageStepEvent extends jdk.jfr.Event {
+	@Label("Step Number")
+	long stepNum;
+
+	@Label("Robots")
+	int numRobots;
+
+	@Label("Broken Robots")
+	int brokenRobots;
+
+	@Label("Cells Left")
+	int cellsLeft;
+}
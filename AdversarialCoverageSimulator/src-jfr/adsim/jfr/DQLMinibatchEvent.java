@@ -0,0 +1,30 @@
+package adsim.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for training a DQL network on one minibatch
+ *
+ * @author Mike D'Arcy
+ *
+ */
+@Name("adsim.DQLMinibatch")
+@Label("DQL Minibatch")
+@Category({ "Adversarial Coverage Simulator", "Learning" })
+@StackTrace(false)
+class DQLMinibatchEvent extends jdk.jfr.Event {
+	@Label("Batch Size")
+	@Description("The number of samples, or for the external learner, the number of minibatch commands sent")
+	long batchSize;
+
+	@Label("Step Number")
+	long stepNum;
+
+	@Label("Mean Squared Loss")
+	@Description("The mean squared TD error of the samples before training, or NaN for the external learner")
+	double loss;
+}
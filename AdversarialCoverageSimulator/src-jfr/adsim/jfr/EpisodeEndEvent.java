@@ -0,0 +1,44 @@
+package adsim.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Percentage;
+
+/**
+ * Flight recorder event for the end of a coverage episode
+ *
+ * @author Mike D'Arcy
+ *
+ */
+@Name("adsim.EpisodeEnd")
+@Label("Episode End")
+@Category({ "Adversarial Coverage Simulator", "Coverage" })
+class EpisodeEndEvent extends jdk.jfr.Event {
+	@Label("Map Id")
+	@Description("Which grid this is, counting from 0 for the simulation's first grid")
+	long mapId;
+
+	@Label("Steps")
+	long steps;
+
+	@Label("Cells Covered")
+	long cellsCovered;
+
+	@Label("Free Cells")
+	long freeCells;
+
+	@Label("Coverage")
+	@Percentage
+	double coverage;
+
+	@Label("Team Survivability")
+	double survivability;
+
+	@Label("Broken Robots")
+	long brokenRobots;
+
+	@Label("Outcome")
+	String outcome;
+}
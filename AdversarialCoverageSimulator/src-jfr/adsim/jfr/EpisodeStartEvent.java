@@ -0,0 +1,34 @@
+package adsim.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event for the start of a coverage episode
+ *
+ * @author Mike D'Arcy
+ *
+ */
+@Name("adsim.EpisodeStart")
+@Label("Episode Start")
+@Category({ "Adversarial Coverage Simulator", "Coverage" })
+class EpisodeStartEvent extends jdk.jfr.Event {
+	@Label("Map Id")
+	@Description("Which grid this is, counting from 0 for the simulation's first grid")
+	long mapId;
+
+	@Label("Grid Width")
+	int gridWidth;
+
+	@Label("Grid Height")
+	int gridHeight;
+
+	@Label("Robots")
+	int numRobots;
+
+	@Label("Free Cells")
+	@Description("The number of cells that can be covered")
+	int freeCells;
+}
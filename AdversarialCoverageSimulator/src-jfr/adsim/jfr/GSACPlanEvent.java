@@ -0,0 +1,28 @@
+package adsim.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event for planning a GSAC coverage path
+ *
+ * @author Mike D'Arcy
+ *
+ */
+@Name("adsim.GSACPlan")
+@Label("GSAC Planning")
+@Category({ "Adversarial Coverage Simulator", "Coverage" })
+class GSACPlanEvent extends jdk.jfr.Event {
+	@Label("Grid Width")
+	int gridWidth;
+
+	@Label("Grid Height")
+	int gridHeight;
+
+	@Label("Search Mode")
+	String searchMode;
+
+	@Label("Path Length")
+	int pathLength;
+}
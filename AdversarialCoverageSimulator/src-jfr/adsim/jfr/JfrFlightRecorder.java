@@ -0,0 +1,162 @@
+package adsim.jfr;
+
+import jdk.jfr.EventType;
+
+import adsim.FlightRecorder;
+
+/**
+ * The {@link FlightRecorder} that records <code>jdk.jfr</code> events. It is
+ * loaded by name, so nothing outside this source folder depends on
+ * <code>jdk.jfr</code>.
+ * <p>
+ * The begin methods check whether the event type is enabled before creating an
+ * event, so with no recording running they cost one field read.
+ *
+ * @author Mike D'Arcy
+ *
+ */
+public class JfrFlightRecorder extends FlightRecorder {
+	private static final EventType STEP_EVENT_TYPE = EventType.getEventType(CoverageStepEvent.class);
+	private static final EventType GSAC_PLAN_EVENT_TYPE = EventType.getEventType(GSACPlanEvent.class);
+	private static final EventType MINIBATCH_EVENT_TYPE = EventType.getEventType(DQLMinibatchEvent.class);
+	private static final EventType ROUND_TRIP_EVENT_TYPE = EventType.getEventType(NNRoundTripEvent.class);
+
+
+	public JfrFlightRecorder() {
+	}
+
+
+	@Override
+	public boolean isAvailable() {
+		return true;
+	}
+
+
+	@Override
+	public void episodeStart(long mapId, int gridWidth, int gridHeight, int numRobots, int freeCells) {
+		EpisodeStartEvent event = new EpisodeStartEvent();
+		if (event.shouldCommit()) {
+			event.mapId = mapId;
+			event.gridWidth = gridWidth;
+			event.gridHeight = gridHeight;
+			event.numRobots = numRobots;
+			event.freeCells = freeCells;
+			event.commit();
+		}
+	}
+
+
+	@Override
+	public void episodeEnd(long mapId, long steps, long cellsCovered, long freeCells, double survivability,
+			long brokenRobots, String outcome) {
+		EpisodeEndEvent event = new EpisodeEndEvent();
+		if (event.shouldCommit()) {
+			event.mapId = mapId;
+			event.steps = steps;
+			event.cellsCovered = cellsCovered;
+			event.freeCells = freeCells;
+			event.coverage = (0 < freeCells) ? (double) cellsCovered / freeCells : 0.0;
+			event.survivability = survivability;
+			event.brokenRobots = brokenRobots;
+			event.outcome = outcome;
+			event.commit();
+		}
+	}
+
+
+	@Override
+	public Object beginStep() {
+		if (!STEP_EVENT_TYPE.isEnabled()) {
+			return null;
+		}
+		CoverageStepEvent event = new CoverageStepEvent();
+		event.begin();
+		return event;
+	}
+
+
+	@Override
+	public void endStep(Object token, long stepNum, int numRobots, int brokenRobots, int cellsLeft) {
+		CoverageStepEvent event = (CoverageStepEvent) token;
+		event.end();
+		if (event.shouldCommit()) {
+			event.stepNum = stepNum;
+			event.numRobots = numRobots;
+			event.brokenRobots = brokenRobots;
+			event.cellsLeft = cellsLeft;
+			event.commit();
+		}
+	}
+
+
+	@Override
+	public Object beginGSACPlan() {
+		if (!GSAC_PLAN_EVENT_TYPE.isEnabled()) {
+			return null;
+		}
+		GSACPlanEvent event = new GSACPlanEvent();
+		event.begin();
+		return event;
+	}
+
+
+	@Override
+	public void endGSACPlan(Object token, int gridWidth, int gridHeight, String searchMode, int pathLength) {
+		GSACPlanEvent event = (GSACPlanEvent) token;
+		event.end();
+		if (event.shouldCommit()) {
+			event.gridWidth = gridWidth;
+			event.gridHeight = gridHeight;
+			event.searchMode = searchMode;
+			event.pathLength = pathLength;
+			event.commit();
+		}
+	}
+
+
+	@Override
+	public Object beginDQLMinibatch() {
+		if (!MINIBATCH_EVENT_TYPE.isEnabled()) {
+			return null;
+		}
+		DQLMinibatchEvent event = new DQLMinibatchEvent();
+		event.begin();
+		return event;
+	}
+
+
+	@Override
+	public void endDQLMinibatch(Object token, long batchSize, long stepNum, double loss) {
+		DQLMinibatchEvent event = (DQLMinibatchEvent) token;
+		event.end();
+		if (event.shouldCommit()) {
+			event.batchSize = batchSize;
+			event.stepNum = stepNum;
+			event.loss = loss;
+			event.commit();
+		}
+	}
+
+
+	@Override
+	public Object beginNNRoundTrip(long sentChars) {
+		if (!ROUND_TRIP_EVENT_TYPE.isEnabled()) {
+			return null;
+		}
+		NNRoundTripEvent event = new NNRoundTripEvent();
+		event.sentChars = sentChars;
+		event.begin();
+		return event;
+	}
+
+
+	@Override
+	public void endNNRoundTrip(Object token, long receivedChars) {
+		NNRoundTripEvent event = (NNRoundTripEvent) token;
+		event.end();
+		if (event.shouldCommit()) {
+			event.receivedChars = receivedChars;
+			event.commit();
+		}
+	}
+}
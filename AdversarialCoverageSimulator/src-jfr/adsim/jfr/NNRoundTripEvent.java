@@ -0,0 +1,28 @@
+package adsim.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for an {@link deeplearning.ExternalTorchNN} round trip, from sending an
+ * input to reading back the outputs. Only one in every
+ * <code>jfr.step_sample_interval</code> round trips is recorded.
+ *
+ * @author Mike D'Arcy
+ *
+ */
+@Name("adsim.NNRoundTrip")
+@Label("External NN Round Trip")
+@Category({ "Adversarial Coverage Simulator", "Learning" })
+@StackTrace(false)
+class NNRoundTripEvent extends jdk.jfr.Event {
+	@Label("Sent Characters")
+	@Description("The length of the forward message, or 0 if the state wasn't sent")
+	long sentChars;
+
+	@Label("Received Characters")
+	long receivedChars;
+}
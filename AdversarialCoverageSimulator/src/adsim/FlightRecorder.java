@@ -0,0 +1,142 @@
+package adsim;
+
+/**
+ * Flight recorder (JFR) events for the simulator. The events use
+ * <code>jdk.jfr</code>, which older Java 8 runtimes (before 8u262) don't have, so
+ * they are kept in the separate <code>src-jfr</code> source folder and loaded by
+ * name. If they aren't on the classpath or the runtime has no flight recorder, this
+ * class is used as is, and every method does nothing.
+ * <p>
+ * Timed events are started with a <code>begin</code> method, which returns a token
+ * (or null if the event isn't being recorded), and finished by passing the token to
+ * the matching <code>end</code> method. Callers should skip the <code>end</code>
+ * call, and any work to compute its values, when the token is null. Nothing is
+ * allocated when no recording is running.
+ *
+ * @author Mike D'Arcy
+ *
+ */
+public class FlightRecorder {
+	private static final String JFR_RECORDER_CLASS = "adsim.jfr.JfrFlightRecorder";
+	private static final FlightRecorder INSTANCE = load();
+
+
+	protected FlightRecorder() {
+	}
+
+
+	/**
+	 * Gets the recorder, which is the JFR one if it could be loaded
+	 */
+	public static FlightRecorder get() {
+		return INSTANCE;
+	}
+
+
+	private static FlightRecorder load() {
+		try {
+			return (FlightRecorder) Class.forName(JFR_RECORDER_CLASS).getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError e) {
+			// Not on the classpath, or jdk.jfr is missing
+			return new FlightRecorder();
+		}
+	}
+
+
+	/**
+	 * Checks whether events can be recorded at all (i.e., whether the JFR recorder
+	 * was loaded)
+	 */
+	public boolean isAvailable() {
+		return false;
+	}
+
+
+	/**
+	 * Records the start of a coverage episode
+	 *
+	 * @param mapId
+	 *                which grid this is, counting from 0 for the simulation's first
+	 *                grid
+	 * @param freeCells
+	 *                the number of cells that can be covered
+	 */
+	public void episodeStart(long mapId, int gridWidth, int gridHeight, int numRobots, int freeCells) {
+	}
+
+
+	/**
+	 * Records the end of a coverage episode
+	 *
+	 * @param mapId
+	 *                as for {@link #episodeStart(long, int, int, int, int)}
+	 * @param outcome
+	 *                the outcome name, or null if there isn't one
+	 */
+	public void episodeEnd(long mapId, long steps, long cellsCovered, long freeCells, double survivability,
+			long brokenRobots, String outcome) {
+	}
+
+
+	/**
+	 * Starts timing a (sampled) simulation step
+	 */
+	public Object beginStep() {
+		return null;
+	}
+
+
+	public void endStep(Object token, long stepNum, int numRobots, int brokenRobots, int cellsLeft) {
+	}
+
+
+	/**
+	 * Starts timing a GSAC coverage path plan
+	 */
+	public Object beginGSACPlan() {
+		return null;
+	}
+
+
+	public void endGSACPlan(Object token, int gridWidth, int gridHeight, String searchMode, int pathLength) {
+	}
+
+
+	/**
+	 * Starts timing a DQL minibatch
+	 */
+	public Object beginDQLMinibatch() {
+		return null;
+	}
+
+
+	/**
+	 * Finishes timing a DQL minibatch
+	 *
+	 * @param batchSize
+	 *                the number of samples, or for the external learner, the number
+	 *                of minibatch commands sent
+	 * @param loss
+	 *                the mean squared TD error of the samples before training, or
+	 *                NaN for the external learner
+	 */
+	public void endDQLMinibatch(Object token, long batchSize, long stepNum, double loss) {
+	}
+
+
+	/**
+	 * Starts timing an external network round trip, from sending an input to reading
+	 * back the outputs
+	 *
+	 * @param sentChars
+	 *                the length of the forward message, or 0 if the state wasn't
+	 *                sent
+	 */
+	public Object beginNNRoundTrip(long sentChars) {
+		return null;
+	}
+
+
+	public void endNNRoundTrip(Object token, long receivedChars) {
+	}
+}
@@ -0,0 +1,243 @@
+package adsim;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * Low-overhead timers and counters for seeing where simulation time goes. Timers are
+ * registered once per name (normally in a static field of the class that uses them)
+ * and shown with the <code>:metrics</code> console command.
+ * <p>
+ * Everything is kept in {@link LongAdder}s, so robots stepping on different threads
+ * don't contend on the same counter. When the <code>metrics.enabled</code> setting
+ * is off, starting and stopping a timer is a single field read. When
+ * <code>metrics.sample_interval</code> is more than 1, every call is counted but
+ * only about one in that many is timed, and the total time is estimated from the
+ * timed ones.
+ *
+ * @author Mike D'Arcy
+ *
+ */
+public class Metrics {
+	/**
+	 * Returned by {@link Timer#start()} when metrics are disabled
+	 */
+	private static final long NOT_COUNTED = Long.MIN_VALUE;
+	/**
+	 * Returned by {@link Timer#start()} when the call is counted but not timed
+	 */
+	private static final long NOT_TIMED = Long.MIN_VALUE + 1;
+
+	private static final Map<String, Timer> timers = new TreeMap<>();
+	private static final Map<String, Counter> counters = new TreeMap<>();
+
+	private static volatile boolean ENABLED = false;
+	private static volatile int SAMPLE_INTERVAL = 1;
+
+
+	private Metrics() {
+	}
+
+
+	/**
+	 * Gets the timer with the given name, creating it if it doesn't exist yet
+	 *
+	 * @param name
+	 *                the name of the timer, such as <code>engine.step</code>
+	 * @return the timer
+	 */
+	public static synchronized Timer timer(String name) {
+		Timer timer = timers.get(name);
+		if (timer == null) {
+			timer = new Timer(name);
+			timers.put(name, timer);
+		}
+		return timer;
+	}
+
+
+	/**
+	 * Gets the counter with the given name, creating it if it doesn't exist yet
+	 *
+	 * @param name
+	 *                the name of the counter
+	 * @return the counter
+	 */
+	public static synchronized Counter counter(String name) {
+		Counter counter = counters.get(name);
+		if (counter == null) {
+			counter = new Counter(name);
+			counters.put(name, counter);
+		}
+		return counter;
+	}
+
+
+	public static boolean isEnabled() {
+		return ENABLED;
+	}
+
+
+	public static void setEnabled(boolean enabled) {
+		ENABLED = enabled;
+	}
+
+
+	/**
+	 * Resets every timer and counter to zero
+	 */
+	public static synchronized void reset() {
+		for (Timer timer : timers.values()) {
+			timer.reset();
+		}
+		for (Counter counter : counters.values()) {
+			counter.reset();
+		}
+	}
+
+
+	/**
+	 * Prints every timer and counter that has counted anything, in name order
+	 *
+	 * @param out
+	 *                the stream to print to
+	 */
+	public static void print(PrintStream out) {
+		List<Timer> timerList;
+		List<Counter> counterList;
+		synchronized (Metrics.class) {
+			timerList = new ArrayList<>(timers.values());
+			counterList = new ArrayList<>(counters.values());
+		}
+
+		out.printf("Metrics (%s, timing 1 in %d calls):\n", ENABLED ? "enabled" : "disabled", SAMPLE_INTERVAL);
+		out.printf("  %-24s %12s %12s %12s %12s\n", "timer", "count", "total ms", "mean us", "max us");
+		for (Timer timer : timerList) {
+			long count = timer.count.sum();
+			if (count == 0) {
+				continue;
+			}
+			long timedCount = timer.timedCount.sum();
+			double meanNanos = (0 < timedCount) ? (double) timer.timedNanos.sum() / timedCount : 0.0;
+			out.printf("  %-24s %12d %12.1f %12.2f %12.2f\n", timer.name, count, count * meanNanos / 1e6, meanNanos / 1e3,
+					timer.maxNanos.get() / 1e3);
+		}
+		for (Counter counter : counterList) {
+			long value = counter.value.sum();
+			if (value != 0) {
+				out.printf("  %-24s %12d\n", counter.name, value);
+			}
+		}
+	}
+
+
+	public static void reloadSettings() {
+		ENABLED = SimulatorMain.settings.getBoolean("metrics.enabled");
+		SAMPLE_INTERVAL = Math.max(1, SimulatorMain.settings.getInt("metrics.sample_interval"));
+	}
+
+
+	/**
+	 * Times one phase of the simulation. Use it as:
+	 *
+	 * <pre>
+	 * long start = TIMER.start();
+	 * doPhase();
+	 * TIMER.stop(start);
+	 * </pre>
+	 */
+	public static class Timer {
+		private final String name;
+		private final LongAdder count = new LongAdder();
+		private final LongAdder timedCount = new LongAdder();
+		private final LongAdder timedNanos = new LongAdder();
+		private final LongAccumulator maxNanos = new LongAccumulator(new LongBinaryOperator() {
+			@Override
+			public long applyAsLong(long left, long right) {
+				return Math.max(left, right);
+			}
+		}, 0);
+
+
+		private Timer(String name) {
+			this.name = name;
+		}
+
+
+		/**
+		 * Starts timing a call
+		 *
+		 * @return the value to pass to {@link #stop(long)}
+		 */
+		public long start() {
+			if (!ENABLED) {
+				return NOT_COUNTED;
+			}
+			if (1 < SAMPLE_INTERVAL && ThreadLocalRandom.current().nextInt(SAMPLE_INTERVAL) != 0) {
+				return NOT_TIMED;
+			}
+			return System.nanoTime();
+		}
+
+
+		/**
+		 * Finishes timing a call
+		 *
+		 * @param start
+		 *                the value returned by {@link #start()}
+		 */
+		public void stop(long start) {
+			if (start == NOT_COUNTED) {
+				return;
+			}
+			this.count.increment();
+			if (start != NOT_TIMED) {
+				long nanos = System.nanoTime() - start;
+				this.timedCount.increment();
+				this.timedNanos.add(nanos);
+				this.maxNanos.accumulate(nanos);
+			}
+		}
+
+
+		private void reset() {
+			this.count.reset();
+			this.timedCount.reset();
+			this.timedNanos.reset();
+			this.maxNanos.reset();
+		}
+	}
+
+
+	/**
+	 * Counts events, such as messages sent to an external process
+	 */
+	public static class Counter {
+		private final String name;
+		private final LongAdder value = new LongAdder();
+
+
+		private Counter(String name) {
+			this.name = name;
+		}
+
+
+		public void add(long amount) {
+			if (ENABLED) {
+				this.value.add(amount);
+			}
+		}
+
+
+		private void reset() {
+			this.value.reset();
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package adsim;
+
+import java.util.SplittableRandom;
+
+/**
+ * The random number streams for one simulation, all derived from a single master
+ * seed. Each subsystem draws from its own stream, so runs with the same seed are
+ * identical, and changing how many numbers one subsystem uses doesn't shift the
+ * others. Streams are not thread-safe; every simulation has its own set, so threads
+ * running separate simulations never share a generator.
+ *
+ * @author Mike D'Arcy
+ *
+ */
+public class RandomStreams {
+	private static final long SEED_GAMMA = 0x9E3779B97F4A7C15L;
+
+	/**
+	 * Grid sizes and grid generator seeds
+	 */
+	public final SplittableRandom generator;
+	/**
+	 * Robot start locations and goal locations
+	 */
+	public final SplittableRandom placement;
+	/**
+	 * Whether dangerous cells break the robots that cover them
+	 */
+	public final SplittableRandom threats;
+	/**
+	 * Exploration by the algorithms. Each algorithm instance should get its own
+	 * {@link SplittableRandom#split()} of this.
+	 */
+	public final SplittableRandom exploration;
+	private final long seed;
+
+
+	public RandomStreams(long seed) {
+		this.seed = seed;
+		SplittableRandom master = new SplittableRandom(seed);
+		this.generator = master.split();
+		this.placement = master.split();
+		this.threats = master.split();
+		this.exploration = master.split();
+	}
+
+
+	/**
+	 * Creates streams using the <code>adsim.random_seed</code> setting. If it is
+	 * negative, the seed is chosen randomly (and differs for every call).
+	 */
+	public static RandomStreams fromSettings() {
+		int seed = SimulatorMain.settings.getInt("adsim.random_seed");
+		if (seed < 0) {
+			return new RandomStreams(new SplittableRandom().nextLong());
+		}
+		return new RandomStreams(seed);
+	}
+
+
+	/**
+	 * Derives an independent seed from a master seed, for example to give each of
+	 * several workers its own streams
+	 *
+	 * @param seed
+	 *                the master seed
+	 * @param index
+	 *                the index of the derived seed
+	 * @return the derived seed
+	 */
+	public static long deriveSeed(long seed, long index) {
+		return new SplittableRandom(seed + SEED_GAMMA * index).nextLong();
+	}
+
+
+	public long getSeed() {
+		return this.seed;
+	}
+}
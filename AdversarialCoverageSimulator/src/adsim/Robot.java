@@ -13,6 +13,11 @@ public abstract class Robot {
 	 * Whether the robot can continue coverage or not
 	 */
 	boolean isBroken = false;
+
+	/**
+	 * Notified when the robot breaks or is repaired, or null
+	 */
+	private BrokenStateListener brokenStateListener = null;
 	
 	protected Robot() {
 		this.uniqueId = 0;
@@ -35,7 +40,39 @@ public abstract class Robot {
 	}
 
 	public void setBroken(boolean broken) {
+		if (this.isBroken == broken) {
+			return;
+		}
 		this.isBroken = broken;
+		if (this.brokenStateListener != null) {
+			this.brokenStateListener.onBrokenStateChanged(this, broken);
+		}
+	}
+
+	/**
+	 * Sets the listener to notify when the robot breaks or is repaired. A robot has at
+	 * most one listener (normally the environment it is in).
+	 * 
+	 * @param listener
+	 *                the listener, or null for none
+	 */
+	public void setBrokenStateListener(BrokenStateListener listener) {
+		this.brokenStateListener = listener;
+	}
+
+	/**
+	 * Listens for changes to a robot's broken state
+	 */
+	public interface BrokenStateListener {
+		/**
+		 * Called when the robot's broken state changes
+		 * 
+		 * @param robot
+		 *                the robot
+		 * @param broken
+		 *                whether the robot is now broken
+		 */
+		public void onBrokenStateChanged(Robot robot, boolean broken);
 	}
 
 	@Override
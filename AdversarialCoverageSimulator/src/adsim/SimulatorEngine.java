@@ -6,12 +6,19 @@ import simulations.generic.GenericSimulation;
 import simulations.generic.display.EmptyDisplayAdapter;
 import simulations.pathplan.PathplanSimulation;
 
-public class SimulatorEngine {
-
-	private boolean isRunning = false;
+public class SimulatorEngine implements SimulatorEngineMXBean {
+	private static final Metrics.Timer STEP_TIMER = Metrics.timer("engine.step");
+	private static final Metrics.Timer STATS_TIMER = Metrics.timer("engine.stats");
+	private static final Metrics.Timer DISPLAY_TIMER = Metrics.timer("engine.display");
+	private static final Metrics.Timer RUN_END_TIMER = Metrics.timer("engine.run_end");
+
+	// These are volatile since they are also read by the console and JMX threads.
+	// The methods that step or start the simulation are synchronized, so two threads
+	// can't both get past the check that the simulation thread isn't running.
+	private volatile boolean isRunning = false;
+	private volatile Thread simulationThread = null;
+	private volatile Simulation simulation;
 	private Display display = null;
-	private Thread simulationThread = null;
-	private Simulation simulation;
 
 
 	public SimulatorEngine(Simulation sim) {
@@ -28,6 +35,7 @@ public class SimulatorEngine {
 
 	public void init() {
 		this.registerConsoleCommands();
+		Metrics.reloadSettings();
 	}
 
 
@@ -89,6 +97,23 @@ public class SimulatorEngine {
 			}
 		});
 
+		controller.registerCommand(":metrics", new TerminalCommand() {
+			@Override
+			public void execute(String[] args) {
+				if (args.length < 1) {
+					Metrics.print(System.out);
+				} else if (args[0].equalsIgnoreCase("reset")) {
+					Metrics.reset();
+				} else if (args[0].equalsIgnoreCase("on")) {
+					Metrics.setEnabled(true);
+				} else if (args[0].equalsIgnoreCase("off")) {
+					Metrics.setEnabled(false);
+				} else {
+					System.err.println("Usage: :metrics [reset|on|off]");
+				}
+			}
+		});
+
 		controller.registerCommand(":quit", new TerminalCommand() {
 			@Override
 			public void execute(String[] args) {
@@ -101,7 +126,12 @@ public class SimulatorEngine {
 	}
 
 
-	public void stepSimulation() {
+	@Override
+	public synchronized void stepSimulation() {
+		if (this.isThreadRunning()) {
+			System.err.println("Can't step while the simulation is running.");
+			return;
+		}
 		if (!this.simulation.isTerminalState()) {
 			this.step();
 		}
@@ -109,12 +139,14 @@ public class SimulatorEngine {
 	}
 
 
-	public void runSimulation() {
+	@Override
+	public synchronized void runSimulation() {
 		this.isRunning = true;
 		startSimulationLoop();
 	}
 
 
+	@Override
 	public void pauseSimulation() {
 		this.isRunning = false;
 	}
@@ -189,7 +221,7 @@ public class SimulatorEngine {
 	}
 
 
-	private void startSimulationLoop() {
+	private synchronized void startSimulationLoop() {
 		if (this.isThreadRunning()) {
 			System.err.print("Coverage thread is already running. No action will be taken.\n");
 			return;
@@ -217,10 +249,14 @@ public class SimulatorEngine {
 			long time = System.currentTimeMillis();
 			this.step();
 			if (doRepaint && !SimulatorMain.args.HEADLESS) {
+				long start = DISPLAY_TIMER.start();
 				refreshDisplay();
+				DISPLAY_TIMER.stop(start);
 			}
 			if (this.simulation.isTerminalState()) {
+				long start = RUN_END_TIMER.start();
 				handleSimulationCompletion();
+				RUN_END_TIMER.stop(start);
 			}
 
 			time = System.currentTimeMillis() - time;
@@ -248,18 +284,41 @@ public class SimulatorEngine {
 
 
 	private void step() {
+		long start = STEP_TIMER.start();
 		this.simulation.onStep();
+		long statsStart = STATS_TIMER.start();
 		SimulatorMain.getStats().updateTimeStep();
+		STATS_TIMER.stop(statsStart);
+		STEP_TIMER.stop(start);
 	}
 
 
+	@Override
 	public boolean isRunning() {
 		return this.isRunning;
 	}
 
 
+	@Override
 	public boolean isThreadRunning() {
-		return (this.simulationThread != null && this.simulationThread.isAlive());
+		Thread thread = this.simulationThread;
+		return (thread != null && thread.isAlive());
+	}
+
+
+	@Override
+	public String getState() {
+		if (this.isRunning) {
+			return "RUNNING";
+		}
+		return this.isThreadRunning() ? "STOPPING" : "PAUSED";
+	}
+
+
+	@Override
+	public String getSimulationName() {
+		Simulation sim = this.simulation;
+		return (sim == null) ? "" : sim.getClass().getSimpleName();
 	}
 
 
@@ -270,6 +329,7 @@ public class SimulatorEngine {
 
 
 	public void reloadSettings() {
+		Metrics.reloadSettings();
 		if (this.simulation != null) {
 			this.simulation.reloadSettings();
 		}
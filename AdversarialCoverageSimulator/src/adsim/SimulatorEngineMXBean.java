@@ -0,0 +1,51 @@
+package adsim;
+
+/**
+ * JMX view of the {@link SimulatorEngine}, so a running simulator can be watched and
+ * controlled without going through the console. Reading the attributes never blocks
+ * the simulation thread.
+ *
+ * @author Mike D'Arcy
+ *
+ */
+public interface SimulatorEngineMXBean {
+
+	/**
+	 * Gets whether the simulation loop has been told to keep running
+	 */
+	public boolean isRunning();
+
+
+	/**
+	 * Gets whether the simulation thread is alive. It may still be finishing a step
+	 * after the simulation has been paused.
+	 */
+	public boolean isThreadRunning();
+
+
+	/**
+	 * Gets the engine state, which is one of <code>RUNNING</code>,
+	 * <code>STOPPING</code> (paused, but the thread is still finishing its step), or
+	 * <code>PAUSED</code>
+	 */
+	public String getState();
+
+
+	/**
+	 * Gets the class name of the current simulation
+	 */
+	public String getSimulationName();
+
+
+	public void runSimulation();
+
+
+	public void pauseSimulation();
+
+
+	/**
+	 * Runs a single step. Nothing is done if the simulation thread is running.
+	 */
+	public void stepSimulation();
+
+}
@@ -1,8 +1,16 @@
 package adsim;
 
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import gridenv.GridEnvironment;
 import simulations.coverage.CoverageSimulation;
 import simulations.coverage.CoverageStats;
+import simulations.coverage.CoverageStatsMonitor;
+import simulations.generic.algo.DQLMonitor;
 
 public class SimulatorMain {
 
@@ -12,7 +20,7 @@ public class SimulatorMain {
 	public static ConsoleController controller = null;
 
 	GridEnvironment env = null;
-	private static CoverageStats stats;
+	private static volatile CoverageStats stats;
 	private static SimulatorEngine engine = null;
 
 
@@ -29,6 +37,7 @@ public class SimulatorMain {
 
 		SimulatorMain.engine = new SimulatorEngine(new CoverageSimulation());
 		SimulatorMain.engine.newRun();
+		SimulatorMain.registerManagementBeans();
 
 		if (!args.RC_FILE.equals("")) {
 			SimulatorMain.controller.loadCommandFile(args.RC_FILE);
@@ -43,6 +52,22 @@ public class SimulatorMain {
 	}
 
 
+	/**
+	 * Registers the engine, stats, and DQL beans with the platform MBean server, so
+	 * they can be watched with tools like JConsole
+	 */
+	private static void registerManagementBeans() {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			server.registerMBean(SimulatorMain.engine, new ObjectName("adsim:type=SimulatorEngine"));
+			server.registerMBean(new CoverageStatsMonitor(), new ObjectName("adsim:type=CoverageStats"));
+			server.registerMBean(DQLMonitor.getInstance(), new ObjectName("adsim:type=DQL"));
+		} catch (JMException e) {
+			System.err.println("Failed to register management beans: " + e.getMessage());
+		}
+	}
+
+
 	public static SimulatorEngine getEngine() {
 		return engine;
 	}
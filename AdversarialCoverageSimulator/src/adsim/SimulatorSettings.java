@@ -96,6 +96,7 @@ public class SimulatorSettings {
 	 * Sets all settings to the default values
 	 */
 	public void setDefaults() {
+		this.setInt("adsim.random_seed", -1);
 		this.setInt("autorun.max_steps_per_run", Integer.MAX_VALUE - 1);
 		this.setInt("autorun.stepdelay", 0);
 		this.setInt("deepql.history_max", 1);
@@ -104,14 +105,28 @@ public class SimulatorSettings {
 		this.setInt("deepql.minibatch_seq.fullep.numCodes", -1);
 		this.setInt("deepql.external.rnn.num_codes_per_minibatch", 1);
 		this.setInt("deepql.nn_input.vision_radius", 5);
+		this.setInt("deepql.obs_codec.keyframe_interval", 100);
+		this.setInt("deepql.obs_codec.quantization_bits", 16);
+		this.setInt("demogen.max_steps_per_episode", 10000);
+		this.setInt("demogen.num_threads", 0);
+		this.setInt("demogen.quantization_bits", 0);
+		this.setInt("demogen.records_per_shard", 100000);
+		this.setInt("env.grid.generator_parallel_threshold", 65536);
+		this.setInt("env.grid.generator_seed", -1);
 		this.setInt("env.grid.height", 5);
 		this.setInt("env.grid.maxheight", 5);
 		this.setInt("env.grid.maxwidth", 5);
 		this.setInt("env.grid.minheight", 5);
 		this.setInt("env.grid.minwidth", 5);
 		this.setInt("env.grid.width", 5);
+		this.setInt("env.prefetch.count", 0);
+		this.setInt("gsac.cluster_size", 16);
+		this.setInt("jfr.step_sample_interval", 100);
+		this.setInt("livelock.cycle_repeats", 100);
+		this.setInt("livelock.no_progress_steps", 2000);
 		this.setInt("logging.deepql.loss_sampling_interval", 500);
 		this.setInt("logging.deepql.loss_display_interval", 500);
+		this.setInt("metrics.sample_interval", 1);
 		this.setInt("neuralnet.hidden_layer_size", 30);
 		this.setInt("neuralnet.num_hidden_layers", 2);
 		this.setInt("robots.count", 1);
@@ -130,11 +145,17 @@ public class SimulatorSettings {
 		this.setBoolean("deepql.statepreprocessor.attempt_normalization", true);
 		this.setBoolean("env.clear_adjacent_cells_on_init", false);
 		this.setBoolean("env.grid.force_square", true);
+		this.setBoolean("env.prefetch.precompute_plans", true);
 		this.setBoolean("env.variable_grid_size", false);
+		this.setBoolean("livelock.enabled", false);
+		this.setBoolean("metrics.enabled", false);
 		this.setBoolean("neuralnet.give_global_pos_and_size", false);
+		this.setBoolean("neuralnet.torch.use_obs_codec", false);
 		this.setBoolean("neuralnet.torch.use_partial_transitions", false);
 		this.setBoolean("robots.breakable", true);
 		this.setBoolean("rules.robots.robotsAreObstacles", true);
+		this.setBoolean("stc.danger_aware_tree", true);
+		this.setBoolean("stc.danger_sorted_subtrees", true);
 
 		this.setDouble("deepql.discountfactor", 0.9);
 		this.setDouble("deepql.greedy_epsilon_decrement", 5E-7);
@@ -148,6 +169,7 @@ public class SimulatorSettings {
 		this.setDouble("deepql.statepreprocessor.out_of_bounds_vals.danger", 0.0);
 		this.setDouble("deepql.statepreprocessor.out_of_bounds_vals.cover", 0.0);
 		this.setDouble("deepql.statepreprocessor.out_of_bounds_vals.obstacle", 1.0);
+		this.setDouble("gsac.partition.danger_weight", 10.0);
 		this.setDouble("neuralnet.learning_rate", 0.1);
 		this.setDouble("neuralnet.momentum", 0.9);
 		this.setDouble("neuralnet.rms.decay_rate", 0.9);
@@ -159,7 +181,12 @@ public class SimulatorSettings {
 		this.setString("deepql.minibatch_seq_type", "manual");
 		this.setString("deepql.nn_setup_mode", "native");
 		this.setString("deepql.statepreprocessor.vision_type", "CENTERED_SNAP_TO_EDGES");
+		this.setString("demogen.output_dir", "demos");
 		this.setString("env.grid.dangervalues", "@o 0.00 @d 0.3 @r 0.00 0.25");
+		this.setString("env.grid.generator_mode", "sequential");
+		this.setString("env.grid.map_pack", "");
+		this.setString("env.step_mode", "sequential");
+		this.setString("gsac.search_mode", "legacy");
 		this.setString("hooks.env.post_init.cmd", "");
 		this.setString("logging.logfile", "");
 		this.setString("neuralnet.torch.minibatch_code", "m");
@@ -0,0 +1,36 @@
+package adsim;
+
+/**
+ * An algorithm whose step can be split into choosing an action and taking it, so the
+ * environment can let all robots choose their actions at the same time before any of
+ * them act.
+ * <p>
+ * {@link #step()} should be equivalent to
+ * <code>commitAction(decideAction())</code>.
+ *
+ * @author Mike D'Arcy
+ *
+ */
+public interface TwoPhaseAlgorithm extends Algorithm {
+
+	/**
+	 * Chooses the action for this step. This may be called on a worker thread at the
+	 * same time as other robots' algorithms, so it may only read the environment (and
+	 * modify the algorithm's own state). The environment is not modified until every
+	 * robot has chosen.
+	 *
+	 * @return the id of the action to take
+	 */
+	public int decideAction();
+
+
+	/**
+	 * Takes the action chosen by {@link #decideAction()} and does any bookkeeping that
+	 * depends on its outcome. This is called on the simulation thread, in robot order.
+	 *
+	 * @param actionId
+	 *                the action to take
+	 */
+	public void commitAction(int actionId);
+
+}
@@ -24,6 +24,38 @@ public interface DQLStatePreprocessor {
 	public double[] getPreprocessedState(double[] stateBuffer);
 
 
+	/**
+	 * Writes the current preprocessed state into <code>stateBuffer</code>, using
+	 * <code>prevState</code> to avoid recomputing the parts of the state that haven't
+	 * changed. For this to help, <code>prevState</code> must be the buffer most
+	 * recently filled by this preprocessor (by this method or by
+	 * {@link DQLStatePreprocessor#getPreprocessedState(double[])}), and it must not
+	 * have been modified since. Otherwise (or if <code>prevState</code> is null), the
+	 * full state is computed. The two buffers may be the same array, in which case the
+	 * state is updated in place.
+	 * 
+	 * @param prevState
+	 *                the previous state computed by this preprocessor
+	 * @param stateBuffer
+	 *                the buffer to store the state in
+	 * @return a reference to <code>stateBuffer</code>
+	 */
+	public double[] updatePreprocessedState(double[] prevState, double[] stateBuffer);
+
+
+	/**
+	 * Checks whether the state would be different from <code>prevState</code> if it
+	 * were computed now. If <code>prevState</code> is not the buffer most recently
+	 * filled by this preprocessor, this conservatively returns true.
+	 * 
+	 * @param prevState
+	 *                the previous state computed by this preprocessor
+	 * @return false if <code>prevState</code> is still the current state, true
+	 *         otherwise
+	 */
+	public boolean hasStateChanged(double[] prevState);
+
+
 	/**
 	 * Returns the length of the state vector returned by the
 	 * <code>getPreprocessedState()</code> function., which is also the size of the
@@ -36,4 +68,21 @@ public interface DQLStatePreprocessor {
 	 * @see DQLStatePreprocessor#getPreprocessedState(double[])
 	 */
 	public int getStateSize();
+
+
+	/**
+	 * Creates an observation codec with a layout that matches the state vectors
+	 * produced by this preprocessor, so the binary layers are bit-packed and the
+	 * danger layer is quantized.
+	 * 
+	 * @param quantBits
+	 *                the number of bits used to quantize danger values (8 or 16), or
+	 *                0 to store them losslessly
+	 * @param keyframeInterval
+	 *                the number of frames between keyframes
+	 * @return a new codec for this preprocessor's states
+	 * 
+	 * @see ObservationCodec
+	 */
+	public ObservationCodec createObservationCodec(int quantBits, int keyframeInterval);
 }
@@ -3,9 +3,14 @@ package deeplearning;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.Base64;
 import java.util.InputMismatchException;
 import java.util.Scanner;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import adsim.FlightRecorder;
+import adsim.Metrics;
 import adsim.SimulatorMain;
 import adsim.TerminalCommand;
 
@@ -20,12 +25,32 @@ import java.io.*;
  *
  */
 public class ExternalTorchNN extends NeuralNet {
+	private static final Metrics.Timer SEND_TIMER = Metrics.timer("nn.ipc_send");
+	private static final Metrics.Timer WAIT_TIMER = Metrics.timer("nn.ipc_wait");
+	private static final Metrics.Counter SENT_CHARS = Metrics.counter("nn.ipc_sent_chars");
+	/**
+	 * Source of the stream ids that tag encoded frames. Every robot's DQL has its own
+	 * instance of this class, all writing to the same external process, so the
+	 * process needs the id to keep a separate decoder for each codec.
+	 */
+	private static final AtomicInteger nextStreamId = new AtomicInteger();
+	private static final FlightRecorder FLIGHT_RECORDER = FlightRecorder.get();
 	String outFilename;
 	String inFilename;
 	PrintWriter outWriter = new PrintWriter(System.out);
 	Scanner inReader = new Scanner(System.in);
 	BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
 	StringBuilder outMsg = new StringBuilder("");
+	ObservationCodec obsCodec = null;
+	ByteBuffer obsCodecBuf = null;
+	private final int streamId = nextStreamId.getAndIncrement();
+	/**
+	 * The round trip being recorded, from the last forward message until its outputs
+	 * are read, or null if this one isn't sampled
+	 */
+	private Object roundTripEvent = null;
+	private long numRoundTrips = 0;
+	private int JFR_SAMPLE_INTERVAL = SimulatorMain.settings.getInt("jfr.step_sample_interval");
 
 
 	public ExternalTorchNN(String outFile, String inFile) {
@@ -58,6 +83,78 @@ public class ExternalTorchNN extends NeuralNet {
 				sendCommand(args[0]);
 			}
 		});
+
+		SimulatorMain.controller.registerCommand(":ExternalTorchNN_codecStats", new TerminalCommand() {
+			@Override
+			public void execute(String[] args) {
+				if (obsCodec == null) {
+					System.out.println("Observation codec is not in use.");
+					return;
+				}
+				System.out.println(obsCodec.getStatsString());
+				if (0 < args.length && args[0].equals("reset")) {
+					obsCodec.resetStats();
+				}
+			}
+		});
+	}
+
+
+	/**
+	 * Sets up the observation codec for states from the given preprocessor, if the
+	 * <code>neuralnet.torch.use_obs_codec</code> setting is enabled. When the codec
+	 * is in use, states are sent as base64-encoded {@link ObservationCodec} frames
+	 * instead of lists of doubles, and the codec layout is sent to the external
+	 * process immediately so it can decode them.
+	 * <p>
+	 * Since delta frames can only be decoded against the previous frame from the
+	 * same codec, the layout and every encoded message header carry this instance's
+	 * stream id (e.g. <code>f_enc 3</code>), and the external process must keep one
+	 * decoder per stream id.
+	 * 
+	 * @param preprocessor
+	 *                the preprocessor that produces the states that will be sent
+	 */
+	public void setupObservationCodec(DQLStatePreprocessor preprocessor) {
+		if (!SimulatorMain.settings.getBoolean("neuralnet.torch.use_obs_codec")) {
+			this.obsCodec = null;
+			return;
+		}
+		this.obsCodec = preprocessor.createObservationCodec(SimulatorMain.settings.getInt("deepql.obs_codec.quantization_bits"),
+				SimulatorMain.settings.getInt("deepql.obs_codec.keyframe_interval"));
+		this.obsCodecBuf = ByteBuffer.allocate(Math.max(2 * this.obsCodec.maxEncodedSize(), this.obsCodec.layoutSize()));
+
+		this.obsCodec.writeLayout(this.obsCodecBuf);
+		this.outMsg.append("obs_codec_layout ").append(this.streamId).append('\n');
+		this.appendCodecBuffer();
+		this.sendMessage();
+	}
+
+
+	/**
+	 * Appends the contents of the codec buffer to the outgoing message as a single
+	 * base64 line, and clears the buffer.
+	 */
+	private void appendCodecBuffer() {
+		this.obsCodecBuf.flip();
+		byte[] bytes = new byte[this.obsCodecBuf.remaining()];
+		this.obsCodecBuf.get(bytes);
+		this.obsCodecBuf.clear();
+		this.outMsg.append(Base64.getEncoder().encodeToString(bytes));
+		this.outMsg.append('\n');
+	}
+
+
+	/**
+	 * Writes the outgoing message to the external process and clears it
+	 */
+	private void sendMessage() {
+		long start = SEND_TIMER.start();
+		SENT_CHARS.add(this.outMsg.length());
+		this.outWriter.print(this.outMsg.toString());
+		this.outWriter.flush();
+		this.outMsg.setLength(0);
+		SEND_TIMER.stop(start);
 	}
 
 
@@ -69,24 +166,60 @@ public class ExternalTorchNN extends NeuralNet {
 
 	@Override
 	public void feedForward(double[] inputs) {
-		this.outMsg.append("f\n");
-		for (int i = 0; i < inputs.length; i++) {
-			this.outMsg.append(String.format("%a ", inputs[i]));
-		}
+		if (this.obsCodec != null) {
+			this.outMsg.append("f_enc ").append(this.streamId).append('\n');
+			this.obsCodec.encode(inputs, this.obsCodecBuf);
+			this.appendCodecBuffer();
+		} else {
+			this.outMsg.append("f\n");
+			for (int i = 0; i < inputs.length; i++) {
+				this.outMsg.append(String.format("%a ", inputs[i]));
+			}
 
-		this.outMsg.append('\n');
-		this.outWriter.print(this.outMsg.toString());
-		this.outWriter.flush();
-		this.outMsg.setLength(0);
+			this.outMsg.append('\n');
+		}
+		this.beginRoundTrip(this.outMsg.length());
+		this.sendMessage();
 	}
 	
 	
 	public void feedForward_noSendState() {
+		this.beginRoundTrip(0);
 		this.outWriter.print("f_nostate\n");
 		this.outWriter.flush();
 	}
 
 
+	/**
+	 * Starts recording a round trip, if a recording is running and this one is
+	 * sampled
+	 */
+	private void beginRoundTrip(long sentChars) {
+		this.roundTripEvent = null;
+		if (0 < this.JFR_SAMPLE_INTERVAL && this.numRoundTrips++ % this.JFR_SAMPLE_INTERVAL == 0) {
+			this.roundTripEvent = FLIGHT_RECORDER.beginNNRoundTrip(sentChars);
+		}
+	}
+
+
+	private void endRoundTrip(String received) {
+		Object event = this.roundTripEvent;
+		if (event == null) {
+			return;
+		}
+		this.roundTripEvent = null;
+		FLIGHT_RECORDER.endNNRoundTrip(event, (received == null) ? 0 : received.length());
+	}
+
+
+	@Override
+	public double[] getOutputs(double[] outputs) {
+		// The outputs are parsed from a new line of text each time, so there is
+		// nothing to gain by reusing the array
+		return this.getOutputs();
+	}
+
+
 	@Override
 	public double[] getOutputs() {
 		// Make an array with the same size as the last layer of the
@@ -95,7 +228,10 @@ public class ExternalTorchNN extends NeuralNet {
 		Scanner s = null;
 		String str = "";
 		try {
+			long start = WAIT_TIMER.start();
 			str = this.br.readLine();
+			WAIT_TIMER.stop(start);
+			this.endRoundTrip(str);
 			if (str != null) {
 				s = new Scanner(str);
 			}
@@ -134,13 +270,15 @@ public class ExternalTorchNN extends NeuralNet {
 			this.outMsg.append(String.format("%a ", correctOutputs[i]));
 		}
 		this.outMsg.append('\n');
-		this.outWriter.print(this.outMsg.toString());
-		this.outWriter.flush();
-		this.outMsg.setLength(0);
+		this.sendMessage();
 	}
 
 
 	public void sendTransition(StateTransition trans, boolean allowPartial) {
+		if (this.obsCodec != null) {
+			this.sendEncodedTransition(trans, allowPartial);
+			return;
+		}
 
 		if (allowPartial) {
 			this.outMsg.append("t_nostartstate\n");
@@ -166,9 +304,34 @@ public class ExternalTorchNN extends NeuralNet {
 			this.outMsg.append('\n');
 		}
 
-		this.outWriter.print(this.outMsg.toString());
-		this.outWriter.flush();
-		this.outMsg.setLength(0);
+		this.sendMessage();
+	}
+
+
+	/**
+	 * Sends a transition using the observation codec. The message is a header line
+	 * with the stream id, the transition info line, and one base64 line containing
+	 * the encoded start state (unless partial transitions are allowed) followed by the
+	 * encoded next state (unless the transition is terminal).
+	 */
+	private void sendEncodedTransition(StateTransition trans, boolean allowPartial) {
+		this.outMsg.append(allowPartial ? "t_enc_nostartstate " : "t_enc ").append(this.streamId).append('\n');
+		this.outMsg.append(String.format("%d %a %d \n", trans.action + 1, trans.reward, trans.isTerminal ? 1 : 0));
+
+		if (!allowPartial) {
+			this.obsCodec.encode(trans.nnInput, this.obsCodecBuf);
+		}
+		if (!trans.isTerminal) {
+			this.obsCodec.encode(trans.nextInput, this.obsCodecBuf);
+		}
+		this.appendCodecBuffer();
+
+		this.sendMessage();
+	}
+
+
+	public ObservationCodec getObservationCodec() {
+		return this.obsCodec;
 	}
 
 
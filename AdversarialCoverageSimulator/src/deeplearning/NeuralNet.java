@@ -16,6 +16,10 @@ public class NeuralNet {
 	public double RMS_DECAY_RATE = SimulatorMain.settings.getDouble("neuralnet.rms.decay_rate");
 	public TrainingType trainingType = TrainingType.RMSPROP;
 	private int samplesInBatch = 0;
+	/**
+	 * Holds the outputs during backpropagation, reused between samples
+	 */
+	private double[] backPropOutputs = null;
 	static Random randgen = new Random();
 	static final ActivationFunction DEFAULT_ACTIVATION = ActivationFunction.RELU_ACTIVATION;
 
@@ -313,7 +317,8 @@ public class NeuralNet {
 
 
 	public void backPropagateFromLastSample_Momentum(double[] correctOutputs) {
-		double[] realOutputs = this.getOutputs();
+		this.backPropOutputs = this.getOutputs(this.backPropOutputs);
+		double[] realOutputs = this.backPropOutputs;
 		List<Neuron> outputNeurons = this.layers.get(this.layers.size() - 1);
 		for (int i = 0; i < outputNeurons.size(); i++) {
 			outputNeurons.get(i).setErrorTerm(-(correctOutputs[i] - realOutputs[i])
@@ -336,7 +341,8 @@ public class NeuralNet {
 
 	public void backPropagateFromLastSample_RMSProp(double[] correctOutputs) {
 		this.samplesInBatch++;
-		double[] realOutputs = this.getOutputs();
+		this.backPropOutputs = this.getOutputs(this.backPropOutputs);
+		double[] realOutputs = this.backPropOutputs;
 		List<Neuron> outputNeurons = this.layers.get(this.layers.size() - 1);
 		for (int i = 0; i < outputNeurons.size(); i++) {
 			outputNeurons.get(i).setErrorTerm(-(correctOutputs[i] - realOutputs[i])
@@ -358,9 +364,25 @@ public class NeuralNet {
 
 
 	public double[] getOutputs() {
+		return this.getOutputs(null);
+	}
+
+
+	/**
+	 * Gets the outputs of the network, reusing the given array if it is the right
+	 * size
+	 * 
+	 * @param outputs
+	 *                the array to write the outputs into, or null
+	 * @return the outputs (<code>outputs</code> itself, unless it was null or the
+	 *         wrong size)
+	 */
+	public double[] getOutputs(double[] outputs) {
 		// Make an array with the same size as the last layer of the
 		// network
-		double[] outputs = new double[this.layers.get(this.layers.size() - 1).size()];
+		if (outputs == null || outputs.length != this.layers.get(this.layers.size() - 1).size()) {
+			outputs = new double[this.layers.get(this.layers.size() - 1).size()];
+		}
 
 		for (int i = 0; i < outputs.length; i++) {
 			outputs[i] = this.layers.get(this.layers.size() - 1).get(i).getOutputValue();
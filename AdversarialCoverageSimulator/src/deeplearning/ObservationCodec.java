@@ -0,0 +1,663 @@
+package deeplearning;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact binary encoder/decoder for streams of preprocessed observations.
+ * <p>
+ * The observation vector is described as a list of segments. Binary segments (layers
+ * that only take one of two values, like the cover or obstacle layers) are bit-packed.
+ * Quantized segments (like the danger layer) are stored as 8- or 16-bit integers over a
+ * fixed range. Raw segments are stored as full doubles. Values in a binary segment that
+ * are neither of the two expected values (such as out-of-bounds fill values) are stored
+ * as exceptions, so binary and raw segments are lossless; only quantized segments lose
+ * precision.
+ * <p>
+ * Most frames are encoded as deltas against the previous frame, with a keyframe every
+ * <code>keyframeInterval</code> frames. Because of this, a codec instance keeps state
+ * about the last frame it saw, and an instance should be used either for encoding or
+ * for decoding a single stream, but not both. Use {@link #copyLayout()} to get a fresh
+ * codec with the same layout for the other end of the stream.
+ *
+ * @author Mike D'Arcy
+ *
+ */
+public class ObservationCodec {
+	/**
+	 * Frame type marker for keyframes
+	 */
+	public static final byte FRAME_KEY = 'K';
+
+	/**
+	 * Frame type marker for delta frames
+	 */
+	public static final byte FRAME_DELTA = 'D';
+
+	private static final int CODE_EXCEPTION = 2;
+
+	private final int stateSize;
+	private final int quantBits;
+	private final int keyframeInterval;
+	private List<Segment> segments = new ArrayList<>();
+	private Segment[] segmentArr = new Segment[0];
+
+	/**
+	 * Per-element code of the last frame. For binary elements this is 0 (low), 1
+	 * (high), or {@link #CODE_EXCEPTION}; for quantized elements it is the quantized
+	 * level. Raw elements don't use it.
+	 */
+	private int[] lastCodes;
+
+	/**
+	 * The last frame, as the decoder will see it
+	 */
+	private double[] lastValues;
+	private boolean hasLastFrame = false;
+	private long framesSinceKeyframe = 0;
+
+	// Stats
+	private long numFrames = 0;
+	private long numKeyframes = 0;
+	private long totalEncodedBytes = 0;
+	private long totalEncodeNanos = 0;
+
+
+	/**
+	 * Creates a codec for observations of the given size. Segments must be added with
+	 * the <code>add*Segment</code> methods before the codec is used; any elements not
+	 * covered by a segment are treated as raw.
+	 *
+	 * @param stateSize
+	 *                the length of the observation vectors
+	 * @param quantBits
+	 *                the number of bits to use for quantized segments (8 or 16). If
+	 *                this is 0, quantized segments are stored losslessly as raw
+	 *                segments instead.
+	 * @param keyframeInterval
+	 *                the number of frames between keyframes. A value of 1 makes every
+	 *                frame a keyframe, which allows frames to be decoded independently.
+	 */
+	public ObservationCodec(int stateSize, int quantBits, int keyframeInterval) {
+		this.stateSize = stateSize;
+		if (quantBits <= 0) {
+			this.quantBits = 0;
+		} else {
+			this.quantBits = (quantBits <= 8) ? 8 : 16;
+		}
+		this.keyframeInterval = Math.max(1, keyframeInterval);
+		this.lastCodes = new int[stateSize];
+		this.lastValues = new double[stateSize];
+	}
+
+
+	/**
+	 * Creates a new codec with the same layout and parameters as this one, but without
+	 * any stream state or stats.
+	 *
+	 * @return a new codec
+	 */
+	public ObservationCodec copyLayout() {
+		ObservationCodec copy = new ObservationCodec(this.stateSize, this.quantBits, this.keyframeInterval);
+		for (Segment seg : this.segments) {
+			copy.addSegment(new Segment(seg.type, seg.offset, seg.length, seg.a, seg.b));
+		}
+		return copy;
+	}
+
+
+	/**
+	 * Adds a segment whose values are expected to be either <code>lowVal</code> or
+	 * <code>highVal</code>.
+	 */
+	public void addBinarySegment(int offset, int length, double lowVal, double highVal) {
+		this.addSegment(new Segment(SegmentType.BINARY, offset, length, lowVal, highVal));
+	}
+
+
+	/**
+	 * Adds a segment whose values lie (approximately) in the range
+	 * <code>[minVal, maxVal]</code>. Values outside the range are clamped.
+	 */
+	public void addQuantizedSegment(int offset, int length, double minVal, double maxVal) {
+		if (this.quantBits == 0) {
+			this.addRawSegment(offset, length);
+			return;
+		}
+		this.addSegment(new Segment(SegmentType.QUANTIZED, offset, length, minVal, maxVal));
+	}
+
+
+	/**
+	 * Adds a segment that is stored losslessly as full doubles.
+	 */
+	public void addRawSegment(int offset, int length) {
+		this.addSegment(new Segment(SegmentType.RAW, offset, length, 0.0, 0.0));
+	}
+
+
+	private void addSegment(Segment seg) {
+		if (seg.length <= 0) {
+			return;
+		}
+		if (seg.offset < 0 || this.stateSize < seg.offset + seg.length) {
+			System.err.println("Observation codec segment is out of bounds. Ignoring it.");
+			return;
+		}
+		int insertPos = 0;
+		while (insertPos < this.segments.size() && this.segments.get(insertPos).offset < seg.offset) {
+			insertPos++;
+		}
+		this.segments.add(insertPos, seg);
+		this.rebuildSegmentArray();
+	}
+
+
+	/**
+	 * Makes sure every element of the state belongs to exactly one segment, by
+	 * filling any gaps with raw segments.
+	 */
+	private void rebuildSegmentArray() {
+		List<Segment> filled = new ArrayList<>();
+		int pos = 0;
+		for (Segment seg : this.segments) {
+			if (seg.offset < pos) {
+				System.err.println("Overlapping observation codec segments. Later segment will be treated as raw.");
+				continue;
+			}
+			if (pos < seg.offset) {
+				filled.add(new Segment(SegmentType.RAW, pos, seg.offset - pos, 0.0, 0.0));
+			}
+			filled.add(seg);
+			pos = seg.offset + seg.length;
+		}
+		if (pos < this.stateSize) {
+			filled.add(new Segment(SegmentType.RAW, pos, this.stateSize - pos, 0.0, 0.0));
+		}
+		this.segmentArr = filled.toArray(new Segment[filled.size()]);
+		this.hasLastFrame = false;
+	}
+
+
+	/**
+	 * Gets an upper bound on the number of bytes a single encoded frame can take.
+	 * Buffers passed to {@link #encode(double[], ByteBuffer)} should have at least this
+	 * much space remaining.
+	 *
+	 * @return the maximum encoded frame size, in bytes
+	 */
+	public int maxEncodedSize() {
+		// Type byte, plus for each element a 5-byte varint and an 8-byte value in the
+		// worst case, plus per-segment counts
+		return 1 + (this.segmentArr.length * 5) + (this.stateSize * 13);
+	}
+
+
+	/**
+	 * Forces the next encoded frame to be a keyframe. This should be called whenever
+	 * the receiver might have lost the stream state (for example, when starting to
+	 * write a new file).
+	 */
+	public void forceKeyframe() {
+		this.hasLastFrame = false;
+	}
+
+
+	/**
+	 * Encodes the given observation into the buffer, starting at the buffer's current
+	 * position.
+	 *
+	 * @param obs
+	 *                the observation to encode
+	 * @param out
+	 *                the buffer to write to
+	 * @return the number of bytes written
+	 */
+	public int encode(double[] obs, ByteBuffer out) {
+		long startTime = System.nanoTime();
+		int startPos = out.position();
+
+		boolean isKeyframe = !this.hasLastFrame || this.keyframeInterval <= this.framesSinceKeyframe;
+		if (isKeyframe) {
+			out.put(FRAME_KEY);
+			for (Segment seg : this.segmentArr) {
+				this.encodeSegmentKey(seg, obs, out);
+			}
+			this.framesSinceKeyframe = 1;
+			this.numKeyframes++;
+		} else {
+			out.put(FRAME_DELTA);
+			for (Segment seg : this.segmentArr) {
+				this.encodeSegmentDelta(seg, obs, out);
+			}
+			this.framesSinceKeyframe++;
+		}
+		this.hasLastFrame = true;
+
+		int nBytes = out.position() - startPos;
+		this.numFrames++;
+		this.totalEncodedBytes += nBytes;
+		this.totalEncodeNanos += System.nanoTime() - startTime;
+		return nBytes;
+	}
+
+
+	private void encodeSegmentKey(Segment seg, double[] obs, ByteBuffer out) {
+		int end = seg.offset + seg.length;
+		if (seg.type == SegmentType.BINARY) {
+			int nExceptions = 0;
+			int curByte = 0;
+			int bitNum = 0;
+			for (int i = seg.offset; i < end; i++) {
+				int code = seg.binaryCode(obs[i]);
+				this.lastCodes[i] = code;
+				this.lastValues[i] = obs[i];
+				if (code == 1) {
+					curByte |= (1 << bitNum);
+				} else if (code == CODE_EXCEPTION) {
+					nExceptions++;
+				}
+				bitNum++;
+				if (bitNum == 8) {
+					out.put((byte) curByte);
+					curByte = 0;
+					bitNum = 0;
+				}
+			}
+			if (bitNum != 0) {
+				out.put((byte) curByte);
+			}
+			putVarint(out, nExceptions);
+			int lastIndex = seg.offset - 1;
+			for (int i = seg.offset; i < end && 0 < nExceptions; i++) {
+				if (this.lastCodes[i] == CODE_EXCEPTION) {
+					putVarint(out, i - lastIndex - 1);
+					out.putDouble(obs[i]);
+					lastIndex = i;
+					nExceptions--;
+				}
+			}
+		} else if (seg.type == SegmentType.QUANTIZED) {
+			for (int i = seg.offset; i < end; i++) {
+				int level = seg.quantize(obs[i], this.quantBits);
+				this.lastCodes[i] = level;
+				this.lastValues[i] = seg.dequantize(level, this.quantBits);
+				this.putLevel(out, level);
+			}
+		} else {
+			for (int i = seg.offset; i < end; i++) {
+				out.putDouble(obs[i]);
+				this.lastValues[i] = obs[i];
+			}
+		}
+	}
+
+
+	private void encodeSegmentDelta(Segment seg, double[] obs, ByteBuffer out) {
+		int end = seg.offset + seg.length;
+
+		// Count changes first so the count can be written before the changes
+		int nChanges = 0;
+		for (int i = seg.offset; i < end; i++) {
+			if (this.elementChanged(seg, i, obs[i])) {
+				nChanges++;
+			}
+		}
+		putVarint(out, nChanges);
+		if (nChanges == 0) {
+			return;
+		}
+
+		int lastIndex = seg.offset - 1;
+		for (int i = seg.offset; i < end && 0 < nChanges; i++) {
+			if (!this.elementChanged(seg, i, obs[i])) {
+				continue;
+			}
+			int gap = i - lastIndex - 1;
+			lastIndex = i;
+			nChanges--;
+
+			if (seg.type == SegmentType.BINARY) {
+				int code = seg.binaryCode(obs[i]);
+				int oldCode = this.lastCodes[i];
+				// Low 2 bits: 0 = flip, 1 = set low, 2 = set high, 3 = exception
+				int op;
+				if (code == CODE_EXCEPTION) {
+					op = 3;
+				} else if (oldCode != CODE_EXCEPTION) {
+					op = 0;
+				} else {
+					op = code + 1;
+				}
+				putVarint(out, (gap << 2) | op);
+				if (op == 3) {
+					out.putDouble(obs[i]);
+				}
+				this.lastCodes[i] = code;
+				this.lastValues[i] = obs[i];
+			} else if (seg.type == SegmentType.QUANTIZED) {
+				int level = seg.quantize(obs[i], this.quantBits);
+				putVarint(out, gap);
+				this.putLevel(out, level);
+				this.lastCodes[i] = level;
+				this.lastValues[i] = seg.dequantize(level, this.quantBits);
+			} else {
+				putVarint(out, gap);
+				out.putDouble(obs[i]);
+				this.lastValues[i] = obs[i];
+			}
+		}
+	}
+
+
+	private boolean elementChanged(Segment seg, int i, double value) {
+		if (seg.type == SegmentType.BINARY) {
+			int code = seg.binaryCode(value);
+			if (code != this.lastCodes[i]) {
+				return true;
+			}
+			return code == CODE_EXCEPTION && Double.doubleToRawLongBits(value) != Double.doubleToRawLongBits(this.lastValues[i]);
+		} else if (seg.type == SegmentType.QUANTIZED) {
+			return seg.quantize(value, this.quantBits) != this.lastCodes[i];
+		}
+		return Double.doubleToRawLongBits(value) != Double.doubleToRawLongBits(this.lastValues[i]);
+	}
+
+
+	/**
+	 * Decodes one frame from the buffer, starting at its current position, into
+	 * <code>obs</code>.
+	 *
+	 * @param in
+	 *                the buffer to read from
+	 * @param obs
+	 *                the array to decode into (must be at least as long as the state
+	 *                size)
+	 * @return <code>obs</code>, or null if the frame could not be decoded (for example,
+	 *         because it is a delta frame and no keyframe has been seen yet)
+	 */
+	public double[] decode(ByteBuffer in, double[] obs) {
+		try {
+			byte frameType = in.get();
+			if (frameType == FRAME_KEY) {
+				for (Segment seg : this.segmentArr) {
+					this.decodeSegmentKey(seg, in);
+				}
+			} else if (frameType == FRAME_DELTA && this.hasLastFrame) {
+				for (Segment seg : this.segmentArr) {
+					this.decodeSegmentDelta(seg, in);
+				}
+			} else {
+				System.err.println("Observation codec: unexpected frame type or missing keyframe.");
+				return null;
+			}
+		} catch (BufferUnderflowException e) {
+			System.err.println("Observation codec: truncated frame.");
+			return null;
+		}
+		this.hasLastFrame = true;
+		System.arraycopy(this.lastValues, 0, obs, 0, this.stateSize);
+		return obs;
+	}
+
+
+	private void decodeSegmentKey(Segment seg, ByteBuffer in) {
+		int end = seg.offset + seg.length;
+		if (seg.type == SegmentType.BINARY) {
+			int curByte = 0;
+			for (int i = seg.offset; i < end; i++) {
+				int bitNum = (i - seg.offset) & 7;
+				if (bitNum == 0) {
+					curByte = in.get();
+				}
+				int code = (curByte >>> bitNum) & 1;
+				this.lastCodes[i] = code;
+				this.lastValues[i] = (code == 1) ? seg.b : seg.a;
+			}
+			int nExceptions = getVarint(in);
+			int index = seg.offset - 1;
+			for (int e = 0; e < nExceptions; e++) {
+				index += getVarint(in) + 1;
+				this.lastCodes[index] = CODE_EXCEPTION;
+				this.lastValues[index] = in.getDouble();
+			}
+		} else if (seg.type == SegmentType.QUANTIZED) {
+			for (int i = seg.offset; i < end; i++) {
+				int level = this.getLevel(in);
+				this.lastCodes[i] = level;
+				this.lastValues[i] = seg.dequantize(level, this.quantBits);
+			}
+		} else {
+			for (int i = seg.offset; i < end; i++) {
+				this.lastValues[i] = in.getDouble();
+			}
+		}
+	}
+
+
+	private void decodeSegmentDelta(Segment seg, ByteBuffer in) {
+		int nChanges = getVarint(in);
+		int index = seg.offset - 1;
+		for (int c = 0; c < nChanges; c++) {
+			if (seg.type == SegmentType.BINARY) {
+				int v = getVarint(in);
+				index += (v >>> 2) + 1;
+				int op = v & 3;
+				if (op == 0) {
+					this.lastCodes[index] ^= 1;
+					this.lastValues[index] = (this.lastCodes[index] == 1) ? seg.b : seg.a;
+				} else if (op == 3) {
+					this.lastCodes[index] = CODE_EXCEPTION;
+					this.lastValues[index] = in.getDouble();
+				} else {
+					this.lastCodes[index] = op - 1;
+					this.lastValues[index] = (op == 2) ? seg.b : seg.a;
+				}
+			} else if (seg.type == SegmentType.QUANTIZED) {
+				index += getVarint(in) + 1;
+				int level = this.getLevel(in);
+				this.lastCodes[index] = level;
+				this.lastValues[index] = seg.dequantize(level, this.quantBits);
+			} else {
+				index += getVarint(in) + 1;
+				this.lastValues[index] = in.getDouble();
+			}
+		}
+	}
+
+
+	private void putLevel(ByteBuffer out, int level) {
+		if (this.quantBits == 8) {
+			out.put((byte) level);
+		} else {
+			out.putShort((short) level);
+		}
+	}
+
+
+	private int getLevel(ByteBuffer in) {
+		if (this.quantBits == 8) {
+			return in.get() & 0xFF;
+		}
+		return in.getShort() & 0xFFFF;
+	}
+
+
+	private static void putVarint(ByteBuffer out, int value) {
+		while ((value & ~0x7F) != 0) {
+			out.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.put((byte) value);
+	}
+
+
+	private static int getVarint(ByteBuffer in) {
+		int value = 0;
+		int shift = 0;
+		int b;
+		do {
+			b = in.get();
+			value |= (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+
+
+	/**
+	 * Writes a description of this codec's layout to the buffer, so a reader of a file
+	 * can reconstruct the codec with {@link #readLayout(ByteBuffer)}.
+	 */
+	public void writeLayout(ByteBuffer out) {
+		out.putInt(this.stateSize);
+		out.putInt(this.quantBits);
+		out.putInt(this.keyframeInterval);
+		out.putInt(this.segments.size());
+		for (Segment seg : this.segments) {
+			out.put((byte) seg.type.ordinal());
+			out.putInt(seg.offset);
+			out.putInt(seg.length);
+			out.putDouble(seg.a);
+			out.putDouble(seg.b);
+		}
+	}
+
+
+	/**
+	 * Gets the number of bytes {@link #writeLayout(ByteBuffer)} will write.
+	 */
+	public int layoutSize() {
+		return 16 + (this.segments.size() * 25);
+	}
+
+
+	/**
+	 * Reads a codec layout written by {@link #writeLayout(ByteBuffer)}.
+	 *
+	 * @return a new codec with the stored layout
+	 */
+	public static ObservationCodec readLayout(ByteBuffer in) {
+		int stateSize = in.getInt();
+		int quantBits = in.getInt();
+		int keyframeInterval = in.getInt();
+		int nSegments = in.getInt();
+		ObservationCodec codec = new ObservationCodec(stateSize, quantBits, keyframeInterval);
+		for (int i = 0; i < nSegments; i++) {
+			SegmentType type = SegmentType.values()[in.get()];
+			int offset = in.getInt();
+			int length = in.getInt();
+			double a = in.getDouble();
+			double b = in.getDouble();
+			codec.addSegment(new Segment(type, offset, length, a, b));
+		}
+		return codec;
+	}
+
+
+	public int getStateSize() {
+		return this.stateSize;
+	}
+
+
+	/**
+	 * Gets the ratio of the raw observation size (8 bytes per element) to the mean
+	 * encoded size.
+	 *
+	 * @return the compression ratio, or NaN if no frames have been encoded
+	 */
+	public double getCompressionRatio() {
+		if (this.totalEncodedBytes == 0) {
+			return Double.NaN;
+		}
+		return ((double) this.numFrames * this.stateSize * 8) / ((double) this.totalEncodedBytes);
+	}
+
+
+	/**
+	 * Gets the mean time taken to encode a single observation
+	 *
+	 * @return the mean encode time, in nanoseconds
+	 */
+	public double getMeanEncodeNanos() {
+		if (this.numFrames == 0) {
+			return Double.NaN;
+		}
+		return ((double) this.totalEncodeNanos) / ((double) this.numFrames);
+	}
+
+
+	public String getStatsString() {
+		return String.format("frames=%d, keyframes=%d, bytes=%d, ratio=%.2f, encode=%.0f ns/obs", this.numFrames, this.numKeyframes,
+				this.totalEncodedBytes, this.getCompressionRatio(), this.getMeanEncodeNanos());
+	}
+
+
+	public void resetStats() {
+		this.numFrames = 0;
+		this.numKeyframes = 0;
+		this.totalEncodedBytes = 0;
+		this.totalEncodeNanos = 0;
+	}
+
+
+	enum SegmentType {
+		BINARY, QUANTIZED, RAW
+	}
+
+
+	/**
+	 * A contiguous range of the observation vector that is encoded the same way. For
+	 * binary segments, <code>a</code> and <code>b</code> are the low and high values;
+	 * for quantized segments they are the min and max of the range.
+	 */
+	static class Segment {
+		final SegmentType type;
+		final int offset;
+		final int length;
+		final double a;
+		final double b;
+
+
+		Segment(SegmentType type, int offset, int length, double a, double b) {
+			this.type = type;
+			this.offset = offset;
+			this.length = length;
+			this.a = a;
+			this.b = b;
+		}
+
+
+		int binaryCode(double value) {
+			if (value == this.a) {
+				return 0;
+			} else if (value == this.b) {
+				return 1;
+			}
+			return CODE_EXCEPTION;
+		}
+
+
+		int quantize(double value, int bits) {
+			int maxLevel = (1 << bits) - 1;
+			if (this.b <= this.a) {
+				return 0;
+			}
+			double frac = (value - this.a) / (this.b - this.a);
+			if (!(0.0 < frac)) {
+				return 0;
+			} else if (1.0 <= frac) {
+				return maxLevel;
+			}
+			return (int) Math.round(frac * maxLevel);
+		}
+
+
+		double dequantize(int level, int bits) {
+			int maxLevel = (1 << bits) - 1;
+			return this.a + (this.b - this.a) * ((double) level / (double) maxLevel);
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package deeplearning;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a dataset shard written by {@link TransitionDatasetWriter}. The shard is
+ * memory-mapped, so records can be read in any order without loading the whole file.
+ * <p>
+ * A reader is not thread-safe, since decoding uses the codec's stream state. Use a
+ * separate reader per thread.
+ *
+ * @author Mike D'Arcy
+ *
+ */
+public class TransitionDatasetReader {
+	private final MappedByteBuffer data;
+	private final ObservationCodec codec;
+	private final int numRecords;
+	private final long indexOffset;
+
+
+	/**
+	 * Opens and maps the given shard file.
+	 *
+	 * @param shardFile
+	 *                the shard to read
+	 * @throws IOException
+	 *                 if the file can't be read or is not a valid shard
+	 */
+	public TransitionDatasetReader(File shardFile) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(shardFile, "r"); FileChannel channel = raf.getChannel()) {
+			// The mapping stays valid after the channel is closed
+			this.data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+
+		if (this.data.getInt(0) != TransitionDatasetWriter.MAGIC) {
+			throw new IOException("Not a transition dataset file: " + shardFile.getPath());
+		}
+		int version = this.data.getInt(4);
+		if (version != TransitionDatasetWriter.VERSION) {
+			throw new IOException("Unsupported transition dataset version: " + version);
+		}
+		this.numRecords = (int) this.data.getLong(8);
+		this.indexOffset = this.data.getLong(16);
+
+		ByteBuffer layoutBuf = this.data.duplicate();
+		layoutBuf.position(28);
+		this.codec = ObservationCodec.readLayout(layoutBuf);
+	}
+
+
+	/**
+	 * Gets the number of records in the shard. A shard that was never closed
+	 * properly reports 0 records.
+	 *
+	 * @return the number of records
+	 */
+	public int getNumRecords() {
+		return this.numRecords;
+	}
+
+
+	public int getStateSize() {
+		return this.codec.getStateSize();
+	}
+
+
+	/**
+	 * Reads the record with the given index.
+	 *
+	 * @param index
+	 *                the index of the record
+	 * @param trans
+	 *                a transition to read into. Its state arrays are reused if they
+	 *                are large enough. If null, a new transition is created.
+	 * @return the transition, or null if the record could not be decoded
+	 */
+	public StateTransition readRecord(int index, StateTransition trans) {
+		if (index < 0 || this.numRecords <= index) {
+			return null;
+		}
+		if (trans == null) {
+			trans = new StateTransition();
+		}
+		int stateSize = this.codec.getStateSize();
+		if (trans.nnInput == null || trans.nnInput.length < stateSize) {
+			trans.nnInput = new double[stateSize];
+		}
+		if (trans.nextInput == null || trans.nextInput.length < stateSize) {
+			trans.nextInput = new double[stateSize];
+		}
+
+		long recordOffset = this.data.getLong((int) (this.indexOffset + 8L * index));
+		ByteBuffer recordBuf = this.data.duplicate();
+		recordBuf.position((int) recordOffset);
+
+		trans.action = recordBuf.get();
+		trans.reward = recordBuf.getDouble();
+		trans.isTerminal = (recordBuf.get() != 0);
+		if (this.codec.decode(recordBuf, trans.nnInput) == null || this.codec.decode(recordBuf, trans.nextInput) == null) {
+			return null;
+		}
+		return trans;
+	}
+}
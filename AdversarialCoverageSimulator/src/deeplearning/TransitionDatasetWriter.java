@@ -0,0 +1,243 @@
+package deeplearning;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Writes state transitions to sharded binary dataset files that can be memory-mapped by
+ * a learner later (see {@link TransitionDatasetReader}).
+ * <p>
+ * Each shard has the following layout (all values big-endian):
+ * <ul>
+ * <li>Header: magic number, format version, record count, index offset, and the
+ * observation codec layout</li>
+ * <li>Records: action (byte), reward (double), terminal flag (byte), then the start state
+ * encoded as a keyframe and the next state encoded as a delta against it</li>
+ * <li>Index: the file offset of every record, as longs</li>
+ * </ul>
+ * Since each record starts with a keyframe, any record can be decoded on its own.
+ * <p>
+ * A writer is not thread-safe; parallel workers should each use their own writer with a
+ * different shard prefix.
+ *
+ * @author Mike D'Arcy
+ *
+ */
+public class TransitionDatasetWriter {
+	static final int MAGIC = 0x41445452; // "ADTR"
+	static final int VERSION = 1;
+	static final String FILE_EXTENSION = ".trans";
+
+	private final File outputDir;
+	private final String shardPrefix;
+	private final ObservationCodec codec;
+	private final int recordsPerShard;
+	private final int maxRecordSize;
+
+	private ByteBuffer buf;
+	private FileChannel channel = null;
+	private RandomAccessFile raf = null;
+	private long channelPos = 0;
+	private long[] recordOffsets = new long[1024];
+	private int numRecordsInShard = 0;
+	private int shardNum = 0;
+	private long totalRecords = 0;
+	private long totalBytes = 0;
+	private boolean failed = false;
+
+
+	/**
+	 * Creates a new dataset writer. Shard files are named
+	 * <code>&lt;shardPrefix&gt;-&lt;shardNum&gt;.trans</code> and are created in the
+	 * output directory, which is created if it doesn't exist.
+	 *
+	 * @param outputDir
+	 *                the directory to write shards to
+	 * @param shardPrefix
+	 *                the file name prefix for shards
+	 * @param codec
+	 *                the codec used to encode states. The writer takes ownership of
+	 *                the codec's stream state, so it should not be shared.
+	 * @param recordsPerShard
+	 *                the maximum number of records per shard file
+	 */
+	public TransitionDatasetWriter(File outputDir, String shardPrefix, ObservationCodec codec, int recordsPerShard) {
+		this.outputDir = outputDir;
+		this.shardPrefix = shardPrefix;
+		this.codec = codec;
+		this.recordsPerShard = Math.max(1, recordsPerShard);
+		this.maxRecordSize = 10 + (2 * codec.maxEncodedSize());
+		this.buf = ByteBuffer.allocateDirect(Math.max(1 << 20, 2 * this.maxRecordSize));
+	}
+
+
+	/**
+	 * Writes a transition to the dataset, starting a new shard if needed. Both the
+	 * start state and the next state of the transition must be set.
+	 *
+	 * @param trans
+	 *                the transition to write
+	 * @return true if the transition was written, false if an I/O error occurred
+	 */
+	public boolean write(StateTransition trans) {
+		if (this.failed) {
+			return false;
+		}
+		if (this.channel == null && !this.openNextShard()) {
+			return false;
+		}
+
+		if (this.buf.remaining() < this.maxRecordSize && !this.flushBuffer()) {
+			return false;
+		}
+
+		if (this.recordOffsets.length <= this.numRecordsInShard) {
+			this.recordOffsets = Arrays.copyOf(this.recordOffsets, this.recordOffsets.length * 2);
+		}
+		this.recordOffsets[this.numRecordsInShard] = this.channelPos + this.buf.position();
+
+		this.buf.put((byte) trans.action);
+		this.buf.putDouble(trans.reward);
+		this.buf.put((byte) (trans.isTerminal ? 1 : 0));
+		this.codec.forceKeyframe();
+		this.codec.encode(trans.nnInput, this.buf);
+		this.codec.encode(trans.nextInput, this.buf);
+
+		this.numRecordsInShard++;
+		this.totalRecords++;
+
+		if (this.recordsPerShard <= this.numRecordsInShard) {
+			this.closeShard();
+		}
+		return !this.failed;
+	}
+
+
+	private boolean openNextShard() {
+		if (!this.outputDir.exists() && !this.outputDir.mkdirs()) {
+			System.err.printf("Failed to create dataset directory %s.\n", this.outputDir.getPath());
+			this.failed = true;
+			return false;
+		}
+
+		File shardFile = new File(this.outputDir, String.format("%s-%05d%s", this.shardPrefix, this.shardNum, FILE_EXTENSION));
+		try {
+			this.raf = new RandomAccessFile(shardFile, "rw");
+			this.raf.setLength(0);
+			this.channel = this.raf.getChannel();
+		} catch (IOException e) {
+			System.err.printf("Failed to open dataset shard %s.\n", shardFile.getPath());
+			e.printStackTrace();
+			this.failed = true;
+			return false;
+		}
+		this.shardNum++;
+		this.channelPos = 0;
+		this.numRecordsInShard = 0;
+
+		// Header (record count and index offset are filled in when the shard is
+		// closed)
+		this.buf.clear();
+		this.buf.putInt(MAGIC);
+		this.buf.putInt(VERSION);
+		this.buf.putLong(0);
+		this.buf.putLong(0);
+		this.buf.putInt(this.codec.layoutSize());
+		this.codec.writeLayout(this.buf);
+		return true;
+	}
+
+
+	private boolean flushBuffer() {
+		this.buf.flip();
+		try {
+			while (this.buf.hasRemaining()) {
+				this.channelPos += this.channel.write(this.buf);
+			}
+		} catch (IOException e) {
+			System.err.println("Failed to write to dataset shard.");
+			e.printStackTrace();
+			this.failed = true;
+			return false;
+		} finally {
+			this.buf.clear();
+		}
+		return true;
+	}
+
+
+	private void closeShard() {
+		if (this.channel == null) {
+			return;
+		}
+
+		long indexOffset = this.channelPos + this.buf.position();
+		for (int i = 0; i < this.numRecordsInShard; i++) {
+			if (this.buf.remaining() < 8) {
+				this.flushBuffer();
+			}
+			this.buf.putLong(this.recordOffsets[i]);
+		}
+		this.flushBuffer();
+
+		try {
+			ByteBuffer header = ByteBuffer.allocate(16);
+			header.putLong(this.numRecordsInShard);
+			header.putLong(indexOffset);
+			header.flip();
+			this.channel.write(header, 8);
+			this.totalBytes += this.channel.size();
+			this.channel.close();
+			this.raf.close();
+		} catch (IOException e) {
+			System.err.println("Failed to finalize dataset shard.");
+			e.printStackTrace();
+			this.failed = true;
+		}
+		this.channel = null;
+		this.raf = null;
+	}
+
+
+	/**
+	 * Finishes the current shard. The writer can still be used afterward; the next
+	 * write will start a new shard.
+	 */
+	public void close() {
+		this.closeShard();
+	}
+
+
+	public long getTotalRecords() {
+		return this.totalRecords;
+	}
+
+
+	/**
+	 * Gets the total size of all completed shards
+	 *
+	 * @return the size, in bytes
+	 */
+	public long getTotalBytes() {
+		return this.totalBytes;
+	}
+
+
+	public int getNumShards() {
+		return this.shardNum;
+	}
+
+
+	public ObservationCodec getCodec() {
+		return this.codec;
+	}
+
+
+	public boolean hasFailed() {
+		return this.failed;
+	}
+}
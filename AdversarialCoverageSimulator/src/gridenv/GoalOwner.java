@@ -0,0 +1,15 @@
+package gridenv;
+
+/**
+ * Implemented by simulations that have a goal location in the grid, so that it can be
+ * saved and loaded with the map
+ *
+ * @author Mike D'Arcy
+ *
+ */
+public interface GoalOwner {
+	public Coordinate getGoalLocation();
+
+
+	public void setGoalLocation(int x, int y);
+}
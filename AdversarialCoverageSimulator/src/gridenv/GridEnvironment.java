@@ -1,27 +1,134 @@
 package gridenv;
 
 import java.awt.Dimension;
+import java.io.File;
+import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import adsim.ConsoleController;
+import adsim.Metrics;
 import adsim.Robot;
 import adsim.SettingsReloadable;
+import adsim.Simulation;
 import adsim.SimulatorMain;
 import adsim.TerminalCommand;
+import adsim.TwoPhaseAlgorithm;
 
 public class GridEnvironment implements SettingsReloadable {
 	public GridNode[][] grid;
 	public Dimension gridSize = new Dimension();
 	public List<GridRobot> robots;
 	private int stepCount = 0;
+	/**
+	 * The simulation that owns this environment. If null, the engine's current
+	 * simulation is used.
+	 */
+	private Simulation simulation = null;
+	/**
+	 * Detached environments don't register console commands or run hooks, so they can
+	 * be used by background workers without interfering with the main simulation.
+	 */
+	private final boolean detached;
+	/**
+	 * Ring buffer of recently changed cells (stored as <code>x * height + y</code>).
+	 * Observers such as state preprocessors use this to update incrementally instead
+	 * of re-reading the whole grid.
+	 */
+	private int[] changeLog;
+	private long changeCount = 0;
+	/**
+	 * Incremented whenever the grid changes in a way that isn't recorded in the
+	 * change log (new grid, resize, etc)
+	 */
+	private int gridVersion = 0;
+	private static final int MIN_CHANGE_LOG_SIZE = 1024;
+	private static final Metrics.Timer ALGO_STEP_TIMER = Metrics.timer("algo.step");
+	private static final Metrics.Timer ALGO_DECIDE_TIMER = Metrics.timer("algo.decide");
+	private static final Metrics.Timer ALGO_COMMIT_TIMER = Metrics.timer("algo.commit");
+	/**
+	 * Padded feature planes for state preprocessors, created on first use
+	 */
+	private GridFeaturePlanes featurePlanes = null;
+	/**
+	 * Start locations to use for the robots on the next init, instead of random ones
+	 */
+	private List<Coordinate> nextStartLocations = null;
+	/**
+	 * Used to pick random robot start locations
+	 */
+	private SplittableRandom random = new SplittableRandom();
+	/**
+	 * The actions chosen in the decide phase of a two-phase step, by robot index
+	 */
+	private int[] decidedActions = new int[0];
+	/**
+	 * The number of robots in each cell (as <code>x * height + y</code>) during the
+	 * commit phase of a two-phase step, or null otherwise
+	 */
+	private int[] robotsPerCell = null;
+	/**
+	 * The array used for <code>robotsPerCell</code>, kept between steps (all zeros)
+	 * so it doesn't have to be allocated every step
+	 */
+	private int[] robotsPerCellBuffer = new int[0];
+	/**
+	 * The connected component of each cell (as <code>x * height + y</code>), or -1
+	 * for obstacles. Computed on init, and null if the grid has changed since (in
+	 * which case it is recomputed the next time it is needed).
+	 */
+	private int[] componentOf = null;
+	/**
+	 * Whether each component had a robot in it when the components were computed
+	 */
+	private boolean[] componentHasRobot = new boolean[0];
+	/**
+	 * The cells that aren't obstacles, for picking random start locations
+	 */
+	private int[] openCells = new int[0];
+	private int numOpenCells = 0;
+	/**
+	 * The number of robots that are broken, kept up to date by the robots
+	 */
+	private int numBrokenRobots = 0;
+	/**
+	 * The number of times any robot has broken or been repaired
+	 */
+	private long brokenChangeCount = 0;
+	/**
+	 * Zobrist-style hash of the robots' locations: the XOR of
+	 * {@link #robotLocationKey(int, int, int)} over all robots. It is updated as
+	 * robots move, so it is always current.
+	 */
+	private long robotLocationHash = 0;
 
 	private boolean RANDOMIZE_ROBOT_LOCATION_ON_INIT = SimulatorMain.settings.getBoolean("autorun.randomize_robot_start");
 	private boolean CLEAR_ADJACENT_CELLS_ON_INIT = SimulatorMain.settings.getBoolean("env.clear_adjacent_cells_on_init");
+	private boolean TWO_PHASE_STEP = SimulatorMain.settings.getString("env.step_mode").equalsIgnoreCase("two_phase");
 
 
 	public GridEnvironment(Dimension gridSize) {
+		this(gridSize, false);
+	}
+
+
+	/**
+	 * Creates a new environment with the given size.
+	 * 
+	 * @param gridSize
+	 *                the size of the grid
+	 * @param detached
+	 *                whether the environment should be detached from the main
+	 *                simulator (i.e., not register console commands or run the
+	 *                post-init hook)
+	 */
+	public GridEnvironment(Dimension gridSize, boolean detached) {
+		this.detached = detached;
 		this.gridSize.width = gridSize.width;
 		this.gridSize.height = gridSize.height;
 
@@ -34,9 +141,11 @@ public class GridEnvironment implements SettingsReloadable {
 				this.grid[x][y] = new GridNode(x, y, NodeType.FREE);
 			}
 		}
+		this.changeLog = new int[Math.max(MIN_CHANGE_LOG_SIZE, 2 * gridSize.width * gridSize.height)];
 
-		registerCustomCommands();
-
+		if (!this.detached) {
+			registerCustomCommands();
+		}
 	}
 
 
@@ -45,6 +154,18 @@ public class GridEnvironment implements SettingsReloadable {
 	 */
 	public void addRobot(GridRobot robot) {
 		this.robots.add(robot);
+		this.robotLocationHash ^= robotLocationKey(robot.getId(), robot.getLocation().x, robot.getLocation().y);
+		if (robot.isBroken()) {
+			this.numBrokenRobots++;
+			this.brokenChangeCount++;
+		}
+		robot.setBrokenStateListener(new Robot.BrokenStateListener() {
+			@Override
+			public void onBrokenStateChanged(Robot r, boolean broken) {
+				GridEnvironment.this.numBrokenRobots += broken ? 1 : -1;
+				GridEnvironment.this.brokenChangeCount++;
+			}
+		});
 	}
 
 
@@ -54,12 +175,22 @@ public class GridEnvironment implements SettingsReloadable {
 	 * @return true if all robots are borken, false otherwise
 	 */
 	public boolean allRobotsBroken() {
-		for (Robot r : this.robots) {
-			if (!r.isBroken()) {
-				return false;
-			}
-		}
-		return true;
+		return this.numBrokenRobots == this.robots.size();
+	}
+
+
+	public int getNumBrokenRobots() {
+		return this.numBrokenRobots;
+	}
+
+
+	/**
+	 * Gets the number of times any robot in the environment has broken or been
+	 * repaired. Anything derived from which robots are broken only needs to be
+	 * recomputed when this changes.
+	 */
+	public long getBrokenChangeCount() {
+		return this.brokenChangeCount;
 	}
 
 
@@ -73,20 +204,34 @@ public class GridEnvironment implements SettingsReloadable {
 	 */
 	public void clear4AdjactentCells(int x, int y) {
 		if (this.isOnGrid(x + 1, y)) {
-			this.getGridNode(x + 1, y).setNodeType(NodeType.FREE);
+			this.clearCell(x + 1, y);
 		}
 		if (this.isOnGrid(x - 1, y)) {
-			this.getGridNode(x - 1, y).setNodeType(NodeType.FREE);
+			this.clearCell(x - 1, y);
 		}
 		if (this.isOnGrid(x, y + 1)) {
-			this.getGridNode(x, y + 1).setNodeType(NodeType.FREE);
+			this.clearCell(x, y + 1);
 		}
 		if (this.isOnGrid(x, y - 1)) {
-			this.getGridNode(x, y - 1).setNodeType(NodeType.FREE);
+			this.clearCell(x, y - 1);
 		}
 	}
 
 
+	private void clearCell(int x, int y) {
+		if (this.getGridNode(x, y).getNodeType() == NodeType.OBSTACLE) {
+			// Opening an obstacle can join components, so they need to be
+			// recomputed
+			if (this.numOpenCells < this.openCells.length) {
+				this.openCells[this.numOpenCells++] = x * this.gridSize.height + y;
+			}
+			this.componentOf = null;
+		}
+		this.getGridNode(x, y).setNodeType(NodeType.FREE);
+		this.markCellChanged(x, y);
+	}
+
+
 	public String exportToString() {
 		StringBuilder sb = new StringBuilder();
 		for (int x = 0; x < this.getWidth(); x++) {
@@ -98,6 +243,91 @@ public class GridEnvironment implements SettingsReloadable {
 	}
 
 
+	/**
+	 * Exports the current grid as a map. The robots' current locations are saved as
+	 * the start locations, and the goal is saved if the simulation has one.
+	 *
+	 * @return the map
+	 */
+	public GridMap exportMap() {
+		GridMap map = GridMap.fromGrid(this.grid);
+		for (GridRobot robot : this.robots) {
+			map.startLocations.add(new Coordinate(robot.getLocation().x, robot.getLocation().y));
+		}
+		if (this.getSimulation() instanceof GoalOwner) {
+			Coordinate goal = ((GoalOwner) this.getSimulation()).getGoalLocation();
+			map.goal = new Coordinate(goal.x, goal.y);
+		}
+		return map;
+	}
+
+
+	/**
+	 * Replaces the grid contents with the given map, resizing if needed. If the map has
+	 * start locations, the robots are moved there (and {@link #init()} will use them
+	 * as well), and if it has a goal, the goal is given to the simulation. This doesn't
+	 * call {@link #init()}.
+	 *
+	 * @param map
+	 *                the map to load
+	 */
+	public void loadMap(GridMap map) {
+		if (map.width != this.getWidth() || map.height != this.getHeight()) {
+			this.setSize(new Dimension(map.width, map.height));
+		}
+		map.applyToGrid(this.grid);
+		this.markGridChanged();
+
+		if (!map.startLocations.isEmpty()) {
+			List<Coordinate> startLocations = new ArrayList<>();
+			for (Coordinate start : map.startLocations) {
+				if (this.isOnGrid(start.x, start.y)) {
+					startLocations.add(start);
+				}
+			}
+			for (int i = 0; i < this.robots.size() && i < startLocations.size(); i++) {
+				this.moveRobot(this.robots.get(i), startLocations.get(i).x, startLocations.get(i).y);
+			}
+			this.setNextStartLocations(startLocations);
+		}
+		if (map.goal != null && this.getSimulation() instanceof GoalOwner) {
+			((GoalOwner) this.getSimulation()).setGoalLocation(map.goal.x, map.goal.y);
+		}
+	}
+
+
+	/**
+	 * Loads a map from a pack file, using the shared reader for the file. The index
+	 * wraps around, so callers can just count up to cycle through a pack.
+	 *
+	 * @param packFileName
+	 *                the name of the pack file
+	 * @param index
+	 *                the index of the map in the pack
+	 * @return the map that was loaded, or null if it couldn't be loaded
+	 */
+	public GridMap loadMapFromPack(String packFileName, int index) {
+		GridMapPack pack;
+		try {
+			pack = GridMapPack.open(new File(packFileName));
+		} catch (IOException e) {
+			System.err.println("Unable to open map file: " + e.getMessage());
+			return null;
+		}
+		if (pack.getNumMaps() == 0) {
+			System.err.println("Map file is empty: " + packFileName);
+			return null;
+		}
+
+		GridMap map = pack.readMap(Math.floorMod(index, pack.getNumMaps()));
+		if (map == null) {
+			return null;
+		}
+		this.loadMap(map);
+		return map;
+	}
+
+
 	/**
 	 * Gets the grid node at the given location
 	 * 
@@ -171,11 +401,455 @@ public class GridEnvironment implements SettingsReloadable {
 	}
 
 
+	/**
+	 * Checks whether any robot (broken or not) is at the given location. This is the
+	 * same as checking whether {@link #getRobotsByLocation(int, int)} is non-empty,
+	 * but doesn't go through all the robots during a two-phase step.
+	 */
+	public boolean isRobotAt(int x, int y) {
+		if (this.robotsPerCell != null) {
+			return this.robotsPerCell[x * this.gridSize.height + y] != 0;
+		}
+		for (int i = 0; i < this.robots.size(); i++) {
+			if (this.robots.get(i).getLocation().x == x && this.robots.get(i).getLocation().y == y) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+
+	/**
+	 * Moves a robot to the given location. Actuators should use this rather than
+	 * setting the robot's location directly, so {@link #isRobotAt(int, int)} stays
+	 * correct during a two-phase step and {@link #getRobotLocationHash()} stays
+	 * current.
+	 */
+	public void moveRobot(GridRobot robot, int x, int y) {
+		if (this.robotsPerCell != null) {
+			this.robotsPerCell[robot.getLocation().x * this.gridSize.height + robot.getLocation().y]--;
+			this.robotsPerCell[x * this.gridSize.height + y]++;
+		}
+		this.robotLocationHash ^= robotLocationKey(robot.getId(), robot.getLocation().x, robot.getLocation().y)
+				^ robotLocationKey(robot.getId(), x, y);
+		robot.setLocation(x, y);
+	}
+
+
+	/**
+	 * Gets a hash of where every robot is. Two states with the same robots in the
+	 * same places have the same hash, and different states almost always have
+	 * different hashes. This is kept up to date as robots move, so it costs nothing
+	 * to call every step.
+	 */
+	public long getRobotLocationHash() {
+		return this.robotLocationHash;
+	}
+
+
+	/**
+	 * Gets the Zobrist key for a robot being at a location. The keys are a fixed
+	 * mix of the inputs rather than a table of random numbers, so they don't depend
+	 * on the grid size and take no memory.
+	 */
+	private static long robotLocationKey(int robotId, int x, int y) {
+		// SplitMix64 finalizer
+		long z = (((long) robotId) << 42) ^ (((long) x) << 21) ^ y;
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+
 	public int getStepCount() {
 		return this.stepCount;
 	}
 
 
+	/**
+	 * Records that the cell at the given coordinates has changed (cover count,
+	 * danger, node type, etc). Anything that modifies a node after the environment
+	 * is initialized should call this.
+	 * 
+	 * @param x
+	 *                the x coordinate
+	 * @param y
+	 *                the y coordinate
+	 */
+	public void markCellChanged(int x, int y) {
+		this.changeLog[(int) (this.changeCount % this.changeLog.length)] = x * this.gridSize.height + y;
+		this.changeCount++;
+		if (this.featurePlanes != null && this.featurePlanes.isCurrent()) {
+			this.featurePlanes.updateCell(x, y);
+		}
+	}
+
+
+	/**
+	 * Sets the danger level of a cell, recording the change if the value is
+	 * different.
+	 * 
+	 * @param x
+	 *                the x coordinate
+	 * @param y
+	 *                the y coordinate
+	 * @param dangerProb
+	 *                the new danger level
+	 */
+	public void setDangerProb(int x, int y, double dangerProb) {
+		GridNode node = this.grid[x][y];
+		if (node.getDangerProb() != dangerProb) {
+			node.setDangerProb(dangerProb);
+			this.markCellChanged(x, y);
+		}
+	}
+
+
+	/**
+	 * Sets the danger fuel of a cell, recording the change if the value is
+	 * different. Fuel often changes while the danger stays the same (e.g., a cell
+	 * at the danger cap that is still burning), so it has to be recorded on its own
+	 * for snapshots and other change log readers to see it.
+	 * 
+	 * @param x
+	 *                the x coordinate
+	 * @param y
+	 *                the y coordinate
+	 * @param dangerFuel
+	 *                the new fuel level
+	 */
+	public void setDangerFuel(int x, int y, double dangerFuel) {
+		GridNode node = this.grid[x][y];
+		if (node.dangerFuel != dangerFuel) {
+			node.dangerFuel = dangerFuel;
+			this.markCellChanged(x, y);
+		}
+	}
+
+
+	/**
+	 * Gets feature planes with the given padding and input values, creating or
+	 * rebuilding them if needed. The returned planes stay up to date as long as all
+	 * changes to the grid are recorded with {@link #markCellChanged(int, int)} or
+	 * {@link #markGridChanged()}. Robots may call this at the same time during the
+	 * decide phase of a two-phase step, so it is synchronized.
+	 * 
+	 * @param padding
+	 *                the minimum number of out-of-bounds cells needed on each side
+	 * @param oobDanger
+	 *                the danger value for out-of-bounds cells
+	 * @param oobCover
+	 *                the cover value for out-of-bounds cells
+	 * @param oobObstacle
+	 *                the obstacle value for out-of-bounds cells
+	 * @param normDivisor
+	 *                the value that all inputs are divided by
+	 * @return the feature planes
+	 */
+	public synchronized GridFeaturePlanes getFeaturePlanes(int padding, double oobDanger, double oobCover, double oobObstacle, double normDivisor) {
+		if (this.featurePlanes == null || !this.featurePlanes.isUsableFor(padding, oobDanger, oobCover, oobObstacle, normDivisor)) {
+			this.featurePlanes = new GridFeaturePlanes(this, padding, oobDanger, oobCover, oobObstacle, normDivisor);
+		} else if (!this.featurePlanes.isCurrent()) {
+			this.featurePlanes.rebuild();
+		}
+		return this.featurePlanes;
+	}
+
+
+	/**
+	 * Records that the whole grid has changed, invalidating anything derived from
+	 * it.
+	 */
+	public void markGridChanged() {
+		this.gridVersion++;
+		this.componentOf = null;
+	}
+
+
+	/**
+	 * Labels the connected components of the grid with a flood fill, and collects
+	 * the cells that aren't obstacles
+	 */
+	private void computeComponents() {
+		final int width = this.gridSize.width;
+		final int height = this.gridSize.height;
+		int[] component = new int[width * height];
+		if (this.openCells.length < component.length) {
+			this.openCells = new int[component.length];
+		}
+		this.numOpenCells = 0;
+		for (int x = 0; x < width; x++) {
+			for (int y = 0; y < height; y++) {
+				if (this.grid[x][y].getNodeType() == NodeType.OBSTACLE) {
+					component[x * height + y] = -1;
+				} else {
+					component[x * height + y] = -2;
+					this.openCells[this.numOpenCells++] = x * height + y;
+				}
+			}
+		}
+
+		int numComponents = 0;
+		int[] queue = new int[Math.max(1, this.numOpenCells)];
+		for (int i = 0; i < this.numOpenCells; i++) {
+			if (component[this.openCells[i]] != -2) {
+				continue;
+			}
+			int head = 0;
+			int tail = 0;
+			component[this.openCells[i]] = numComponents;
+			queue[tail++] = this.openCells[i];
+			while (head < tail) {
+				int cell = queue[head++];
+				int x = cell / height;
+				int y = cell % height;
+				if (0 < x && component[cell - height] == -2) {
+					component[cell - height] = numComponents;
+					queue[tail++] = cell - height;
+				}
+				if (x < width - 1 && component[cell + height] == -2) {
+					component[cell + height] = numComponents;
+					queue[tail++] = cell + height;
+				}
+				if (0 < y && component[cell - 1] == -2) {
+					component[cell - 1] = numComponents;
+					queue[tail++] = cell - 1;
+				}
+				if (y < height - 1 && component[cell + 1] == -2) {
+					component[cell + 1] = numComponents;
+					queue[tail++] = cell + 1;
+				}
+			}
+			numComponents++;
+		}
+
+		this.componentOf = component;
+		this.componentHasRobot = new boolean[numComponents];
+	}
+
+
+	/**
+	 * Computes the connected components if they are out of date, and marks the
+	 * ones the robots are in
+	 */
+	private void updateReachability() {
+		if (this.componentOf == null) {
+			this.computeComponents();
+			this.markRobotComponents();
+		}
+	}
+
+
+	/**
+	 * Marks the components that have a robot in them
+	 */
+	private void markRobotComponents() {
+		for (int robotNum = 0; robotNum < this.robots.size(); robotNum++) {
+			Coordinate location = this.robots.get(robotNum).getLocation();
+			if (this.isOnGrid(location.x, location.y)) {
+				int component = this.componentOf[location.x * this.getHeight() + location.y];
+				if (component != -1) {
+					this.componentHasRobot[component] = true;
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Checks whether any robot could reach the given cell, i.e., whether it isn't an
+	 * obstacle and is connected to a cell that had a robot in it after the last
+	 * init. If the whole grid has changed since then (e.g., a snapshot or map was
+	 * loaded), the robots' current locations are used instead.
+	 * 
+	 * @param x
+	 *                the x coordinate
+	 * @param y
+	 *                the y coordinate
+	 * @return whether the cell is reachable
+	 */
+	public boolean isReachable(int x, int y) {
+		this.updateReachability();
+		int component = this.componentOf[x * this.gridSize.height + y];
+		return component != -1 && this.componentHasRobot[component];
+	}
+
+
+	/**
+	 * Gets the total number of cell changes recorded with
+	 * {@link #markCellChanged(int, int)}
+	 * 
+	 * @return the number of changes
+	 */
+	public long getChangeCount() {
+		return this.changeCount;
+	}
+
+
+	/**
+	 * Gets the cell that was changed by the given change.
+	 * 
+	 * @param changeNum
+	 *                the number of the change, in the range
+	 *                <code>[0, getChangeCount())</code>
+	 * @return the cell as <code>x * height + y</code>, or -1 if the change is no
+	 *         longer in the log
+	 */
+	public int getChangedCell(long changeNum) {
+		if (changeNum < 0 || this.changeCount <= changeNum || changeNum < this.changeCount - this.changeLog.length) {
+			return -1;
+		}
+		return this.changeLog[(int) (changeNum % this.changeLog.length)];
+	}
+
+
+	public int getGridVersion() {
+		return this.gridVersion;
+	}
+
+
+	/**
+	 * Saves the state of the grid and robots.
+	 * 
+	 * @param snapshot
+	 *                a snapshot to overwrite (its arrays are reused if they are the
+	 *                right size), or null to create a new one
+	 * @return the snapshot
+	 */
+	public GridSnapshot saveSnapshot(GridSnapshot snapshot) {
+		if (snapshot == null) {
+			snapshot = new GridSnapshot();
+		}
+		int width = this.gridSize.width;
+		int height = this.gridSize.height;
+		snapshot.ensureCapacity(width, height, this.robots.size());
+		for (int x = 0; x < width; x++) {
+			GridNode[] column = this.grid[x];
+			int offset = x * height;
+			for (int y = 0; y < height; y++) {
+				snapshot.saveCell(offset + y, column[y]);
+			}
+		}
+		for (int i = 0; i < this.robots.size(); i++) {
+			GridRobot robot = this.robots.get(i);
+			snapshot.robotX[i] = robot.getLocation().x;
+			snapshot.robotY[i] = robot.getLocation().y;
+			snapshot.robotBroken[i] = robot.isBroken();
+		}
+		snapshot.stepCount = this.stepCount;
+		snapshot.source = this;
+		snapshot.gridVersion = this.gridVersion;
+		snapshot.changeCount = this.changeCount;
+		return snapshot;
+	}
+
+
+	/**
+	 * Restores the grid and robots to a saved state, resizing the grid if needed. If
+	 * the snapshot was taken from this environment and every cell change since then
+	 * is still in the change log, only those cells are rewritten; otherwise the whole
+	 * grid is.
+	 * 
+	 * @param snapshot
+	 *                the snapshot to restore
+	 */
+	public void restoreSnapshot(GridSnapshot snapshot) {
+		int width = snapshot.width;
+		int height = snapshot.height;
+
+		if (snapshot.canRestoreIncrementally(this)) {
+			long endChange = this.changeCount;
+			for (long changeNum = snapshot.changeCount; changeNum < endChange; changeNum++) {
+				int index = this.changeLog[(int) (changeNum % this.changeLog.length)];
+				int x = index / height;
+				int y = index % height;
+				snapshot.restoreCell(index, this.grid[x][y]);
+				this.markCellChanged(x, y);
+			}
+		} else {
+			if (width != this.gridSize.width || height != this.gridSize.height) {
+				this.setSize(new Dimension(width, height));
+			}
+			for (int x = 0; x < width; x++) {
+				GridNode[] column = this.grid[x];
+				int offset = x * height;
+				for (int y = 0; y < height; y++) {
+					snapshot.restoreCell(offset + y, column[y]);
+				}
+			}
+			this.markGridChanged();
+		}
+
+		for (int i = 0; i < this.robots.size() && i < snapshot.robotX.length; i++) {
+			GridRobot robot = this.robots.get(i);
+			this.moveRobot(robot, snapshot.robotX[i], snapshot.robotY[i]);
+			robot.setBroken(snapshot.robotBroken[i]);
+		}
+		this.stepCount = snapshot.stepCount;
+
+		// The grid matches the snapshot again, so the next restore only has to undo
+		// changes made after this point
+		snapshot.source = this;
+		snapshot.gridVersion = this.gridVersion;
+		snapshot.changeCount = this.changeCount;
+	}
+
+
+	/**
+	 * Creates a detached copy of this environment, with its own grid and robots, for
+	 * trying things out without affecting this one. The copy's robots have no
+	 * algorithms, and the copy has no owning simulation until one is set with
+	 * {@link #setSimulation(Simulation)}.
+	 * <p>
+	 * For repeated what-if evaluations on the same environment, it is usually cheaper
+	 * to save a snapshot and restore it after each evaluation, since restoring only
+	 * touches the cells that changed.
+	 * 
+	 * @return the copy
+	 */
+	public GridEnvironment fork() {
+		GridEnvironment copy = new GridEnvironment(this.gridSize, true);
+		for (GridRobot robot : this.robots) {
+			copy.addRobot(new GridRobot(robot.getId(), robot.getLocation().x, robot.getLocation().y));
+		}
+		copy.restoreSnapshot(this.saveSnapshot(null));
+		copy.random = this.random.split();
+		return copy;
+	}
+
+
+	/**
+	 * Gets the simulation that owns this environment
+	 * 
+	 * @return the owning simulation, or the engine's current simulation if no owner
+	 *         was set
+	 */
+	public Simulation getSimulation() {
+		if (this.simulation == null) {
+			return SimulatorMain.getEngine().getSimulation();
+		}
+		return this.simulation;
+	}
+
+
+	public void setSimulation(Simulation simulation) {
+		this.simulation = simulation;
+	}
+
+
+	/**
+	 * Sets the random number stream used to pick robot start locations
+	 */
+	public void setRandom(SplittableRandom random) {
+		this.random = random;
+	}
+
+
+	public boolean isDetached() {
+		return this.detached;
+	}
+
+
 	/**
 	 * Gets the width of the grid
 	 * 
@@ -190,29 +864,67 @@ public class GridEnvironment implements SettingsReloadable {
 	 * Initialize all the robots in the environment
 	 */
 	public void init() {
+		this.init(true);
+	}
+
+
+	/**
+	 * Initializes the environment like {@link #init()}, optionally without
+	 * initializing the robots' algorithms. This is for cases where the robots are
+	 * driven directly (such as trajectory replays), so algorithms that plan on init
+	 * don't waste time.
+	 * 
+	 * @param initAlgorithms
+	 *                whether to initialize the robots' algorithms
+	 */
+	public void init(boolean initAlgorithms) {
 
 		this.stepCount = 1;
+		this.markGridChanged();
+		this.computeComponents();
 		for (int robotNum = 0; robotNum < this.robots.size(); robotNum++) {
 			if (this.RANDOMIZE_ROBOT_LOCATION_ON_INIT) {
 				Coordinate location = new Coordinate(-1, -1);
-				while (location.x == -1 || this.getGridNode(location.x, location.y).getNodeType() == NodeType.OBSTACLE) {
-					location.x = (int) (Math.random() * this.getWidth());
-					location.y = (int) (Math.random() * this.getHeight());
+				if (this.nextStartLocations != null && robotNum < this.nextStartLocations.size()) {
+					location.x = this.nextStartLocations.get(robotNum).x;
+					location.y = this.nextStartLocations.get(robotNum).y;
 				}
-				this.robots.get(robotNum).setLocation(location.x, location.y);
+				if (location.x == -1 || this.getGridNode(location.x, location.y).getNodeType() == NodeType.OBSTACLE) {
+					if (this.numOpenCells == 0) {
+						System.err.println("No free cells to place robot " + robotNum + " in");
+						location.x = this.robots.get(robotNum).getLocation().x;
+						location.y = this.robots.get(robotNum).getLocation().y;
+					} else {
+						int cell = this.openCells[this.random.nextInt(this.numOpenCells)];
+						location.x = cell / this.getHeight();
+						location.y = cell % this.getHeight();
+					}
+				}
+				this.moveRobot(this.robots.get(robotNum), location.x, location.y);
 				if (this.CLEAR_ADJACENT_CELLS_ON_INIT) {
 					clear4AdjactentCells(this.robots.get(robotNum).getLocation().x, this.robots.get(robotNum).getLocation().y);
 				}
 
 				this.getGridNode(this.robots.get(robotNum).getLocation().x, this.robots.get(robotNum).getLocation().y)
 						.setNodeType(NodeType.FREE);
+				this.markCellChanged(this.robots.get(robotNum).getLocation().x, this.robots.get(robotNum).getLocation().y);
+			}
+			if (initAlgorithms) {
+				this.robots.get(robotNum).coverAlgo.init();
 			}
-			this.robots.get(robotNum).coverAlgo.init();
 
 		}
+		this.nextStartLocations = null;
 
-		SimulatorMain.controller.runCommand_noEcho(SimulatorMain.settings.getString("hooks.env.post_init.cmd"));
-		SimulatorMain.getEngine().getSimulation().onEnvInit();
+		if (this.componentOf == null) {
+			this.computeComponents();
+		}
+		this.markRobotComponents();
+
+		if (!this.detached) {
+			SimulatorMain.controller.runCommand_noEcho(SimulatorMain.settings.getString("hooks.env.post_init.cmd"));
+		}
+		this.getSimulation().onEnvInit();
 	}
 
 
@@ -300,7 +1012,7 @@ public class GridEnvironment implements SettingsReloadable {
 						System.err.println("No robot found with specified robotId.");
 						return;
 					}
-					robot.setLocation(xPos, yPos);
+					GridEnvironment.this.moveRobot(robot, xPos, yPos);
 				} catch (NumberFormatException e) {
 					System.err.println("One or more numbers were formatted incorrectly.");
 				}
@@ -308,6 +1020,62 @@ public class GridEnvironment implements SettingsReloadable {
 		});
 
 
+		controller.registerCommand(":env_save_map", new TerminalCommand() {
+			@Override
+			public void execute(String[] args) {
+				if (args.length < 1) {
+					System.err.println("Usage: :env_save_map <file>");
+					return;
+				}
+				try {
+					GridMapPack.write(new File(args[0]), Collections.singletonList(GridEnvironment.this.exportMap()));
+				} catch (IOException e) {
+					System.err.println("Unable to save map: " + e.getMessage());
+				}
+			}
+		});
+
+
+		controller.registerCommand(":env_append_map", new TerminalCommand() {
+			@Override
+			public void execute(String[] args) {
+				if (args.length < 1) {
+					System.err.println("Usage: :env_append_map <packFile>");
+					return;
+				}
+				try {
+					int numMaps = GridMapPack.append(new File(args[0]), GridEnvironment.this.exportMap());
+					System.out.printf("Map pack %s now has %d maps\n", args[0], numMaps);
+				} catch (IOException e) {
+					System.err.println("Unable to append map: " + e.getMessage());
+				}
+			}
+		});
+
+
+		controller.registerCommand(":env_load_map", new TerminalCommand() {
+			@Override
+			public void execute(String[] args) {
+				if (args.length < 1) {
+					System.err.println("Usage: :env_load_map <file> [index]");
+					return;
+				}
+				int index = 0;
+				if (2 <= args.length) {
+					try {
+						index = Integer.parseInt(args[1]);
+					} catch (NumberFormatException e) {
+						System.err.println("Invalid map index.");
+						return;
+					}
+				}
+				if (GridEnvironment.this.loadMapFromPack(args[0], index) != null) {
+					GridEnvironment.this.init();
+				}
+			}
+		});
+
+
 		controller.registerCommand(":get_run_step", new TerminalCommand() {
 			@Override
 			public void execute(String[] args) {
@@ -328,6 +1096,7 @@ public class GridEnvironment implements SettingsReloadable {
 		}
 		this.RANDOMIZE_ROBOT_LOCATION_ON_INIT = SimulatorMain.settings.getBoolean("autorun.randomize_robot_start");
 		this.CLEAR_ADJACENT_CELLS_ON_INIT = SimulatorMain.settings.getBoolean("env.clear_adjacent_cells_on_init");
+		this.TWO_PHASE_STEP = SimulatorMain.settings.getString("env.step_mode").equalsIgnoreCase("two_phase");
 	}
 
 
@@ -347,6 +1116,54 @@ public class GridEnvironment implements SettingsReloadable {
 
 		this.gridSize.width = newGridSize.width;
 		this.gridSize.height = newGridSize.height;
+		this.changeLog = new int[Math.max(MIN_CHANGE_LOG_SIZE, 2 * newGridSize.width * newGridSize.height)];
+		this.markGridChanged();
+	}
+
+
+	/**
+	 * Replaces the whole grid with the given one, resizing the environment to match.
+	 * This lets a grid that was prepared elsewhere (e.g., by a {@link GridPrefetcher})
+	 * be swapped in without copying.
+	 *
+	 * @param newGrid
+	 *                the new grid, indexed as <code>[x][y]</code>. Each node's
+	 *                location must match its position.
+	 * @return the old grid
+	 */
+	public synchronized GridNode[][] replaceGrid(GridNode[][] newGrid) {
+		GridNode[][] oldGrid = this.grid;
+		this.grid = newGrid;
+		this.gridSize.width = newGrid.length;
+		this.gridSize.height = (0 < newGrid.length) ? newGrid[0].length : 0;
+		int changeLogSize = Math.max(MIN_CHANGE_LOG_SIZE, 2 * this.gridSize.width * this.gridSize.height);
+		if (this.changeLog.length != changeLogSize) {
+			this.changeLog = new int[changeLogSize];
+		}
+		this.markGridChanged();
+		return oldGrid;
+	}
+
+
+	/**
+	 * Sets the locations to place the robots at on the next call to {@link #init()},
+	 * in robot order. These are only used if robot start locations are randomized, and
+	 * locations that are obstacles are ignored.
+	 *
+	 * @param startLocations
+	 *                the start locations, or null to pick them randomly
+	 */
+	public void setNextStartLocations(List<Coordinate> startLocations) {
+		this.nextStartLocations = startLocations;
+	}
+
+
+	/**
+	 * Advances the step count without stepping the robots' algorithms, for when the
+	 * robots are driven directly
+	 */
+	public void advanceStepCount() {
+		this.stepCount++;
 	}
 
 
@@ -355,10 +1172,106 @@ public class GridEnvironment implements SettingsReloadable {
 	 */
 	public void step() {
 		this.stepCount++;
+		if (this.TWO_PHASE_STEP) {
+			this.stepTwoPhase();
+			return;
+		}
 		for (int robotNum = 0; robotNum < this.robots.size(); robotNum++) {
 			if (!this.robots.get(robotNum).isBroken()) {
+				long start = ALGO_STEP_TIMER.start();
 				this.robots.get(robotNum).coverAlgo.step();
+				ALGO_STEP_TIMER.stop(start);
+			}
+		}
+	}
+
+
+	/**
+	 * Steps the robots in two phases. First, every robot whose algorithm is a
+	 * {@link TwoPhaseAlgorithm} chooses its action (in parallel, if there are enough
+	 * robots), all seeing the environment as it was at the start of the step. Then the
+	 * actions are taken one robot at a time, in robot order, so collisions and
+	 * coverage are resolved the same way no matter how the first phase was
+	 * scheduled. Other algorithms are stepped normally during the second phase.
+	 */
+	private void stepTwoPhase() {
+		int numRobots = this.robots.size();
+		if (this.decidedActions.length < numRobots) {
+			this.decidedActions = new int[numRobots];
+		}
+		long decideStart = ALGO_DECIDE_TIMER.start();
+		DecideTask task = new DecideTask(0, numRobots);
+		if (DecideTask.MIN_ROBOTS_PER_TASK < numRobots) {
+			ForkJoinPool.commonPool().invoke(task);
+		} else {
+			task.compute();
+		}
+		ALGO_DECIDE_TIMER.stop(decideStart);
+
+		if (this.robotsPerCellBuffer.length != this.gridSize.width * this.gridSize.height) {
+			this.robotsPerCellBuffer = new int[this.gridSize.width * this.gridSize.height];
+		}
+		this.robotsPerCell = this.robotsPerCellBuffer;
+		for (int robotNum = 0; robotNum < numRobots; robotNum++) {
+			Coordinate location = this.robots.get(robotNum).getLocation();
+			this.robotsPerCell[location.x * this.gridSize.height + location.y]++;
+		}
+		long commitStart = ALGO_COMMIT_TIMER.start();
+		try {
+			for (int robotNum = 0; robotNum < numRobots; robotNum++) {
+				GridRobot robot = this.robots.get(robotNum);
+				if (robot.isBroken()) {
+					continue;
+				}
+				if (robot.coverAlgo instanceof TwoPhaseAlgorithm) {
+					((TwoPhaseAlgorithm) robot.coverAlgo).commitAction(this.decidedActions[robotNum]);
+				} else {
+					robot.coverAlgo.step();
+				}
+			}
+		} finally {
+			// Every robot is counted in the cell it is in, so clearing those cells
+			// leaves the buffer all zeros for the next step
+			for (int robotNum = 0; robotNum < numRobots; robotNum++) {
+				Coordinate location = this.robots.get(robotNum).getLocation();
+				this.robotsPerCell[location.x * this.gridSize.height + location.y] = 0;
+			}
+			this.robotsPerCell = null;
+			ALGO_COMMIT_TIMER.stop(commitStart);
+		}
+	}
+
+
+	/**
+	 * Runs the decide phase for a range of robots, splitting the range in half until
+	 * it is small enough
+	 */
+	private class DecideTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		static final int MIN_ROBOTS_PER_TASK = 8;
+		private final int first;
+		private final int last;
+
+
+		DecideTask(int first, int last) {
+			this.first = first;
+			this.last = last;
+		}
+
+
+		@Override
+		protected void compute() {
+			if (this.last - this.first <= MIN_ROBOTS_PER_TASK) {
+				for (int robotNum = this.first; robotNum < this.last; robotNum++) {
+					GridRobot robot = GridEnvironment.this.robots.get(robotNum);
+					if (!robot.isBroken() && robot.coverAlgo instanceof TwoPhaseAlgorithm) {
+						GridEnvironment.this.decidedActions[robotNum] = ((TwoPhaseAlgorithm) robot.coverAlgo).decideAction();
+					}
+				}
+				return;
 			}
+			int mid = (this.first + this.last) >>> 1;
+			invokeAll(new DecideTask(this.first, mid), new DecideTask(mid, this.last));
 		}
 	}
 }
@@ -0,0 +1,134 @@
+package gridenv;
+
+/**
+ * Flat, padded copies of the per-cell values that state preprocessors read (danger,
+ * cover, and obstacle), already converted to their network input values. The planes are
+ * padded on every side with the out-of-bounds fill values, so any window that lies
+ * within the padding can be extracted with one array copy per column, without bounds
+ * checks.
+ * <p>
+ * Cell <code>(x, y)</code> is stored at index
+ * <code>(x + padding) * stride + (y + padding)</code>, so cells with the same x are
+ * contiguous. Instances are owned by a {@link GridEnvironment}, which keeps them up to
+ * date as cells change.
+ *
+ * @author Mike D'Arcy
+ *
+ */
+public class GridFeaturePlanes {
+	/**
+	 * Danger level times 3
+	 */
+	public final double[] danger;
+	/**
+	 * 1 if the cell has been covered, -1 otherwise
+	 */
+	public final double[] cover;
+	/**
+	 * 1 if the cell is an obstacle, -1 otherwise
+	 */
+	public final double[] obstacle;
+
+	private final GridEnvironment env;
+	private final int width;
+	private final int height;
+	private final int padding;
+	private final int stride;
+	private final double oobDanger;
+	private final double oobCover;
+	private final double oobObstacle;
+	private final double normDivisor;
+	private int gridVersion;
+
+
+	/**
+	 * Creates and fills feature planes for the given environment. All values
+	 * (including the out-of-bounds values) are divided by <code>normDivisor</code>.
+	 */
+	GridFeaturePlanes(GridEnvironment env, int padding, double oobDanger, double oobCover, double oobObstacle, double normDivisor) {
+		this.env = env;
+		this.width = env.getWidth();
+		this.height = env.getHeight();
+		this.padding = padding;
+		this.stride = this.height + (2 * padding);
+		this.oobDanger = oobDanger;
+		this.oobCover = oobCover;
+		this.oobObstacle = oobObstacle;
+		this.normDivisor = normDivisor;
+
+		int size = (this.width + (2 * padding)) * this.stride;
+		this.danger = new double[size];
+		this.cover = new double[size];
+		this.obstacle = new double[size];
+		this.rebuild();
+	}
+
+
+	/**
+	 * Refills all the planes from the environment
+	 */
+	void rebuild() {
+		double dangerFill = this.oobDanger / this.normDivisor;
+		double coverFill = this.oobCover / this.normDivisor;
+		double obstacleFill = this.oobObstacle / this.normDivisor;
+		for (int i = 0; i < this.danger.length; i++) {
+			this.danger[i] = dangerFill;
+			this.cover[i] = coverFill;
+			this.obstacle[i] = obstacleFill;
+		}
+
+		for (int x = 0; x < this.width; x++) {
+			for (int y = 0; y < this.height; y++) {
+				this.updateCell(x, y);
+			}
+		}
+		this.gridVersion = this.env.getGridVersion();
+	}
+
+
+	/**
+	 * Refreshes the values for a single cell from the environment
+	 */
+	void updateCell(int x, int y) {
+		GridNode node = this.env.grid[x][y];
+		int index = this.getIndex(x, y);
+		this.danger[index] = (node.getDangerProb() * 3.0) / this.normDivisor;
+		this.cover[index] = (node.getCoverCount() < 1 ? -1.0 : 1.0) / this.normDivisor;
+		this.obstacle[index] = (node.getNodeType() == NodeType.OBSTACLE ? 1.0 : -1.0) / this.normDivisor;
+	}
+
+
+	/**
+	 * Checks whether these planes were built with the given parameters and are still
+	 * in sync with the environment's grid
+	 */
+	boolean isUsableFor(int padding, double oobDanger, double oobCover, double oobObstacle, double normDivisor) {
+		return padding <= this.padding && this.width == this.env.getWidth() && this.height == this.env.getHeight()
+				&& Double.compare(oobDanger, this.oobDanger) == 0 && Double.compare(oobCover, this.oobCover) == 0
+				&& Double.compare(oobObstacle, this.oobObstacle) == 0 && Double.compare(normDivisor, this.normDivisor) == 0;
+	}
+
+
+	boolean isCurrent() {
+		return this.gridVersion == this.env.getGridVersion();
+	}
+
+
+	/**
+	 * Gets the index of the given cell in the plane arrays. The cell may be outside
+	 * the grid, as long as it is within the padding.
+	 */
+	public int getIndex(int x, int y) {
+		return (x + this.padding) * this.stride + (y + this.padding);
+	}
+
+
+	/**
+	 * Checks whether the given rectangle of cells lies entirely within the padded
+	 * planes
+	 */
+	public boolean containsWindow(int xLow, int yLow, int windowWidth, int windowHeight) {
+		return -this.padding <= xLow && xLow + windowWidth <= this.width + this.padding && -this.padding <= yLow
+				&& yLow + windowHeight <= this.height + this.padding;
+	}
+}
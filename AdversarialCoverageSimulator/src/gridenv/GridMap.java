@@ -0,0 +1,234 @@
+package gridenv;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A fixed map: the contents of every grid cell, plus optional robot start locations and
+ * goal location. Maps are stored in {@link GridMapPack} files.
+ * <p>
+ * The binary layout of a map (big-endian) is:
+ *
+ * <pre>
+ * int width, int height, int flags (bit 0: has goal)
+ * int numStarts, then (int x, int y) for each start
+ * int goalX, int goalY (only if the goal flag is set)
+ * byte nodeType[width * height]
+ * double danger[width * height]
+ * double spreadability[width * height]
+ * double fuel[width * height]
+ * </pre>
+ *
+ * Cell arrays are indexed by <code>x * height + y</code>. Node types are stored as 0 =
+ * free, 1 = obstacle, 2 = unknown.
+ *
+ * @author Mike D'Arcy
+ *
+ */
+public class GridMap {
+	private static final int FLAG_HAS_GOAL = 1;
+
+	public final int width;
+	public final int height;
+	public final byte[] nodeTypes;
+	public final double[] danger;
+	public final double[] spreadability;
+	public final double[] fuel;
+	public final List<Coordinate> startLocations = new ArrayList<>();
+	/**
+	 * The goal location, or null if the map has no goal
+	 */
+	public Coordinate goal = null;
+
+
+	public GridMap(int width, int height) {
+		this.width = width;
+		this.height = height;
+		this.nodeTypes = new byte[width * height];
+		this.danger = new double[width * height];
+		this.spreadability = new double[width * height];
+		this.fuel = new double[width * height];
+	}
+
+
+	/**
+	 * Creates a map from the contents of the given grid.
+	 *
+	 * @param grid
+	 *                the grid, indexed as <code>[x][y]</code>
+	 * @return the map
+	 */
+	public static GridMap fromGrid(GridNode[][] grid) {
+		int width = grid.length;
+		int height = (0 < width) ? grid[0].length : 0;
+		GridMap map = new GridMap(width, height);
+		for (int x = 0; x < width; x++) {
+			for (int y = 0; y < height; y++) {
+				int i = x * height + y;
+				GridNode node = grid[x][y];
+				map.nodeTypes[i] = encodeNodeType(node.getNodeType());
+				map.danger[i] = node.getDangerProb();
+				map.spreadability[i] = node.spreadability;
+				map.fuel[i] = node.dangerFuel;
+			}
+		}
+		return map;
+	}
+
+
+	/**
+	 * Sets the contents of the given grid from this map. Cover counts are reset. The
+	 * grid must be at least as large as the map.
+	 *
+	 * @param grid
+	 *                the grid, indexed as <code>[x][y]</code>
+	 */
+	public void applyToGrid(GridNode[][] grid) {
+		for (int x = 0; x < this.width; x++) {
+			for (int y = 0; y < this.height; y++) {
+				int i = x * this.height + y;
+				applyToNode(grid[x][y], this.nodeTypes[i], this.danger[i], this.spreadability[i], this.fuel[i]);
+			}
+		}
+	}
+
+
+	static void applyToNode(GridNode node, byte nodeType, double danger, double spreadability, double fuel) {
+		node.setNodeType(decodeNodeType(nodeType));
+		node.setDangerProb(danger);
+		node.spreadability = spreadability;
+		node.dangerFuel = fuel;
+		node.setCoverCount(0);
+	}
+
+
+	/**
+	 * Gets the number of bytes this map takes when encoded
+	 */
+	public int encodedSize() {
+		int size = 4 * 4 + 8 * this.startLocations.size();
+		if (this.goal != null) {
+			size += 8;
+		}
+		int numCells = this.width * this.height;
+		return size + numCells * (1 + 3 * 8);
+	}
+
+
+	/**
+	 * Gets the size of the encoded map that starts at the buffer's current position,
+	 * without decoding it or changing the position
+	 *
+	 * @return the size in bytes, or -1 if the buffer doesn't have a complete map
+	 *         header
+	 */
+	public static long readEncodedSize(ByteBuffer buf) {
+		int pos = buf.position();
+		if (buf.limit() - pos < 4 * 4) {
+			return -1;
+		}
+		long width = buf.getInt(pos);
+		long height = buf.getInt(pos + 4);
+		int flags = buf.getInt(pos + 8);
+		long numStarts = buf.getInt(pos + 12);
+		if (width < 0 || height < 0 || numStarts < 0) {
+			return -1;
+		}
+		long size = 4 * 4 + 8 * numStarts + width * height * (1 + 3 * 8);
+		if ((flags & FLAG_HAS_GOAL) != 0) {
+			size += 8;
+		}
+		return size;
+	}
+
+
+	/**
+	 * Writes this map to the buffer, which must have at least
+	 * {@link #encodedSize()} bytes remaining
+	 */
+	public void encode(ByteBuffer buf) {
+		buf.putInt(this.width);
+		buf.putInt(this.height);
+		buf.putInt(this.goal != null ? FLAG_HAS_GOAL : 0);
+		buf.putInt(this.startLocations.size());
+		for (Coordinate start : this.startLocations) {
+			buf.putInt(start.x);
+			buf.putInt(start.y);
+		}
+		if (this.goal != null) {
+			buf.putInt(this.goal.x);
+			buf.putInt(this.goal.y);
+		}
+		buf.put(this.nodeTypes);
+		buf.asDoubleBuffer().put(this.danger);
+		buf.position(buf.position() + 8 * this.danger.length);
+		buf.asDoubleBuffer().put(this.spreadability);
+		buf.position(buf.position() + 8 * this.spreadability.length);
+		buf.asDoubleBuffer().put(this.fuel);
+		buf.position(buf.position() + 8 * this.fuel.length);
+	}
+
+
+	/**
+	 * Reads a map from the buffer, starting at its current position. The size in the
+	 * header is checked against the bytes remaining before anything is allocated, so
+	 * a corrupt header can't cause a huge allocation.
+	 *
+	 * @return the map, or null if the buffer doesn't have a complete map (in which
+	 *         case the position is unchanged)
+	 */
+	public static GridMap decode(ByteBuffer buf) {
+		long size = readEncodedSize(buf);
+		if (size < 0 || buf.remaining() < size) {
+			return null;
+		}
+		int width = buf.getInt();
+		int height = buf.getInt();
+		int flags = buf.getInt();
+		GridMap map = new GridMap(width, height);
+		int numStarts = buf.getInt();
+		for (int i = 0; i < numStarts; i++) {
+			int x = buf.getInt();
+			int y = buf.getInt();
+			map.startLocations.add(new Coordinate(x, y));
+		}
+		if ((flags & FLAG_HAS_GOAL) != 0) {
+			int x = buf.getInt();
+			int y = buf.getInt();
+			map.goal = new Coordinate(x, y);
+		}
+		buf.get(map.nodeTypes);
+		buf.asDoubleBuffer().get(map.danger);
+		buf.position(buf.position() + 8 * map.danger.length);
+		buf.asDoubleBuffer().get(map.spreadability);
+		buf.position(buf.position() + 8 * map.spreadability.length);
+		buf.asDoubleBuffer().get(map.fuel);
+		buf.position(buf.position() + 8 * map.fuel.length);
+		return map;
+	}
+
+
+	static byte encodeNodeType(NodeType type) {
+		switch (type) {
+		case OBSTACLE:
+			return 1;
+		case UNKNOWN:
+			return 2;
+		default:
+			return 0;
+		}
+	}
+
+
+	static NodeType decodeNodeType(byte code) {
+		switch (code) {
+		case 1:
+			return NodeType.OBSTACLE;
+		case 2:
+			return NodeType.UNKNOWN;
+		default:
+			return NodeType.FREE;
+		}
+	}
+}
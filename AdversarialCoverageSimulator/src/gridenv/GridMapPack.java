@@ -0,0 +1,212 @@
+package gridenv;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A file containing one or more {@link GridMap}s. A single map file is just a pack with
+ * one map. The file is memory-mapped read-only, and reading doesn't change any shared
+ * state, so one pack can be shared by several threads (see {@link #open(File)}).
+ * <p>
+ * The layout (big-endian) is:
+ *
+ * <pre>
+ * int MAGIC, int VERSION, int numMaps, int reserved
+ * long mapOffset[numMaps]
+ * the encoded maps
+ * </pre>
+ *
+ * Files are limited to 2 GB, since they are mapped as a single buffer.
+ *
+ * @author Mike D'Arcy
+ *
+ */
+public class GridMapPack {
+	public static final int MAGIC = 0x41444D50;
+	public static final int VERSION = 1;
+	private static final int HEADER_SIZE = 16;
+
+	private static final Map<String, GridMapPack> openPacks = new HashMap<>();
+
+	private final File file;
+	private final long lastModified;
+	private final long length;
+	private final MappedByteBuffer data;
+	private final int numMaps;
+
+
+	/**
+	 * Opens and maps the given pack file.
+	 *
+	 * @param file
+	 *                the file to read
+	 * @throws IOException
+	 *                 if the file can't be read or is not a valid map pack
+	 */
+	public GridMapPack(File file) throws IOException {
+		this.file = file;
+		this.lastModified = file.lastModified();
+		this.length = file.length();
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+			if (Integer.MAX_VALUE < channel.size()) {
+				throw new IOException("Map pack is too large to map: " + file.getPath());
+			}
+			this.data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+
+		if (this.data.limit() < HEADER_SIZE || this.data.getInt(0) != MAGIC) {
+			throw new IOException("Not a map file: " + file.getPath());
+		}
+		int version = this.data.getInt(4);
+		if (version != VERSION) {
+			throw new IOException("Unsupported map file version: " + version);
+		}
+		this.numMaps = this.data.getInt(8);
+		if (this.numMaps < 0 || this.data.limit() < HEADER_SIZE + 8L * this.numMaps) {
+			throw new IOException("Corrupt map file index: " + file.getPath());
+		}
+	}
+
+
+	/**
+	 * Gets a shared reader for the given file, opening it if it isn't open yet or has
+	 * been modified since it was opened.
+	 *
+	 * @param file
+	 *                the pack file
+	 * @return the shared reader
+	 * @throws IOException
+	 *                 if the file can't be read or is not a valid map pack
+	 */
+	public static GridMapPack open(File file) throws IOException {
+		String key = file.getCanonicalPath();
+		synchronized (openPacks) {
+			GridMapPack pack = openPacks.get(key);
+			if (pack == null || pack.lastModified != file.lastModified() || pack.length != file.length()) {
+				pack = new GridMapPack(file);
+				openPacks.put(key, pack);
+			}
+			return pack;
+		}
+	}
+
+
+	public int getNumMaps() {
+		return this.numMaps;
+	}
+
+
+	public File getFile() {
+		return this.file;
+	}
+
+
+	/**
+	 * Reads the map with the given index.
+	 *
+	 * @param index
+	 *                the index of the map
+	 * @return the map, or null if the index is out of range or the map is corrupt
+	 */
+	public GridMap readMap(int index) {
+		if (index < 0 || this.numMaps <= index) {
+			return null;
+		}
+		long offset = this.data.getLong(HEADER_SIZE + 8 * index);
+		if (offset < 0 || this.data.limit() <= offset) {
+			return null;
+		}
+
+		ByteBuffer buf = this.data.duplicate();
+		buf.position((int) offset);
+		GridMap map = GridMap.decode(buf);
+		if (map == null) {
+			System.err.println("Corrupt map " + index + " in " + this.file.getPath());
+		}
+		return map;
+	}
+
+
+	/**
+	 * Writes the given maps to a pack file, replacing it if it exists. The file is
+	 * written under a temporary name and then moved into place, so readers that
+	 * already have the old file mapped are not affected.
+	 *
+	 * @param file
+	 *                the file to write
+	 * @param maps
+	 *                the maps to write
+	 * @throws IOException
+	 *                 if the file can't be written
+	 */
+	public static void write(File file, List<GridMap> maps) throws IOException {
+		File tmpFile = new File(file.getPath() + ".tmp");
+		try (RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw"); FileChannel channel = raf.getChannel()) {
+			raf.setLength(0);
+			int indexSize = HEADER_SIZE + 8 * maps.size();
+			ByteBuffer header = ByteBuffer.allocate(indexSize);
+			header.putInt(MAGIC);
+			header.putInt(VERSION);
+			header.putInt(maps.size());
+			header.putInt(0);
+			long offset = indexSize;
+			for (GridMap map : maps) {
+				header.putLong(offset);
+				offset += map.encodedSize();
+			}
+			header.flip();
+			while (header.hasRemaining()) {
+				channel.write(header);
+			}
+
+			for (GridMap map : maps) {
+				ByteBuffer buf = ByteBuffer.allocate(map.encodedSize());
+				map.encode(buf);
+				buf.flip();
+				while (buf.hasRemaining()) {
+					channel.write(buf);
+				}
+			}
+		}
+		Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+
+	/**
+	 * Adds a map to the end of a pack file, creating the file if it doesn't exist.
+	 *
+	 * @param file
+	 *                the pack file
+	 * @param map
+	 *                the map to add
+	 * @return the number of maps in the pack after adding
+	 * @throws IOException
+	 *                 if the file can't be read or written
+	 */
+	public static int append(File file, GridMap map) throws IOException {
+		List<GridMap> maps = new ArrayList<>();
+		if (file.exists()) {
+			GridMapPack pack = new GridMapPack(file);
+			for (int i = 0; i < pack.getNumMaps(); i++) {
+				GridMap existing = pack.readMap(i);
+				if (existing == null) {
+					throw new IOException("Unable to read map " + i + " from " + file.getPath());
+				}
+				maps.add(existing);
+			}
+		}
+		maps.add(map);
+		write(file, maps);
+		return maps.size();
+	}
+}
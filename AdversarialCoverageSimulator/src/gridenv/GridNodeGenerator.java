@@ -2,19 +2,47 @@ package gridenv;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Random;
 import java.util.Scanner;
-
-public class GridNodeGenerator {
-
-	private Random randgen = new Random();
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import adsim.SettingsReloadable;
+import adsim.SimulatorMain;
+import adsim.SimulatorSettings;
+
+/**
+ * Generates grid contents from the program given in <code>env.grid.dangervalues</code>.
+ * <p>
+ * There are two modes. In sequential mode, {@link #genNext(GridNode)} is called for each
+ * cell in order and the template state advances cell by cell, drawing from a single
+ * random stream. In compiled mode, each map is compiled into a lookup from cell index to
+ * template, and each row (fixed x) draws from its own {@link SplittableRandom} stream
+ * split from the master seed. Rows can then be generated in parallel, and the result for
+ * a given seed doesn't depend on the number of threads.
+ */
+public class GridNodeGenerator implements SettingsReloadable {
+
+	public static final String MODE_SEQUENTIAL = "sequential";
+	public static final String MODE_COMPILED = "compiled";
+
+	private SplittableRandom randgen;
+	private long seed;
+	// The seed setting that was last applied (negative means random)
+	private int seedSetting = -1;
+	// Where random seeds come from when the seed setting is negative
+	private SplittableRandom seedSource = null;
 
 	private List<List<GridNodeTemplate>> maps = new ArrayList<>();
+	// For each map, the (exclusive) last cell index of each template
+	private List<long[]> compiledTemplateEnds = new ArrayList<>();
 	private int mapNum = 0;
 	private int mapNodeNum = 0;
 	private int timesRepeated = 0;
 
 	private String genStr = "";
+	private String mode = MODE_SEQUENTIAL;
+	private int parallelThreshold = 65536;
 
 
 	/**
@@ -29,18 +57,105 @@ public class GridNodeGenerator {
 	 * Resets parameters to default values
 	 */
 	public void reset() {
-		this.randgen.setSeed(System.nanoTime());
+		this.setSeed(System.nanoTime());
 		this.resetNodeParameters();
 		this.genStr = "";
 		this.compileParamsFromString(this.genStr);
 	}
 
 
+	/**
+	 * Loads the mode, parallel threshold, and seed from the settings. The generator is
+	 * only reseeded if the seed setting changed since it was last applied, so that
+	 * calling this before every grid doesn't restart the sequence of grids. If the
+	 * seed setting is negative, the new seed is drawn from the seed source (see
+	 * {@link #setSeedSource(SplittableRandom)}).
+	 */
+	@Override
+	public void reloadSettings() {
+		final SimulatorSettings settings = SimulatorMain.settings;
+		this.setMode(settings.getString("env.grid.generator_mode"));
+		this.parallelThreshold = settings.getInt("env.grid.generator_parallel_threshold");
+
+		int newSeedSetting = settings.getInt("env.grid.generator_seed");
+		if (newSeedSetting != this.seedSetting) {
+			this.seedSetting = newSeedSetting;
+			this.setSeed(newSeedSetting < 0 ? this.nextRandomSeed() : newSeedSetting);
+		}
+	}
+
+
+	/**
+	 * Sets the stream that seeds are drawn from when <code>env.grid.generator_seed</code>
+	 * is negative, so that runs with a fixed <code>adsim.random_seed</code> stay
+	 * reproducible. Without one, the time is used.
+	 *
+	 * @param seedSource
+	 *                the stream, usually {@link adsim.RandomStreams#generator}
+	 */
+	public void setSeedSource(SplittableRandom seedSource) {
+		this.seedSource = seedSource;
+	}
+
+
+	private long nextRandomSeed() {
+		return (this.seedSource == null) ? System.nanoTime() : this.seedSource.nextLong();
+	}
+
+
 	public String getGeneratorString() {
 		return this.genStr;
 	}
 
 
+	/**
+	 * Reseeds the generator. The sequence of grids generated after this depends only
+	 * on the seed and generator string (and the grid sizes).
+	 *
+	 * @param seed
+	 *                the master seed
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+		this.randgen = new SplittableRandom(seed);
+	}
+
+
+	public long getSeed() {
+		return this.seed;
+	}
+
+
+	/**
+	 * Sets the generation mode, either {@link #MODE_SEQUENTIAL} or
+	 * {@link #MODE_COMPILED}
+	 */
+	public void setMode(String mode) {
+		if (mode.equalsIgnoreCase(MODE_COMPILED)) {
+			this.mode = MODE_COMPILED;
+		} else {
+			if (!mode.equalsIgnoreCase(MODE_SEQUENTIAL)) {
+				System.err.println("Unknown grid generator mode: " + mode + ". Using sequential mode.");
+			}
+			this.mode = MODE_SEQUENTIAL;
+		}
+	}
+
+
+	public String getMode() {
+		return this.mode;
+	}
+
+
+	/**
+	 * Sets the minimum number of cells in a grid for compiled mode to generate rows in
+	 * parallel
+	 */
+	public void setParallelThreshold(int parallelThreshold) {
+		this.parallelThreshold = parallelThreshold;
+	}
+
+
 	private void resetNodeParameters() {
 		this.timesRepeated = 0;
 	}
@@ -71,6 +186,46 @@ public class GridNodeGenerator {
 		}
 
 		paramScanner.close();
+
+		this.compiledTemplateEnds.clear();
+		for (List<GridNodeTemplate> map : this.maps) {
+			this.compiledTemplateEnds.add(compileTemplateEnds(map));
+		}
+	}
+
+
+	/**
+	 * Computes the prefix sums of the repeat counts for the given map. The last
+	 * template in a map repeats forever, as it does in {@link #genNext(GridNode)}.
+	 */
+	private static long[] compileTemplateEnds(List<GridNodeTemplate> map) {
+		long[] ends = new long[map.size()];
+		long end = 0;
+		for (int i = 0; i < map.size(); i++) {
+			// genNext moves on after max(1, repeatCount) cells
+			end += Math.max(1, map.get(i).repeatCount);
+			ends[i] = end;
+		}
+		ends[ends.length - 1] = Long.MAX_VALUE;
+		return ends;
+	}
+
+
+	/**
+	 * Finds the template in the compiled map for the given cell index
+	 */
+	private static int findTemplate(long[] templateEnds, long cellIndex) {
+		int low = 0;
+		int high = templateEnds.length - 1;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (cellIndex < templateEnds[mid]) {
+				high = mid;
+			} else {
+				low = mid + 1;
+			}
+		}
+		return low;
 	}
 
 
@@ -193,6 +348,59 @@ public class GridNodeGenerator {
 	}
 
 
+	/**
+	 * Picks a random map and fills the whole grid from it, using the current mode.
+	 *
+	 * @param grid
+	 *                the grid to fill
+	 * @param width
+	 *                the width of the grid
+	 * @param height
+	 *                the height of the grid
+	 */
+	public void generateGrid(GridNode[][] grid, int width, int height) {
+		if (!MODE_COMPILED.equals(this.mode)) {
+			this.setRandomMap();
+			for (int x = 0; x < width; x++) {
+				for (int y = 0; y < height; y++) {
+					this.genNext(grid[x][y]);
+				}
+			}
+			return;
+		}
+
+		// Split all the streams up front, in order, so that the results don't depend
+		// on how the rows are scheduled
+		SplittableRandom gridRandom = this.randgen.split();
+		int mapIndex = gridRandom.nextInt(this.maps.size());
+		SplittableRandom[] rowRandoms = new SplittableRandom[width];
+		for (int x = 0; x < width; x++) {
+			rowRandoms[x] = gridRandom.split();
+		}
+
+		RowGenerationTask task = new RowGenerationTask(grid, height, this.maps.get(mapIndex), this.compiledTemplateEnds.get(mapIndex),
+				rowRandoms, 0, width);
+		if (this.parallelThreshold <= (long) width * height) {
+			ForkJoinPool.commonPool().invoke(task);
+		} else {
+			task.compute();
+		}
+	}
+
+
+	private static void generateRow(GridNode[] row, int x, int height, List<GridNodeTemplate> map, long[] templateEnds,
+			SplittableRandom rowRandom) {
+		long cellIndex = (long) x * height;
+		int templateNum = findTemplate(templateEnds, cellIndex);
+		for (int y = 0; y < height; y++, cellIndex++) {
+			while (templateEnds[templateNum] <= cellIndex) {
+				templateNum++;
+			}
+			map.get(templateNum).applyToGridNode(row[y], rowRandom);
+		}
+	}
+
+
 	/**
 	 * Sets the parameters of the given grid node using the parameters stored.
 	 * 
@@ -210,6 +418,48 @@ public class GridNodeGenerator {
 		}
 	}
 
+
+	/**
+	 * Generates a range of rows in compiled mode, splitting the range in half until it
+	 * is small enough
+	 */
+	private static class RowGenerationTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private static final int MIN_CELLS_PER_TASK = 4096;
+		private final GridNode[][] grid;
+		private final int height;
+		private final List<GridNodeTemplate> map;
+		private final long[] templateEnds;
+		private final SplittableRandom[] rowRandoms;
+		private final int x0;
+		private final int x1;
+
+
+		RowGenerationTask(GridNode[][] grid, int height, List<GridNodeTemplate> map, long[] templateEnds, SplittableRandom[] rowRandoms,
+				int x0, int x1) {
+			this.grid = grid;
+			this.height = height;
+			this.map = map;
+			this.templateEnds = templateEnds;
+			this.rowRandoms = rowRandoms;
+			this.x0 = x0;
+			this.x1 = x1;
+		}
+
+
+		@Override
+		protected void compute() {
+			if (this.x1 - this.x0 <= 1 || (long) (this.x1 - this.x0) * this.height <= MIN_CELLS_PER_TASK) {
+				for (int x = this.x0; x < this.x1; x++) {
+					generateRow(this.grid[x], x, this.height, this.map, this.templateEnds, this.rowRandoms[x]);
+				}
+				return;
+			}
+			int mid = (this.x0 + this.x1) >>> 1;
+			invokeAll(new RowGenerationTask(this.grid, this.height, this.map, this.templateEnds, this.rowRandoms, this.x0, mid),
+					new RowGenerationTask(this.grid, this.height, this.map, this.templateEnds, this.rowRandoms, mid, this.x1));
+		}
+	}
 }
 
 
@@ -242,7 +492,7 @@ class GridNodeTemplate {
 	 * @param randgen
 	 *                a random number source to use for evaluating probabilities
 	 */
-	public void applyToGridNode(GridNode node, Random randgen) {
+	public void applyToGridNode(GridNode node, SplittableRandom randgen) {
 		double rand = randgen.nextDouble();
 		if (rand < this.obstacleProb) {
 			node.setNodeType(NodeType.OBSTACLE);
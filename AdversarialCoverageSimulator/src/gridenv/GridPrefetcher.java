@@ -0,0 +1,398 @@
+package gridenv;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import adsim.SettingsReloadable;
+import adsim.SimulatorMain;
+import adsim.SimulatorSettings;
+
+/**
+ * Prepares grids for upcoming episodes on a background thread, so starting a new
+ * episode only has to swap in a grid that is already generated. Up to
+ * <code>env.prefetch.count</code> grids are kept ready in a bounded queue.
+ * <p>
+ * If robot start locations are randomized, the prefetcher also picks them (applying the
+ * same cell clearing as {@link GridEnvironment#init()}), and can precompute a path for
+ * each robot with a {@link PathPlanner}.
+ * <p>
+ * Settings are only read on the calling thread, in {@link #reloadSettings()}. Grids that
+ * were prepared with old settings are thrown away.
+ * <p>
+ * If preparing a grid fails, the prefetch thread stops, and once the grids that are
+ * already ready run out, {@link #take()} returns null so the caller can generate
+ * grids itself.
+ *
+ * @author Mike D'Arcy
+ *
+ */
+public class GridPrefetcher implements SettingsReloadable {
+	/**
+	 * How often {@link #take()} checks that the prefetch thread is still alive while
+	 * waiting for a grid
+	 */
+	private static final long TAKE_POLL_INTERVAL_MS = 100;
+
+	/**
+	 * Plans paths on prefetched grids, on the prefetch thread. Implementations must not
+	 * modify the grid, and must not read settings in {@link #planPath}; any settings
+	 * they need are read in {@link #withSettings(SimulatorSettings)}.
+	 */
+	public interface PathPlanner {
+		public List<GridNode> planPath(GridNode[][] grid, int startX, int startY);
+
+
+		/**
+		 * Gets a planner that uses the current values of the settings it needs. This
+		 * is called on the calling thread, in {@link GridPrefetcher#reloadSettings()}.
+		 *
+		 * @param settings
+		 *                the settings to read
+		 * @return the planner to use on the prefetch thread
+		 */
+		public PathPlanner withSettings(SimulatorSettings settings);
+	}
+
+
+	/**
+	 * A grid prepared for an episode
+	 */
+	public static class PrefetchedGrid {
+		public final GridNode[][] grid;
+		/**
+		 * Robot start locations, in robot order, or null if start locations are not
+		 * randomized
+		 */
+		public final List<Coordinate> startLocations;
+		/**
+		 * Precomputed paths for each robot, or null if paths were not planned. A path
+		 * is null if planning it failed.
+		 */
+		public final List<List<GridNode>> paths;
+		private final int configVersion;
+
+
+		private PrefetchedGrid(GridNode[][] grid, List<Coordinate> startLocations, List<List<GridNode>> paths, int configVersion) {
+			this.grid = grid;
+			this.startLocations = startLocations;
+			this.paths = paths;
+			this.configVersion = configVersion;
+		}
+	}
+
+
+	/**
+	 * Snapshot of the settings used to prepare grids
+	 */
+	private static class Config {
+		int version;
+		String dangerValues;
+		String generatorMode;
+		int generatorSeed;
+		int generatorParallelThreshold;
+		boolean variableGridSize;
+		boolean forceSquare;
+		int width;
+		int height;
+		int minWidth;
+		int maxWidth;
+		int minHeight;
+		int maxHeight;
+		boolean randomizeStart;
+		boolean clearAdjacentCells;
+		/**
+		 * The planner with its settings, or null to not plan paths
+		 */
+		PathPlanner planner;
+	}
+
+	private final int numRobots;
+	private final PathPlanner planner;
+	private final BlockingQueue<PrefetchedGrid> readyGrids;
+	private final ConcurrentLinkedQueue<GridNode[][]> freeGrids = new ConcurrentLinkedQueue<>();
+	private final int maxFreeGrids;
+	private volatile Config config = null;
+	private volatile boolean running = false;
+	private volatile Thread thread = null;
+	private volatile RuntimeException failure = null;
+
+	// Only used on the prefetch thread
+	private GridNodeGenerator nodegen = new GridNodeGenerator();
+	private final SplittableRandom random;
+	private int appliedSeed = Integer.MIN_VALUE;
+
+
+	/**
+	 * Creates a new prefetcher. The queue size is read from
+	 * <code>env.prefetch.count</code> here, and doesn't change after that.
+	 *
+	 * @param numRobots
+	 *                the number of robots to pick start locations for
+	 * @param planner
+	 *                the planner for robot paths, or null to not plan paths
+	 * @param seed
+	 *                the seed for grid sizes and start locations, and for grid
+	 *                generation if <code>env.grid.generator_seed</code> is negative
+	 */
+	public GridPrefetcher(int numRobots, PathPlanner planner, long seed) {
+		this.numRobots = numRobots;
+		this.planner = planner;
+		this.random = new SplittableRandom(seed);
+		int queueSize = Math.max(1, SimulatorMain.settings.getInt("env.prefetch.count"));
+		this.readyGrids = new ArrayBlockingQueue<>(queueSize);
+		this.maxFreeGrids = queueSize + 1;
+		this.reloadSettings();
+	}
+
+
+	/**
+	 * Starts the prefetch thread
+	 */
+	public synchronized void start() {
+		if (this.running) {
+			return;
+		}
+		this.running = true;
+		this.thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				GridPrefetcher.this.runPrefetchLoop();
+			}
+		}, "GridPrefetcher");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+
+	/**
+	 * Stops the prefetch thread. Grids that are already prepared are discarded.
+	 */
+	public synchronized void stop() {
+		this.running = false;
+		if (this.thread != null) {
+			this.thread.interrupt();
+			this.thread = null;
+		}
+		this.readyGrids.clear();
+	}
+
+
+	@Override
+	public void reloadSettings() {
+		final SimulatorSettings settings = SimulatorMain.settings;
+		Config newConfig = new Config();
+		newConfig.version = (this.config == null) ? 0 : this.config.version + 1;
+		newConfig.dangerValues = settings.getString("env.grid.dangervalues");
+		newConfig.generatorMode = settings.getString("env.grid.generator_mode");
+		newConfig.generatorSeed = settings.getInt("env.grid.generator_seed");
+		newConfig.generatorParallelThreshold = settings.getInt("env.grid.generator_parallel_threshold");
+		newConfig.variableGridSize = settings.getBoolean("env.variable_grid_size");
+		newConfig.forceSquare = settings.getBoolean("env.grid.force_square");
+		newConfig.width = settings.getInt("env.grid.width");
+		newConfig.height = settings.getInt("env.grid.height");
+		newConfig.minWidth = settings.getInt("env.grid.minwidth");
+		newConfig.maxWidth = settings.getInt("env.grid.maxwidth");
+		newConfig.minHeight = settings.getInt("env.grid.minheight");
+		newConfig.maxHeight = settings.getInt("env.grid.maxheight");
+		newConfig.randomizeStart = settings.getBoolean("autorun.randomize_robot_start");
+		newConfig.clearAdjacentCells = settings.getBoolean("env.clear_adjacent_cells_on_init");
+		if (settings.getBoolean("env.prefetch.precompute_plans") && this.planner != null) {
+			newConfig.planner = this.planner.withSettings(settings);
+		}
+		this.config = newConfig;
+	}
+
+
+	/**
+	 * Gets the next prepared grid, waiting for one if none are ready yet.
+	 *
+	 * @return the grid, or null if the prefetcher is not running, the prefetch thread
+	 *         has died and no grids are left, or the calling thread was interrupted
+	 */
+	public PrefetchedGrid take() {
+		while (this.running) {
+			Thread prefetchThread = this.thread;
+			boolean alive = (prefetchThread != null && prefetchThread.isAlive());
+			PrefetchedGrid next;
+			try {
+				if (alive) {
+					next = this.readyGrids.poll(TAKE_POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+				} else {
+					next = this.readyGrids.poll();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			}
+			if (next == null) {
+				if (!alive) {
+					return null;
+				}
+				continue;
+			}
+			if (next.configVersion == this.config.version) {
+				return next;
+			}
+			this.recycle(next.grid);
+		}
+		return null;
+	}
+
+
+	/**
+	 * Gives a grid that is no longer used back to the prefetcher so its nodes can be
+	 * reused. The caller must not use the grid after this.
+	 *
+	 * @param grid
+	 *                the grid to recycle
+	 */
+	public void recycle(GridNode[][] grid) {
+		if (grid != null && this.freeGrids.size() < this.maxFreeGrids) {
+			this.freeGrids.offer(grid);
+		}
+	}
+
+
+	/**
+	 * Gets the number of grids that are ready
+	 */
+	public int getNumReady() {
+		return this.readyGrids.size();
+	}
+
+
+	/**
+	 * Gets the error that stopped the prefetch thread
+	 *
+	 * @return the error, or null if the thread hasn't failed
+	 */
+	public RuntimeException getFailure() {
+		return this.failure;
+	}
+
+
+	private void runPrefetchLoop() {
+		while (this.running) {
+			PrefetchedGrid next;
+			try {
+				next = this.prepareGrid(this.config);
+			} catch (RuntimeException e) {
+				// take() returns null once the ready grids run out, and the
+				// caller generates grids itself from then on
+				this.failure = e;
+				System.err.println("Grid prefetching failed, so grids will be generated without prefetching: " + e);
+				e.printStackTrace();
+				return;
+			}
+			try {
+				this.readyGrids.put(next);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+
+	/**
+	 * Generates a grid, and picks start locations and plans paths if enabled
+	 */
+	private PrefetchedGrid prepareGrid(Config cfg) {
+		if (!this.nodegen.getGeneratorString().equals(cfg.dangerValues)) {
+			this.nodegen.setGeneratorString(cfg.dangerValues);
+		}
+		this.nodegen.setMode(cfg.generatorMode);
+		this.nodegen.setParallelThreshold(cfg.generatorParallelThreshold);
+		if (cfg.generatorSeed != this.appliedSeed) {
+			this.appliedSeed = cfg.generatorSeed;
+			this.nodegen.setSeed(cfg.generatorSeed < 0 ? this.random.nextLong() : cfg.generatorSeed);
+		}
+
+		int width = cfg.width;
+		int height = cfg.height;
+		if (cfg.variableGridSize) {
+			width = (int) (this.random.nextDouble() * (cfg.maxWidth - cfg.minWidth) + cfg.minWidth);
+			height = (int) (this.random.nextDouble() * (cfg.maxHeight - cfg.minHeight) + cfg.minHeight);
+			if (cfg.forceSquare) {
+				height = width;
+			}
+		}
+
+		GridNode[][] grid = this.getFreeGrid(width, height);
+		this.nodegen.generateGrid(grid, width, height);
+
+		if (!cfg.randomizeStart) {
+			return new PrefetchedGrid(grid, null, null, cfg.version);
+		}
+
+		// Same placement as GridEnvironment.init(). Each robot's path is planned
+		// before the next robot clears its cells, as init() does.
+		List<Coordinate> startLocations = new ArrayList<>();
+		List<List<GridNode>> paths = (cfg.planner != null) ? new ArrayList<List<GridNode>>() : null;
+		for (int robotNum = 0; robotNum < this.numRobots; robotNum++) {
+			Coordinate location = new Coordinate(-1, -1);
+			while (location.x == -1 || grid[location.x][location.y].getNodeType() == NodeType.OBSTACLE) {
+				location.x = this.random.nextInt(width);
+				location.y = this.random.nextInt(height);
+			}
+			if (cfg.clearAdjacentCells) {
+				clear4AdjacentCells(grid, location.x, location.y);
+			}
+			grid[location.x][location.y].setNodeType(NodeType.FREE);
+			startLocations.add(location);
+
+			if (paths != null) {
+				List<GridNode> path = null;
+				try {
+					path = cfg.planner.planPath(grid, location.x, location.y);
+				} catch (RuntimeException e) {
+					// Leave it to be planned normally when the environment is
+					// initialized
+					System.err.println("Failed to precompute path for prefetched grid: " + e);
+				}
+				paths.add(path);
+			}
+		}
+
+		return new PrefetchedGrid(grid, startLocations, paths, cfg.version);
+	}
+
+
+	private GridNode[][] getFreeGrid(int width, int height) {
+		GridNode[][] grid = this.freeGrids.poll();
+		while (grid != null && (grid.length != width || grid[0].length != height)) {
+			grid = this.freeGrids.poll();
+		}
+		if (grid != null) {
+			return grid;
+		}
+
+		grid = new GridNode[width][height];
+		for (int x = 0; x < width; x++) {
+			for (int y = 0; y < height; y++) {
+				grid[x][y] = new GridNode(x, y, NodeType.FREE);
+			}
+		}
+		return grid;
+	}
+
+
+	private static void clear4AdjacentCells(GridNode[][] grid, int x, int y) {
+		if ((x + 1) < grid.length) {
+			grid[x + 1][y].setNodeType(NodeType.FREE);
+		}
+		if (0 < x) {
+			grid[x - 1][y].setNodeType(NodeType.FREE);
+		}
+		if ((y + 1) < grid[x].length) {
+			grid[x][y + 1].setNodeType(NodeType.FREE);
+		}
+		if (0 < y) {
+			grid[x][y - 1].setNodeType(NodeType.FREE);
+		}
+	}
+}
@@ -1,7 +1,5 @@
 package gridenv;
 
-import adsim.SimulatorMain;
-
 /**
  * A sensor for grids. It can detect the entire grid (including danger level, the number
  * of times each space was covered, etc) and the robot's location
@@ -29,7 +27,9 @@ public class GridSensor {
 
 
 	/**
-	 * Gets the location of the robot to which this sensor is attached
+	 * Gets the location of the robot to which this sensor is attached. This returns a
+	 * new object each time, so code that runs every step should use {@link #getX()}
+	 * and {@link #getY()} instead.
 	 * 
 	 * @return the robot's current location as a {@code Coordinate}
 	 */
@@ -137,8 +137,41 @@ public class GridSensor {
 	}
 	
 	
+	/**
+	 * @return the number of cell changes recorded by the environment
+	 * @see GridEnvironment#getChangeCount()
+	 */
+	public long getChangeCount() {
+		return this.env.getChangeCount();
+	}
+
+
+	/**
+	 * @see GridEnvironment#getChangedCell(long)
+	 */
+	public int getChangedCell(long changeNum) {
+		return this.env.getChangedCell(changeNum);
+	}
+
+
+	/**
+	 * @see GridEnvironment#getGridVersion()
+	 */
+	public int getGridVersion() {
+		return this.env.getGridVersion();
+	}
+
+
+	/**
+	 * @see GridEnvironment#getFeaturePlanes(int, double, double, double, double)
+	 */
+	public GridFeaturePlanes getFeaturePlanes(int padding, double oobDanger, double oobCover, double oobObstacle, double normDivisor) {
+		return this.env.getFeaturePlanes(padding, oobDanger, oobCover, oobObstacle, normDivisor);
+	}
+
+
 	public boolean isFinished() {
-		return SimulatorMain.getEngine().getSimulation().isTerminalState();
+		return this.env.getSimulation().isTerminalState();
 	}
 
 
@@ -0,0 +1,147 @@
+package gridenv;
+
+/**
+ * A saved copy of the state of a {@link GridEnvironment}: every cell (node type,
+ * danger, spreadability, fuel, and cover count), the robots' locations and broken
+ * flags, and the step count. Cell values are stored in flat arrays indexed by
+ * <code>x * height + y</code>, so saving is a single pass over the grid.
+ * <p>
+ * Snapshots are created with {@link GridEnvironment#saveSnapshot(GridSnapshot)} and
+ * can be restored any number of times with
+ * {@link GridEnvironment#restoreSnapshot(GridSnapshot)}. When restoring to the
+ * environment the snapshot was taken from (or was last restored to), only the cells
+ * that changed since then are rewritten, as long as they are still in the
+ * environment's change log. This makes repeated save-try-restore cycles cost about
+ * as much as the cells they touch.
+ *
+ * @author Mike D'Arcy
+ *
+ */
+public class GridSnapshot {
+	int width = 0;
+	int height = 0;
+	byte[] nodeTypes = new byte[0];
+	double[] danger = new double[0];
+	double[] spreadability = new double[0];
+	double[] fuel = new double[0];
+	int[] coverCounts = new int[0];
+
+	int[] robotX = new int[0];
+	int[] robotY = new int[0];
+	boolean[] robotBroken = new boolean[0];
+	int stepCount = 0;
+
+	/**
+	 * The environment this was taken from, and its change tracking state at the
+	 * time, for incremental restores
+	 */
+	GridEnvironment source = null;
+	int gridVersion = 0;
+	long changeCount = 0;
+
+
+	/**
+	 * Makes sure the arrays fit the given grid size and number of robots, reusing
+	 * them if they are already the right size
+	 */
+	void ensureCapacity(int width, int height, int numRobots) {
+		this.width = width;
+		this.height = height;
+		int numCells = width * height;
+		if (this.nodeTypes.length != numCells) {
+			this.nodeTypes = new byte[numCells];
+			this.danger = new double[numCells];
+			this.spreadability = new double[numCells];
+			this.fuel = new double[numCells];
+			this.coverCounts = new int[numCells];
+		}
+		if (this.robotX.length != numRobots) {
+			this.robotX = new int[numRobots];
+			this.robotY = new int[numRobots];
+			this.robotBroken = new boolean[numRobots];
+		}
+	}
+
+
+	void saveCell(int index, GridNode node) {
+		this.nodeTypes[index] = GridMap.encodeNodeType(node.getNodeType());
+		this.danger[index] = node.getDangerProb();
+		this.spreadability[index] = node.spreadability;
+		this.fuel[index] = node.dangerFuel;
+		this.coverCounts[index] = node.getCoverCount();
+	}
+
+
+	void restoreCell(int index, GridNode node) {
+		GridMap.applyToNode(node, this.nodeTypes[index], this.danger[index], this.spreadability[index], this.fuel[index]);
+		node.setCoverCount(this.coverCounts[index]);
+	}
+
+
+	/**
+	 * Checks whether restoring this to the given environment would only rewrite the
+	 * cells that changed since it was saved. That is the case if it was saved from the
+	 * same environment, the grid hasn't been replaced or resized since, and all the
+	 * changes since then (no more than one per cell) are still in the change log.
+	 */
+	public boolean canRestoreIncrementally(GridEnvironment env) {
+		long numChanges = env.getChangeCount() - this.changeCount;
+		return this.source == env && this.gridVersion == env.getGridVersion() && this.width == env.getWidth()
+				&& this.height == env.getHeight() && 0 <= numChanges && numChanges <= this.width * this.height
+				&& (numChanges == 0 || env.getChangedCell(this.changeCount) != -1);
+	}
+
+
+	/**
+	 * Counts the cells of the environment that differ from this snapshot in any of the
+	 * saved values (compared exactly), for checking that a restore put everything
+	 * back. The environment must have the same grid size as this snapshot.
+	 *
+	 * @param env
+	 *                the environment to compare
+	 * @return the number of cells that differ
+	 */
+	public int countMismatchedCells(GridEnvironment env) {
+		int mismatches = 0;
+		for (int x = 0; x < this.width; x++) {
+			GridNode[] column = env.grid[x];
+			int offset = x * this.height;
+			for (int y = 0; y < this.height; y++) {
+				GridNode node = column[y];
+				int index = offset + y;
+				if (this.nodeTypes[index] != GridMap.encodeNodeType(node.getNodeType())
+						|| Double.doubleToLongBits(this.danger[index]) != Double.doubleToLongBits(node.getDangerProb())
+						|| Double.doubleToLongBits(this.spreadability[index]) != Double.doubleToLongBits(node.spreadability)
+						|| Double.doubleToLongBits(this.fuel[index]) != Double.doubleToLongBits(node.dangerFuel)
+						|| this.coverCounts[index] != node.getCoverCount()) {
+					mismatches++;
+				}
+			}
+		}
+		return mismatches;
+	}
+
+
+	/**
+	 * Gets the environment's change count at the time this was saved (see
+	 * {@link GridEnvironment#getChangeCount()})
+	 */
+	public long getChangeCount() {
+		return this.changeCount;
+	}
+
+
+	public int getWidth() {
+		return this.width;
+	}
+
+
+	public int getHeight() {
+		return this.height;
+	}
+
+
+	public int getStepCount() {
+		return this.stepCount;
+	}
+}
@@ -0,0 +1,137 @@
+package simulations.coverage;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import adsim.SimulatorMain;
+
+/**
+ * Checks that the steady-state simulation step doesn't allocate. Each algorithm is
+ * run in a detached coverage simulation on the current thread, and the thread's
+ * allocated bytes are read before and after each chunk of steps. Periodic logging
+ * (such as DQL's network dumps) allocates in a few chunks, so the median chunk is
+ * what is compared against the limit.
+ * <p>
+ * DQL is run greedily (with an exploration rate of 0) so that every step goes
+ * through the network, which is the inference path.
+ *
+ * @author Mike D'Arcy
+ *
+ */
+public class AllocationCheck {
+	/**
+	 * The most a step may allocate, on average over the median chunk, before the
+	 * check fails
+	 */
+	public static final double MAX_BYTES_PER_STEP = 8.0;
+	private static final int STEPS_PER_CHUNK = 1000;
+
+	private final com.sun.management.ThreadMXBean threadBean;
+
+
+	public AllocationCheck() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean
+				&& ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+			this.threadBean = (com.sun.management.ThreadMXBean) bean;
+			this.threadBean.setThreadAllocatedMemoryEnabled(true);
+		} else {
+			this.threadBean = null;
+		}
+	}
+
+
+	/**
+	 * Runs the check for each algorithm and prints the results
+	 *
+	 * @param algorithmNames
+	 *                the algorithms to check, in the same format as the
+	 *                <code>adsim.algorithm_name</code> setting
+	 * @param numSteps
+	 *                the number of steps to measure for each algorithm, after the
+	 *                same number of warm-up steps
+	 * @return true if every algorithm passed
+	 */
+	public boolean run(String[] algorithmNames, int numSteps) {
+		if (this.threadBean == null) {
+			System.err.println("This JVM can't measure per-thread allocations.");
+			return false;
+		}
+
+		boolean allPassed = true;
+		for (String algorithmName : algorithmNames) {
+			double bytesPerStep = this.measure(algorithmName, numSteps);
+			boolean passed = bytesPerStep <= MAX_BYTES_PER_STEP;
+			allPassed &= passed;
+			System.out.printf("%s: %.1f bytes/step (limit %.1f) %s\n", algorithmName, bytesPerStep, MAX_BYTES_PER_STEP,
+					passed ? "PASS" : "FAIL");
+		}
+		return allPassed;
+	}
+
+
+	/**
+	 * Measures the median bytes allocated per step for one algorithm
+	 */
+	private double measure(String algorithmName, int numSteps) {
+		CoverageSimulation sim;
+		String epsilonStart = SimulatorMain.settings.getAsString("deepql.greedy_epsilon_start");
+		String epsilonMinimum = SimulatorMain.settings.getAsString("deepql.greedy_epsilon_minimum");
+		try {
+			SimulatorMain.settings.setDouble("deepql.greedy_epsilon_start", 0.0);
+			SimulatorMain.settings.setDouble("deepql.greedy_epsilon_minimum", 0.0);
+			sim = new CoverageSimulation(algorithmName, true);
+			sim.onNewRun();
+		} finally {
+			SimulatorMain.settings.setDouble("deepql.greedy_epsilon_start", epsilonStart);
+			SimulatorMain.settings.setDouble("deepql.greedy_epsilon_minimum", epsilonMinimum);
+		}
+
+		long threadId = Thread.currentThread().getId();
+		this.runSteps(sim, numSteps, threadId, null);
+		int numChunks = Math.max(1, numSteps / STEPS_PER_CHUNK);
+		double[] chunkBytesPerStep = new double[numChunks];
+		this.runSteps(sim, numChunks * STEPS_PER_CHUNK, threadId, chunkBytesPerStep);
+		sim.dispose();
+
+		Arrays.sort(chunkBytesPerStep);
+		return chunkBytesPerStep[numChunks / 2];
+	}
+
+
+	/**
+	 * Steps the simulation, starting new episodes as needed. Episode starts aren't
+	 * counted as part of any chunk.
+	 *
+	 * @param chunkBytesPerStep
+	 *                where to store the bytes per step of each chunk, or null to not
+	 *                measure
+	 */
+	private void runSteps(CoverageSimulation sim, int numSteps, long threadId, double[] chunkBytesPerStep) {
+		int chunk = 0;
+		int stepsInChunk = 0;
+		long chunkBytes = 0;
+		long startBytes = this.threadBean.getThreadAllocatedBytes(threadId);
+		for (int step = 0; step < numSteps; step++) {
+			if (sim.isTerminalState()) {
+				chunkBytes += this.threadBean.getThreadAllocatedBytes(threadId) - startBytes;
+				sim.startNewEpisode();
+				startBytes = this.threadBean.getThreadAllocatedBytes(threadId);
+			}
+			sim.onStep();
+			sim.getStats().updateTimeStep();
+			stepsInChunk++;
+
+			if (stepsInChunk == STEPS_PER_CHUNK) {
+				chunkBytes += this.threadBean.getThreadAllocatedBytes(threadId) - startBytes;
+				if (chunkBytesPerStep != null && chunk < chunkBytesPerStep.length) {
+					chunkBytesPerStep[chunk] = (double) chunkBytes / stepsInChunk;
+				}
+				chunk++;
+				stepsInChunk = 0;
+				chunkBytes = 0;
+				startBytes = this.threadBean.getThreadAllocatedBytes(threadId);
+			}
+		}
+	}
+}
@@ -1,13 +1,17 @@
 package simulations.coverage;
 
+import java.util.SplittableRandom;
+
+import adsim.Metrics;
 import adsim.SimulatorMain;
 import deeplearning.DQLActuator;
-import gridenv.Coordinate;
 import gridenv.GridEnvironment;
 import gridenv.GridRobot;
 import gridenv.NodeType;
 
 public class CoverageActuator implements DQLActuator {
+	private static final Metrics.Timer TAKE_ACTION_TIMER = Metrics.timer("actuator.take_action");
+
 	private CoverageSimulation simulation;
 	/**
 	 * The environment in which this actuator exists
@@ -17,8 +21,18 @@ public class CoverageActuator implements DQLActuator {
 	 * The robot to which this actuator is attached.
 	 */
 	private GridRobot robot;
+	/**
+	 * Decides threat outcomes
+	 */
+	private SplittableRandom random;
 	private double lastReward = 0.0;
 	private int lastActionId = -1;
+	private boolean lastThreat = false;
+	/**
+	 * Threat outcome to use instead of a random one (0 or 1) while replaying a
+	 * recorded action, or -1 normally
+	 */
+	private int forcedThreat = -1;
 	private double COVER_UNIQUE_REWARD = SimulatorMain.settings.getDouble("deepql.reward.cover_unique");
 	private double COVER_AGAIN_REWARD = SimulatorMain.settings.getDouble("deepql.reward.cover_again");
 	private double DEATH_REWARD = SimulatorMain.settings.getDouble("deepql.reward.death");
@@ -38,6 +52,7 @@ public class CoverageActuator implements DQLActuator {
 		this.env = env;
 		this.robot = robot;
 		this.simulation = covSim;
+		this.random = covSim.getRandomStreams().threats;
 	}
 
 
@@ -45,9 +60,9 @@ public class CoverageActuator implements DQLActuator {
 	 * Move the robot 1 cell to the right on the grid
 	 */
 	public void moveRight() {
-		Coordinate newLoc = new Coordinate(this.robot.getLocation().x + 1, this.robot.getLocation().y);
-		moveTo(newLoc);
+		moveTo(this.robot.getLocation().x + 1, this.robot.getLocation().y);
 		this.lastActionId = 0;
+		this.recordAction();
 	}
 
 
@@ -55,9 +70,9 @@ public class CoverageActuator implements DQLActuator {
 	 * Move the robot 1 cell to the left on the grid
 	 */
 	public void moveLeft() {
-		Coordinate newLoc = new Coordinate(this.robot.getLocation().x - 1, this.robot.getLocation().y);
-		moveTo(newLoc);
+		moveTo(this.robot.getLocation().x - 1, this.robot.getLocation().y);
 		this.lastActionId = 2;
+		this.recordAction();
 	}
 
 
@@ -65,9 +80,9 @@ public class CoverageActuator implements DQLActuator {
 	 * Move the robot 1 cell upward (North) on the grid
 	 */
 	public void moveUp() {
-		Coordinate newLoc = new Coordinate(this.robot.getLocation().x, this.robot.getLocation().y + 1);
-		moveTo(newLoc);
+		moveTo(this.robot.getLocation().x, this.robot.getLocation().y + 1);
 		this.lastActionId = 1;
+		this.recordAction();
 	}
 
 
@@ -75,25 +90,28 @@ public class CoverageActuator implements DQLActuator {
 	 * Move the robot 1 cell downward (South) on the grid
 	 */
 	public void moveDown() {
-		Coordinate newLoc = new Coordinate(this.robot.getLocation().x, this.robot.getLocation().y - 1);
-		moveTo(newLoc);
+		moveTo(this.robot.getLocation().x, this.robot.getLocation().y - 1);
 		this.lastActionId = 3;
+		this.recordAction();
 	}
 
 
-	private void moveTo(Coordinate newLoc) {
+	private void moveTo(int newX, int newY) {
 		this.lastReward = 0.0;
+		this.lastThreat = false;
 		if (this.robot.isBroken()) {
 			return;
 		}
+		long start = TAKE_ACTION_TIMER.start();
 
 		// Move, if possible
-		if (this.env.isOnGrid(newLoc.x, newLoc.y) && this.env.getGridNode(newLoc.x, newLoc.y).getNodeType() != NodeType.OBSTACLE
-				&& this.env.getRobotsByLocation(newLoc.x, newLoc.y).size() == 0) {
-			this.robot.setLocation(newLoc.x, newLoc.y);
+		if (this.env.isOnGrid(newX, newY) && this.env.getGridNode(newX, newY).getNodeType() != NodeType.OBSTACLE
+				&& !this.env.isRobotAt(newX, newY)) {
+			this.env.moveRobot(this.robot, newX, newY);
 		}
 
 		this.processCoveringCurrentNode();
+		TAKE_ACTION_TIMER.stop(start);
 	}
 
 
@@ -101,21 +119,31 @@ public class CoverageActuator implements DQLActuator {
 	 * Don't move, just cover the current node again.
 	 */
 	public void coverCurrentNode() {
+		long start = TAKE_ACTION_TIMER.start();
 		this.processCoveringCurrentNode();
+		TAKE_ACTION_TIMER.stop(start);
 		this.lastActionId = 4;
+		this.recordAction();
 	}
 
 
 	private void processCoveringCurrentNode() {
-		double rand = Math.random();
-		boolean isThreat = rand < this.env.getGridNode(this.robot.getLocation().x, this.robot.getLocation().y).getDangerProb()
-				&& this.ROBOTS_BREAKABLE;
+		boolean isThreat;
+		if (this.forcedThreat < 0) {
+			double rand = this.random.nextDouble();
+			isThreat = rand < this.env.getGridNode(this.robot.getLocation().x, this.robot.getLocation().y).getDangerProb()
+					&& this.ROBOTS_BREAKABLE;
+		} else {
+			isThreat = (this.forcedThreat == 1);
+		}
+		this.lastThreat = isThreat;
 		int coverCount = this.env.getGridNode(this.robot.getLocation().x, this.robot.getLocation().y).getCoverCount();
 
 		this.lastReward = this.getCellCoverageReward(coverCount, isThreat);
 
-		SimulatorMain.getStats().updateCellCovered(this.robot);
+		this.simulation.getStats().updateCellCovered(this.robot);
 		this.env.getGridNode(this.robot.getLocation().x, this.robot.getLocation().y).incrementCoverCount();
+		this.env.markCellChanged(this.robot.getLocation().x, this.robot.getLocation().y);
 		if (isThreat) {
 			this.env.getRobotById(this.robot.getId()).setBroken(true);
 		}
@@ -170,6 +198,38 @@ public class CoverageActuator implements DQLActuator {
 	}
 
 
+	/**
+	 * Takes an action with a known threat outcome, instead of deciding the outcome
+	 * randomly. This is used to replay recorded trajectories.
+	 * 
+	 * @param actionNum
+	 *                the action id, as for {@link #takeActionById(int)}
+	 * @param isThreat
+	 *                whether the robot is broken by the cell it covers
+	 */
+	public void takeRecordedAction(int actionNum, boolean isThreat) {
+		this.forcedThreat = isThreat ? 1 : 0;
+		this.takeActionById(actionNum);
+		this.forcedThreat = -1;
+	}
+
+
+	private void recordAction() {
+		TrajectoryRecorder recorder = this.simulation.getTrajectoryRecorder();
+		if (recorder != null && this.forcedThreat < 0) {
+			recorder.recordAction(this.robot.getId(), this.lastActionId, this.lastThreat);
+		}
+	}
+
+
+	/**
+	 * Checks whether the last action broke the robot
+	 */
+	public boolean wasLastActionThreat() {
+		return this.lastThreat;
+	}
+
+
 	@Override
 	public int getLastActionId() {
 		return this.lastActionId;
@@ -2,11 +2,19 @@ package simulations.coverage;
 
 import java.awt.Dimension;
 import java.awt.GraphicsEnvironment;
-import java.util.Random;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
 
 import adsim.Algorithm;
 import adsim.ConsoleController;
 import adsim.Display;
+import adsim.FlightRecorder;
+import adsim.Metrics;
+import adsim.RandomStreams;
 import adsim.Simulation;
 import adsim.SimulatorEngine;
 import adsim.SimulatorMain;
@@ -14,22 +22,41 @@ import adsim.TerminalCommand;
 import adsim.stats.SampledVariableDouble;
 import adsim.stats.SampledVariableLong;
 import gridenv.GridEnvironment;
+import gridenv.GridNode;
 import gridenv.GridNodeGenerator;
+import gridenv.GridPrefetcher;
 import gridenv.GridRobot;
 import gridenv.GridSensor;
 import gridenv.NodeType;
 import simulations.coverage.algo.GSACGC;
+import simulations.coverage.algo.GSACTeam;
+import simulations.coverage.algo.PartitionedGSAC;
+import simulations.coverage.algo.SpanningTreeCoverage;
 import simulations.coverage.display.CoverageGUIDisplay;
 import simulations.generic.algo.DQL;
+import simulations.generic.algo.DQLMonitor;
+import simulations.generic.algo.DemonstrationRecorder;
 import simulations.generic.algo.ExternalDQL;
 import simulations.generic.algo.RandomActionAlgo;
 
 public class CoverageSimulation implements Simulation {
+	private static final Metrics.Timer REGENERATE_GRID_TIMER = Metrics.timer("env.regenerate_grid");
+	private static final FlightRecorder FLIGHT_RECORDER = FlightRecorder.get();
 
 	GridEnvironment env = null;
 	SimulatorEngine engine = null;
 	public int squaresLeft = 0;
-	private Random random = new Random();
+	/**
+	 * Random number streams, recreated from the seed whenever the environment is
+	 * reset
+	 */
+	private RandomStreams randomStreams = null;
+	/**
+	 * Seed to use instead of the <code>adsim.random_seed</code> setting, if
+	 * {@link #hasRandomSeed} is set
+	 */
+	private long randomSeed = 0;
+	private boolean hasRandomSeed = false;
 	private GridNodeGenerator nodegen = new GridNodeGenerator();
 	private int MAX_STEPS_PER_RUN = SimulatorMain.settings.getInt("autorun.max_steps_per_run");
 	private boolean VARIABLE_GRID_SIZE = SimulatorMain.settings.getBoolean("env.variable_grid_size");
@@ -38,10 +65,85 @@ public class CoverageSimulation implements Simulation {
 	private int MAX_WIDTH = SimulatorMain.settings.getInt("env.grid.maxwidth");
 	private int MIN_HEIGHT = SimulatorMain.settings.getInt("env.grid.minheight");
 	private int MIN_WIDTH = SimulatorMain.settings.getInt("env.grid.minwidth");
+	private int JFR_STEP_SAMPLE_INTERVAL = SimulatorMain.settings.getInt("jfr.step_sample_interval");
+	private CoverageStats stats = null;
+	/**
+	 * Prepares grids in the background, or null if prefetching is disabled
+	 */
+	private GridPrefetcher prefetcher = null;
+	private int mapPackIndex = 0;
+	/**
+	 * Which grid the environment is on, counting from 0 for the first grid this
+	 * simulation generated or loaded
+	 */
+	private long mapId = -1;
+	private List<List<GridNode>> prefetchedPaths = null;
+	/**
+	 * The GSACGC instance for each robot (null for robots using other algorithms), so
+	 * prefetched paths can be handed to them
+	 */
+	private List<GSACGC> gsacAlgos = new ArrayList<>();
+	/**
+	 * The team planner shared by robots using MultiGSAC, or null if there are none
+	 */
+	private GSACTeam gsacTeam = null;
+	/**
+	 * The actuator for each robot, so recorded actions can be replayed
+	 */
+	private List<CoverageActuator> actuators = new ArrayList<>();
+	private TrajectoryRecorder trajectoryRecorder = null;
+	/**
+	 * Replays recorded episodes instead of running the algorithms, or null normally
+	 */
+	private TrajectoryReplayer trajectoryReplayer = null;
+	/**
+	 * Snapshot saved with the <code>:snapshot_save</code> command
+	 */
+	private CoverageSnapshot savedSnapshot = null;
+	/**
+	 * Detached simulations are run outside of the main engine (for example, by
+	 * background workers). They keep their own stats and don't register console
+	 * commands.
+	 */
+	private final boolean detached;
+	/**
+	 * Algorithm name to use instead of the <code>adsim.algorithm_name</code> setting,
+	 * or null to use the setting.
+	 */
+	private final String algorithmName;
+	/**
+	 * The last result of {@link #isTerminalState()}. It is valid while
+	 * <code>terminalStateKnown</code> is set and the environment's step count and
+	 * broken-robot change count are the same as when it was computed.
+	 */
+	private boolean terminalState = false;
+	private boolean terminalStateKnown = false;
+	private int terminalStateStepCount = 0;
+	private long terminalStateBrokenChangeCount = 0;
+	/**
+	 * Ends runs early if the robots stop making progress
+	 */
+	private LivelockDetector livelockDetector = new LivelockDetector();
 
 
 	public CoverageSimulation() {
+		this(null, false);
+	}
 
+
+	/**
+	 * Creates a coverage simulation.
+	 * 
+	 * @param algorithmName
+	 *                the name of the coverage algorithm for the robots, in the same
+	 *                format as the <code>adsim.algorithm_name</code> setting, or null
+	 *                to use that setting
+	 * @param detached
+	 *                whether the simulation is detached from the main engine
+	 */
+	public CoverageSimulation(String algorithmName, boolean detached) {
+		this.algorithmName = algorithmName;
+		this.detached = detached;
 	}
 
 
@@ -49,10 +151,15 @@ public class CoverageSimulation implements Simulation {
 		GridSensor sensor = new GridSensor(this.env, robot);
 		CoverageActuator actuator = new CoverageActuator(this.env, robot, this);
 
-		String coverageAlgoName = SimulatorMain.settings.getString("adsim.algorithm_name");
+		String coverageAlgoName = this.algorithmName;
+		if (coverageAlgoName == null) {
+			coverageAlgoName = SimulatorMain.settings.getString("adsim.algorithm_name");
+		}
 		String metaCoverageAlgoName = "";
 
 		Algorithm algo = null;
+		GSACGC gsacAlgo = null;
+		SplittableRandom algoRandom = this.randomStreams.exploration.split();
 
 		if (coverageAlgoName.indexOf('+') != -1) {
 			metaCoverageAlgoName = coverageAlgoName.substring(0, coverageAlgoName.indexOf('+')).trim();
@@ -62,21 +169,41 @@ public class CoverageSimulation implements Simulation {
 		if (coverageAlgoName.equalsIgnoreCase("DQL")) {
 			algo = new DQL(sensor, actuator);
 			((DQL) algo).setStatePreprocessor(new CoverageStatePreprocessor(sensor));
+			((DQL) algo).setRandom(algoRandom);
 		} else if (coverageAlgoName.equalsIgnoreCase("Random")) {
 			algo = new RandomActionAlgo(sensor, actuator);
+			((RandomActionAlgo) algo).setRandom(algoRandom);
 		} else if (coverageAlgoName.equalsIgnoreCase("GSACGC")) {
 			algo = new GSACGC(sensor, actuator);
+			gsacAlgo = (GSACGC) algo;
+		} else if (coverageAlgoName.equalsIgnoreCase("MultiGSAC")) {
+			if (this.gsacTeam == null) {
+				this.gsacTeam = new GSACTeam();
+			}
+			algo = new PartitionedGSAC(sensor, actuator, this.gsacTeam);
+		} else if (coverageAlgoName.equalsIgnoreCase("STC")) {
+			algo = new SpanningTreeCoverage(sensor, actuator);
 		} else {
 			algo = new DQL(sensor, actuator);
 			((DQL) algo).setStatePreprocessor(new CoverageStatePreprocessor(sensor));
+			((DQL) algo).setRandom(algoRandom);
+		}
+
+		if (!this.detached && robot.getId() == 0) {
+			DQLMonitor.getInstance().setDQL((algo instanceof DQL) ? (DQL) algo : null);
 		}
 
 		if (!metaCoverageAlgoName.isEmpty()) {
 			if (metaCoverageAlgoName.equalsIgnoreCase("ExternalDQL")) {
 				algo = new ExternalDQL(sensor, actuator, algo);
 				((ExternalDQL) algo).setStatePreprocessor(new CoverageStatePreprocessor(sensor));
+			} else if (metaCoverageAlgoName.equalsIgnoreCase("Record")) {
+				algo = new DemonstrationRecorder(sensor, actuator, algo);
+				((DemonstrationRecorder) algo).setStatePreprocessor(new CoverageStatePreprocessor(sensor));
 			}
 		}
+		this.gsacAlgos.add(gsacAlgo);
+		this.actuators.add(actuator);
 
 
 		return algo;
@@ -126,6 +253,253 @@ public class CoverageSimulation implements Simulation {
 				CoverageSimulation.this.restartSimulation();
 			}
 		});
+
+		controller.registerCommand(":gsac_compare_search", new TerminalCommand() {
+			@Override
+			public void execute(String[] args) {
+				GridEnvironment env = CoverageSimulation.this.env;
+				if (env == null || env.getRobotList().isEmpty()) {
+					System.err.println("No environment to plan on");
+					return;
+				}
+				GridRobot robot = env.getRobotList().get(0);
+				GSACGC.compareSearchModes(env.grid, robot.getLocation().x, robot.getLocation().y);
+			}
+		});
+
+
+		controller.registerCommand(":alloc_check", new TerminalCommand() {
+			@Override
+			public void execute(String[] args) {
+				int numSteps = 20000;
+				String[] algorithmNames = { "GSACGC", "Random", "DQL" };
+				try {
+					if (1 <= args.length) {
+						numSteps = Integer.parseInt(args[0]);
+					}
+				} catch (NumberFormatException e) {
+					System.err.println("Usage: :alloc_check [numSteps] [algorithm ...]");
+					return;
+				}
+				if (2 <= args.length) {
+					algorithmNames = Arrays.copyOfRange(args, 1, args.length);
+				}
+				new AllocationCheck().run(algorithmNames, numSteps);
+			}
+		});
+
+
+		controller.registerCommand(":gen_demos", new TerminalCommand() {
+			@Override
+			public void execute(String[] args) {
+				if (args.length < 2) {
+					System.err.println("Usage: :gen_demos <GSACGC|Random> <numEpisodes> [numThreads] [outputDir]");
+					return;
+				}
+				try {
+					int numEpisodes = Integer.parseInt(args[1]);
+					int numThreads = SimulatorMain.settings.getInt("demogen.num_threads");
+					if (3 <= args.length) {
+						numThreads = Integer.parseInt(args[2]);
+					}
+					String outputDir = SimulatorMain.settings.getString("demogen.output_dir");
+					if (4 <= args.length) {
+						outputDir = args[3];
+					}
+					DemonstrationGenerator gen = new DemonstrationGenerator(args[0], outputDir);
+					gen.generate(numEpisodes, numThreads);
+				} catch (NumberFormatException e) {
+					System.err.println("One or more numbers were formatted incorrectly.");
+				}
+			}
+		});
+
+
+		controller.registerCommand(":snapshot_save", new TerminalCommand() {
+			@Override
+			public void execute(String[] args) {
+				CoverageSimulation.this.engine.pauseSimulation();
+				CoverageSimulation.this.savedSnapshot = CoverageSimulation.this.saveSnapshot(CoverageSimulation.this.savedSnapshot);
+			}
+		});
+
+
+		controller.registerCommand(":snapshot_restore", new TerminalCommand() {
+			@Override
+			public void execute(String[] args) {
+				if (CoverageSimulation.this.savedSnapshot == null) {
+					System.err.println("No snapshot has been saved.");
+					return;
+				}
+				CoverageSimulation.this.engine.pauseSimulation();
+				CoverageSimulation.this.restoreSnapshot(CoverageSimulation.this.savedSnapshot);
+				for (GridRobot robot : CoverageSimulation.this.env.getRobotList()) {
+					robot.coverAlgo.init();
+				}
+				CoverageSimulation.this.engine.refreshDisplay();
+			}
+		});
+
+
+		controller.registerCommand(":trajectory_record", new TerminalCommand() {
+			@Override
+			public void execute(String[] args) {
+				if (args.length < 1) {
+					System.err.println("Usage: :trajectory_record <file>");
+					return;
+				}
+				CoverageSimulation.this.startRecording(new File(args[0]));
+			}
+		});
+
+
+		controller.registerCommand(":trajectory_record_stop", new TerminalCommand() {
+			@Override
+			public void execute(String[] args) {
+				CoverageSimulation.this.stopRecording();
+			}
+		});
+
+
+		controller.registerCommand(":trajectory_replay", new TerminalCommand() {
+			@Override
+			public void execute(String[] args) {
+				if (args.length < 1) {
+					System.err.println("Usage: :trajectory_replay <file> [episodeNum]");
+					return;
+				}
+				int episodeNum = 0;
+				if (2 <= args.length) {
+					try {
+						episodeNum = Integer.parseInt(args[1]);
+					} catch (NumberFormatException e) {
+						System.err.println("Invalid episode number.");
+						return;
+					}
+				}
+				CoverageSimulation.this.startReplay(new File(args[0]), episodeNum);
+			}
+		});
+
+
+		controller.registerCommand(":trajectory_replay_stop", new TerminalCommand() {
+			@Override
+			public void execute(String[] args) {
+				CoverageSimulation.this.trajectoryReplayer = null;
+			}
+		});
+
+
+		controller.registerCommand(":trajectory_replay_fast", new TerminalCommand() {
+			@Override
+			public void execute(String[] args) {
+				if (args.length < 1) {
+					System.err.println("Usage: :trajectory_replay_fast <file>");
+					return;
+				}
+				CoverageSimulation.replayAllEpisodes(new File(args[0]));
+			}
+		});
+	}
+
+
+	/**
+	 * Starts recording episodes to the given trajectory log, stopping any current
+	 * recording. Recording starts with the next episode.
+	 * 
+	 * @param file
+	 *                the log file to append to
+	 */
+	public void startRecording(File file) {
+		this.stopRecording();
+		try {
+			this.trajectoryRecorder = new TrajectoryRecorder(file);
+		} catch (IOException e) {
+			System.err.println("Unable to open trajectory log: " + e.getMessage());
+		}
+	}
+
+
+	/**
+	 * Stops recording, ending the current episode in the log
+	 */
+	public void stopRecording() {
+		if (this.trajectoryRecorder == null) {
+			return;
+		}
+		TrajectoryRecorder recorder = this.trajectoryRecorder;
+		this.trajectoryRecorder = null;
+		recorder.close();
+		System.out.printf("Recorded %d episodes (%d steps) to %s\n", recorder.getNumEpisodes(), recorder.getNumSteps(),
+				recorder.getFile().getPath());
+	}
+
+
+	public TrajectoryRecorder getTrajectoryRecorder() {
+		return this.trajectoryRecorder;
+	}
+
+
+	/**
+	 * Pauses the simulation and switches it to replaying the given trajectory log,
+	 * starting from the given episode. Episodes are then played back as the
+	 * simulation runs.
+	 */
+	private void startReplay(File file, int episodeNum) {
+		this.engine.pauseSimulation();
+		TrajectoryReplayer replayer;
+		try {
+			replayer = new TrajectoryReplayer(file);
+		} catch (IOException e) {
+			System.err.println("Unable to open trajectory log: " + e.getMessage());
+			return;
+		}
+		if (!replayer.startEpisode(this, episodeNum)) {
+			System.err.printf("Unable to load episode %d (the log has %d episodes)\n", episodeNum, replayer.getNumEpisodes());
+			return;
+		}
+		this.trajectoryReplayer = replayer;
+		this.stats.resetRunStats();
+		this.engine.refreshDisplay();
+	}
+
+
+	/**
+	 * Replays every episode in the given log as fast as possible on a detached
+	 * simulation, and prints the batch stats and replay speed.
+	 */
+	private static void replayAllEpisodes(File file) {
+		TrajectoryReplayer replayer;
+		try {
+			replayer = new TrajectoryReplayer(file);
+		} catch (IOException e) {
+			System.err.println("Unable to open trajectory log: " + e.getMessage());
+			return;
+		}
+
+		CoverageSimulation sim = new CoverageSimulation("Random", true);
+		sim.onNewRun();
+		CoverageStats stats = sim.getStats();
+		stats.resetBatchStats();
+		long numSteps = 0;
+		long startTime = System.nanoTime();
+		while (replayer.startNextEpisode(sim)) {
+			stats.resetRunStats();
+			while (replayer.step(sim)) {
+				stats.updateTimeStep();
+				numSteps++;
+			}
+			stats.startNewRun();
+		}
+		double seconds = (System.nanoTime() - startTime) / 1e9;
+		sim.dispose();
+
+		final SampledVariableLong stepsPerRunInfo = stats.getBatchStepsPerRunInfo();
+		final SampledVariableDouble survivabilityInfo = stats.getBatchSurvivability();
+		final SampledVariableDouble coverageInfo = stats.getBatchCoverage();
+		System.out.printf("Replayed %d episodes (%d steps) in %.3fs (%.0f steps/s): steps=%.1f (%.1f), cov=%.1f%% (%.1f), tSv=%.2f (%.1f)\n",
+				stats.getRunsInCurrentBatch(), numSteps, seconds, numSteps / seconds, stepsPerRunInfo.mean(), stepsPerRunInfo.stddev(),
+				coverageInfo.mean(), coverageInfo.stddev(), survivabilityInfo.mean(), survivabilityInfo.stddev());
 	}
 
 
@@ -141,9 +515,56 @@ public class CoverageSimulation implements Simulation {
 
 	@Override
 	public boolean isTerminalState() {
+		if (this.trajectoryReplayer != null) {
+			return this.trajectoryReplayer.isEpisodeFinished() || this.computeTerminalState();
+		}
+		// The inputs only change when a cell is covered, a robot breaks or is
+		// repaired, or a step is taken, so the result is cached between those
+		if (!this.terminalStateKnown || this.terminalStateStepCount != this.env.getStepCount()
+				|| this.terminalStateBrokenChangeCount != this.env.getBrokenChangeCount()) {
+			this.terminalState = this.computeTerminalState();
+			this.terminalStateKnown = true;
+			this.terminalStateStepCount = this.env.getStepCount();
+			this.terminalStateBrokenChangeCount = this.env.getBrokenChangeCount();
+		}
+		return this.terminalState;
+	}
+
+
+	private boolean computeTerminalState() {
 		// Terminal states occur when the environment is covered, all robots are
-		// dead, or the maximum allowed number of steps has been reached
-		return (this.env.allRobotsBroken() || this.isCovered() || this.MAX_STEPS_PER_RUN <= this.env.getStepCount());
+		// dead, the maximum allowed number of steps has been reached, or the robots
+		// are stuck
+		return (this.env.allRobotsBroken() || this.isCovered() || this.MAX_STEPS_PER_RUN <= this.env.getStepCount()
+				|| this.livelockDetector.getOutcome() != null);
+	}
+
+
+	/**
+	 * Gets the reason the current run ended
+	 * 
+	 * @return the outcome, or null if the run isn't over
+	 */
+	public RunOutcome getRunOutcome() {
+		if (this.livelockDetector.getOutcome() != null) {
+			return this.livelockDetector.getOutcome();
+		} else if (this.isCovered()) {
+			return RunOutcome.COVERED;
+		} else if (this.env.allRobotsBroken()) {
+			return RunOutcome.ALL_BROKEN;
+		} else if (this.MAX_STEPS_PER_RUN <= this.env.getStepCount()) {
+			return RunOutcome.MAX_STEPS;
+		}
+		return null;
+	}
+
+
+	/**
+	 * Forgets the cached result of {@link #isTerminalState()}. Anything that changes
+	 * <code>squaresLeft</code> or the maximum number of steps must call this.
+	 */
+	private void invalidateTerminalState() {
+		this.terminalStateKnown = false;
 	}
 
 
@@ -152,16 +573,25 @@ public class CoverageSimulation implements Simulation {
 		if (this.env == null) {
 			return;
 		}
+		this.invalidateTerminalState();
+		// Cells that no robot can reach can't be covered, so they don't count
 		this.squaresLeft = this.env.gridSize.width * this.env.gridSize.height;
-		for (
-
-				int x = 0; x < this.env.gridSize.width; x++) {
+		for (int x = 0; x < this.env.gridSize.width; x++) {
 			for (int y = 0; y < this.env.gridSize.height; y++) {
-				if (this.env.getGridNode(x, y).getNodeType() == NodeType.OBSTACLE || 0 < this.env.getGridNode(x, y).getCoverCount()) {
+				if (this.env.getGridNode(x, y).getNodeType() == NodeType.OBSTACLE || !this.env.isReachable(x, y)
+						|| 0 < this.env.getGridNode(x, y).getCoverCount()) {
 					this.squaresLeft--;
 				}
 			}
 		}
+		this.livelockDetector.reset(this.squaresLeft);
+
+		FLIGHT_RECORDER.episodeStart(this.mapId, this.env.getWidth(), this.env.getHeight(), this.env.getRobotList().size(),
+				this.squaresLeft);
+
+		if (this.trajectoryRecorder != null && this.trajectoryReplayer == null) {
+			this.trajectoryRecorder.beginEpisode(this.env);
+		}
 	}
 
 
@@ -170,6 +600,7 @@ public class CoverageSimulation implements Simulation {
 	 */
 	public void onNewCellCovered() {
 		this.squaresLeft--;
+		this.invalidateTerminalState();
 	}
 
 
@@ -182,22 +613,44 @@ public class CoverageSimulation implements Simulation {
 	@Override
 	public void onRunEnd() {
 		long statsBatchSize = SimulatorMain.settings.getInt("stats.multirun.batch_size");
-		CoverageStats stats = SimulatorMain.getStats();
+		CoverageStats stats = this.getStats();
 		if (this.isTerminalState() && stats != null) {
-			System.out.printf("Run end: steps=%d, cov=%d/%d, tSv=%.3f, bots=%d/%d\n", stats.getNumTimeSteps(),
+			RunOutcome outcome = this.getRunOutcome();
+			stats.setRunOutcome(outcome);
+			this.recordEpisodeEnd(stats, outcome);
+			System.out.printf("Run end: steps=%d, cov=%d/%d, tSv=%.3f, bots=%d/%d%s\n", stats.getNumTimeSteps(),
 					stats.getTotalCellsCovered(), stats.getTotalFreeCells(), stats.getTeamSurvivability(),
-					stats.getNumSurvivingRobots(), stats.getNumRobots());
+					stats.getNumSurvivingRobots(), stats.getNumRobots(),
+					(outcome == RunOutcome.LIVELOCK || outcome == RunOutcome.NO_PROGRESS) ? ", stopped=" + outcome : "");
 			if (statsBatchSize <= stats.getRunsInCurrentBatch()) {
 				final SampledVariableLong stepsPerRunInfo = stats.getBatchStepsPerRunInfo();
 				final SampledVariableDouble survivabilityInfo = stats.getBatchSurvivability();
 				final SampledVariableDouble coverageInfo = stats.getBatchCoverage();
-				System.out.printf("Batch end (size=%d): steps=%.1f (%.1f), cov=%.1f%% (%.1f), tSv=%.2f (%.1f)\n",
+				String stoppedStr = "";
+				if (this.livelockDetector.isEnabled()) {
+					stoppedStr = String.format(", livelocks=%d, no_progress=%d", stats.getBatchOutcomeCount(RunOutcome.LIVELOCK),
+							stats.getBatchOutcomeCount(RunOutcome.NO_PROGRESS));
+				}
+				System.out.printf("Batch end (size=%d): steps=%.1f (%.1f), cov=%.1f%% (%.1f), tSv=%.2f (%.1f)%s\n",
 						stats.getRunsInCurrentBatch(), stepsPerRunInfo.mean(), stepsPerRunInfo.stddev(), coverageInfo.mean(),
-						coverageInfo.stddev(), survivabilityInfo.mean(), survivabilityInfo.stddev());
+						coverageInfo.stddev(), survivabilityInfo.mean(), survivabilityInfo.stddev(), stoppedStr);
 				stats.resetBatchStats();
 			}
 		}
 
+		if (this.trajectoryRecorder != null) {
+			this.trajectoryRecorder.endEpisode();
+		}
+
+		if (this.trajectoryReplayer != null) {
+			if (!this.trajectoryReplayer.startNextEpisode(this)) {
+				System.out.println("Trajectory replay finished");
+				this.trajectoryReplayer = null;
+				this.engine.pauseSimulation();
+			}
+			return;
+		}
+
 		if (SimulatorMain.settings.getBoolean("autorun.finished.newgrid")) {
 			for (GridRobot r : this.env.getRobotList()) {
 				r.setBroken(false);
@@ -212,10 +665,49 @@ public class CoverageSimulation implements Simulation {
 	}
 
 
+	/**
+	 * Emits the flight recorder event for the end of the current episode
+	 */
+	private void recordEpisodeEnd(CoverageStats stats, RunOutcome outcome) {
+		if (!FLIGHT_RECORDER.isAvailable()) {
+			return;
+		}
+		FLIGHT_RECORDER.episodeEnd(this.mapId, stats.getNumTimeSteps(), stats.getTotalCellsCovered(), stats.getTotalFreeCells(),
+				stats.getTeamSurvivability(), this.env.getNumBrokenRobots(), (outcome == null) ? null : outcome.name());
+	}
+
+
 	private void regenerateGrid() {
+		this.mapId++;
+		long start = REGENERATE_GRID_TIMER.start();
+		this.generateNextGrid();
+		REGENERATE_GRID_TIMER.stop(start);
+	}
+
+
+	/**
+	 * Loads, takes from the prefetcher, or generates the next grid
+	 */
+	private void generateNextGrid() {
+		String mapPackFile = SimulatorMain.settings.getString("env.grid.map_pack");
+		if (!mapPackFile.isEmpty() && this.env.loadMapFromPack(mapPackFile, this.mapPackIndex++) != null) {
+			return;
+		}
+
+		if (this.prefetcher != null) {
+			GridPrefetcher.PrefetchedGrid next = this.prefetcher.take();
+			if (next != null) {
+				this.prefetcher.recycle(this.env.replaceGrid(next.grid));
+				this.env.setNextStartLocations(next.startLocations);
+				this.prefetchedPaths = next.paths;
+				this.applyPrefetchedPaths();
+				return;
+			}
+		}
+
 		if (this.VARIABLE_GRID_SIZE) {
-			int newWidth = (int) (this.random.nextDouble() * (this.MAX_WIDTH - this.MIN_WIDTH) + this.MIN_WIDTH);
-			int newHeight = (int) (this.random.nextDouble() * (this.MAX_HEIGHT - this.MIN_HEIGHT) + this.MIN_HEIGHT);
+			int newWidth = (int) (this.randomStreams.generator.nextDouble() * (this.MAX_WIDTH - this.MIN_WIDTH) + this.MIN_WIDTH);
+			int newHeight = (int) (this.randomStreams.generator.nextDouble() * (this.MAX_HEIGHT - this.MIN_HEIGHT) + this.MIN_HEIGHT);
 			if (this.FORCE_SQUARE) {
 				newHeight = newWidth;
 			}
@@ -229,23 +721,79 @@ public class CoverageSimulation implements Simulation {
 		if (!this.nodegen.getGeneratorString().equals(dangerValStr)) {
 			this.nodegen.setGeneratorString(dangerValStr);
 		}
+		this.nodegen.reloadSettings();
 
-		this.nodegen.setRandomMap();
+		this.nodegen.generateGrid(this.env.grid, this.env.getWidth(), this.env.getHeight());
+	}
 
-		int gridWidth = this.env.getWidth();
-		int gridHeight = this.env.getHeight();
 
-		for (int x = 0; x < gridWidth; x++) {
-			for (int y = 0; y < gridHeight; y++) {
-				this.nodegen.genNext(this.env.grid[x][y]);
+	/**
+	 * Gives the prefetched paths for the current grid to the robots' GSACGC instances,
+	 * so they don't have to plan when the environment is initialized
+	 */
+	private void applyPrefetchedPaths() {
+		if (this.prefetchedPaths == null) {
+			return;
+		}
+		for (int i = 0; i < this.gsacAlgos.size() && i < this.prefetchedPaths.size(); i++) {
+			if (this.gsacAlgos.get(i) != null) {
+				this.gsacAlgos.get(i).setNextCoveragePath(this.prefetchedPaths.get(i));
 			}
 		}
 	}
 
 
+	/**
+	 * Starts a new grid prefetcher if <code>env.prefetch.count</code> is positive, and
+	 * stops the old one. Detached simulations don't prefetch, since they are already
+	 * run on worker threads.
+	 */
+	private void setupPrefetcher() {
+		if (this.prefetcher != null) {
+			this.prefetcher.stop();
+			this.prefetcher = null;
+		}
+		if (this.detached || SimulatorMain.settings.getInt("env.prefetch.count") <= 0) {
+			return;
+		}
+
+		String coverageAlgoName = this.algorithmName;
+		if (coverageAlgoName == null) {
+			coverageAlgoName = SimulatorMain.settings.getString("adsim.algorithm_name");
+		}
+		coverageAlgoName = coverageAlgoName.substring(coverageAlgoName.indexOf('+') + 1).trim();
+
+		GridPrefetcher.PathPlanner planner = null;
+		if (coverageAlgoName.equalsIgnoreCase("GSACGC")) {
+			planner = new GSACGC.Planner(SimulatorMain.settings);
+		}
+		this.prefetcher = new GridPrefetcher(SimulatorMain.settings.getInt("robots.count"), planner,
+				this.randomStreams.generator.nextLong());
+		this.prefetcher.start();
+	}
+
+
 	@Override
 	public void onStep() {
+		if (this.trajectoryReplayer != null) {
+			this.trajectoryReplayer.step(this);
+			return;
+		}
+		if (this.trajectoryRecorder != null) {
+			this.trajectoryRecorder.beginStep();
+		}
+		Object stepEvent = null;
+		if (0 < this.JFR_STEP_SAMPLE_INTERVAL && this.env.getStepCount() % this.JFR_STEP_SAMPLE_INTERVAL == 0) {
+			stepEvent = FLIGHT_RECORDER.beginStep();
+		}
 		this.env.step();
+		if (this.livelockDetector.update(this.env.getRobotLocationHash(), this.squaresLeft) != null) {
+			this.invalidateTerminalState();
+		}
+		if (stepEvent != null) {
+			FLIGHT_RECORDER.endStep(stepEvent, this.env.getStepCount(), this.env.getRobotList().size(),
+					this.env.getNumBrokenRobots(), this.squaresLeft);
+		}
 	}
 
 
@@ -270,12 +818,18 @@ public class CoverageSimulation implements Simulation {
 	public void reloadSettings() {
 		this.env.reloadSettings();
 		this.MAX_STEPS_PER_RUN = SimulatorMain.settings.getInt("autorun.max_steps_per_run");
+		this.invalidateTerminalState();
+		this.livelockDetector.reloadSettings();
 		this.VARIABLE_GRID_SIZE = SimulatorMain.settings.getBoolean("env.variable_grid_size");
 		this.FORCE_SQUARE = SimulatorMain.settings.getBoolean("env.grid.force_square");
 		this.MAX_HEIGHT = SimulatorMain.settings.getInt("env.grid.maxheight");
 		this.MAX_WIDTH = SimulatorMain.settings.getInt("env.grid.maxwidth");
 		this.MIN_HEIGHT = SimulatorMain.settings.getInt("env.grid.minheight");
 		this.MIN_WIDTH = SimulatorMain.settings.getInt("env.grid.minwidth");
+		this.JFR_STEP_SAMPLE_INTERVAL = SimulatorMain.settings.getInt("jfr.step_sample_interval");
+		if (this.prefetcher != null) {
+			this.prefetcher.reloadSettings();
+		}
 	}
 
 
@@ -284,21 +838,40 @@ public class CoverageSimulation implements Simulation {
 	 */
 	private void resetEnvironment() {
 		this.env = new GridEnvironment(
-				new Dimension(SimulatorMain.settings.getInt("env.grid.width"), SimulatorMain.settings.getInt("env.grid.height")));
+				new Dimension(SimulatorMain.settings.getInt("env.grid.width"), SimulatorMain.settings.getInt("env.grid.height")),
+				this.detached);
+		this.env.setSimulation(this);
+		this.randomStreams = this.hasRandomSeed ? new RandomStreams(this.randomSeed) : RandomStreams.fromSettings();
+		this.env.setRandom(this.randomStreams.placement);
+		this.nodegen.setSeedSource(this.randomStreams.generator);
+		this.nodegen.reloadSettings();
+		if (SimulatorMain.settings.getInt("env.grid.generator_seed") < 0) {
+			this.nodegen.setSeed(this.randomStreams.generator.nextLong());
+		}
+		this.setupPrefetcher();
 
 		// Set up the coverage environment
 		this.regenerateGrid();
 
 		// Set up the robots
+		this.gsacAlgos.clear();
+		this.gsacTeam = null;
+		this.actuators.clear();
 		for (int i = 0; i < SimulatorMain.settings.getInt("robots.count"); i++) {
-			GridRobot robot = new GridRobot(i, (int) (Math.random() * this.env.getWidth()), (int) (Math.random() * this.env.getHeight()));
+			GridRobot robot = new GridRobot(i, this.randomStreams.placement.nextInt(this.env.getWidth()),
+					this.randomStreams.placement.nextInt(this.env.getHeight()));
 			robot.coverAlgo = this.createNewCoverageAlgoInstance(robot);
 			this.env.addRobot(robot);
 		}
-		SimulatorMain.setStats(new CoverageStats(this.env, this.env.getRobotList()));
-		SimulatorMain.getStats().resetBatchStats();
+		this.applyPrefetchedPaths();
+		this.stats = new CoverageStats(this.env, this.env.getRobotList());
+		this.stats.resetBatchStats();
+		if (!this.detached) {
+			SimulatorMain.setStats(this.stats);
+		}
 
 		this.env.init();
+		this.stats.resetRunStats();
 	}
 
 
@@ -318,10 +891,109 @@ public class CoverageSimulation implements Simulation {
 	}
 
 
+	/**
+	 * Gets the stats for this simulation. For simulations attached to the main
+	 * engine, this is the same object as {@link SimulatorMain#getStats()}.
+	 * 
+	 * @return the stats
+	 */
+	public CoverageStats getStats() {
+		return this.stats;
+	}
+
+
+	/**
+	 * Sets the master seed for this simulation's random number streams, instead of
+	 * using the <code>adsim.random_seed</code> setting. This takes effect when the
+	 * environment is next reset.
+	 */
+	public void setRandomSeed(long seed) {
+		this.randomSeed = seed;
+		this.hasRandomSeed = true;
+	}
+
+
+	/**
+	 * Saves the state of the environment and the current run's stats. This takes one
+	 * pass over the grid.
+	 * 
+	 * @param snapshot
+	 *                a snapshot to overwrite, reusing its arrays, or null to create a
+	 *                new one
+	 * @return the snapshot
+	 */
+	public CoverageSnapshot saveSnapshot(CoverageSnapshot snapshot) {
+		if (snapshot == null) {
+			snapshot = new CoverageSnapshot();
+		}
+		this.env.saveSnapshot(snapshot.envSnapshot);
+		snapshot.squaresLeft = this.squaresLeft;
+		this.stats.saveState(snapshot);
+		return snapshot;
+	}
+
+
+	/**
+	 * Restores a state saved with {@link #saveSnapshot(CoverageSnapshot)}. The robots'
+	 * algorithms are not reinitialized.
+	 * 
+	 * @param snapshot
+	 *                the snapshot to restore
+	 */
+	public void restoreSnapshot(CoverageSnapshot snapshot) {
+		this.stats.restoreState(snapshot);
+		this.env.restoreSnapshot(snapshot.envSnapshot);
+		this.squaresLeft = snapshot.squaresLeft;
+		this.livelockDetector.reset(this.squaresLeft);
+		this.invalidateTerminalState();
+	}
+
+
+	public RandomStreams getRandomStreams() {
+		return this.randomStreams;
+	}
+
+
+	public CoverageActuator getActuator(int robotNum) {
+		return this.actuators.get(robotNum);
+	}
+
+
+	public GridNodeGenerator getNodeGenerator() {
+		return this.nodegen;
+	}
+
+
+	/**
+	 * Starts a new episode on a freshly generated grid without going through the
+	 * engine. This is meant for detached simulations; attached simulations should let
+	 * the engine call {@link #onRunEnd()} instead.
+	 */
+	public void startNewEpisode() {
+		if (this.env == null) {
+			this.resetEnvironment();
+			return;
+		}
+		this.stats.setRunOutcome(this.getRunOutcome());
+		this.recordEpisodeEnd(this.stats, this.getRunOutcome());
+		for (GridRobot r : this.env.getRobotList()) {
+			r.setBroken(false);
+		}
+		this.regenerateGrid();
+		this.env.init();
+		// Start the new run's stats after init, since which cells are reachable
+		// depends on where the robots were placed
+		this.stats.startNewRun();
+	}
+
+
 	@Override
 	public void dispose() {
-		// TODO Auto-generated method stub
-		
+		this.stopRecording();
+		if (this.prefetcher != null) {
+			this.prefetcher.stop();
+			this.prefetcher = null;
+		}
 	}
 
 }
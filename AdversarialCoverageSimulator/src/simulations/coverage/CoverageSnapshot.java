@@ -0,0 +1,33 @@
+package simulations.coverage;
+
+import gridenv.GridSnapshot;
+
+/**
+ * A saved copy of the state of a {@link CoverageSimulation}: the environment (see
+ * {@link GridSnapshot}), the number of cells left to cover, and the current run's
+ * stats counters. The robots' algorithms are not included, so algorithms with
+ * internal state (like a planned path) may need to be reinitialized after a restore.
+ *
+ * @author Mike D'Arcy
+ *
+ */
+public class CoverageSnapshot {
+	final GridSnapshot envSnapshot = new GridSnapshot();
+	int squaresLeft = 0;
+
+	long statsStepsInRun = 0;
+	long statsTotalFreeCells = 0;
+	long statsSquaresLeft = 0;
+	/**
+	 * Indexed by <code>x * height + y</code>
+	 */
+	long[] lastCellVisitTimes = new long[0];
+	long[] robotPathLengths = new long[0];
+	double[] robotSurvivability = new double[0];
+	double[] robotCoverageProbs = new double[0];
+
+
+	public GridSnapshot getEnvSnapshot() {
+		return this.envSnapshot;
+	}
+}
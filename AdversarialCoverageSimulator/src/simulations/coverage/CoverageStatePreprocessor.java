@@ -1,8 +1,12 @@
 package simulations.coverage;
 
+import java.util.Arrays;
+
 import adsim.SettingsReloadable;
 import adsim.SimulatorMain;
 import deeplearning.DQLStatePreprocessor;
+import deeplearning.ObservationCodec;
+import gridenv.GridFeaturePlanes;
 import gridenv.GridSensor;
 
 public class CoverageStatePreprocessor implements DQLStatePreprocessor, SettingsReloadable {
@@ -17,6 +21,20 @@ public class CoverageStatePreprocessor implements DQLStatePreprocessor, Settings
 	private double OUT_OF_BOUNDS_VALS_OBSTACLE = SimulatorMain.settings.getDouble("deepql.statepreprocessor.out_of_bounds_vals.obstacle");
 	private VisionType visiontype;
 	private GridSensor sensor;
+	/**
+	 * What all inputs are divided by. This is 1 unless normalization is enabled.
+	 */
+	private double normDivisor = 1.0;
+	private int obstacleLayer = 3;
+
+	// Info about the last computed state, used for incremental updates
+	private double[] lastOutput = null;
+	private int lastXLowBound;
+	private int lastYLowBound;
+	private int lastRobotX;
+	private int lastRobotY;
+	private long lastChangeCount;
+	private int lastGridVersion;
 
 
 	public CoverageStatePreprocessor(GridSensor sensor) {
@@ -36,159 +54,265 @@ public class CoverageStatePreprocessor implements DQLStatePreprocessor, Settings
 		if (stateBuffer == null || stateBuffer.length < this.NN_INPUT_SIZE) {
 			return this.getPreprocessedState();
 		}
-		switch (this.visiontype) {
-		case CENTERED_ALWAYS:
-			return getPreprocessedState_centered_always(stateBuffer);
-		case CENTERED_SNAP_TO_EDGES: // FALLTHROUGH TO DEFAULT
-		default:
-			return getPreprocessedState_centered_snap_to_edges(stateBuffer);
+
+		int xLowBound = this.calcXLowBound();
+		int yLowBound = this.calcYLowBound();
+
+		GridFeaturePlanes planes = this.getFeaturePlanes();
+		if (planes.containsWindow(xLowBound, yLowBound, this.VISION_SIZE, this.VISION_SIZE)) {
+			// Each column of the window is contiguous in the planes, so it can be
+			// copied directly
+			int layerSize = this.VISION_SIZE * this.VISION_SIZE;
+			for (int x = 0; x < this.VISION_SIZE; x++) {
+				int srcIndex = planes.getIndex(xLowBound + x, yLowBound);
+				int cellNum = x * this.VISION_SIZE;
+				System.arraycopy(planes.danger, srcIndex, stateBuffer, cellNum, this.VISION_SIZE);
+				System.arraycopy(planes.cover, srcIndex, stateBuffer, layerSize + cellNum, this.VISION_SIZE);
+				if (this.NN_INPUT_OBSTACLE_LAYER) {
+					System.arraycopy(planes.obstacle, srcIndex, stateBuffer, (this.obstacleLayer * layerSize) + cellNum, this.VISION_SIZE);
+				}
+			}
+			if (this.visiontype == VisionType.CENTERED_SNAP_TO_EDGES) {
+				// Robot position layer
+				Arrays.fill(stateBuffer, 2 * layerSize, 3 * layerSize, 0.0);
+			}
+		} else {
+			for (int x = 0; x < this.VISION_SIZE; x++) {
+				for (int y = 0; y < this.VISION_SIZE; y++) {
+					this.fillCell(stateBuffer, planes, x * this.VISION_SIZE + y, xLowBound + x, yLowBound + y);
+				}
+			}
 		}
+
+		this.fillRobotAndMiscInputs(stateBuffer, xLowBound, yLowBound);
+		this.saveOutputInfo(stateBuffer, xLowBound, yLowBound);
+
+		return stateBuffer;
 	}
 
 
-	private double[] getPreprocessedState_centered_snap_to_edges(double[] stateBuf) {
-		// Ordering of statements is very important for these lowBound variables.
-		// We need them to be 0 if the vision size is greater than the grid size
-		int xLowBound = Math.min(this.sensor.getGridWidth() - 1, this.sensor.getX() + (this.VISION_SIZE / 2)) - (this.VISION_SIZE - 1);
-		xLowBound = Math.max(xLowBound, 0);
-		int yLowBound = Math.min(this.sensor.getGridHeight() - 1, this.sensor.getY() + (this.VISION_SIZE / 2)) - (this.VISION_SIZE - 1);
-		yLowBound = Math.max(yLowBound, 0);
+	@Override
+	public double[] updatePreprocessedState(double[] prevState, double[] stateBuffer) {
+		if (stateBuffer == null || stateBuffer.length < this.NN_INPUT_SIZE) {
+			return this.getPreprocessedState();
+		}
+		if (prevState == null || prevState != this.lastOutput || this.lastGridVersion != this.sensor.getGridVersion()
+				|| (this.lastChangeCount != this.sensor.getChangeCount() && this.sensor.getChangedCell(this.lastChangeCount) == -1)) {
+			return this.getPreprocessedState(stateBuffer);
+		}
+
+		int xLowBound = this.calcXLowBound();
+		int yLowBound = this.calcYLowBound();
+		int dx = xLowBound - this.lastXLowBound;
+		int dy = yLowBound - this.lastYLowBound;
+		if (this.VISION_SIZE <= Math.abs(dx) || this.VISION_SIZE <= Math.abs(dy)) {
+			return this.getPreprocessedState(stateBuffer);
+		}
+
+		if (prevState != stateBuffer) {
+			System.arraycopy(prevState, 0, stateBuffer, 0, this.NN_INPUT_SIZE);
+		}
+
 		int layerSize = this.VISION_SIZE * this.VISION_SIZE;
+		if (this.visiontype == VisionType.CENTERED_SNAP_TO_EDGES) {
+			// Clear the old robot position marker so the robot layer is all zeros
+			// before shifting
+			stateBuffer[(2 * layerSize) + ((this.lastRobotX - this.lastXLowBound) * this.VISION_SIZE)
+					+ (this.lastRobotY - this.lastYLowBound)] = 0.0;
+		}
 
-		for (int x = 0; x < this.VISION_SIZE; x++) {
-			for (int y = 0; y < this.VISION_SIZE; y++) {
-				int cellNum = x * this.VISION_SIZE + y;
-				int gridX = xLowBound + x;
-				int gridY = yLowBound + y;
-				boolean cellExists = this.sensor.nodeExists(gridX, gridY);
-				if (cellExists) {
-					// Danger level layer
-					stateBuf[cellNum] = this.sensor.getDangerLevelAt(gridX, gridY) * 3.0;
-
-					// Cover count layer
-					stateBuf[layerSize + cellNum] = this.sensor.getCoverCountAt(gridX, gridY) < 1 ? -1 : 1;
-
-					// Robot position layer
-					stateBuf[(2 * layerSize) + cellNum] = 0;
-
-					// Obstacle layer
-					if (this.NN_INPUT_OBSTACLE_LAYER) {
-						stateBuf[(3 * layerSize) + cellNum] = this.sensor.isObstacle(gridX, gridY) ? 1.0 : -1.0;
-					}
-				} else {
-					// Danger level layer
-					stateBuf[cellNum] = this.OUT_OF_BOUNDS_VALS_DANGER;
-
-					// Cover count layer
-					stateBuf[layerSize + cellNum] = this.OUT_OF_BOUNDS_VALS_COVER;
-
-					// Robot position layer
-					stateBuf[(2 * layerSize) + cellNum] = 0;
-
-					// Obstacle layer
-					if (this.NN_INPUT_OBSTACLE_LAYER) {
-						stateBuf[(3 * layerSize) + cellNum] = this.OUT_OF_BOUNDS_VALS_OBSTACLE;
-					}
-				}
-			}
+		if (dx != 0 || dy != 0) {
+			this.shiftWindow(stateBuffer, dx, dy, xLowBound, yLowBound);
 		}
 
-		stateBuf[(2 * layerSize) + ((this.sensor.getLocation().x - xLowBound) * this.VISION_SIZE)
-				+ (this.sensor.getLocation().y - yLowBound)] = 1;
-		if (this.GIVE_GLOBAL_POS_AND_SIZE) {
-			stateBuf[this.NN_INPUT_SIZE - 4] = this.sensor.getLocation().x;
-			stateBuf[this.NN_INPUT_SIZE - 3] = this.sensor.getLocation().y;
-			stateBuf[this.NN_INPUT_SIZE - 2] = this.sensor.getGridWidth();
-			stateBuf[this.NN_INPUT_SIZE - 1] = this.sensor.getGridHeight();
-		}
-
-		if (this.ATTEMPT_NORMALIZATION) {
-			// Normalize the data
-			// The sum of squares should be around 27 (1 for danger levels +
-			// 25 for coverage + 1 for location)
-			double approxStdDev = Math.sqrt(27.0);
-			for (int i = 0; i < this.NN_INPUT_SIZE; i++) {
-				stateBuf[i] /= approxStdDev;
+		// Refresh any cells that changed since the last state was computed
+		GridFeaturePlanes planes = this.getFeaturePlanes();
+		int gridHeight = this.sensor.getGridHeight();
+		long changeCount = this.sensor.getChangeCount();
+		for (long changeNum = this.lastChangeCount; changeNum < changeCount; changeNum++) {
+			int cell = this.sensor.getChangedCell(changeNum);
+			int x = (cell / gridHeight) - xLowBound;
+			int y = (cell % gridHeight) - yLowBound;
+			if (0 <= x && x < this.VISION_SIZE && 0 <= y && y < this.VISION_SIZE) {
+				this.fillCell(stateBuffer, planes, x * this.VISION_SIZE + y, xLowBound + x, yLowBound + y);
 			}
 		}
 
-		return stateBuf;
+		this.fillRobotAndMiscInputs(stateBuffer, xLowBound, yLowBound);
+		this.saveOutputInfo(stateBuffer, xLowBound, yLowBound);
+
+		return stateBuffer;
 	}
 
 
-	private double[] getPreprocessedState_centered_always(double[] stateBuf) {
+	@Override
+	public boolean hasStateChanged(double[] prevState) {
+		return prevState == null || prevState != this.lastOutput || this.lastGridVersion != this.sensor.getGridVersion()
+				|| this.lastChangeCount != this.sensor.getChangeCount() || this.lastRobotX != this.sensor.getX()
+				|| this.lastRobotY != this.sensor.getY();
+	}
 
-		// Setting the grid coordinates of the upper-left corner of the vision
-		// For the centering of even-numbered vision sizes, they should work
-		// identically to the odd-numbered size one below them, so for example 5
-		// and 6 should give the same lower bounds for x and y.
-		int xLowBound = this.sensor.getX() - ((this.VISION_SIZE - 1) / 2);
-		int yLowBound = this.sensor.getY() - ((this.VISION_SIZE - 1) / 2);
 
+	/**
+	 * Shifts the contents of every layer in the state buffer to account for the
+	 * vision window moving by <code>(dx, dy)</code>, and fills in the cells that were
+	 * shifted in from outside the old window.
+	 */
+	private void shiftWindow(double[] stateBuf, int dx, int dy, int xLowBound, int yLowBound) {
 		int layerSize = this.VISION_SIZE * this.VISION_SIZE;
+		GridFeaturePlanes planes = this.getFeaturePlanes();
+		int numLayers = this.getNumLayers();
+		int yStart = Math.max(0, -dy);
+		int yEnd = Math.min(this.VISION_SIZE, this.VISION_SIZE - dy);
+
+		// Rows must be copied in an order that doesn't overwrite rows that are still
+		// needed as sources
+		boolean ascending = (0 < dx) || (dx == 0 && 0 < dy);
+		for (int i = 0; i < this.VISION_SIZE; i++) {
+			int x = ascending ? i : (this.VISION_SIZE - 1 - i);
+			int srcX = x + dx;
+			if (srcX < 0 || this.VISION_SIZE <= srcX) {
+				continue;
+			}
+			for (int layer = 0; layer < numLayers; layer++) {
+				int base = layer * layerSize;
+				System.arraycopy(stateBuf, base + (srcX * this.VISION_SIZE) + yStart + dy, stateBuf,
+						base + (x * this.VISION_SIZE) + yStart, yEnd - yStart);
+			}
+		}
 
 		for (int x = 0; x < this.VISION_SIZE; x++) {
+			int srcX = x + dx;
+			boolean wholeRow = (srcX < 0 || this.VISION_SIZE <= srcX);
 			for (int y = 0; y < this.VISION_SIZE; y++) {
-				int cellNum = x * this.VISION_SIZE + y;
-				int gridX = xLowBound + x;
-				int gridY = yLowBound + y;
-				boolean cellExists = this.sensor.nodeExists(gridX, gridY);
-				if (cellExists) {
-					// Danger level layer
-					stateBuf[cellNum] = this.sensor.getDangerLevelAt(gridX, gridY) * 3.0;
-
-					// Cover count layer
-					stateBuf[layerSize + cellNum] = this.sensor.getCoverCountAt(gridX, gridY) < 1 ? -1.0 : 1.0;
-
-					// Obstacle layer
-					if (this.NN_INPUT_OBSTACLE_LAYER) {
-						stateBuf[(2 * layerSize) + cellNum] = this.sensor.isObstacle(gridX, gridY) ? 1.0 : -1.0;
-					}
-				} else {
-					// Danger level layer
-					stateBuf[cellNum] = this.OUT_OF_BOUNDS_VALS_DANGER;
-
-					// Cover count layer
-					stateBuf[layerSize + cellNum] = this.OUT_OF_BOUNDS_VALS_COVER;
-
-					// Obstacle layer
-					if (this.NN_INPUT_OBSTACLE_LAYER) {
-						stateBuf[(2 * layerSize) + cellNum] = this.OUT_OF_BOUNDS_VALS_OBSTACLE;
-					}
+				if (wholeRow || y < yStart || yEnd <= y) {
+					this.fillCell(stateBuf, planes, x * this.VISION_SIZE + y, xLowBound + x, yLowBound + y);
 				}
 			}
 		}
+	}
 
-		if (this.GIVE_GLOBAL_POS_AND_SIZE) {
-			stateBuf[this.NN_INPUT_SIZE - 4] = this.sensor.getLocation().x;
-			stateBuf[this.NN_INPUT_SIZE - 3] = this.sensor.getLocation().y;
-			stateBuf[this.NN_INPUT_SIZE - 2] = this.sensor.getGridWidth();
-			stateBuf[this.NN_INPUT_SIZE - 1] = this.sensor.getGridHeight();
-		}
-
-		if (this.ATTEMPT_NORMALIZATION) {
-			// Normalize the data
-			// The sum of squares should be around 27 (1 for danger levels +
-			// 25 for coverage + 1 for location)
-			double approxStdDev = Math.sqrt(27.0);
-			for (int i = 0; i < this.NN_INPUT_SIZE; i++) {
-				stateBuf[i] /= approxStdDev;
+
+	/**
+	 * Writes all the layer values for a single cell in the vision window
+	 * 
+	 * @param stateBuf
+	 *                the state buffer
+	 * @param cellNum
+	 *                the index of the cell within a layer
+	 * @param gridX
+	 *                the x coordinate of the cell on the grid
+	 * @param gridY
+	 *                the y coordinate of the cell on the grid
+	 */
+	private void fillCell(double[] stateBuf, GridFeaturePlanes planes, int cellNum, int gridX, int gridY) {
+		int layerSize = this.VISION_SIZE * this.VISION_SIZE;
+		if (planes.containsWindow(gridX, gridY, 1, 1)) {
+			int index = planes.getIndex(gridX, gridY);
+			stateBuf[cellNum] = planes.danger[index];
+			stateBuf[layerSize + cellNum] = planes.cover[index];
+			if (this.NN_INPUT_OBSTACLE_LAYER) {
+				stateBuf[(this.obstacleLayer * layerSize) + cellNum] = planes.obstacle[index];
+			}
+		} else if (this.sensor.nodeExists(gridX, gridY)) {
+			// Danger level layer
+			stateBuf[cellNum] = (this.sensor.getDangerLevelAt(gridX, gridY) * 3.0) / this.normDivisor;
+
+			// Cover count layer
+			stateBuf[layerSize + cellNum] = (this.sensor.getCoverCountAt(gridX, gridY) < 1 ? -1.0 : 1.0) / this.normDivisor;
+
+			// Obstacle layer
+			if (this.NN_INPUT_OBSTACLE_LAYER) {
+				stateBuf[(this.obstacleLayer * layerSize) + cellNum] = (this.sensor.isObstacle(gridX, gridY) ? 1.0 : -1.0)
+						/ this.normDivisor;
+			}
+		} else {
+			// Danger level layer
+			stateBuf[cellNum] = this.OUT_OF_BOUNDS_VALS_DANGER / this.normDivisor;
+
+			// Cover count layer
+			stateBuf[layerSize + cellNum] = this.OUT_OF_BOUNDS_VALS_COVER / this.normDivisor;
+
+			// Obstacle layer
+			if (this.NN_INPUT_OBSTACLE_LAYER) {
+				stateBuf[(this.obstacleLayer * layerSize) + cellNum] = this.OUT_OF_BOUNDS_VALS_OBSTACLE / this.normDivisor;
 			}
 		}
 
-		return stateBuf;
+		// Robot position layer
+		if (this.visiontype == VisionType.CENTERED_SNAP_TO_EDGES) {
+			stateBuf[(2 * layerSize) + cellNum] = 0.0 / this.normDivisor;
+		}
 	}
 
 
-	public double[] createEmptyStateBuffer() {
-		return new double[this.NN_INPUT_SIZE];
+	private void fillRobotAndMiscInputs(double[] stateBuf, int xLowBound, int yLowBound) {
+		if (this.visiontype == VisionType.CENTERED_SNAP_TO_EDGES) {
+			int layerSize = this.VISION_SIZE * this.VISION_SIZE;
+			stateBuf[(2 * layerSize) + ((this.sensor.getX() - xLowBound) * this.VISION_SIZE) + (this.sensor.getY() - yLowBound)] = 1.0
+					/ this.normDivisor;
+		}
+		if (this.GIVE_GLOBAL_POS_AND_SIZE) {
+			stateBuf[this.NN_INPUT_SIZE - 4] = this.sensor.getX() / this.normDivisor;
+			stateBuf[this.NN_INPUT_SIZE - 3] = this.sensor.getY() / this.normDivisor;
+			stateBuf[this.NN_INPUT_SIZE - 2] = this.sensor.getGridWidth() / this.normDivisor;
+			stateBuf[this.NN_INPUT_SIZE - 1] = this.sensor.getGridHeight() / this.normDivisor;
+		}
 	}
 
 
-	private int calcStateSize() {
-		this.reloadSettings();
+	private GridFeaturePlanes getFeaturePlanes() {
+		return this.sensor.getFeaturePlanes(this.VISION_SIZE, this.OUT_OF_BOUNDS_VALS_DANGER, this.OUT_OF_BOUNDS_VALS_COVER,
+				this.OUT_OF_BOUNDS_VALS_OBSTACLE, this.normDivisor);
+	}
 
-		int layersize = this.VISION_SIZE * this.VISION_SIZE;
+
+	/**
+	 * Remembers the information needed to incrementally update the given state later
+	 */
+	private void saveOutputInfo(double[] stateBuf, int xLowBound, int yLowBound) {
+		this.lastOutput = stateBuf;
+		this.lastXLowBound = xLowBound;
+		this.lastYLowBound = yLowBound;
+		this.lastRobotX = this.sensor.getX();
+		this.lastRobotY = this.sensor.getY();
+		this.lastChangeCount = this.sensor.getChangeCount();
+		this.lastGridVersion = this.sensor.getGridVersion();
+	}
+
+
+	/**
+	 * Gets the grid x coordinate of the left side of the vision window
+	 */
+	private int calcXLowBound() {
+		if (this.visiontype == VisionType.CENTERED_ALWAYS) {
+			// Setting the grid coordinates of the upper-left corner of the vision
+			// For the centering of even-numbered vision sizes, they should work
+			// identically to the odd-numbered size one below them, so for example
+			// 5 and 6 should give the same lower bounds for x and y.
+			return this.sensor.getX() - ((this.VISION_SIZE - 1) / 2);
+		}
+
+		// Ordering of statements is very important for these lowBound variables.
+		// We need them to be 0 if the vision size is greater than the grid size
+		int xLowBound = Math.min(this.sensor.getGridWidth() - 1, this.sensor.getX() + (this.VISION_SIZE / 2)) - (this.VISION_SIZE - 1);
+		return Math.max(xLowBound, 0);
+	}
+
+
+	/**
+	 * Gets the grid y coordinate of the bottom side of the vision window
+	 */
+	private int calcYLowBound() {
+		if (this.visiontype == VisionType.CENTERED_ALWAYS) {
+			return this.sensor.getY() - ((this.VISION_SIZE - 1) / 2);
+		}
+		int yLowBound = Math.min(this.sensor.getGridHeight() - 1, this.sensor.getY() + (this.VISION_SIZE / 2)) - (this.VISION_SIZE - 1);
+		return Math.max(yLowBound, 0);
+	}
+
+
+	private int getNumLayers() {
 		int numLayers = 2;
 		if (this.NN_INPUT_OBSTACLE_LAYER) {
 			numLayers += 1;
@@ -196,6 +320,20 @@ public class CoverageStatePreprocessor implements DQLStatePreprocessor, Settings
 		if (this.visiontype == VisionType.CENTERED_SNAP_TO_EDGES) {
 			numLayers += 1;
 		}
+		return numLayers;
+	}
+
+
+	public double[] createEmptyStateBuffer() {
+		return new double[this.NN_INPUT_SIZE];
+	}
+
+
+	private int calcStateSize() {
+		this.reloadSettings();
+
+		int layersize = this.VISION_SIZE * this.VISION_SIZE;
+		int numLayers = this.getNumLayers();
 		int miscInputs = (this.GIVE_GLOBAL_POS_AND_SIZE ? 4 : 0);
 
 		return (layersize * numLayers) + miscInputs;
@@ -210,6 +348,29 @@ public class CoverageStatePreprocessor implements DQLStatePreprocessor, Settings
 	}
 
 
+	@Override
+	public ObservationCodec createObservationCodec(int quantBits, int keyframeInterval) {
+		ObservationCodec codec = new ObservationCodec(this.NN_INPUT_SIZE, quantBits, keyframeInterval);
+		double norm = this.ATTEMPT_NORMALIZATION ? Math.sqrt(27.0) : 1.0;
+		int layerSize = this.VISION_SIZE * this.VISION_SIZE;
+
+		codec.addQuantizedSegment(0, layerSize, 0.0, 3.0 / norm);
+		codec.addBinarySegment(layerSize, layerSize, -1.0 / norm, 1.0 / norm);
+
+		int obstacleLayer = 2;
+		if (this.visiontype == VisionType.CENTERED_SNAP_TO_EDGES) {
+			codec.addBinarySegment(2 * layerSize, layerSize, 0.0 / norm, 1.0 / norm);
+			obstacleLayer = 3;
+		}
+		if (this.NN_INPUT_OBSTACLE_LAYER) {
+			codec.addBinarySegment(obstacleLayer * layerSize, layerSize, -1.0 / norm, 1.0 / norm);
+		}
+
+		// Any remaining inputs (global position and size) are left raw
+		return codec;
+	}
+
+
 	@Override
 	public void reloadSettings() {
 		this.sensor.reloadSettings();
@@ -223,6 +384,12 @@ public class CoverageStatePreprocessor implements DQLStatePreprocessor, Settings
 		this.OUT_OF_BOUNDS_VALS_DANGER = SimulatorMain.settings.getDouble("deepql.statepreprocessor.out_of_bounds_vals.danger");
 		this.OUT_OF_BOUNDS_VALS_COVER = SimulatorMain.settings.getDouble("deepql.statepreprocessor.out_of_bounds_vals.cover");
 		this.OUT_OF_BOUNDS_VALS_OBSTACLE = SimulatorMain.settings.getDouble("deepql.statepreprocessor.out_of_bounds_vals.obstacle");
+
+		// The sum of squares should be around 27 (1 for danger levels + 25 for
+		// coverage + 1 for location)
+		this.normDivisor = this.ATTEMPT_NORMALIZATION ? Math.sqrt(27.0) : 1.0;
+		this.obstacleLayer = (this.visiontype == VisionType.CENTERED_SNAP_TO_EDGES) ? 3 : 2;
+		this.lastOutput = null;
 	}
 
 
@@ -1,8 +1,8 @@
 package simulations.coverage;
 
-import java.util.HashSet;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import adsim.*;
 import adsim.stats.SampledVariableDouble;
@@ -19,12 +19,40 @@ public class CoverageStats {
 	private long nRunsInBatch = 0;
 	private long totalFreeCells = 0;
 	private long squaresLeft;
-	private Set<RobotStats> robotStats = new HashSet<>();
+	/**
+	 * Stats for each robot, in robot order (so sums over robots are always done in the
+	 * same order)
+	 */
+	private List<RobotStats> robotStats = new ArrayList<>();
 	private GridEnvironment env;
 	private long[][] lastCellVisitTimes;
 
 	private SampledVariableDouble batch_survivability = new SampledVariableDouble();
 	private SampledVariableDouble batch_coverage = new SampledVariableDouble();
+	/**
+	 * The number of runs in the batch that ended with each outcome, indexed by
+	 * ordinal
+	 */
+	private long[] batch_outcomeCounts = new long[RunOutcome.values().length];
+	/**
+	 * How the current run ended, or null if it hasn't been set
+	 */
+	private RunOutcome runOutcome = null;
+
+	/**
+	 * Copies of the current run's counters for other threads to read (see
+	 * {@link CoverageStatsMonitor}). They are written with lazySet, so publishing
+	 * them never stalls the simulation thread.
+	 */
+	final AtomicLong publishedStepsInRun = new AtomicLong();
+	final AtomicLong publishedSquaresLeft = new AtomicLong();
+	final AtomicLong publishedTotalFreeCells = new AtomicLong();
+	final AtomicLong publishedNumRobots = new AtomicLong();
+	final AtomicLong publishedNumBrokenRobots = new AtomicLong();
+	/**
+	 * The batch stats for other threads to read, replaced at the end of each run
+	 */
+	volatile CoverageStatsMonitor.BatchSummary publishedBatch = null;
 
 
 	public CoverageStats(GridEnvironment env, List<GridRobot> robots) {
@@ -84,6 +112,18 @@ public class CoverageStats {
 	}
 
 
+	/**
+	 * Gets the number of runs in the current batch that ended with the given outcome
+	 * 
+	 * @param outcome
+	 *                the outcome
+	 * @return the number of runs
+	 */
+	public long getBatchOutcomeCount(RunOutcome outcome) {
+		return this.batch_outcomeCounts[outcome.ordinal()];
+	}
+
+
 	public double getFractionCovered() {
 		return ((double) this.getTotalCellsCovered()) / ((double) this.totalFreeCells);
 	}
@@ -148,7 +188,7 @@ public class CoverageStats {
 		long minCovers = Long.MAX_VALUE;
 		for (int x = 0; x < this.env.getWidth(); x++) {
 			for (int y = 0; y < this.env.getHeight(); y++) {
-				if (this.env.getGridNode(x, y).getNodeType() == NodeType.FREE
+				if (this.env.getGridNode(x, y).getNodeType() == NodeType.FREE && this.env.isReachable(x, y)
 						&& this.env.getGridNode(x, y).getCoverCount() < minCovers) {
 					minCovers = this.env.getGridNode(x, y).getCoverCount();
 				}
@@ -233,7 +273,8 @@ public class CoverageStats {
 		long num = 0;
 		for (int x = 0; x < this.env.getWidth(); x++) {
 			for (int y = 0; y < this.env.getHeight(); y++) {
-				if (this.env.getGridNode(x, y).getNodeType() == NodeType.FREE && this.env.getGridNode(x, y).getCoverCount() == n) {
+				if (this.env.getGridNode(x, y).getNodeType() == NodeType.FREE && this.env.isReachable(x, y)
+						&& this.env.getGridNode(x, y).getCoverCount() == n) {
 					num++;
 				}
 			}
@@ -259,6 +300,10 @@ public class CoverageStats {
 		this.batch_stepsPerRun.reset();
 		this.batch_survivability.reset();
 		this.batch_coverage.reset();
+		for (int i = 0; i < this.batch_outcomeCounts.length; i++) {
+			this.batch_outcomeCounts[i] = 0;
+		}
+		this.publishBatchStats(0.0, 0.0);
 	}
 
 
@@ -268,7 +313,7 @@ public class CoverageStats {
 		this.lastCellVisitTimes = new long[this.env.getWidth()][this.env.getHeight()];
 		for (int x = 0; x < this.env.getWidth(); x++) {
 			for (int y = 0; y < this.env.getHeight(); y++) {
-				if (this.env.getGridNode(x, y).getNodeType() == NodeType.FREE) {
+				if (this.env.getGridNode(x, y).getNodeType() == NodeType.FREE && this.env.isReachable(x, y)) {
 					this.totalFreeCells++;
 				}
 			}
@@ -278,6 +323,9 @@ public class CoverageStats {
 		for (RobotStats rs : this.robotStats) {
 			rs.reset();
 		}
+		this.publishedTotalFreeCells.lazySet(this.totalFreeCells);
+		this.publishedNumRobots.lazySet(this.robotStats.size());
+		this.publishRunStats();
 	}
 
 
@@ -286,17 +334,27 @@ public class CoverageStats {
 	 * intact.
 	 */
 	public void startNewRun() {
+		double survivability = this.getTeamSurvivability();
+		double coverage = this.getFractionCovered() * 100.0;
 		this.batch_stepsPerRun.addSample(this.nStepsInRun);
-		this.batch_survivability.addSample(this.getTeamSurvivability());
-		this.batch_coverage.addSample(this.getFractionCovered() * 100.0);
+		this.batch_survivability.addSample(survivability);
+		this.batch_coverage.addSample(coverage);
+		if (this.runOutcome != null) {
+			this.batch_outcomeCounts[this.runOutcome.ordinal()]++;
+			this.runOutcome = null;
+		}
 		this.nRunsInBatch++;
+		this.publishBatchStats(coverage, survivability);
 
 		resetRunStats();
 	}
 
 
 	public void updateCellCovered(GridRobot r) {
-		for (RobotStats rs : this.robotStats) {
+		// Indexed loop, since this is called every step and an iterator would be a
+		// new object each time
+		for (int i = 0; i < this.robotStats.size(); i++) {
+			RobotStats rs = this.robotStats.get(i);
 			if (rs.robot.equals(r)) {
 				rs.updateCellCovered();
 			}
@@ -310,8 +368,124 @@ public class CoverageStats {
 	}
 
 
+	/**
+	 * Sets how the current run ended. This is counted in the batch stats when the
+	 * next run is started.
+	 * 
+	 * @param outcome
+	 *                the outcome
+	 */
+	public void setRunOutcome(RunOutcome outcome) {
+		this.runOutcome = outcome;
+	}
+
+
 	public void updateTimeStep() {
 		this.nStepsInRun++;
+		this.publishRunStats();
+	}
+
+
+	/**
+	 * Publishes the counters that change every step
+	 */
+	private void publishRunStats() {
+		this.publishedStepsInRun.lazySet(this.nStepsInRun);
+		this.publishedSquaresLeft.lazySet(this.squaresLeft);
+		this.publishedNumBrokenRobots.lazySet(this.env.getNumBrokenRobots());
+	}
+
+
+	/**
+	 * Publishes a summary of the batch stats
+	 *
+	 * @param lastRunCoverage
+	 *                the percentage of cells covered in the run that just ended
+	 * @param lastRunSurvivability
+	 *                the team survivability of the run that just ended
+	 */
+	private void publishBatchStats(double lastRunCoverage, double lastRunSurvivability) {
+		if (this.nRunsInBatch == 0) {
+			this.publishedBatch = new CoverageStatsMonitor.BatchSummary(0, 0.0, 0.0, 0.0, lastRunCoverage,
+					lastRunSurvivability, new long[this.batch_outcomeCounts.length]);
+			return;
+		}
+		this.publishedBatch = new CoverageStatsMonitor.BatchSummary(this.nRunsInBatch, this.batch_stepsPerRun.mean(),
+				this.batch_coverage.mean(), this.batch_survivability.mean(), lastRunCoverage, lastRunSurvivability,
+				this.batch_outcomeCounts.clone());
+	}
+
+
+	/**
+	 * Saves the current run's counters (not the batch stats) to the snapshot
+	 */
+	void saveState(CoverageSnapshot snapshot) {
+		snapshot.statsStepsInRun = this.nStepsInRun;
+		snapshot.statsTotalFreeCells = this.totalFreeCells;
+		snapshot.statsSquaresLeft = this.squaresLeft;
+
+		int width = this.lastCellVisitTimes.length;
+		int height = (0 < width) ? this.lastCellVisitTimes[0].length : 0;
+		if (snapshot.lastCellVisitTimes.length != width * height) {
+			snapshot.lastCellVisitTimes = new long[width * height];
+		}
+		for (int x = 0; x < width; x++) {
+			System.arraycopy(this.lastCellVisitTimes[x], 0, snapshot.lastCellVisitTimes, x * height, height);
+		}
+
+		int numRobots = this.robotStats.size();
+		if (snapshot.robotPathLengths.length != numRobots) {
+			snapshot.robotPathLengths = new long[numRobots];
+			snapshot.robotSurvivability = new double[numRobots];
+			snapshot.robotCoverageProbs = new double[numRobots];
+		}
+		for (int i = 0; i < numRobots; i++) {
+			RobotStats rs = this.robotStats.get(i);
+			snapshot.robotPathLengths[i] = rs.pathLength;
+			snapshot.robotSurvivability[i] = rs.survivability;
+			snapshot.robotCoverageProbs[i] = rs.coverageProb;
+		}
+	}
+
+
+	/**
+	 * Restores the current run's counters from the snapshot. This must be called
+	 * before the environment is restored, so that if the environment can be restored
+	 * incrementally, only the cells that changed since the snapshot are copied here
+	 * too.
+	 */
+	void restoreState(CoverageSnapshot snapshot) {
+		this.nStepsInRun = snapshot.statsStepsInRun;
+		this.totalFreeCells = snapshot.statsTotalFreeCells;
+		this.squaresLeft = snapshot.statsSquaresLeft;
+		this.publishedTotalFreeCells.lazySet(this.totalFreeCells);
+		this.publishRunStats();
+
+		int width = snapshot.envSnapshot.getWidth();
+		int height = snapshot.envSnapshot.getHeight();
+		if (snapshot.envSnapshot.canRestoreIncrementally(this.env) && this.lastCellVisitTimes.length == width) {
+			// Visit times only change when a cell is covered, which is a recorded change
+			for (long changeNum = snapshot.envSnapshot.getChangeCount(); changeNum < this.env.getChangeCount(); changeNum++) {
+				int index = this.env.getChangedCell(changeNum);
+				this.lastCellVisitTimes[index / height][index % height] = snapshot.lastCellVisitTimes[index];
+			}
+		} else {
+			if (this.lastCellVisitTimes.length != width || (0 < width && this.lastCellVisitTimes[0].length != height)) {
+				this.lastCellVisitTimes = new long[width][height];
+			}
+			if (snapshot.lastCellVisitTimes.length == width * height) {
+				for (int x = 0; x < width; x++) {
+					System.arraycopy(snapshot.lastCellVisitTimes, x * height, this.lastCellVisitTimes[x], 0, height);
+				}
+			}
+		}
+
+		for (int i = 0; i < this.robotStats.size() && i < snapshot.robotPathLengths.length; i++) {
+			RobotStats rs = this.robotStats.get(i);
+			rs.pathLength = snapshot.robotPathLengths[i];
+			rs.survivability = snapshot.robotSurvivability[i];
+			rs.coverageProb = snapshot.robotCoverageProbs[i];
+		}
 	}
 
 
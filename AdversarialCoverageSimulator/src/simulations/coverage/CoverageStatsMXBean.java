@@ -0,0 +1,61 @@
+package simulations.coverage;
+
+import java.util.Map;
+
+/**
+ * JMX view of the coverage stats of the simulation the engine is running. The run
+ * counters are updated every step, and the batch values at the end of each run.
+ *
+ * @author Mike D'Arcy
+ *
+ */
+public interface CoverageStatsMXBean {
+
+	public long getStepsInRun();
+
+
+	public long getCellsCovered();
+
+
+	public long getFreeCells();
+
+
+	public double getFractionCovered();
+
+
+	public long getNumRobots();
+
+
+	public long getNumBrokenRobots();
+
+
+	public long getRunsInBatch();
+
+
+	public double getBatchMeanStepsPerRun();
+
+
+	/**
+	 * Gets the mean percentage of cells covered per run in the batch
+	 */
+	public double getBatchMeanCoverage();
+
+
+	public double getBatchMeanSurvivability();
+
+
+	/**
+	 * Gets the percentage of cells covered in the last finished run
+	 */
+	public double getLastRunCoverage();
+
+
+	public double getLastRunSurvivability();
+
+
+	/**
+	 * Gets the number of runs in the batch that ended with each {@link RunOutcome}
+	 */
+	public Map<String, Long> getBatchOutcomeCounts();
+
+}
@@ -0,0 +1,149 @@
+package simulations.coverage;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import adsim.SimulatorMain;
+
+/**
+ * Implements {@link CoverageStatsMXBean} for the stats returned by
+ * {@link SimulatorMain#getStats()}. Values are read from copies that
+ * {@link CoverageStats} publishes as it goes, so reading them never blocks (or is
+ * blocked by) the simulation thread.
+ *
+ * @author Mike D'Arcy
+ *
+ */
+public class CoverageStatsMonitor implements CoverageStatsMXBean {
+	private static final BatchSummary EMPTY_BATCH = new BatchSummary(0, 0.0, 0.0, 0.0, 0.0, 0.0,
+			new long[RunOutcome.values().length]);
+
+
+	@Override
+	public long getStepsInRun() {
+		CoverageStats stats = SimulatorMain.getStats();
+		return (stats == null) ? 0 : stats.publishedStepsInRun.get();
+	}
+
+
+	@Override
+	public long getCellsCovered() {
+		CoverageStats stats = SimulatorMain.getStats();
+		return (stats == null) ? 0 : stats.publishedTotalFreeCells.get() - stats.publishedSquaresLeft.get();
+	}
+
+
+	@Override
+	public long getFreeCells() {
+		CoverageStats stats = SimulatorMain.getStats();
+		return (stats == null) ? 0 : stats.publishedTotalFreeCells.get();
+	}
+
+
+	@Override
+	public double getFractionCovered() {
+		CoverageStats stats = SimulatorMain.getStats();
+		if (stats == null) {
+			return 0.0;
+		}
+		long freeCells = stats.publishedTotalFreeCells.get();
+		return (freeCells == 0) ? 0.0 : (double) (freeCells - stats.publishedSquaresLeft.get()) / freeCells;
+	}
+
+
+	@Override
+	public long getNumRobots() {
+		CoverageStats stats = SimulatorMain.getStats();
+		return (stats == null) ? 0 : stats.publishedNumRobots.get();
+	}
+
+
+	@Override
+	public long getNumBrokenRobots() {
+		CoverageStats stats = SimulatorMain.getStats();
+		return (stats == null) ? 0 : stats.publishedNumBrokenRobots.get();
+	}
+
+
+	@Override
+	public long getRunsInBatch() {
+		return this.getBatch().runs;
+	}
+
+
+	@Override
+	public double getBatchMeanStepsPerRun() {
+		return this.getBatch().meanStepsPerRun;
+	}
+
+
+	@Override
+	public double getBatchMeanCoverage() {
+		return this.getBatch().meanCoverage;
+	}
+
+
+	@Override
+	public double getBatchMeanSurvivability() {
+		return this.getBatch().meanSurvivability;
+	}
+
+
+	@Override
+	public double getLastRunCoverage() {
+		return this.getBatch().lastRunCoverage;
+	}
+
+
+	@Override
+	public double getLastRunSurvivability() {
+		return this.getBatch().lastRunSurvivability;
+	}
+
+
+	@Override
+	public Map<String, Long> getBatchOutcomeCounts() {
+		BatchSummary batch = this.getBatch();
+		Map<String, Long> counts = new LinkedHashMap<>();
+		for (RunOutcome outcome : RunOutcome.values()) {
+			counts.put(outcome.name(), batch.outcomeCounts[outcome.ordinal()]);
+		}
+		return counts;
+	}
+
+
+	private BatchSummary getBatch() {
+		CoverageStats stats = SimulatorMain.getStats();
+		if (stats == null || stats.publishedBatch == null) {
+			return EMPTY_BATCH;
+		}
+		return stats.publishedBatch;
+	}
+
+
+	/**
+	 * The batch stats as of the end of the last run. This is immutable, so a reader
+	 * always sees values from the same point in time.
+	 */
+	static class BatchSummary {
+		final long runs;
+		final double meanStepsPerRun;
+		final double meanCoverage;
+		final double meanSurvivability;
+		final double lastRunCoverage;
+		final double lastRunSurvivability;
+		final long[] outcomeCounts;
+
+
+		BatchSummary(long runs, double meanStepsPerRun, double meanCoverage, double meanSurvivability, double lastRunCoverage,
+				double lastRunSurvivability, long[] outcomeCounts) {
+			this.runs = runs;
+			this.meanStepsPerRun = meanStepsPerRun;
+			this.meanCoverage = meanCoverage;
+			this.meanSurvivability = meanSurvivability;
+			this.lastRunCoverage = lastRunCoverage;
+			this.lastRunSurvivability = lastRunSurvivability;
+			this.outcomeCounts = outcomeCounts;
+		}
+	}
+}
@@ -0,0 +1,185 @@
+package simulations.coverage;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import adsim.RandomStreams;
+import adsim.SimulatorMain;
+import deeplearning.ObservationCodec;
+import deeplearning.TransitionDatasetWriter;
+import gridenv.GridNodeGenerator;
+import gridenv.GridRobot;
+import simulations.generic.algo.DemonstrationRecorder;
+
+/**
+ * Generates demonstration transitions from a scripted coverage algorithm (GSACGC or
+ * Random) and writes them to sharded dataset files. Episodes are run in detached
+ * coverage simulations on a pool of worker threads, each with its own set of shards,
+ * so this doesn't touch the main simulation at all.
+ *
+ * @author Mike D'Arcy
+ *
+ */
+public class DemonstrationGenerator {
+	private final String algorithmName;
+	private final File outputDir;
+	private int MAX_STEPS_PER_EPISODE = SimulatorMain.settings.getInt("demogen.max_steps_per_episode");
+	private int RECORDS_PER_SHARD = SimulatorMain.settings.getInt("demogen.records_per_shard");
+	private int QUANTIZATION_BITS = SimulatorMain.settings.getInt("demogen.quantization_bits");
+
+
+	/**
+	 * Creates a new generator.
+	 *
+	 * @param algorithmName
+	 *                the name of the algorithm that generates the demonstrations
+	 *                (GSACGC or Random)
+	 * @param outputDir
+	 *                the directory to write the dataset shards to
+	 */
+	public DemonstrationGenerator(String algorithmName, String outputDir) {
+		this.algorithmName = algorithmName;
+		this.outputDir = new File(outputDir);
+	}
+
+
+	/**
+	 * Generates the given number of episodes, blocking until they are all done, and
+	 * prints a summary.
+	 *
+	 * @param numEpisodes
+	 *                the total number of episodes to generate
+	 * @param numThreads
+	 *                the number of worker threads, or 0 to use one per processor
+	 */
+	public void generate(int numEpisodes, int numThreads) {
+		if (!this.algorithmName.equalsIgnoreCase("GSACGC") && !this.algorithmName.equalsIgnoreCase("Random")) {
+			System.err.println("Demonstrations can only be generated with GSACGC or Random.");
+			return;
+		}
+		if (numThreads <= 0) {
+			numThreads = Runtime.getRuntime().availableProcessors();
+		}
+
+		final AtomicInteger episodesLeft = new AtomicInteger(numEpisodes);
+		final String runPrefix = String.format("%s-%d", this.algorithmName.toLowerCase(), System.currentTimeMillis());
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		List<Future<TransitionDatasetWriter>> results = new ArrayList<>();
+
+		long startTime = System.nanoTime();
+		for (int i = 0; i < numThreads; i++) {
+			final String shardPrefix = String.format("%s-w%02d", runPrefix, i);
+			final int workerNum = i;
+			results.add(pool.submit(new Callable<TransitionDatasetWriter>() {
+				@Override
+				public TransitionDatasetWriter call() {
+					return runWorker(shardPrefix, workerNum, episodesLeft);
+				}
+			}));
+		}
+		pool.shutdown();
+
+		long totalRecords = 0;
+		long totalBytes = 0;
+		int totalShards = 0;
+		double totalEncodedRatio = 0.0;
+		int numWriters = 0;
+		for (Future<TransitionDatasetWriter> result : results) {
+			try {
+				TransitionDatasetWriter writer = result.get();
+				if (writer == null) {
+					continue;
+				}
+				totalRecords += writer.getTotalRecords();
+				totalBytes += writer.getTotalBytes();
+				totalShards += writer.getNumShards();
+				if (0 < writer.getTotalRecords()) {
+					totalEncodedRatio += writer.getCodec().getCompressionRatio();
+					numWriters++;
+				}
+			} catch (InterruptedException e) {
+				System.err.println("Interrupted while waiting for demonstration workers.");
+				Thread.currentThread().interrupt();
+				return;
+			} catch (ExecutionException e) {
+				System.err.println("A demonstration worker failed.");
+				e.getCause().printStackTrace();
+			}
+		}
+		double seconds = (System.nanoTime() - startTime) / 1e9;
+
+		System.out.printf("Generated %d transitions from %d episodes in %.1f s (%.0f transitions/s)\n", totalRecords, numEpisodes,
+				seconds, totalRecords / seconds);
+		System.out.printf("Wrote %d shards (%.1f MB) to %s, obs compression ratio=%.2f\n", totalShards, totalBytes / 1e6,
+				this.outputDir.getPath(), (0 < numWriters) ? (totalEncodedRatio / numWriters) : Double.NaN);
+	}
+
+
+	/**
+	 * Runs episodes in a detached simulation until there are none left.
+	 *
+	 * @return the writer used by this worker
+	 */
+	private TransitionDatasetWriter runWorker(String shardPrefix, int workerNum, AtomicInteger episodesLeft) {
+		if (episodesLeft.get() <= 0) {
+			return null;
+		}
+
+		CoverageSimulation sim = new CoverageSimulation("Record+" + this.algorithmName, true);
+		int masterSeed = SimulatorMain.settings.getInt("adsim.random_seed");
+		if (0 <= masterSeed) {
+			sim.setRandomSeed(RandomStreams.deriveSeed(masterSeed, workerNum + 1));
+		}
+
+		// With a fixed seed, every worker would otherwise generate the same grids
+		GridNodeGenerator nodegen = sim.getNodeGenerator();
+		nodegen.reloadSettings();
+		if (0 <= SimulatorMain.settings.getInt("env.grid.generator_seed")) {
+			nodegen.setSeed(nodegen.getSeed() + 0x9E3779B97F4A7C15L * (workerNum + 1));
+		}
+		sim.startNewEpisode();
+
+		TransitionDatasetWriter writer = null;
+		for (GridRobot robot : sim.getEnv().getRobotList()) {
+			if (!(robot.coverAlgo instanceof DemonstrationRecorder)) {
+				continue;
+			}
+			DemonstrationRecorder recorder = (DemonstrationRecorder) robot.coverAlgo;
+			if (writer == null) {
+				// Keyframe interval of 2, since the writer forces a keyframe at the
+				// start of each record
+				ObservationCodec codec = recorder.getStatePreprocessor().createObservationCodec(this.QUANTIZATION_BITS, 2);
+				writer = new TransitionDatasetWriter(this.outputDir, shardPrefix, codec, this.RECORDS_PER_SHARD);
+			}
+			recorder.setWriter(writer);
+		}
+		if (writer == null) {
+			return null;
+		}
+
+		boolean firstEpisode = true;
+		while (0 < episodesLeft.getAndDecrement() && !writer.hasFailed()) {
+			if (!firstEpisode) {
+				sim.startNewEpisode();
+			}
+			firstEpisode = false;
+
+			int stepNum = 0;
+			while (!sim.isTerminalState() && stepNum < this.MAX_STEPS_PER_EPISODE) {
+				sim.onStep();
+				sim.getStats().updateTimeStep();
+				stepNum++;
+			}
+		}
+		writer.close();
+
+		return writer;
+	}
+}
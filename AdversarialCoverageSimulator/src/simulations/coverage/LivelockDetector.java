@@ -0,0 +1,181 @@
+package simulations.coverage;
+
+import adsim.SettingsReloadable;
+import adsim.SimulatorMain;
+
+/**
+ * Detects runs that have stopped making progress, so they can be ended early
+ * instead of running until the step limit. This is mostly useful for learned
+ * policies, which can end up moving back and forth between two cells or staying in
+ * place forever without ever breaking.
+ * <p>
+ * Each step, the state is taken to be the robots' locations (using the
+ * environment's incremental {@link gridenv.GridEnvironment#getRobotLocationHash()
+ * location hash}) together with the number of cells left to cover. Since coverage
+ * only increases, a state can only repeat while nothing new is being covered, so the
+ * table of seen states is cleared whenever a new cell is covered. A run is flagged
+ * as a {@link RunOutcome#LIVELOCK} once any state has been seen
+ * <code>livelock.cycle_repeats</code> times, and as
+ * {@link RunOutcome#NO_PROGRESS} once <code>livelock.no_progress_steps</code>
+ * steps pass without covering a new cell. Either check is disabled by setting it to
+ * 0.
+ *
+ * @author Mike D'Arcy
+ *
+ */
+public class LivelockDetector implements SettingsReloadable {
+	/**
+	 * The largest the table of seen states can get. If a run goes this long without
+	 * progress (only possible when the no-progress check is disabled), the table is
+	 * cleared and starts over.
+	 */
+	private static final int MAX_TABLE_SIZE = 1 << 16;
+
+	private boolean ENABLED = SimulatorMain.settings.getBoolean("livelock.enabled");
+	private int CYCLE_REPEATS = SimulatorMain.settings.getInt("livelock.cycle_repeats");
+	private int NO_PROGRESS_STEPS = SimulatorMain.settings.getInt("livelock.no_progress_steps");
+
+	/**
+	 * Open-addressing table of the states seen since the last progress. A slot is
+	 * empty if its count is 0.
+	 */
+	private long[] seenStates = new long[16];
+	private int[] seenCounts = new int[16];
+	/**
+	 * The slots that are in use, so the table can be cleared without going through
+	 * all of it
+	 */
+	private int[] usedSlots = new int[16];
+	private int numUsedSlots = 0;
+
+	private int lastSquaresLeft = 0;
+	private int stepsWithoutProgress = 0;
+	private RunOutcome outcome = null;
+
+
+	/**
+	 * Starts watching a new run
+	 *
+	 * @param squaresLeft
+	 *                the number of cells left to cover at the start of the run
+	 */
+	public void reset(int squaresLeft) {
+		this.clearSeenStates();
+		this.lastSquaresLeft = squaresLeft;
+		this.stepsWithoutProgress = 0;
+		this.outcome = null;
+	}
+
+
+	/**
+	 * Records the state after a step
+	 *
+	 * @param robotLocationHash
+	 *                the environment's robot location hash
+	 * @param squaresLeft
+	 *                the number of cells left to cover
+	 * @return the outcome if the run should end, or null to keep going
+	 */
+	public RunOutcome update(long robotLocationHash, int squaresLeft) {
+		if (!this.ENABLED || this.outcome != null) {
+			return this.outcome;
+		}
+
+		if (squaresLeft != this.lastSquaresLeft) {
+			this.lastSquaresLeft = squaresLeft;
+			this.stepsWithoutProgress = 0;
+			this.clearSeenStates();
+			return null;
+		}
+
+		this.stepsWithoutProgress++;
+		if (0 < this.NO_PROGRESS_STEPS && this.NO_PROGRESS_STEPS <= this.stepsWithoutProgress) {
+			this.outcome = RunOutcome.NO_PROGRESS;
+			return this.outcome;
+		}
+		if (0 < this.CYCLE_REPEATS && this.CYCLE_REPEATS <= this.countState(robotLocationHash)) {
+			this.outcome = RunOutcome.LIVELOCK;
+		}
+		return this.outcome;
+	}
+
+
+	/**
+	 * Gets the outcome the detector has flagged for this run, or null if it hasn't
+	 * flagged one
+	 */
+	public RunOutcome getOutcome() {
+		return this.outcome;
+	}
+
+
+	public boolean isEnabled() {
+		return this.ENABLED;
+	}
+
+
+	/**
+	 * Adds one to the number of times the given state has been seen, and returns the
+	 * new count
+	 */
+	private int countState(long state) {
+		if (this.seenStates.length <= 2 * this.numUsedSlots) {
+			if (MAX_TABLE_SIZE <= this.seenStates.length) {
+				this.clearSeenStates();
+			} else {
+				this.growTable();
+			}
+		}
+
+		int mask = this.seenStates.length - 1;
+		int slot = (int) (state ^ (state >>> 32)) & mask;
+		while (this.seenCounts[slot] != 0 && this.seenStates[slot] != state) {
+			slot = (slot + 1) & mask;
+		}
+		if (this.seenCounts[slot] == 0) {
+			this.seenStates[slot] = state;
+			this.usedSlots[this.numUsedSlots++] = slot;
+		}
+		return ++this.seenCounts[slot];
+	}
+
+
+	private void growTable() {
+		long[] oldStates = this.seenStates;
+		int[] oldCounts = this.seenCounts;
+		int[] oldUsedSlots = this.usedSlots;
+		int oldNumUsedSlots = this.numUsedSlots;
+
+		this.seenStates = new long[2 * oldStates.length];
+		this.seenCounts = new int[2 * oldStates.length];
+		this.usedSlots = new int[2 * oldStates.length];
+		this.numUsedSlots = 0;
+		int mask = this.seenStates.length - 1;
+		for (int i = 0; i < oldNumUsedSlots; i++) {
+			long state = oldStates[oldUsedSlots[i]];
+			int slot = (int) (state ^ (state >>> 32)) & mask;
+			while (this.seenCounts[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			this.seenStates[slot] = state;
+			this.seenCounts[slot] = oldCounts[oldUsedSlots[i]];
+			this.usedSlots[this.numUsedSlots++] = slot;
+		}
+	}
+
+
+	private void clearSeenStates() {
+		for (int i = 0; i < this.numUsedSlots; i++) {
+			this.seenCounts[this.usedSlots[i]] = 0;
+		}
+		this.numUsedSlots = 0;
+	}
+
+
+	@Override
+	public void reloadSettings() {
+		this.ENABLED = SimulatorMain.settings.getBoolean("livelock.enabled");
+		this.CYCLE_REPEATS = SimulatorMain.settings.getInt("livelock.cycle_repeats");
+		this.NO_PROGRESS_STEPS = SimulatorMain.settings.getInt("livelock.no_progress_steps");
+	}
+}
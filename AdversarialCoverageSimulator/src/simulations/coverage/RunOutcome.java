@@ -0,0 +1,30 @@
+package simulations.coverage;
+
+/**
+ * Why a coverage run ended
+ *
+ * @author Mike D'Arcy
+ *
+ */
+public enum RunOutcome {
+	/**
+	 * Every reachable cell was covered
+	 */
+	COVERED,
+	/**
+	 * Every robot broke
+	 */
+	ALL_BROKEN,
+	/**
+	 * The run hit <code>autorun.max_steps_per_run</code>
+	 */
+	MAX_STEPS,
+	/**
+	 * The robots kept returning to the same locations without covering anything new
+	 */
+	LIVELOCK,
+	/**
+	 * No new cell was covered for <code>livelock.no_progress_steps</code> steps
+	 */
+	NO_PROGRESS
+}
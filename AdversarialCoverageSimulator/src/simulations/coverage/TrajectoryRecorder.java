@@ -0,0 +1,235 @@
+package simulations.coverage;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import gridenv.GridEnvironment;
+import gridenv.GridMap;
+
+/**
+ * Records coverage episodes to an append-only binary log, so they can be played back
+ * later with a {@link TrajectoryReplayer} without running the coverage algorithms
+ * again.
+ * <p>
+ * The log (big-endian) starts with <code>int MAGIC, int VERSION</code>, followed by
+ * any number of episodes:
+ *
+ * <pre>
+ * byte EPISODE_START, int numRobots
+ * the initialized grid as a {@link GridMap} (robot locations are the start locations)
+ * one record per step, of numRobots bytes (action id, plus THREAT_FLAG if the robot
+ * was broken by the action, or NO_ACTION)
+ * byte EPISODE_END
+ * </pre>
+ *
+ * The map is stored in full, so a replay doesn't depend on the generator settings.
+ * Each episode is flushed when it ends. A log cut off in the middle of an episode can
+ * still be replayed up to its last complete step, and is repaired when it is opened
+ * for recording again.
+ *
+ * @author Mike D'Arcy
+ *
+ */
+public class TrajectoryRecorder {
+	public static final int MAGIC = 0x41445452;
+	public static final int VERSION = 1;
+	static final byte EPISODE_START = 0x01;
+	static final byte EPISODE_END = (byte) 0xFE;
+	static final byte NO_ACTION = 0x7F;
+	static final int THREAT_FLAG = 0x80;
+
+	private final File file;
+	private DataOutputStream out;
+	private boolean inEpisode = false;
+	private boolean inStep = false;
+	private byte[] stepActions = new byte[0];
+	private long numEpisodes = 0;
+	private long numSteps = 0;
+
+
+	/**
+	 * Opens the given log for appending, creating it if it doesn't exist.
+	 *
+	 * @param file
+	 *                the log file
+	 * @throws IOException
+	 *                 if the file can't be opened, or exists but is not a trajectory
+	 *                 log
+	 */
+	public TrajectoryRecorder(File file) throws IOException {
+		this.file = file;
+		boolean isNew = !file.exists() || file.length() == 0;
+		long validLength = file.length();
+		boolean lastEpisodeOpen = false;
+		if (!isNew) {
+			TrajectoryReplayer existing = new TrajectoryReplayer(file);
+			if (existing.isCorrupt()) {
+				throw new IOException("Trajectory log is corrupt after " + existing.getValidLength() + " bytes: " + file.getPath());
+			}
+			validLength = existing.getValidLength();
+			lastEpisodeOpen = existing.isLastEpisodeOpen();
+		}
+
+		FileOutputStream fileOut = new FileOutputStream(file, true);
+		this.out = new DataOutputStream(new BufferedOutputStream(fileOut));
+		if (isNew) {
+			this.out.writeInt(MAGIC);
+			this.out.writeInt(VERSION);
+		} else if (validLength < file.length() || lastEpisodeOpen) {
+			// The last recording was cut off, so drop any partial step and close its
+			// episode before appending
+			fileOut.getChannel().truncate(validLength);
+			if (lastEpisodeOpen) {
+				this.out.writeByte(EPISODE_END);
+			}
+		}
+		this.out.flush();
+	}
+
+
+	/**
+	 * Starts a new episode, ending the current one if there is one. This should be
+	 * called once the environment has been initialized.
+	 *
+	 * @param env
+	 *                the environment of the episode
+	 */
+	public void beginEpisode(GridEnvironment env) {
+		this.endEpisode();
+		if (this.out == null) {
+			return;
+		}
+
+		GridMap map = env.exportMap();
+		ByteBuffer buf = ByteBuffer.allocate(map.encodedSize());
+		map.encode(buf);
+		try {
+			this.out.writeByte(EPISODE_START);
+			this.out.writeInt(env.getRobotList().size());
+			this.out.write(buf.array());
+		} catch (IOException e) {
+			this.fail(e);
+			return;
+		}
+
+		if (this.stepActions.length != env.getRobotList().size()) {
+			this.stepActions = new byte[env.getRobotList().size()];
+		}
+		this.inEpisode = true;
+		this.numEpisodes++;
+	}
+
+
+	/**
+	 * Starts a new step. Actions recorded after this belong to the new step.
+	 */
+	public void beginStep() {
+		if (!this.inEpisode) {
+			return;
+		}
+		this.writeStep();
+		Arrays.fill(this.stepActions, NO_ACTION);
+		this.inStep = true;
+	}
+
+
+	/**
+	 * Records an action. Each robot should take at most one action per step.
+	 *
+	 * @param robotNum
+	 *                the robot that took the action
+	 * @param actionId
+	 *                the id of the action
+	 * @param isThreat
+	 *                whether the robot was broken by the action
+	 */
+	public void recordAction(int robotNum, int actionId, boolean isThreat) {
+		if (!this.inStep || robotNum < 0 || this.stepActions.length <= robotNum) {
+			return;
+		}
+		this.stepActions[robotNum] = (byte) (actionId | (isThreat ? THREAT_FLAG : 0));
+	}
+
+
+	/**
+	 * Ends the current episode, if there is one, and flushes the log
+	 */
+	public void endEpisode() {
+		if (!this.inEpisode) {
+			return;
+		}
+		this.writeStep();
+		this.inEpisode = false;
+		try {
+			this.out.writeByte(EPISODE_END);
+			this.out.flush();
+		} catch (IOException e) {
+			this.fail(e);
+		}
+	}
+
+
+	/**
+	 * Ends the current episode and closes the log
+	 */
+	public void close() {
+		this.endEpisode();
+		if (this.out == null) {
+			return;
+		}
+		try {
+			this.out.close();
+		} catch (IOException e) {
+			System.err.println("Failed to close trajectory log: " + e.getMessage());
+		}
+		this.out = null;
+	}
+
+
+	public File getFile() {
+		return this.file;
+	}
+
+
+	public long getNumEpisodes() {
+		return this.numEpisodes;
+	}
+
+
+	public long getNumSteps() {
+		return this.numSteps;
+	}
+
+
+	private void writeStep() {
+		if (!this.inStep) {
+			return;
+		}
+		this.inStep = false;
+		try {
+			this.out.write(this.stepActions);
+		} catch (IOException e) {
+			this.fail(e);
+			return;
+		}
+		this.numSteps++;
+	}
+
+
+	private void fail(IOException e) {
+		System.err.println("Failed to write trajectory log, recording stopped: " + e.getMessage());
+		this.inEpisode = false;
+		this.inStep = false;
+		try {
+			this.out.close();
+		} catch (IOException e2) {
+			// Already failing
+		}
+		this.out = null;
+	}
+}
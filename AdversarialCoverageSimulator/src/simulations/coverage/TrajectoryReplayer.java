@@ -0,0 +1,268 @@
+package simulations.coverage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import gridenv.GridEnvironment;
+import gridenv.GridMap;
+import gridenv.GridRobot;
+
+/**
+ * Plays back episodes recorded by a {@link TrajectoryRecorder}. Recorded actions are
+ * given directly to the robots' {@link CoverageActuator}s along with their recorded
+ * threat outcomes, so the algorithms are not run at all and the replay is exact.
+ * <p>
+ * The log is memory-mapped read-only, and indexed when it is opened. A replay needs a
+ * simulation with the same number of robots as the recording, and the same
+ * <code>autorun.max_steps_per_run</code> if episodes ended on the step limit.
+ *
+ * @author Mike D'Arcy
+ *
+ */
+public class TrajectoryReplayer {
+	private final File file;
+	private final MappedByteBuffer data;
+	/**
+	 * Offset of the start of each episode's map
+	 */
+	private final List<Long> episodeOffsets = new ArrayList<>();
+	/**
+	 * Offset just past the last complete step of each episode
+	 */
+	private final List<Long> episodeEnds = new ArrayList<>();
+	private final List<Integer> episodeRobots = new ArrayList<>();
+	private long validLength;
+	private boolean lastEpisodeOpen = false;
+	private boolean corrupt = false;
+
+	private int episodeNum = -1;
+	private int numRobots = 0;
+	private long position = 0;
+	private long episodeEnd = 0;
+	private boolean episodeFinished = true;
+
+
+	/**
+	 * Opens and indexes the given log
+	 *
+	 * @param file
+	 *                the log file
+	 * @throws IOException
+	 *                 if the file can't be read or is not a trajectory log
+	 */
+	public TrajectoryReplayer(File file) throws IOException {
+		this.file = file;
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+			if (Integer.MAX_VALUE < channel.size()) {
+				throw new IOException("Trajectory log is too large to map: " + file.getPath());
+			}
+			this.data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		if (this.data.limit() < 8 || this.data.getInt(0) != TrajectoryRecorder.MAGIC) {
+			throw new IOException("Not a trajectory log: " + file.getPath());
+		}
+		int version = this.data.getInt(4);
+		if (version != TrajectoryRecorder.VERSION) {
+			throw new IOException("Unsupported trajectory log version: " + version);
+		}
+		this.buildIndex();
+	}
+
+
+	private void buildIndex() {
+		long limit = this.data.limit();
+		long pos = 8;
+		while (pos < limit) {
+			if (this.data.get((int) pos) != TrajectoryRecorder.EPISODE_START) {
+				this.corrupt = true;
+				break;
+			}
+			if (limit < pos + 5) {
+				break;
+			}
+			int robots = this.data.getInt((int) pos + 1);
+			if (robots <= 0) {
+				this.corrupt = true;
+				break;
+			}
+			ByteBuffer buf = this.data.duplicate();
+			buf.position((int) pos + 5);
+			long mapSize = GridMap.readEncodedSize(buf);
+			if (mapSize < 0 || limit < pos + 5 + mapSize) {
+				break;
+			}
+
+			long stepPos = pos + 5 + mapSize;
+			boolean complete = false;
+			while (stepPos < limit) {
+				if (this.data.get((int) stepPos) == TrajectoryRecorder.EPISODE_END) {
+					complete = true;
+					break;
+				}
+				if (limit < stepPos + robots) {
+					break;
+				}
+				stepPos += robots;
+			}
+
+			this.episodeOffsets.add(pos + 5);
+			this.episodeEnds.add(stepPos);
+			this.episodeRobots.add(robots);
+			if (!complete) {
+				// Cut off in the middle of the episode
+				this.lastEpisodeOpen = true;
+				pos = stepPos;
+				break;
+			}
+			pos = stepPos + 1;
+		}
+		this.validLength = pos;
+	}
+
+
+	public File getFile() {
+		return this.file;
+	}
+
+
+	public int getNumEpisodes() {
+		return this.episodeOffsets.size();
+	}
+
+
+	/**
+	 * Gets the length of the log up to the end of its last complete step. Anything
+	 * after this is either corrupt or a partially written record.
+	 */
+	public long getValidLength() {
+		return this.validLength;
+	}
+
+
+	/**
+	 * Checks whether the last episode in the log has no end marker (for example,
+	 * because the recording program was killed)
+	 */
+	public boolean isLastEpisodeOpen() {
+		return this.lastEpisodeOpen;
+	}
+
+
+	/**
+	 * Checks whether the log has data that is not a valid episode after
+	 * {@link #getValidLength()} (as opposed to just being cut off)
+	 */
+	public boolean isCorrupt() {
+		return this.corrupt;
+	}
+
+
+	/**
+	 * Gets the number of the episode being replayed, or -1 if none has been started
+	 */
+	public int getEpisodeNumber() {
+		return this.episodeNum;
+	}
+
+
+	/**
+	 * Loads the next episode into the simulation's environment
+	 *
+	 * @param sim
+	 *                the simulation to replay into
+	 * @return true if the episode was loaded, false if there are no more episodes or
+	 *         it couldn't be loaded
+	 */
+	public boolean startNextEpisode(CoverageSimulation sim) {
+		return this.startEpisode(sim, this.episodeNum + 1);
+	}
+
+
+	/**
+	 * Loads the given episode into the simulation's environment, and initializes the
+	 * environment without initializing the robots' algorithms.
+	 *
+	 * @param sim
+	 *                the simulation to replay into
+	 * @param episodeNum
+	 *                the episode to load
+	 * @return true if the episode was loaded, false if it doesn't exist or couldn't be
+	 *         loaded
+	 */
+	public boolean startEpisode(CoverageSimulation sim, int episodeNum) {
+		this.episodeFinished = true;
+		if (episodeNum < 0 || this.getNumEpisodes() <= episodeNum) {
+			return false;
+		}
+		GridEnvironment env = sim.getEnv();
+		int robots = this.episodeRobots.get(episodeNum);
+		if (env.getRobotList().size() != robots) {
+			System.err.printf("Episode %d was recorded with %d robots, but the simulation has %d\n", episodeNum, robots,
+					env.getRobotList().size());
+			return false;
+		}
+
+		ByteBuffer buf = this.data.duplicate();
+		buf.position((int) (long) this.episodeOffsets.get(episodeNum));
+		GridMap map = GridMap.decode(buf);
+		if (map == null) {
+			System.err.printf("Episode %d has a corrupt map\n", episodeNum);
+			return false;
+		}
+
+		for (GridRobot r : env.getRobotList()) {
+			r.setBroken(false);
+		}
+		env.loadMap(map);
+		env.init(false);
+
+		this.episodeNum = episodeNum;
+		this.numRobots = robots;
+		this.position = buf.position();
+		this.episodeEnd = this.episodeEnds.get(episodeNum);
+		this.episodeFinished = false;
+		return true;
+	}
+
+
+	/**
+	 * Replays one step of the current episode
+	 *
+	 * @param sim
+	 *                the simulation to replay into
+	 * @return true if a step was replayed, false if the episode has no more steps
+	 */
+	public boolean step(CoverageSimulation sim) {
+		if (this.episodeFinished || this.episodeEnd < this.position + this.numRobots) {
+			this.episodeFinished = true;
+			return false;
+		}
+
+		sim.getEnv().advanceStepCount();
+		int pos = (int) this.position;
+		for (int robotNum = 0; robotNum < this.numRobots; robotNum++) {
+			int action = this.data.get(pos + robotNum) & 0xFF;
+			if (action != TrajectoryRecorder.NO_ACTION) {
+				sim.getActuator(robotNum).takeRecordedAction(action & ~TrajectoryRecorder.THREAT_FLAG,
+						(action & TrajectoryRecorder.THREAT_FLAG) != 0);
+			}
+		}
+		this.position += this.numRobots;
+		return true;
+	}
+
+
+	/**
+	 * Checks whether every step of the current episode has been replayed (or no
+	 * episode is loaded)
+	 */
+	public boolean isEpisodeFinished() {
+		return this.episodeFinished || this.episodeEnd < this.position + this.numRobots;
+	}
+}
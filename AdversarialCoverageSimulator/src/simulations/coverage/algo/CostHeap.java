@@ -0,0 +1,100 @@
+package simulations.coverage.algo;
+
+import java.util.Arrays;
+
+/**
+ * A binary min-heap of (cost, cell) pairs for Dijkstra searches over grid cells.
+ * Entries are never updated in place; a search pushes a cell again when its cost
+ * improves and skips the stale entries when they are popped.
+ *
+ * @author Mike D'Arcy
+ *
+ */
+class CostHeap {
+	private double[] costs;
+	private int[] cells;
+	private int size = 0;
+
+
+	CostHeap(int initialCapacity) {
+		this.costs = new double[Math.max(1, initialCapacity)];
+		this.cells = new int[this.costs.length];
+	}
+
+
+	void clear() {
+		this.size = 0;
+	}
+
+
+	boolean isEmpty() {
+		return this.size == 0;
+	}
+
+
+	void push(double cost, int cell) {
+		if (this.size == this.costs.length) {
+			this.costs = Arrays.copyOf(this.costs, 2 * this.size);
+			this.cells = Arrays.copyOf(this.cells, 2 * this.size);
+		}
+		int i = this.size++;
+		while (0 < i) {
+			int parent = (i - 1) >>> 1;
+			if (this.costs[parent] <= cost) {
+				break;
+			}
+			this.costs[i] = this.costs[parent];
+			this.cells[i] = this.cells[parent];
+			i = parent;
+		}
+		this.costs[i] = cost;
+		this.cells[i] = cell;
+	}
+
+
+	/**
+	 * Gets the cost of the top entry
+	 */
+	double peekCost() {
+		return this.costs[0];
+	}
+
+
+	/**
+	 * Gets the cell of the top entry
+	 */
+	int peekCell() {
+		return this.cells[0];
+	}
+
+
+	/**
+	 * Removes the top entry
+	 */
+	void pop() {
+		this.size--;
+		if (this.size == 0) {
+			return;
+		}
+		double cost = this.costs[this.size];
+		int cell = this.cells[this.size];
+		int i = 0;
+		while (true) {
+			int child = 2 * i + 1;
+			if (this.size <= child) {
+				break;
+			}
+			if (child + 1 < this.size && this.costs[child + 1] < this.costs[child]) {
+				child++;
+			}
+			if (cost <= this.costs[child]) {
+				break;
+			}
+			this.costs[i] = this.costs[child];
+			this.cells[i] = this.cells[child];
+			i = child;
+		}
+		this.costs[i] = cost;
+		this.cells[i] = cell;
+	}
+}
@@ -0,0 +1,149 @@
+package simulations.coverage.algo;
+
+import java.util.Arrays;
+
+import gridenv.GridNode;
+
+/**
+ * Finds each GSAC target with a Dijkstra search over the whole grid that stops as
+ * soon as the cheapest unvisited cell is known. Since the next target is usually
+ * next to the current cell, most searches only touch a handful of cells. Only the
+ * cells touched by a search are reset for the next one.
+ *
+ * @author Mike D'Arcy
+ *
+ */
+class GSACFlatSearch extends GSACSearch {
+	private final double[] dist;
+	private final int[] prev;
+	private int[] touched = new int[64];
+	private int numTouched = 0;
+	private final CostHeap heap = new CostHeap(64);
+
+	/**
+	 * Whether the last search stopped because it hit its limit
+	 */
+	boolean limitReached = false;
+	long numCellsSettled = 0;
+
+
+	GSACFlatSearch(GridNode[][] grid) {
+		super(grid);
+		this.dist = new double[this.cost.length];
+		this.prev = new int[this.cost.length];
+		Arrays.fill(this.dist, Double.POSITIVE_INFINITY);
+		Arrays.fill(this.prev, -1);
+	}
+
+
+	GSACFlatSearch(double[] cost, int width, int height) {
+		super(cost, width, height);
+		this.dist = new double[this.cost.length];
+		this.prev = new int[this.cost.length];
+		Arrays.fill(this.dist, Double.POSITIVE_INFINITY);
+		Arrays.fill(this.prev, -1);
+	}
+
+
+	@Override
+	int[] findNextSegment(int cur) {
+		return this.search(cur, Integer.MAX_VALUE);
+	}
+
+
+	/**
+	 * Searches for the next target
+	 *
+	 * @param cur
+	 *                the current cell
+	 * @param maxSettled
+	 *                the maximum number of cells to expand. If the search needs more,
+	 *                it stops and sets {@link #limitReached}.
+	 * @return the path to the target, not including the current cell, or null if
+	 *         there is no reachable target or the limit was reached
+	 */
+	int[] search(int cur, int maxSettled) {
+		for (int i = 0; i < this.numTouched; i++) {
+			this.dist[this.touched[i]] = Double.POSITIVE_INFINITY;
+			this.prev[this.touched[i]] = -1;
+		}
+		this.numTouched = 0;
+		this.heap.clear();
+		this.limitReached = false;
+
+		this.touch(cur);
+		this.dist[cur] = 0.0;
+		this.heap.push(0.0, cur);
+		int best = -1;
+		double bestCost = Double.POSITIVE_INFINITY;
+		int numSettled = 0;
+		while (!this.heap.isEmpty()) {
+			double d = this.heap.peekCost();
+			int u = this.heap.peekCell();
+			this.heap.pop();
+			if (this.dist[u] < d) {
+				continue;
+			}
+			if (bestCost < d) {
+				break;
+			}
+			if (!this.visited[u]) {
+				// Anything reached through a target costs more than the target, so
+				// there is no need to expand it
+				if (best == -1 || d < bestCost || this.isPreferredTarget(u, best)) {
+					best = u;
+					bestCost = d;
+				}
+				continue;
+			}
+
+			numSettled++;
+			if (maxSettled < numSettled) {
+				this.limitReached = true;
+				this.numCellsSettled += numSettled;
+				return null;
+			}
+			int x = u / this.height;
+			int y = u % this.height;
+			for (int dir = 0; dir < 4; dir++) {
+				int nx = x + DIR_DX[dir];
+				int ny = y + DIR_DY[dir];
+				if (nx < 0 || this.width <= nx || ny < 0 || this.height <= ny) {
+					continue;
+				}
+				int v = nx * this.height + ny;
+				double nd = d + this.cost[v];
+				if (nd < this.dist[v]) {
+					if (this.dist[v] == Double.POSITIVE_INFINITY) {
+						this.touch(v);
+					}
+					this.dist[v] = nd;
+					this.prev[v] = u;
+					this.heap.push(nd, v);
+				}
+			}
+		}
+		this.numCellsSettled += numSettled;
+
+		if (best == -1) {
+			return null;
+		}
+		int length = 0;
+		for (int c = best; c != cur; c = this.prev[c]) {
+			length++;
+		}
+		int[] segment = new int[length];
+		for (int c = best; c != cur; c = this.prev[c]) {
+			segment[--length] = c;
+		}
+		return segment;
+	}
+
+
+	private void touch(int cell) {
+		if (this.numTouched == this.touched.length) {
+			this.touched = Arrays.copyOf(this.touched, 2 * this.numTouched);
+		}
+		this.touched[this.numTouched++] = cell;
+	}
+}
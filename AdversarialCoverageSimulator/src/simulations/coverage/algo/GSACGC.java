@@ -9,7 +9,10 @@ import java.util.Map;
 import java.util.Set;
 
 import adsim.Algorithm;
-import gridenv.Coordinate;
+import adsim.FlightRecorder;
+import adsim.SimulatorMain;
+import adsim.SimulatorSettings;
+import gridenv.GridPrefetcher;
 import gridenv.GridNode;
 import gridenv.GridSensor;
 import gridenv.NodeType;
@@ -23,12 +26,16 @@ import simulations.coverage.CoverageActuator;
  *
  */
 public class GSACGC implements Algorithm {
+	private static final FlightRecorder FLIGHT_RECORDER = FlightRecorder.get();
 
 	GridSensor sensor;
 	CoverageActuator actuator;
 
 	private List<GridNode> coveragePath;
+	private List<GridNode> nextCoveragePath = null;
 	private int stepNum = 0;
+	private String SEARCH_MODE = SimulatorMain.settings.getString("gsac.search_mode");
+	private int CLUSTER_SIZE = SimulatorMain.settings.getInt("gsac.cluster_size");
 
 
 	public GSACGC(GridSensor sensor, CoverageActuator actuator) {
@@ -40,14 +47,152 @@ public class GSACGC implements Algorithm {
 	@Override
 	public void init() {
 		this.stepNum = 0;
-		this.coveragePath = createGSACCoveragePath(createGraph(), this.sensor.getCurrentNode());
+		GridNode startNode = this.sensor.getCurrentNode();
+		if (this.nextCoveragePath != null && !this.nextCoveragePath.isEmpty() && this.nextCoveragePath.get(0).getX() == startNode.getX()
+				&& this.nextCoveragePath.get(0).getY() == startNode.getY()) {
+			this.coveragePath = this.nextCoveragePath;
+		} else {
+			GridNode[][] grid = new GridNode[this.sensor.getGridWidth()][this.sensor.getGridHeight()];
+			for (int x = 0; x < grid.length; x++) {
+				for (int y = 0; y < grid[x].length; y++) {
+					grid[x][y] = this.sensor.getNodeAt(x, y);
+				}
+			}
+			this.coveragePath = planOnCopies(grid, startNode.getX(), startNode.getY(), this.SEARCH_MODE, this.CLUSTER_SIZE);
+		}
+		this.nextCoveragePath = null;
+	}
+
+
+	/**
+	 * Sets a precomputed coverage path to use on the next {@link #init()}, instead of
+	 * planning one then. The path is only used if it starts at the robot's location at
+	 * that time.
+	 *
+	 * @param path
+	 *                a path from
+	 *                {@link #planCoveragePath(GridNode[][], int, int, String, int)}
+	 */
+	public void setNextCoveragePath(List<GridNode> path) {
+		this.nextCoveragePath = path;
+	}
+
+
+	/**
+	 * Plans the GSAC coverage path for the given grid and start location. This is the
+	 * same path that {@link #init()} would plan for a robot at that location. The grid
+	 * isn't modified, so this can be used on grids that aren't in an environment yet
+	 * (e.g., on a background thread).
+	 *
+	 * @param grid
+	 *                the grid, indexed as <code>[x][y]</code>
+	 * @param startX
+	 *                the x coordinate of the start location
+	 * @param startY
+	 *                the y coordinate of the start location
+	 * @param searchMode
+	 *                the <code>gsac.search_mode</code> to plan with
+	 * @param clusterSize
+	 *                the <code>gsac.cluster_size</code> to plan with
+	 * @return the coverage path
+	 */
+	public static List<GridNode> planCoveragePath(GridNode[][] grid, int startX, int startY, String searchMode,
+			int clusterSize) {
+		// Plan on clones, as the sensor would give
+		GridNode[][] clones = new GridNode[grid.length][];
+		for (int x = 0; x < grid.length; x++) {
+			clones[x] = new GridNode[grid[x].length];
+			for (int y = 0; y < grid[x].length; y++) {
+				clones[x][y] = grid[x][y].clone();
+			}
+		}
+		return planOnCopies(clones, startX, startY, searchMode, clusterSize);
+	}
+
+
+	/**
+	 * Plans the coverage path on a grid of temporary copies, using the given search
+	 * mode: "legacy" for the original graph-based search, "flat" for
+	 * {@link GSACFlatSearch}, or "hierarchical" for {@link GSACHierarchicalSearch}.
+	 * Settings aren't read here, since this is also called on the prefetch thread.
+	 */
+	private static List<GridNode> planOnCopies(GridNode[][] grid, int startX, int startY, String searchMode,
+			int clusterSize) {
+		Object event = FLIGHT_RECORDER.beginGSACPlan();
+		List<GridNode> path = search(grid, startX, startY, searchMode, clusterSize);
+		if (event != null) {
+			FLIGHT_RECORDER.endGSACPlan(event, grid.length, (0 < grid.length) ? grid[0].length : 0, searchMode, path.size());
+		}
+		return path;
+	}
+
+
+	private static List<GridNode> search(GridNode[][] grid, int startX, int startY, String searchMode, int clusterSize) {
+		if (searchMode.equalsIgnoreCase("legacy")) {
+			return createGSACCoveragePath(createGraph(grid), grid[startX][startY].clone());
+		}
+
+		GSACSearch search;
+		if (searchMode.equalsIgnoreCase("hierarchical")) {
+			search = new GSACHierarchicalSearch(grid, clusterSize);
+		} else {
+			search = new GSACFlatSearch(grid);
+		}
+		return toNodeList(grid, search.planPath(startX * search.height + startY));
+	}
+
+
+	private static List<GridNode> toNodeList(GridNode[][] grid, int[] cells) {
+		int gridHeight = (0 < grid.length) ? grid[0].length : 0;
+		List<GridNode> path = new ArrayList<>(cells.length);
+		for (int cell : cells) {
+			path.add(grid[cell / gridHeight][cell % gridHeight]);
+		}
+		return path;
+	}
+
+
+	/**
+	 * Plans coverage paths for the given grid with the flat and hierarchical searches,
+	 * and prints how long each took, the total cost of each path, and how much more
+	 * expensive the hierarchical path is
+	 *
+	 * @param grid
+	 *                the grid, indexed as <code>[x][y]</code>
+	 * @param startX
+	 *                the x coordinate of the start location
+	 * @param startY
+	 *                the y coordinate of the start location
+	 */
+	public static void compareSearchModes(GridNode[][] grid, int startX, int startY) {
+		long flatStart = System.nanoTime();
+		GSACFlatSearch flat = new GSACFlatSearch(grid);
+		int[] flatPath = flat.planPath(startX * flat.height + startY);
+		long flatTime = System.nanoTime() - flatStart;
+
+		long hierStart = System.nanoTime();
+		GSACHierarchicalSearch hier = new GSACHierarchicalSearch(grid, SimulatorMain.settings.getInt("gsac.cluster_size"));
+		long hierBuildTime = System.nanoTime() - hierStart;
+		int[] hierPath = hier.planPath(startX * hier.height + startY);
+		long hierTime = System.nanoTime() - hierStart;
+
+		double flatCost = flat.getPathCost(flatPath);
+		double hierCost = hier.getPathCost(hierPath);
+		System.out.printf("Flat: %.1f ms, length=%d, cost=%.6g, cells settled=%d\n", flatTime / 1e6, flatPath.length, flatCost,
+				flat.numCellsSettled);
+		System.out.printf("Hierarchical: %.1f ms (%.1f ms to build), length=%d, cost=%.6g, cells settled=%d, abstract queries=%d, cluster refinements=%d\n",
+				hierTime / 1e6, hierBuildTime / 1e6, hierPath.length, hierCost, hier.numCellsSettled, hier.numHierarchicalQueries,
+				hier.numRefinements);
+		System.out.printf("Speedup: %.2fx, optimality gap: %.3f%%\n", (double) flatTime / hierTime,
+				(0.0 < flatCost) ? 100.0 * (hierCost - flatCost) / flatCost : 0.0);
 	}
 
 
 	@Override
 	public void step() {
 		// Just follow the coverage path
-		Coordinate curLoc = this.sensor.getLocation();
+		int curX = this.sensor.getX();
+		int curY = this.sensor.getY();
 		int nextX;
 		int nextY;
 		if (this.stepNum < this.coveragePath.size()) {
@@ -58,8 +203,8 @@ public class GSACGC implements Algorithm {
 			this.actuator.coverCurrentNode();
 			return;
 		}
-		int xdir = (int) Math.signum(nextX - curLoc.x);
-		int ydir = (int) Math.signum(nextY - curLoc.y);
+		int xdir = (int) Math.signum(nextX - curX);
+		int ydir = (int) Math.signum(nextY - curY);
 
 		if (xdir == 1 && ydir == 0) {
 			this.actuator.moveRight();
@@ -75,7 +220,7 @@ public class GSACGC implements Algorithm {
 	}
 
 
-	private List<GridNode> createGSACCoveragePath(GridNodeGraph graph, GridNode tmpStartNode) {
+	private static List<GridNode> createGSACCoveragePath(GridNodeGraph graph, GridNode tmpStartNode) {
 		GridNode startNode = tmpStartNode;
 		for (GridNode node : graph.getAllNodes()) {
 			if (node.getX() == startNode.getX() && node.getY() == startNode.getY()) {
@@ -131,17 +276,20 @@ public class GSACGC implements Algorithm {
 	}
 
 
-	private GridNodeGraph createGraph() {
+	/**
+	 * Creates the graph for the given grid. The grid's nodes are used directly (and
+	 * their costs are set), so they should be temporary copies.
+	 */
+	private static GridNodeGraph createGraph(GridNode[][] grid) {
 		GridNodeGraph graph = new GridNodeGraph();
-		// Create a temporary grid to avoid duplicating nodes
-		GridNode[][] grid = new GridNode[this.sensor.getGridWidth()][this.sensor.getGridHeight()];
-		for (int x = 0; x < this.sensor.getGridWidth(); x++) {
-			for (int y = 0; y < this.sensor.getGridHeight(); y++) {
-				grid[x][y] = this.sensor.getNodeAt(x, y);
+		int gridWidth = grid.length;
+		int gridHeight = (0 < gridWidth) ? grid[0].length : 0;
+		for (int x = 0; x < gridWidth; x++) {
+			for (int y = 0; y < gridHeight; y++) {
 				if (0.0 < grid[x][y].getDangerProb()) {
-					grid[x][y].setCost((this.sensor.getGridWidth() * this.sensor.getGridHeight()) * grid[x][y].getDangerProb());
+					grid[x][y].setCost((gridWidth * gridHeight) * grid[x][y].getDangerProb());
 				} else {
-					grid[x][y].setCost(1.0 / (this.sensor.getGridWidth() * this.sensor.getGridHeight()));
+					grid[x][y].setCost(1.0 / (gridWidth * gridHeight));
 				}
 				if (grid[x][y].getNodeType() == NodeType.OBSTACLE) {
 					grid[x][y].setCost(Double.POSITIVE_INFINITY);
@@ -154,22 +302,22 @@ public class GSACGC implements Algorithm {
 			for (int y = 0; y < grid[0].length; y++) {
 				graph.addNode(grid[x][y]);
 				GridNode adjNode;
-				if (this.sensor.isOnGrid(x - 1, y)) {
+				if (0 < x) {
 					adjNode = grid[x - 1][y];
 					graph.addEdge(grid[x][y], adjNode);
 				}
 
-				if (this.sensor.isOnGrid(x + 1, y)) {
+				if (x + 1 < gridWidth) {
 					adjNode = grid[x + 1][y];
 					graph.addEdge(grid[x][y], adjNode);
 				}
 
-				if (this.sensor.isOnGrid(x, y - 1)) {
+				if (0 < y) {
 					adjNode = grid[x][y - 1];
 					graph.addEdge(grid[x][y], adjNode);
 				}
 
-				if (this.sensor.isOnGrid(x, y + 1)) {
+				if (y + 1 < gridHeight) {
 					adjNode = grid[x][y + 1];
 					graph.addEdge(grid[x][y], adjNode);
 				}
@@ -180,7 +328,7 @@ public class GSACGC implements Algorithm {
 	}
 
 
-	private boolean checkTiebreaker(GridNode node, GridNode minDistNode) {
+	private static boolean checkTiebreaker(GridNode node, GridNode minDistNode) {
 		int nodeSum = node.getX() + node.getY();
 		int minDistNodeSum = minDistNode.getX() + minDistNode.getY();
 
@@ -197,6 +345,36 @@ public class GSACGC implements Algorithm {
 	public void reloadSettings() {
 		this.sensor.reloadSettings();
 		this.actuator.reloadSettings();
+		this.SEARCH_MODE = SimulatorMain.settings.getString("gsac.search_mode");
+		this.CLUSTER_SIZE = SimulatorMain.settings.getInt("gsac.cluster_size");
+	}
+
+
+	/**
+	 * Plans GSAC paths for the {@link GridPrefetcher}, with the search settings it
+	 * was created with
+	 */
+	public static class Planner implements GridPrefetcher.PathPlanner {
+		private final String searchMode;
+		private final int clusterSize;
+
+
+		public Planner(SimulatorSettings settings) {
+			this.searchMode = settings.getString("gsac.search_mode");
+			this.clusterSize = settings.getInt("gsac.cluster_size");
+		}
+
+
+		@Override
+		public List<GridNode> planPath(GridNode[][] grid, int startX, int startY) {
+			return planCoveragePath(grid, startX, startY, this.searchMode, this.clusterSize);
+		}
+
+
+		@Override
+		public GridPrefetcher.PathPlanner withSettings(SimulatorSettings settings) {
+			return new Planner(settings);
+		}
 	}
 
 
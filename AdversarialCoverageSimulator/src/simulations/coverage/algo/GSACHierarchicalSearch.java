@@ -0,0 +1,618 @@
+package simulations.coverage.algo;
+
+import java.util.Arrays;
+
+import gridenv.GridNode;
+
+/**
+ * Finds GSAC targets using a cluster abstraction of the grid, for grids too large to
+ * search flat when the next target is far away.
+ * <p>
+ * The grid is split into square clusters. Each maximal run of open cells along a
+ * cluster boundary (an entrance) gets one transition cell on each side, at the
+ * cheapest crossing. The safest costs between all transition cells of a cluster,
+ * staying inside the cluster, are computed once up front. Each cluster also counts
+ * its unvisited cells, updated as cells are visited.
+ * <p>
+ * Each target is first searched for with a flat search limited to a few clusters'
+ * worth of cells, which is exact and usually enough. If that isn't enough, the
+ * search continues on the graph of transition cells. For every transition cell, the
+ * cheapest unvisited cell of its cluster is kept in a table, which is only
+ * recomputed (with one search of the cluster) when the abstract search reaches a
+ * cluster that has had cells visited since it was last computed. The path is then
+ * filled in by searching inside each cluster it crosses. Crossing entrances only at
+ * their transition cells can make paths slightly more expensive than the flat
+ * search's, so this trades a small optimality gap for speed.
+ *
+ * @author Mike D'Arcy
+ *
+ */
+class GSACHierarchicalSearch extends GSACFlatSearch {
+	private static final byte FROM_START = 0;
+	private static final byte FROM_ENTRANCE = 1;
+	private static final byte FROM_CLUSTER = 2;
+
+	private final int clusterSize;
+	private final int numClustersY;
+	private final int[] unvisitedCount;
+	private final boolean[] targetsStale;
+	private final int flatSearchLimit;
+
+	// Transition cells ("nodes"). Each node is linked to at most two nodes in other
+	// clusters, one across a vertical boundary and one across a horizontal one.
+	private int numNodes = 0;
+	private int[] nodeCell = new int[64];
+	private int[] nodeLinks = new int[128];
+	private final int[] nodeOfCell;
+	private int[] nodeCluster;
+	private int[] nodeLocalIndex;
+	private int[] clusterNodeStart;
+	private int[] clusterNodes;
+	private int[] clusterCostStart;
+	private double[] intraCosts;
+
+	// Search inside one cluster
+	private final double[] localDist;
+	private final int[] localPrev;
+	private final int[] localTarget;
+	private final CostHeap localHeap;
+
+	// Search on the abstract graph
+	private double[] nodeDist;
+	private double[] nodeTargetCost;
+	private int[] nodeTargetCell;
+	private int[] nodePrev;
+	private byte[] nodeFrom;
+	private int[] touchedNodes;
+	private int numTouchedNodes = 0;
+	private final CostHeap nodeHeap = new CostHeap(64);
+
+	// The best target found by the current query
+	private int bestTarget;
+	private double bestCost;
+	private int bestTargetNode;
+	private int[] bestLocalPath;
+
+	long numHierarchicalQueries = 0;
+	long numRefinements = 0;
+
+
+	GSACHierarchicalSearch(GridNode[][] grid, int clusterSize) {
+		super(grid);
+		this.clusterSize = Math.max(2, clusterSize);
+		int numClustersX = (this.width + this.clusterSize - 1) / this.clusterSize;
+		this.numClustersY = (this.height + this.clusterSize - 1) / this.clusterSize;
+		this.unvisitedCount = new int[numClustersX * this.numClustersY];
+		this.targetsStale = new boolean[this.unvisitedCount.length];
+		this.flatSearchLimit = 4 * this.clusterSize * this.clusterSize;
+
+		this.localDist = new double[this.clusterSize * this.clusterSize];
+		this.localPrev = new int[this.localDist.length];
+		this.localTarget = new int[this.localDist.length];
+		this.localHeap = new CostHeap(this.localDist.length);
+
+		this.nodeOfCell = new int[this.cost.length];
+		Arrays.fill(this.nodeOfCell, -1);
+		this.buildEntrances();
+		this.buildClusterGraphs();
+	}
+
+
+	private int clusterOf(int cell) {
+		return (cell / this.height / this.clusterSize) * this.numClustersY + (cell % this.height) / this.clusterSize;
+	}
+
+
+	/**
+	 * Finds the entrances along every cluster boundary and creates their transition
+	 * nodes
+	 */
+	private void buildEntrances() {
+		// Vertical boundaries, between columns x - 1 and x
+		for (int x = this.clusterSize; x < this.width; x += this.clusterSize) {
+			int segStart = -1;
+			for (int y = 0; y <= this.height; y++) {
+				boolean open = y < this.height && this.isOpen((x - 1) * this.height + y) && this.isOpen(x * this.height + y);
+				if (segStart != -1 && (!open || y % this.clusterSize == 0)) {
+					this.addEntrance((x - 1) * this.height + segStart, 1, this.height, y - segStart);
+					segStart = -1;
+				}
+				if (open && segStart == -1) {
+					segStart = y;
+				}
+			}
+		}
+
+		// Horizontal boundaries, between rows y - 1 and y
+		for (int y = this.clusterSize; y < this.height; y += this.clusterSize) {
+			int segStart = -1;
+			for (int x = 0; x <= this.width; x++) {
+				boolean open = x < this.width && this.isOpen(x * this.height + y - 1) && this.isOpen(x * this.height + y);
+				if (segStart != -1 && (!open || x % this.clusterSize == 0)) {
+					this.addEntrance(segStart * this.height + y - 1, this.height, 1, x - segStart);
+					segStart = -1;
+				}
+				if (open && segStart == -1) {
+					segStart = x;
+				}
+			}
+		}
+	}
+
+
+	private boolean isOpen(int cell) {
+		return this.cost[cell] != Double.POSITIVE_INFINITY;
+	}
+
+
+	/**
+	 * Adds an entrance, choosing the cheapest crossing (closest to the middle on
+	 * ties)
+	 *
+	 * @param firstCell
+	 *                the first cell of the entrance on the near side
+	 * @param step
+	 *                the index offset between consecutive cells of the entrance
+	 * @param across
+	 *                the index offset from a near-side cell to the far-side cell
+	 * @param length
+	 *                the number of cells in the entrance
+	 */
+	private void addEntrance(int firstCell, int step, int across, int length) {
+		int bestI = 0;
+		double bestCrossCost = Double.POSITIVE_INFINITY;
+		int bestMidDist = Integer.MAX_VALUE;
+		for (int i = 0; i < length; i++) {
+			int near = firstCell + i * step;
+			double crossCost = this.cost[near] + this.cost[near + across];
+			int midDist = Math.abs(2 * i - (length - 1));
+			if (crossCost < bestCrossCost || (crossCost == bestCrossCost && midDist < bestMidDist)) {
+				bestCrossCost = crossCost;
+				bestMidDist = midDist;
+				bestI = i;
+			}
+		}
+		int near = this.getOrCreateNode(firstCell + bestI * step);
+		int far = this.getOrCreateNode(firstCell + bestI * step + across);
+		this.link(near, far);
+		this.link(far, near);
+	}
+
+
+	private int getOrCreateNode(int cell) {
+		if (this.nodeOfCell[cell] != -1) {
+			return this.nodeOfCell[cell];
+		}
+		if (this.numNodes == this.nodeCell.length) {
+			this.nodeCell = Arrays.copyOf(this.nodeCell, 2 * this.numNodes);
+			this.nodeLinks = Arrays.copyOf(this.nodeLinks, 4 * this.numNodes);
+		}
+		int node = this.numNodes++;
+		this.nodeCell[node] = cell;
+		this.nodeLinks[2 * node] = -1;
+		this.nodeLinks[2 * node + 1] = -1;
+		this.nodeOfCell[cell] = node;
+		return node;
+	}
+
+
+	private void link(int from, int to) {
+		if (this.nodeLinks[2 * from] == -1) {
+			this.nodeLinks[2 * from] = to;
+		} else {
+			this.nodeLinks[2 * from + 1] = to;
+		}
+	}
+
+
+	/**
+	 * Groups the nodes by cluster and computes the costs between the nodes of each
+	 * cluster
+	 */
+	private void buildClusterGraphs() {
+		int numClusters = this.unvisitedCount.length;
+		this.nodeCluster = new int[this.numNodes];
+		this.nodeLocalIndex = new int[this.numNodes];
+		this.clusterNodeStart = new int[numClusters + 1];
+		for (int node = 0; node < this.numNodes; node++) {
+			this.nodeCluster[node] = this.clusterOf(this.nodeCell[node]);
+			this.clusterNodeStart[this.nodeCluster[node] + 1]++;
+		}
+		for (int k = 0; k < numClusters; k++) {
+			this.clusterNodeStart[k + 1] += this.clusterNodeStart[k];
+		}
+		this.clusterNodes = new int[this.numNodes];
+		int[] fill = Arrays.copyOf(this.clusterNodeStart, numClusters);
+		for (int node = 0; node < this.numNodes; node++) {
+			int k = this.nodeCluster[node];
+			this.nodeLocalIndex[node] = fill[k] - this.clusterNodeStart[k];
+			this.clusterNodes[fill[k]++] = node;
+		}
+
+		this.clusterCostStart = new int[numClusters + 1];
+		for (int k = 0; k < numClusters; k++) {
+			int b = this.clusterNodeStart[k + 1] - this.clusterNodeStart[k];
+			this.clusterCostStart[k + 1] = this.clusterCostStart[k] + b * b;
+		}
+		this.intraCosts = new double[this.clusterCostStart[numClusters]];
+		for (int k = 0; k < numClusters; k++) {
+			int first = this.clusterNodeStart[k];
+			int b = this.clusterNodeStart[k + 1] - first;
+			for (int i = 0; i < b; i++) {
+				this.searchCluster(k, this.nodeCell[this.clusterNodes[first + i]], -1);
+				for (int j = 0; j < b; j++) {
+					this.intraCosts[this.clusterCostStart[k] + i * b + j] = this.localDist[this.localIndex(k,
+							this.nodeCell[this.clusterNodes[first + j]])];
+				}
+			}
+		}
+
+		this.nodeDist = new double[this.numNodes];
+		this.nodeTargetCost = new double[this.numNodes];
+		this.nodeTargetCell = new int[this.numNodes];
+		this.nodePrev = new int[this.numNodes];
+		this.nodeFrom = new byte[this.numNodes];
+		this.touchedNodes = new int[this.numNodes];
+		Arrays.fill(this.nodeDist, Double.POSITIVE_INFINITY);
+	}
+
+
+	@Override
+	void onPlanStart() {
+		Arrays.fill(this.unvisitedCount, 0);
+		Arrays.fill(this.targetsStale, true);
+		for (int i = 0; i < this.cost.length; i++) {
+			if (!this.visited[i]) {
+				this.unvisitedCount[this.clusterOf(i)]++;
+			}
+		}
+	}
+
+
+	@Override
+	void onVisited(int cell) {
+		int k = this.clusterOf(cell);
+		this.unvisitedCount[k]--;
+		this.targetsStale[k] = true;
+	}
+
+
+	@Override
+	int[] findNextSegment(int cur) {
+		int[] segment = this.search(cur, this.flatSearchLimit);
+		if (segment != null || !this.limitReached) {
+			return segment;
+		}
+		this.numHierarchicalQueries++;
+		return this.searchHierarchical(cur);
+	}
+
+
+	private int[] searchHierarchical(int cur) {
+		for (int i = 0; i < this.numTouchedNodes; i++) {
+			this.nodeDist[this.touchedNodes[i]] = Double.POSITIVE_INFINITY;
+		}
+		this.numTouchedNodes = 0;
+		this.nodeHeap.clear();
+		this.bestTarget = -1;
+		this.bestCost = Double.POSITIVE_INFINITY;
+		this.bestTargetNode = -1;
+		this.bestLocalPath = null;
+
+		// Start with the cells reachable inside the current cluster
+		int curCluster = this.clusterOf(cur);
+		this.searchCurrentCluster(curCluster, cur);
+		for (int i = this.clusterNodeStart[curCluster]; i < this.clusterNodeStart[curCluster + 1]; i++) {
+			int node = this.clusterNodes[i];
+			double d = this.localDist[this.localIndex(curCluster, this.nodeCell[node])];
+			if (d != Double.POSITIVE_INFINITY) {
+				this.relaxNode(node, d, -1, FROM_START);
+			}
+		}
+
+		// Heap entries below numNodes are nodes; the others are the cheapest target
+		// of node (entry - numNodes)
+		while (!this.nodeHeap.isEmpty()) {
+			double d = this.nodeHeap.peekCost();
+			int entry = this.nodeHeap.peekCell();
+			this.nodeHeap.pop();
+			if (this.bestCost <= d) {
+				// Every target not found yet costs at least d
+				break;
+			}
+			if (this.numNodes <= entry) {
+				this.bestTargetNode = entry - this.numNodes;
+				this.bestTarget = this.nodeTargetCell[this.bestTargetNode];
+				this.bestCost = d;
+				break;
+			}
+			int node = entry;
+			if (this.nodeDist[node] < d) {
+				continue;
+			}
+
+			int k = this.nodeCluster[node];
+			if (k != curCluster && 0 < this.unvisitedCount[k]) {
+				if (this.targetsStale[k]) {
+					this.updateTargets(k);
+				}
+				if (this.nodeTargetCost[node] != Double.POSITIVE_INFINITY) {
+					this.nodeHeap.push(d + this.nodeTargetCost[node], this.numNodes + node);
+				}
+			}
+
+			int first = this.clusterNodeStart[k];
+			int b = this.clusterNodeStart[k + 1] - first;
+			int costRow = this.clusterCostStart[k] + this.nodeLocalIndex[node] * b;
+			for (int j = 0; j < b; j++) {
+				double c = this.intraCosts[costRow + j];
+				if (c != Double.POSITIVE_INFINITY) {
+					this.relaxNode(this.clusterNodes[first + j], d + c, node, FROM_CLUSTER);
+				}
+			}
+			for (int l = 0; l < 2; l++) {
+				int other = this.nodeLinks[2 * node + l];
+				if (other != -1) {
+					this.relaxNode(other, d + this.cost[this.nodeCell[other]], node, FROM_ENTRANCE);
+				}
+			}
+		}
+
+		if (this.bestTarget == -1) {
+			return null;
+		}
+		return this.buildSegment(cur);
+	}
+
+
+	private void relaxNode(int node, double d, int prevNode, byte from) {
+		if (d < this.nodeDist[node]) {
+			if (this.nodeDist[node] == Double.POSITIVE_INFINITY) {
+				this.touchedNodes[this.numTouchedNodes++] = node;
+			}
+			this.nodeDist[node] = d;
+			this.nodePrev[node] = prevNode;
+			this.nodeFrom[node] = from;
+			this.nodeHeap.push(d, node);
+		}
+	}
+
+
+	/**
+	 * Searches the current cluster cell by cell from the current cell, and checks
+	 * its unvisited cells as targets
+	 *
+	 * @param k
+	 *                the current cluster
+	 * @param cur
+	 *                the current cell
+	 */
+	private void searchCurrentCluster(int k, int cur) {
+		this.numRefinements++;
+		this.searchCluster(k, cur, -1);
+		if (this.unvisitedCount[k] == 0) {
+			return;
+		}
+
+		int x0 = (k / this.numClustersY) * this.clusterSize;
+		int y0 = (k % this.numClustersY) * this.clusterSize;
+		int x1 = Math.min(this.width, x0 + this.clusterSize);
+		int y1 = Math.min(this.height, y0 + this.clusterSize);
+		for (int x = x0; x < x1; x++) {
+			for (int y = y0; y < y1; y++) {
+				int cell = x * this.height + y;
+				if (this.visited[cell]) {
+					continue;
+				}
+				double d = this.localDist[(x - x0) * (y1 - y0) + (y - y0)];
+				if (d < this.bestCost || (d == this.bestCost && d != Double.POSITIVE_INFINITY && this.isPreferredTarget(cell, this.bestTarget))) {
+					this.bestTarget = cell;
+					this.bestCost = d;
+				}
+			}
+		}
+		if (this.bestTarget != -1) {
+			this.bestLocalPath = this.traceLocalPath(k, this.bestTarget);
+		}
+	}
+
+
+	/**
+	 * Recomputes the cheapest unvisited cell of the given cluster for each of its
+	 * nodes, with one search backwards from all of the cluster's unvisited cells
+	 */
+	private void updateTargets(int k) {
+		this.numRefinements++;
+		this.targetsStale[k] = false;
+		int x0 = (k / this.numClustersY) * this.clusterSize;
+		int y0 = (k % this.numClustersY) * this.clusterSize;
+		int x1 = Math.min(this.width, x0 + this.clusterSize);
+		int y1 = Math.min(this.height, y0 + this.clusterSize);
+		int localHeight = y1 - y0;
+		int numLocal = (x1 - x0) * localHeight;
+		Arrays.fill(this.localDist, 0, numLocal, Double.POSITIVE_INFINITY);
+		this.localHeap.clear();
+		for (int x = x0; x < x1; x++) {
+			for (int y = y0; y < y1; y++) {
+				int cell = x * this.height + y;
+				if (!this.visited[cell]) {
+					int local = (x - x0) * localHeight + (y - y0);
+					this.localDist[local] = 0.0;
+					this.localTarget[local] = cell;
+					this.localHeap.push(0.0, local);
+				}
+			}
+		}
+
+		// Going backwards, the cost of a step is the cost of entering the cell the
+		// step came from
+		while (!this.localHeap.isEmpty()) {
+			double d = this.localHeap.peekCost();
+			int u = this.localHeap.peekCell();
+			this.localHeap.pop();
+			if (this.localDist[u] < d) {
+				continue;
+			}
+			int x = x0 + u / localHeight;
+			int y = y0 + u % localHeight;
+			double nd = d + this.cost[x * this.height + y];
+			for (int dir = 0; dir < 4; dir++) {
+				int nx = x + DIR_DX[dir];
+				int ny = y + DIR_DY[dir];
+				if (nx < x0 || x1 <= nx || ny < y0 || y1 <= ny || !this.isOpen(nx * this.height + ny)) {
+					continue;
+				}
+				int v = (nx - x0) * localHeight + (ny - y0);
+				if (nd < this.localDist[v]) {
+					this.localDist[v] = nd;
+					this.localTarget[v] = this.localTarget[u];
+					this.localHeap.push(nd, v);
+				}
+			}
+		}
+
+		for (int i = this.clusterNodeStart[k]; i < this.clusterNodeStart[k + 1]; i++) {
+			int node = this.clusterNodes[i];
+			int local = this.localIndex(k, this.nodeCell[node]);
+			this.nodeTargetCost[node] = this.localDist[local];
+			this.nodeTargetCell[node] = this.localTarget[local];
+		}
+	}
+
+
+	/**
+	 * Runs Dijkstra inside a cluster
+	 *
+	 * @param k
+	 *                the cluster
+	 * @param seed
+	 *                the cell to start from
+	 * @param target
+	 *                a cell to stop at, or -1 to search the whole cluster
+	 */
+	private void searchCluster(int k, int seed, int target) {
+		int x0 = (k / this.numClustersY) * this.clusterSize;
+		int y0 = (k % this.numClustersY) * this.clusterSize;
+		int x1 = Math.min(this.width, x0 + this.clusterSize);
+		int y1 = Math.min(this.height, y0 + this.clusterSize);
+		int localHeight = y1 - y0;
+		int numLocal = (x1 - x0) * localHeight;
+		Arrays.fill(this.localDist, 0, numLocal, Double.POSITIVE_INFINITY);
+		Arrays.fill(this.localPrev, 0, numLocal, -1);
+		this.localHeap.clear();
+		int seedLocal = (seed / this.height - x0) * localHeight + (seed % this.height - y0);
+		this.localDist[seedLocal] = 0.0;
+		this.localHeap.push(0.0, seedLocal);
+
+		while (!this.localHeap.isEmpty()) {
+			double d = this.localHeap.peekCost();
+			int u = this.localHeap.peekCell();
+			this.localHeap.pop();
+			if (this.localDist[u] < d) {
+				continue;
+			}
+			int x = x0 + u / localHeight;
+			int y = y0 + u % localHeight;
+			if (x * this.height + y == target) {
+				return;
+			}
+			for (int dir = 0; dir < 4; dir++) {
+				int nx = x + DIR_DX[dir];
+				int ny = y + DIR_DY[dir];
+				if (nx < x0 || x1 <= nx || ny < y0 || y1 <= ny) {
+					continue;
+				}
+				int v = (nx - x0) * localHeight + (ny - y0);
+				double nd = d + this.cost[nx * this.height + ny];
+				if (nd < this.localDist[v]) {
+					this.localDist[v] = nd;
+					this.localPrev[v] = u;
+					this.localHeap.push(nd, v);
+				}
+			}
+		}
+	}
+
+
+	private int localIndex(int k, int cell) {
+		int x0 = (k / this.numClustersY) * this.clusterSize;
+		int y0 = (k % this.numClustersY) * this.clusterSize;
+		int localHeight = Math.min(this.height, y0 + this.clusterSize) - y0;
+		return (cell / this.height - x0) * localHeight + (cell % this.height - y0);
+	}
+
+
+	private int cellOfLocal(int k, int local) {
+		int x0 = (k / this.numClustersY) * this.clusterSize;
+		int y0 = (k % this.numClustersY) * this.clusterSize;
+		int localHeight = Math.min(this.height, y0 + this.clusterSize) - y0;
+		return (x0 + local / localHeight) * this.height + y0 + local % localHeight;
+	}
+
+
+	/**
+	 * Traces the last cluster search back from the given cell to its seed
+	 *
+	 * @return the cells after the seed, up to and including the given cell
+	 */
+	private int[] traceLocalPath(int k, int cell) {
+		int length = 0;
+		for (int local = this.localIndex(k, cell); this.localPrev[local] != -1; local = this.localPrev[local]) {
+			length++;
+		}
+		int[] path = new int[length];
+		for (int local = this.localIndex(k, cell); this.localPrev[local] != -1; local = this.localPrev[local]) {
+			path[--length] = this.cellOfLocal(k, local);
+		}
+		return path;
+	}
+
+
+	/**
+	 * Builds the cell path to the best target by expanding the chain of nodes that
+	 * led to it
+	 */
+	private int[] buildSegment(int cur) {
+		int numChainNodes = 0;
+		for (int node = this.bestTargetNode; node != -1; node = this.nodePrev[node]) {
+			numChainNodes++;
+		}
+		int[] chain = new int[numChainNodes];
+		for (int node = this.bestTargetNode; node != -1; node = this.nodePrev[node]) {
+			chain[--numChainNodes] = node;
+		}
+
+		int[] segment = new int[16];
+		int length = 0;
+		int from = cur;
+		for (int node : chain) {
+			int to = this.nodeCell[node];
+			int[] part;
+			if (this.nodeFrom[node] == FROM_ENTRANCE) {
+				part = new int[] { to };
+			} else {
+				int k = this.clusterOf(to);
+				this.searchCluster(k, from, to);
+				part = this.traceLocalPath(k, to);
+			}
+			if (segment.length < length + part.length) {
+				segment = Arrays.copyOf(segment, Math.max(2 * segment.length, length + part.length));
+			}
+			System.arraycopy(part, 0, segment, length, part.length);
+			length += part.length;
+			from = to;
+		}
+
+		if (this.bestTargetNode != -1) {
+			int k = this.clusterOf(this.bestTarget);
+			this.searchCluster(k, from, this.bestTarget);
+			this.bestLocalPath = this.traceLocalPath(k, this.bestTarget);
+		}
+		if (segment.length < length + this.bestLocalPath.length) {
+			segment = Arrays.copyOf(segment, length + this.bestLocalPath.length);
+		}
+		System.arraycopy(this.bestLocalPath, 0, segment, length, this.bestLocalPath.length);
+		length += this.bestLocalPath.length;
+		return Arrays.copyOf(segment, length);
+	}
+}
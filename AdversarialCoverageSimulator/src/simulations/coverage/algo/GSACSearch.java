@@ -0,0 +1,210 @@
+package simulations.coverage.algo;
+
+import java.util.Arrays;
+
+import gridenv.GridNode;
+import gridenv.NodeType;
+
+/**
+ * Plans GSAC coverage paths on flat arrays. Like
+ * {@link GSACGC#planCoveragePath(GridNode[][], int, int, String, int)}, the path
+ * repeatedly goes to the unvisited cell with the lowest safest-path cost (ties go to
+ * the lowest <code>x + y</code>, then the lowest <code>y</code>), and every cell on
+ * the way counts as visited. Subclasses decide how that cell and the path to it are found.
+ * <p>
+ * Cell costs are the same as in GSACGC: entering a cell with danger <code>p</code>
+ * costs <code>numCells * p</code>, entering a safe cell costs
+ * <code>1 / numCells</code>, and obstacles can't be entered. Cell <code>(x, y)</code>
+ * is stored at index <code>x * height + y</code>.
+ *
+ * @author Mike D'Arcy
+ *
+ */
+abstract class GSACSearch {
+	static final int[] DIR_DX = { 1, 0, -1, 0 };
+	static final int[] DIR_DY = { 0, 1, 0, -1 };
+
+	final int width;
+	final int height;
+	final double[] cost;
+	final boolean[] visited;
+	int numUnvisited = 0;
+
+
+	GSACSearch(GridNode[][] grid) {
+		this.width = grid.length;
+		this.height = (0 < this.width) ? grid[0].length : 0;
+		int numCells = this.width * this.height;
+		this.cost = new double[numCells];
+		this.visited = new boolean[numCells];
+		for (int x = 0; x < this.width; x++) {
+			for (int y = 0; y < this.height; y++) {
+				this.cost[x * this.height + y] = cellCost(grid[x][y].getNodeType() == NodeType.OBSTACLE, grid[x][y].getDangerProb(),
+						numCells);
+			}
+		}
+	}
+
+
+	/**
+	 * Creates a search over existing cell costs. The costs are only read, so several
+	 * searches (on different threads) can share them.
+	 *
+	 * @param cost
+	 *                the cost of entering each cell, as from
+	 *                {@link #cellCost(boolean, double, int)}
+	 * @param width
+	 *                the width of the grid
+	 * @param height
+	 *                the height of the grid
+	 */
+	GSACSearch(double[] cost, int width, int height) {
+		this.width = width;
+		this.height = height;
+		this.cost = cost;
+		this.visited = new boolean[cost.length];
+	}
+
+
+	/**
+	 * Gets the cost of entering a cell
+	 *
+	 * @param obstacle
+	 *                whether the cell is an obstacle
+	 * @param danger
+	 *                the danger probability of the cell
+	 * @param numCells
+	 *                the number of cells in the grid
+	 */
+	static double cellCost(boolean obstacle, double danger, int numCells) {
+		if (obstacle) {
+			return Double.POSITIVE_INFINITY;
+		} else if (0.0 < danger) {
+			return numCells * danger;
+		}
+		return 1.0 / numCells;
+	}
+
+
+	/**
+	 * Plans the coverage path from the given cell
+	 *
+	 * @param start
+	 *                the start cell
+	 * @return the cells of the path, starting with the start cell
+	 */
+	int[] planPath(int start) {
+		return this.planPath(start, null, 0);
+	}
+
+
+	/**
+	 * Plans a path that covers one region of the grid. The path may go through cells
+	 * outside the region, but only cells in the region are targets.
+	 *
+	 * @param start
+	 *                the start cell
+	 * @param owner
+	 *                the region of each cell, or null to cover the whole grid
+	 * @param region
+	 *                the region to cover
+	 * @return the cells of the path, starting with the start cell
+	 */
+	int[] planPath(int start, int[] owner, int region) {
+		this.numUnvisited = 0;
+		for (int i = 0; i < this.cost.length; i++) {
+			// Obstacles never need to be visited
+			this.visited[i] = (this.cost[i] == Double.POSITIVE_INFINITY) || (owner != null && owner[i] != region);
+			if (!this.visited[i]) {
+				this.numUnvisited++;
+			}
+		}
+		this.onPlanStart();
+		this.markVisited(start);
+
+		int[] path = new int[Math.max(16, this.numUnvisited + 1)];
+		int pathLength = 0;
+		path[pathLength++] = start;
+		int cur = start;
+		while (0 < this.numUnvisited) {
+			int[] segment = this.findNextSegment(cur);
+			if (segment == null) {
+				// The rest can't be reached
+				break;
+			}
+			if (path.length < pathLength + segment.length) {
+				path = Arrays.copyOf(path, Math.max(2 * path.length, pathLength + segment.length));
+			}
+			for (int cell : segment) {
+				this.markVisited(cell);
+				path[pathLength++] = cell;
+			}
+			cur = segment[segment.length - 1];
+		}
+		return Arrays.copyOf(path, pathLength);
+	}
+
+
+	/**
+	 * Finds the path from the given cell to the next cell to visit
+	 *
+	 * @param cur
+	 *                the current cell
+	 * @return the cells of the path, not including the current cell, or null if no
+	 *         unvisited cell can be reached
+	 */
+	abstract int[] findNextSegment(int cur);
+
+
+	void markVisited(int cell) {
+		if (this.visited[cell]) {
+			return;
+		}
+		this.visited[cell] = true;
+		this.numUnvisited--;
+		this.onVisited(cell);
+	}
+
+
+	/**
+	 * Called when planning starts, after the cells that don't need to be visited have
+	 * been marked
+	 */
+	void onPlanStart() {
+
+	}
+
+
+	/**
+	 * Called when a cell is visited for the first time
+	 */
+	void onVisited(int cell) {
+
+	}
+
+
+	/**
+	 * Gets the total cost of following the given path (the cost of every cell
+	 * entered after the first)
+	 */
+	double getPathCost(int[] path) {
+		double total = 0.0;
+		for (int i = 1; i < path.length; i++) {
+			total += this.cost[path[i]];
+		}
+		return total;
+	}
+
+
+	/**
+	 * The GSAC tiebreaker between cells with equal cost: lower <code>x + y</code>,
+	 * then lower <code>y</code>
+	 */
+	boolean isPreferredTarget(int cell, int other) {
+		int cellY = cell % this.height;
+		int otherY = other % this.height;
+		int cellSum = cell / this.height + cellY;
+		int otherSum = other / this.height + otherY;
+		return cellSum < otherSum || (cellSum == otherSum && cellY < otherY);
+	}
+}
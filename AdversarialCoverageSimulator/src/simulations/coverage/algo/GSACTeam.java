@@ -0,0 +1,337 @@
+package simulations.coverage.algo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import adsim.SimulatorMain;
+import gridenv.GridSensor;
+
+/**
+ * Plans GSAC coverage paths for a team of robots together. The free cells are split
+ * into one region per robot, and each robot only covers its own region, so the
+ * robots' paths don't overlap. The regions are planned in parallel, and all of the
+ * searches share one read-only array of cell costs instead of each building its own
+ * graph of the grid.
+ * <p>
+ * The regions are grown outwards from the robots' start locations, one cell at a
+ * time, always growing the region with the smallest load so far. A cell adds
+ * <code>1 + w * danger</code> to the load, where <code>w</code> is the
+ * <code>gsac.partition.danger_weight</code> setting, so robots that start near
+ * dangerous areas get fewer cells.
+ *
+ * @author Mike D'Arcy
+ *
+ */
+public class GSACTeam {
+	private static final int[] DIR_DX = { 1, 0, -1, 0 };
+	private static final int[] DIR_DY = { 0, 1, 0, -1 };
+
+	private final List<GridSensor> sensors = new ArrayList<>();
+	private int[][] paths = null;
+	private int[] owner = null;
+	private int gridHeight = 1;
+	/**
+	 * Incremented every time the team is planned, so members can tell when their
+	 * path has been replaced
+	 */
+	private int planNum = 0;
+
+	private double DANGER_WEIGHT;
+
+
+	public GSACTeam() {
+		this.reloadSettings();
+	}
+
+
+	/**
+	 * Adds a robot to the team
+	 *
+	 * @param sensor
+	 *                the robot's sensor
+	 * @return the robot's index in the team
+	 */
+	public int addMember(GridSensor sensor) {
+		this.sensors.add(sensor);
+		this.paths = null;
+		return this.sensors.size() - 1;
+	}
+
+
+	/**
+	 * Discards the current paths, so the team is planned again (from the robots'
+	 * locations at that time) the next time a path is needed
+	 */
+	public void invalidate() {
+		this.paths = null;
+	}
+
+
+	/**
+	 * Gets the path of the given member, planning the team first if needed
+	 *
+	 * @param memberIndex
+	 *                the index from {@link #addMember(GridSensor)}
+	 * @return the path, as cell indices <code>x * height + y</code>, starting with the
+	 *         robot's location at the time of planning
+	 */
+	public int[] getPath(int memberIndex) {
+		if (this.paths == null) {
+			this.plan();
+		}
+		return this.paths[memberIndex];
+	}
+
+
+	public int getPlanNum() {
+		return this.planNum;
+	}
+
+
+	public int getGridHeight() {
+		return this.gridHeight;
+	}
+
+
+	/**
+	 * Gets the region (member index) each cell was assigned to in the last plan,
+	 * indexed by <code>x * height + y</code>, with -1 for cells no robot can reach.
+	 * Returns null if the team hasn't been planned yet.
+	 */
+	public int[] getRegions() {
+		return this.owner;
+	}
+
+
+	/**
+	 * Finds the shortest way from one cell to another that avoids obstacles and the
+	 * cells of the other members of the team
+	 *
+	 * @param memberIndex
+	 *                the member that wants to move
+	 * @param from
+	 *                the start cell
+	 * @param to
+	 *                the destination cell
+	 * @return the cells of the way, not including the start cell, or null if there is
+	 *         none
+	 */
+	public int[] findDetour(int memberIndex, int from, int to) {
+		GridSensor sensor = this.sensors.get(memberIndex);
+		final int width = sensor.getGridWidth();
+		final int height = sensor.getGridHeight();
+		int[] prev = new int[width * height];
+		for (int i = 0; i < prev.length; i++) {
+			prev[i] = -2;
+		}
+		for (int r = 0; r < this.sensors.size(); r++) {
+			if (r != memberIndex) {
+				// Mark other robots' cells as already seen, so they aren't entered
+				prev[this.sensors.get(r).getX() * height + this.sensors.get(r).getY()] = -3;
+			}
+		}
+
+		int[] queue = new int[prev.length];
+		int head = 0;
+		int tail = 0;
+		prev[from] = -1;
+		queue[tail++] = from;
+		while (head < tail && prev[to] == -2) {
+			int cell = queue[head++];
+			int x = cell / height;
+			int y = cell % height;
+			for (int dir = 0; dir < 4; dir++) {
+				int nx = x + DIR_DX[dir];
+				int ny = y + DIR_DY[dir];
+				if (nx < 0 || width <= nx || ny < 0 || height <= ny) {
+					continue;
+				}
+				int n = nx * height + ny;
+				if (prev[n] != -2 || sensor.isObstacle(nx, ny)) {
+					continue;
+				}
+				prev[n] = cell;
+				queue[tail++] = n;
+			}
+		}
+		if (prev[to] < 0) {
+			return null;
+		}
+
+		int length = 0;
+		for (int c = to; c != from; c = prev[c]) {
+			length++;
+		}
+		int[] detour = new int[length];
+		for (int c = to; c != from; c = prev[c]) {
+			detour[--length] = c;
+		}
+		return detour;
+	}
+
+
+	private void plan() {
+		GridSensor firstSensor = this.sensors.get(0);
+		final int width = firstSensor.getGridWidth();
+		final int height = firstSensor.getGridHeight();
+		final int numCells = width * height;
+		double[] danger = new double[numCells];
+		double[] cost = new double[numCells];
+		for (int x = 0; x < width; x++) {
+			for (int y = 0; y < height; y++) {
+				int i = x * height + y;
+				danger[i] = firstSensor.getDangerLevelAt(x, y);
+				cost[i] = GSACSearch.cellCost(firstSensor.isObstacle(x, y), danger[i], numCells);
+			}
+		}
+
+		int[] starts = new int[this.sensors.size()];
+		for (int r = 0; r < starts.length; r++) {
+			starts[r] = this.sensors.get(r).getX() * height + this.sensors.get(r).getY();
+		}
+
+		this.gridHeight = height;
+		this.owner = partition(cost, danger, width, height, starts, this.DANGER_WEIGHT);
+		this.paths = new int[starts.length][];
+		PlanTask task = new PlanTask(cost, width, height, this.owner, starts, this.paths, 0, starts.length);
+		if (1 < starts.length) {
+			ForkJoinPool.commonPool().invoke(task);
+		} else {
+			task.compute();
+		}
+		this.planNum++;
+	}
+
+
+	/**
+	 * Splits the open cells into one region per robot
+	 *
+	 * @param cost
+	 *                the cell costs (infinite for obstacles)
+	 * @param danger
+	 *                the danger of each cell
+	 * @param width
+	 *                the width of the grid
+	 * @param height
+	 *                the height of the grid
+	 * @param starts
+	 *                the start cell of each robot
+	 * @param dangerWeight
+	 *                how much a cell's danger adds to its load
+	 * @return the region of each cell, or -1 for cells no robot can reach
+	 */
+	static int[] partition(double[] cost, double[] danger, int width, int height, int[] starts, double dangerWeight) {
+		final int numRegions = starts.length;
+		int[] owner = new int[cost.length];
+		for (int i = 0; i < owner.length; i++) {
+			owner[i] = -1;
+		}
+		double[] load = new double[numRegions];
+		int[][] frontier = new int[numRegions][];
+		int[] frontierHead = new int[numRegions];
+		int[] frontierTail = new int[numRegions];
+		for (int r = 0; r < numRegions; r++) {
+			frontier[r] = new int[16];
+			frontier[r][frontierTail[r]++] = starts[r];
+		}
+
+		while (true) {
+			// Grow the region with the smallest load that can still grow
+			int r = -1;
+			for (int i = 0; i < numRegions; i++) {
+				if (frontierHead[i] < frontierTail[i] && (r == -1 || load[i] < load[r])) {
+					r = i;
+				}
+			}
+			if (r == -1) {
+				break;
+			}
+
+			int cell = frontier[r][frontierHead[r]++];
+			if (owner[cell] == -1) {
+				owner[cell] = r;
+				load[r] += 1.0 + dangerWeight * danger[cell];
+			} else if (cell != starts[r]) {
+				// Already claimed. A robot that starts in another robot's region
+				// still grows its own from there.
+				continue;
+			}
+
+			int x = cell / height;
+			int y = cell % height;
+			for (int dir = 0; dir < 4; dir++) {
+				int nx = x + DIR_DX[dir];
+				int ny = y + DIR_DY[dir];
+				if (nx < 0 || width <= nx || ny < 0 || height <= ny) {
+					continue;
+				}
+				int n = nx * height + ny;
+				if (owner[n] != -1 || cost[n] == Double.POSITIVE_INFINITY) {
+					continue;
+				}
+				if (frontierTail[r] == frontier[r].length) {
+					// Compact the queue before growing it
+					int size = frontierTail[r] - frontierHead[r];
+					int[] newFrontier = (2 * size < frontier[r].length) ? frontier[r] : new int[2 * frontier[r].length];
+					System.arraycopy(frontier[r], frontierHead[r], newFrontier, 0, size);
+					frontier[r] = newFrontier;
+					frontierHead[r] = 0;
+					frontierTail[r] = size;
+				}
+				frontier[r][frontierTail[r]++] = n;
+			}
+		}
+		return owner;
+	}
+
+
+	public void reloadSettings() {
+		this.DANGER_WEIGHT = SimulatorMain.settings.getDouble("gsac.partition.danger_weight");
+	}
+
+
+	/**
+	 * Plans the paths for a range of robots, splitting the range in half until each
+	 * task has one robot
+	 */
+	private static class PlanTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final double[] cost;
+		private final int width;
+		private final int height;
+		private final int[] owner;
+		private final int[] starts;
+		private final int[][] paths;
+		private final int first;
+		private final int last;
+
+
+		PlanTask(double[] cost, int width, int height, int[] owner, int[] starts, int[][] paths, int first, int last) {
+			this.cost = cost;
+			this.width = width;
+			this.height = height;
+			this.owner = owner;
+			this.starts = starts;
+			this.paths = paths;
+			this.first = first;
+			this.last = last;
+		}
+
+
+		@Override
+		protected void compute() {
+			if (this.last - this.first <= 1) {
+				for (int r = this.first; r < this.last; r++) {
+					GSACFlatSearch search = new GSACFlatSearch(this.cost, this.width, this.height);
+					this.paths[r] = search.planPath(this.starts[r], this.owner, r);
+				}
+				return;
+			}
+			int mid = (this.first + this.last) >>> 1;
+			invokeAll(new PlanTask(this.cost, this.width, this.height, this.owner, this.starts, this.paths, this.first, mid),
+					new PlanTask(this.cost, this.width, this.height, this.owner, this.starts, this.paths, mid, this.last));
+		}
+	}
+}
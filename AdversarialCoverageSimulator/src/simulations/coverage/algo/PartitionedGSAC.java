@@ -0,0 +1,129 @@
+package simulations.coverage.algo;
+
+import adsim.Algorithm;
+import gridenv.GridSensor;
+import simulations.coverage.CoverageActuator;
+
+/**
+ * A GSAC coverage algorithm for one robot of a {@link GSACTeam}. The robot covers
+ * only its own region of the grid.
+ * <p>
+ * The team is planned on the first step after any member is initialized rather than
+ * in {@link #init()}, since the environment places the robots one at a time and
+ * initializes each one as soon as it is placed.
+ * <p>
+ * Robots can block each other. A blocked move is retried on the next step, and if
+ * the robot is still blocked after that, it walks around the blocking robot instead
+ * (or skips the blocked cell, if it was the last one on the path). The blocking
+ * robot covered the cell when it moved there, so nothing is left uncovered, and a
+ * robot that broke in the way can't hold up the robot behind it forever.
+ *
+ * @author Mike D'Arcy
+ *
+ */
+public class PartitionedGSAC implements Algorithm {
+	/**
+	 * The number of steps in a row a move can be blocked before the robot goes
+	 * around the blocked cell
+	 */
+	private static final int MAX_BLOCKED_STEPS = 2;
+
+	GridSensor sensor;
+	CoverageActuator actuator;
+
+	private final GSACTeam team;
+	private final int memberIndex;
+	private int[] coveragePath = null;
+	private int pathPlanNum = -1;
+	private int stepNum = 0;
+	private int numBlockedSteps = 0;
+
+
+	public PartitionedGSAC(GridSensor sensor, CoverageActuator actuator, GSACTeam team) {
+		this.sensor = sensor;
+		this.actuator = actuator;
+		this.team = team;
+		this.memberIndex = team.addMember(sensor);
+	}
+
+
+	@Override
+	public void init() {
+		this.team.invalidate();
+		this.coveragePath = null;
+	}
+
+
+	@Override
+	public void step() {
+		int[] path = this.team.getPath(this.memberIndex);
+		if (this.coveragePath == null || this.team.getPlanNum() != this.pathPlanNum) {
+			this.coveragePath = path;
+			this.pathPlanNum = this.team.getPlanNum();
+			this.stepNum = 0;
+			this.numBlockedSteps = 0;
+		}
+
+		if (this.coveragePath.length <= this.stepNum) {
+			this.actuator.coverCurrentNode();
+			return;
+		}
+		int gridHeight = this.team.getGridHeight();
+		int cur = this.sensor.getX() * gridHeight + this.sensor.getY();
+		if (0 < this.stepNum && this.coveragePath[this.stepNum - 1] != cur) {
+			// The last move was blocked, so try it again
+			this.stepNum--;
+			this.numBlockedSteps++;
+			if (MAX_BLOCKED_STEPS <= this.numBlockedSteps) {
+				if (this.coveragePath.length <= this.stepNum + 1) {
+					this.stepNum = this.coveragePath.length;
+					this.actuator.coverCurrentNode();
+					return;
+				}
+				this.detour(cur);
+			}
+		} else {
+			this.numBlockedSteps = 0;
+		}
+		int next = this.coveragePath[this.stepNum];
+		this.stepNum++;
+		int xdir = Integer.signum(next / gridHeight - this.sensor.getX());
+		int ydir = Integer.signum(next % gridHeight - this.sensor.getY());
+
+		if (xdir == 1 && ydir == 0) {
+			this.actuator.moveRight();
+		} else if (xdir == -1 && ydir == 0) {
+			this.actuator.moveLeft();
+		} else if (xdir == 0 && ydir == 1) {
+			this.actuator.moveUp();
+		} else if (xdir == 0 && ydir == -1) {
+			this.actuator.moveDown();
+		} else {
+			this.actuator.coverCurrentNode();
+		}
+	}
+
+
+	/**
+	 * Replaces the blocked cell of the path with a way around it, if there is one
+	 */
+	private void detour(int cur) {
+		int[] detour = this.team.findDetour(this.memberIndex, cur, this.coveragePath[this.stepNum + 1]);
+		if (detour == null) {
+			return;
+		}
+		int[] newPath = new int[this.coveragePath.length - 2 + detour.length];
+		System.arraycopy(this.coveragePath, 0, newPath, 0, this.stepNum);
+		System.arraycopy(detour, 0, newPath, this.stepNum, detour.length);
+		System.arraycopy(this.coveragePath, this.stepNum + 2, newPath, this.stepNum + detour.length,
+				this.coveragePath.length - this.stepNum - 2);
+		this.coveragePath = newPath;
+		this.numBlockedSteps = 0;
+	}
+
+
+	@Override
+	public void reloadSettings() {
+		this.team.reloadSettings();
+	}
+}
@@ -0,0 +1,301 @@
+package simulations.coverage.algo;
+
+import adsim.Algorithm;
+import adsim.SimulatorMain;
+import gridenv.GridSensor;
+import simulations.coverage.CoverageActuator;
+
+/**
+ * A coverage algorithm that builds a spanning tree of the free cells reachable from
+ * the robot, and follows a depth-first tour of it. Planning takes time linear in the
+ * size of the grid, so this can be used as a baseline on grids too large for
+ * {@link GSACGC}.
+ * <p>
+ * The tree is grown depth-first, preferring to keep going straight, which gives
+ * back-and-forth (boustrophedon) sweeps in open areas. If
+ * <code>stc.danger_aware_tree</code> is set, the safest neighbor is preferred
+ * instead, so dangerous cells tend to end up as leaves rather than on the way to
+ * other cells. If <code>stc.danger_sorted_subtrees</code> is set, the tour visits
+ * each cell's subtrees in order of their total danger, so safer areas are covered
+ * first and the tour ends in a dangerous area instead of coming back through it.
+ * <p>
+ * When the tour goes back up the tree, it moves directly to the next cell as soon as
+ * it is adjacent, instead of walking the rest of the way to its parent.
+ *
+ * @author Mike D'Arcy
+ *
+ */
+public class SpanningTreeCoverage implements Algorithm {
+	private static final int[] DIR_DX = { 1, 0, -1, 0 };
+	private static final int[] DIR_DY = { 0, 1, 0, -1 };
+
+	GridSensor sensor;
+	CoverageActuator actuator;
+
+	/**
+	 * The cells to visit, as <code>x * height + y</code>
+	 */
+	private int[] coveragePath = new int[0];
+	private int pathLength = 0;
+	private int gridHeight = 1;
+	private int stepNum = 0;
+
+	private boolean DANGER_AWARE_TREE;
+	private boolean DANGER_SORTED_SUBTREES;
+
+
+	public SpanningTreeCoverage(GridSensor sensor, CoverageActuator actuator) {
+		this.sensor = sensor;
+		this.actuator = actuator;
+		this.reloadSettings();
+	}
+
+
+	@Override
+	public void init() {
+		this.gridHeight = this.sensor.getGridHeight();
+		this.coveragePath = planCoveragePath(this.sensor, this.sensor.getX(), this.sensor.getY(), this.DANGER_AWARE_TREE,
+				this.DANGER_SORTED_SUBTREES);
+		this.pathLength = this.coveragePath.length;
+		this.stepNum = 0;
+	}
+
+
+	@Override
+	public void step() {
+		if (this.pathLength <= this.stepNum) {
+			this.actuator.coverCurrentNode();
+			return;
+		}
+		int next = this.coveragePath[this.stepNum];
+		this.stepNum++;
+		int xdir = Integer.signum(next / this.gridHeight - this.sensor.getX());
+		int ydir = Integer.signum(next % this.gridHeight - this.sensor.getY());
+
+		if (xdir == 1 && ydir == 0) {
+			this.actuator.moveRight();
+		} else if (xdir == -1 && ydir == 0) {
+			this.actuator.moveLeft();
+		} else if (xdir == 0 && ydir == 1) {
+			this.actuator.moveUp();
+		} else if (xdir == 0 && ydir == -1) {
+			this.actuator.moveDown();
+		} else {
+			this.actuator.coverCurrentNode();
+		}
+	}
+
+
+	/**
+	 * Plans a coverage path for the grid seen by the given sensor.
+	 *
+	 * @param sensor
+	 *                the sensor to read the grid from
+	 * @param startX
+	 *                the x coordinate of the start location
+	 * @param startY
+	 *                the y coordinate of the start location
+	 * @param dangerAwareTree
+	 *                whether to grow the tree through the safest neighbors first
+	 * @param dangerSortedSubtrees
+	 *                whether to visit subtrees in order of increasing total danger
+	 * @return the path, as cell indices <code>x * height + y</code>, starting with
+	 *         the start location
+	 */
+	public static int[] planCoveragePath(GridSensor sensor, int startX, int startY, boolean dangerAwareTree, boolean dangerSortedSubtrees) {
+		final int width = sensor.getGridWidth();
+		final int height = sensor.getGridHeight();
+		final int numCells = width * height;
+		double[] danger = new double[numCells];
+		boolean[] blocked = new boolean[numCells];
+		for (int x = 0; x < width; x++) {
+			for (int y = 0; y < height; y++) {
+				int i = x * height + y;
+				danger[i] = sensor.getDangerLevelAt(x, y);
+				blocked[i] = sensor.isObstacle(x, y);
+			}
+		}
+		int start = startX * height + startY;
+
+		// Grow the tree depth-first. Children are kept as linked lists, in the
+		// order they were found.
+		int[] parent = new int[numCells];
+		int[] firstChild = new int[numCells];
+		int[] nextSibling = new int[numCells];
+		int[] lastChild = new int[numCells];
+		int[] treeOrder = new int[numCells];
+		for (int i = 0; i < numCells; i++) {
+			parent[i] = -2;
+			firstChild[i] = -1;
+			nextSibling[i] = -1;
+			lastChild[i] = -1;
+		}
+		int numTreeCells = 0;
+		int[] stack = new int[numCells];
+		int stackSize = 0;
+		parent[start] = -1;
+		treeOrder[numTreeCells++] = start;
+		stack[stackSize++] = start;
+		while (0 < stackSize) {
+			int cell = stack[stackSize - 1];
+			int x = cell / height;
+			int y = cell % height;
+			int straightDir = -1;
+			if (0 <= parent[cell]) {
+				straightDir = directionBetween(parent[cell], cell, height);
+			}
+
+			int bestDir = -1;
+			for (int i = 0; i < 4; i++) {
+				// Try going straight first
+				int dir = (straightDir == -1) ? i : (straightDir + i) & 3;
+				int nx = x + DIR_DX[dir];
+				int ny = y + DIR_DY[dir];
+				if (nx < 0 || width <= nx || ny < 0 || height <= ny) {
+					continue;
+				}
+				int n = nx * height + ny;
+				if (blocked[n] || parent[n] != -2) {
+					continue;
+				}
+				if (bestDir == -1 || (dangerAwareTree && danger[n] < danger[(x + DIR_DX[bestDir]) * height + y + DIR_DY[bestDir]])) {
+					bestDir = dir;
+					if (!dangerAwareTree) {
+						break;
+					}
+				}
+			}
+
+			if (bestDir == -1) {
+				stackSize--;
+				continue;
+			}
+			int child = (x + DIR_DX[bestDir]) * height + y + DIR_DY[bestDir];
+			parent[child] = cell;
+			if (lastChild[cell] == -1) {
+				firstChild[cell] = child;
+			} else {
+				nextSibling[lastChild[cell]] = child;
+			}
+			lastChild[cell] = child;
+			treeOrder[numTreeCells++] = child;
+			stack[stackSize++] = child;
+		}
+
+		if (dangerSortedSubtrees) {
+			sortSubtreesByDanger(danger, parent, firstChild, nextSibling, treeOrder, numTreeCells);
+		}
+
+		// Visit the cells in preorder. To get from one cell to the next, go back up
+		// the tree until the next cell is adjacent.
+		int[] path = new int[2 * numTreeCells];
+		int pathLength = 0;
+		path[pathLength++] = start;
+		stackSize = 0;
+		stack[stackSize++] = start;
+		int cur = start;
+		boolean first = true;
+		while (0 < stackSize) {
+			int next = stack[--stackSize];
+			// Push children in reverse so the first child is visited first
+			int numChildren = 0;
+			for (int c = firstChild[next]; c != -1; c = nextSibling[c]) {
+				numChildren++;
+			}
+			stackSize += numChildren;
+			int pos = stackSize - 1;
+			for (int c = firstChild[next]; c != -1; c = nextSibling[c]) {
+				stack[pos--] = c;
+			}
+
+			if (first) {
+				first = false;
+				continue;
+			}
+			while (!isAdjacent(cur, next, height)) {
+				cur = parent[cur];
+				path[pathLength++] = cur;
+			}
+			path[pathLength++] = next;
+			cur = next;
+		}
+
+		int[] trimmedPath = new int[pathLength];
+		System.arraycopy(path, 0, trimmedPath, 0, pathLength);
+		return trimmedPath;
+	}
+
+
+	/**
+	 * Reorders each cell's children by the total danger of their subtrees, safest
+	 * first. Cells are processed in reverse tree order, so every subtree's total is
+	 * known before its parent's.
+	 */
+	private static void sortSubtreesByDanger(double[] danger, int[] parent, int[] firstChild, int[] nextSibling, int[] treeOrder,
+			int numTreeCells) {
+		double[] subtreeDanger = new double[danger.length];
+		int[] children = new int[4];
+		for (int i = numTreeCells - 1; 0 <= i; i--) {
+			int cell = treeOrder[i];
+			subtreeDanger[cell] += danger[cell];
+			if (0 <= parent[cell]) {
+				subtreeDanger[parent[cell]] += subtreeDanger[cell];
+			}
+
+			int numChildren = 0;
+			for (int c = firstChild[cell]; c != -1; c = nextSibling[c]) {
+				children[numChildren++] = c;
+			}
+			if (numChildren < 2) {
+				continue;
+			}
+			// Insertion sort (at most four children), keeping the tree order for ties
+			for (int j = 1; j < numChildren; j++) {
+				int c = children[j];
+				int k = j - 1;
+				while (0 <= k && subtreeDanger[c] < subtreeDanger[children[k]]) {
+					children[k + 1] = children[k];
+					k--;
+				}
+				children[k + 1] = c;
+			}
+			firstChild[cell] = children[0];
+			for (int j = 0; j < numChildren - 1; j++) {
+				nextSibling[children[j]] = children[j + 1];
+			}
+			nextSibling[children[numChildren - 1]] = -1;
+		}
+	}
+
+
+	private static int directionBetween(int from, int to, int height) {
+		int dx = to / height - from / height;
+		int dy = to % height - from % height;
+		for (int dir = 0; dir < 4; dir++) {
+			if (DIR_DX[dir] == dx && DIR_DY[dir] == dy) {
+				return dir;
+			}
+		}
+		return -1;
+	}
+
+
+	private static boolean isAdjacent(int a, int b, int height) {
+		return Math.abs(a / height - b / height) + Math.abs(a % height - b % height) == 1;
+	}
+
+
+	/**
+	 * Gets the length of the planned path, including the start location
+	 */
+	public int getPathLength() {
+		return this.pathLength;
+	}
+
+
+	@Override
+	public void reloadSettings() {
+		this.DANGER_AWARE_TREE = SimulatorMain.settings.getBoolean("stc.danger_aware_tree");
+		this.DANGER_SORTED_SUBTREES = SimulatorMain.settings.getBoolean("stc.danger_sorted_subtrees");
+	}
+}
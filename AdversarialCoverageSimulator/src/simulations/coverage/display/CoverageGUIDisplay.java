@@ -295,6 +295,7 @@ public class CoverageGUIDisplay implements Display {
 				gridNode.setCost(((Number) costField.getValue()).doubleValue());
 				gridNode.setCoverCount(((Number) coverCountSpinner.getValue()).intValue());
 				gridNode.setNodeType(((ComboBoxNodeType) typeBox.getSelectedItem()).nodetype);
+				CoverageGUIDisplay.this.sim.getEnv().markCellChanged(gridNode.getX(), gridNode.getY());
 				CoverageGUIDisplay.this.mainPanel.repaint();
 				dialog.dispose();
 			}
@@ -3,13 +3,15 @@ package simulations.generic.algo;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.util.Arrays;
-import java.util.Random;
 import java.util.Scanner;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
-import adsim.Algorithm;
+import adsim.FlightRecorder;
 import adsim.SimulatorMain;
 import adsim.SimulatorSettings;
 import adsim.TerminalCommand;
+import adsim.TwoPhaseAlgorithm;
 import adsim.stats.SampledVariableDouble;
 import deeplearning.NeuralNet;
 import deeplearning.StateTransition;
@@ -29,7 +31,8 @@ import deeplearning.ExternalTorchNN;
  * @author Mike D'Arcy
  *
  */
-public class DQL implements Algorithm {
+public class DQL implements TwoPhaseAlgorithm {
+	private static final FlightRecorder FLIGHT_RECORDER = FlightRecorder.get();
 	private boolean PRINT_Q_VALUES;
 	private boolean USING_EXTERNAL_QLEARNER;
 	private boolean EXTERNALNN_ALLOW_PARTIAL_TRANSITIONS;
@@ -55,7 +58,7 @@ public class DQL implements Algorithm {
 	private GridSensor sensor;
 	private MinibatchSeqType MINIBATCH_SEQ_TYPE = MinibatchSeqType.MANUAL;
 	private NeuralNet nn = null;
-	private Random randgen = new Random();
+	private SplittableRandom randgen = new SplittableRandom();
 	private SampledVariableDouble trainingLoss = new SampledVariableDouble();
 	private SampledVariableDouble trainingAbsLoss = new SampledVariableDouble();
 	private DQLStatePreprocessor preprocessor;
@@ -63,6 +66,49 @@ public class DQL implements Algorithm {
 	private TrainingType NN_TRAINING_TYPE = TrainingType.RMSPROP;
 
 	private double[] nnOutput = null;
+	/**
+	 * The arrays that network outputs are read into. The decision outputs are kept
+	 * separate from the others, since <code>nnOutput</code> may be reused on the next
+	 * step.
+	 */
+	private double[] decisionOutputBuffer = null;
+	private double[] trainingOutputBuffer = null;
+	private double[] lossInitialOutputs = new double[5];
+	private double[] correctOutputs = new double[5];
+	/**
+	 * The next state from the last step. Each state gets its own array, since they
+	 * may be kept in the transition history, but arrays are recycled once their
+	 * transitions leave the history.
+	 */
+	private double[] lastNextInput = null;
+	/**
+	 * State arrays that aren't referenced by anything anymore, ready to be reused
+	 */
+	private double[][] freeStateBuffers = new double[4][];
+	private int numFreeStateBuffers = 0;
+	/**
+	 * A transition that has left the history, ready to be reused
+	 */
+	private StateTransition freeTransition = null;
+	/**
+	 * Used to build the loss stats line without allocating
+	 */
+	private final StringBuilder lossLine = new StringBuilder();
+	private byte[] lossLineBytes = new byte[128];
+	/**
+	 * The transition started by {@link #decideAction()}, to be finished by
+	 * {@link #commitAction(int)}
+	 */
+	private StateTransition pendingTransition = null;
+
+	/**
+	 * Copies of the training state for other threads to read (see
+	 * {@link DQLMonitor}). The step count and epsilon are written with lazySet every
+	 * step, and the loss summary is replaced at each loss report.
+	 */
+	final AtomicLong publishedStepNum = new AtomicLong();
+	final AtomicLong publishedGreedyEpsilonBits = new AtomicLong();
+	volatile DQLMonitor.LossSummary publishedLoss = null;
 
 
 	public DQL(GridSensor sensor, DQLActuator actuator) {
@@ -75,6 +121,7 @@ public class DQL implements Algorithm {
 		this.lastStates = new StateTransition[this.HISTORY_MAX];
 
 		this.registerCustomCommands();
+		this.publishState();
 	}
 
 
@@ -89,28 +136,69 @@ public class DQL implements Algorithm {
 
 	@Override
 	public void step() {
-		if (this.stepNum % 25000 == 0) {
-			this.nn.LEARNING_RATE *= this.LEARNING_RATE_DECAY_FACTOR;
-			System.out.println(this.nn.exportToString());
-			System.out.println("Minibatch number=" + this.stepNum);
-			System.out.println("Epsilon=" + this.greedyEpsilon);
-			System.out.println("Learning rate=" + this.nn.LEARNING_RATE);
-		}
+		this.commitAction(this.decideAction());
+	}
 
-		double[] nnInput = this.preprocessor.getPreprocessedState();
 
-		StateTransition transition = new StateTransition();
+	@Override
+	public int decideAction() {
+		double[] nnInput;
+		if (this.lastNextInput != null && !this.preprocessor.hasStateChanged(this.lastNextInput)) {
+			// Nothing changed since the last step's next state was computed, so
+			// it is also the current state
+			nnInput = this.lastNextInput;
+		} else {
+			nnInput = this.preprocessor.updatePreprocessedState(this.lastNextInput, this.takeStateBuffer());
+		}
+
+		StateTransition transition = this.freeTransition;
+		this.freeTransition = null;
+		if (transition == null) {
+			transition = new StateTransition();
+		}
 		transition.nnInput = nnInput;
 
+		if (this.nn instanceof ExternalTorchNN) {
+			// The external process is shared, so only one robot can use it at a time
+			synchronized (ExternalTorchNN.class) {
+				this.decideWithNN(transition, nnInput);
+			}
+		} else {
+			this.decideWithNN(transition, nnInput);
+		}
+		this.pendingTransition = transition;
+		return transition.action;
+	}
+
+
+	private void decideWithNN(StateTransition transition, double[] nnInput) {
 		if (this.nnOutput == null && this.ALWAYS_FORWARD_NNINPUT) {
-			this.nnOutput = ensureNNOutput(nnInput);
+			this.nnOutput = this.decisionOutputBuffer = ensureNNOutput(nnInput, this.decisionOutputBuffer);
 		}
 
 		decideTransitionAction(transition, nnInput);
+	}
+
+
+	@Override
+	public void commitAction(int actionId) {
+		if (this.stepNum % 25000 == 0) {
+			this.nn.LEARNING_RATE *= this.LEARNING_RATE_DECAY_FACTOR;
+			System.out.println(this.nn.exportToString());
+			System.out.println("Minibatch number=" + this.stepNum);
+			System.out.println("Epsilon=" + this.greedyEpsilon);
+			System.out.println("Learning rate=" + this.nn.LEARNING_RATE);
+		}
+
+		StateTransition transition = this.pendingTransition;
+		this.pendingTransition = null;
+		double[] nnInput = transition.nnInput;
+		transition.action = actionId;
 		this.actuator.takeActionById(transition.action);
 
 		transition.reward = this.actuator.getLastReward();
-		transition.nextInput = this.preprocessor.getPreprocessedState();
+		transition.nextInput = this.preprocessor.updatePreprocessedState(nnInput, this.takeStateBuffer());
+		this.lastNextInput = transition.nextInput;
 		transition.isTerminal = this.sensor.isFinished();
 
 		if ((this.LOSS_SAMPLING_INTERVAL != 0) && (this.stepNum % this.LOSS_SAMPLING_INTERVAL == 0)) {
@@ -122,11 +210,9 @@ public class DQL implements Algorithm {
 		}
 
 		if ((this.LOSS_DISPLAY_INTERVAL != 0) && (this.stepNum % this.LOSS_DISPLAY_INTERVAL == 0)) {
-			double loss_extreme = (Math.abs(this.trainingLoss.getMax()) < Math.abs(this.trainingLoss.getMin()))
-					? this.trainingLoss.getMin() : this.trainingLoss.getMax();
-			System.out.printf("Loss stats: n=%d, mx=%.4f, avg=%.5f (%.5f), avgmag=%.6f\n", this.trainingLoss.numSamples(), loss_extreme,
-					this.trainingLoss.mean(), this.trainingLoss.stddev(), this.trainingAbsLoss.mean(),
-					this.trainingAbsLoss.stddev());
+			this.printLossStats();
+			this.publishedLoss = new DQLMonitor.LossSummary(this.trainingLoss.numSamples(), this.trainingLoss.mean(),
+					this.trainingLoss.stddev(), this.getExtremeLoss(), this.trainingAbsLoss.mean());
 			this.trainingLoss.reset();
 			this.trainingAbsLoss.reset();
 		}
@@ -151,6 +237,106 @@ public class DQL implements Algorithm {
 		this.updateGreedyEpsilon();
 
 		this.stepNum++;
+		this.publishState();
+	}
+
+
+	private void publishState() {
+		this.publishedStepNum.lazySet(this.stepNum);
+		this.publishedGreedyEpsilonBits.lazySet(Double.doubleToRawLongBits(this.greedyEpsilon));
+	}
+
+
+	/**
+	 * Gets the sampled loss with the largest magnitude since the last loss report
+	 */
+	private double getExtremeLoss() {
+		return (Math.abs(this.trainingLoss.getMax()) < Math.abs(this.trainingLoss.getMin())) ? this.trainingLoss.getMin()
+				: this.trainingLoss.getMax();
+	}
+
+
+	/**
+	 * Prints the loss stats since the last time they were printed. This is the same
+	 * as formatting them with <code>printf</code>, but doesn't box the values or
+	 * create any strings.
+	 */
+	private void printLossStats() {
+		double loss_extreme = this.getExtremeLoss();
+		StringBuilder sb = this.lossLine;
+		sb.setLength(0);
+		sb.append("Loss stats: n=").append(this.trainingLoss.numSamples());
+		appendFixed(sb.append(", mx="), loss_extreme, 4);
+		appendFixed(sb.append(", avg="), this.trainingLoss.mean(), 5);
+		appendFixed(sb.append(" ("), this.trainingLoss.stddev(), 5);
+		appendFixed(sb.append("), avgmag="), this.trainingAbsLoss.mean(), 6);
+		sb.append('\n');
+
+		if (this.lossLineBytes.length < sb.length()) {
+			this.lossLineBytes = new byte[2 * sb.length()];
+		}
+		for (int i = 0; i < sb.length(); i++) {
+			this.lossLineBytes[i] = (byte) sb.charAt(i);
+		}
+		System.out.write(this.lossLineBytes, 0, sb.length());
+	}
+
+
+	/**
+	 * Appends a number with a fixed number of decimal places, like <code>%.nf</code>
+	 * would
+	 */
+	private static void appendFixed(StringBuilder sb, double value, int decimals) {
+		long scale = 1;
+		for (int i = 0; i < decimals; i++) {
+			scale *= 10;
+		}
+		if (Double.isNaN(value) || Double.isInfinite(value) || Long.MAX_VALUE / scale <= Math.abs(value)) {
+			// Too big to do with longs (or not a number), so just let the
+			// StringBuilder do it
+			sb.append(value);
+			return;
+		}
+		long scaled = Math.round(Math.abs(value) * scale);
+		if (value < 0 && scaled != 0) {
+			sb.append('-');
+		}
+		sb.append(scaled / scale).append('.');
+		long frac = scaled % scale;
+		for (long digit = scale / 10; frac < digit; digit /= 10) {
+			sb.append('0');
+		}
+		if (frac != 0) {
+			sb.append(frac);
+		}
+	}
+
+
+	/**
+	 * Gets an array for a new state, reusing a free one if possible
+	 */
+	private double[] takeStateBuffer() {
+		int stateSize = this.preprocessor.getStateSize();
+		while (0 < this.numFreeStateBuffers) {
+			this.numFreeStateBuffers--;
+			double[] buffer = this.freeStateBuffers[this.numFreeStateBuffers];
+			this.freeStateBuffers[this.numFreeStateBuffers] = null;
+			if (buffer.length == stateSize) {
+				return buffer;
+			}
+		}
+		return new double[stateSize];
+	}
+
+
+	private void releaseStateBuffer(double[] buffer) {
+		if (buffer == null) {
+			return;
+		}
+		if (this.numFreeStateBuffers == this.freeStateBuffers.length) {
+			this.freeStateBuffers = Arrays.copyOf(this.freeStateBuffers, 2 * this.numFreeStateBuffers);
+		}
+		this.freeStateBuffers[this.numFreeStateBuffers++] = buffer;
 	}
 
 
@@ -161,9 +347,12 @@ public class DQL implements Algorithm {
 	 * 
 	 * @param nnInput
 	 *                the input to the network
-	 * @return
+	 * @param outputBuffer
+	 *                an array to read the output into, or null
+	 * @return the output (normally <code>outputBuffer</code>, if it was the right
+	 *         size)
 	 */
-	private double[] ensureNNOutput(double[] nnInput) {
+	private double[] ensureNNOutput(double[] nnInput, double[] outputBuffer) {
 		boolean use_fast_forward = this.EXTERNALNN_USE_FAST_FORWARDS && (this.nn instanceof ExternalTorchNN)
 				&& (this.lastTerminalStep < (this.stepNum - 2)) && 0 < this.stepNum;
 		if (use_fast_forward) {
@@ -171,7 +360,7 @@ public class DQL implements Algorithm {
 		} else {
 			this.nn.feedForward(nnInput);
 		}
-		double[] tmpOutputs = this.nn.getOutputs();
+		double[] tmpOutputs = this.nn.getOutputs(outputBuffer);
 
 		if (tmpOutputs == null) {
 			System.err.println("Null nn output. Sleeping for 10 seconds.");
@@ -200,7 +389,7 @@ public class DQL implements Algorithm {
 			transition.action = this.randgen.nextInt(5);
 		} else {
 			if (this.nnOutput == null) {
-				this.nnOutput = ensureNNOutput(nnInput);
+				this.nnOutput = this.decisionOutputBuffer = ensureNNOutput(nnInput, this.decisionOutputBuffer);
 			}
 			if (this.PRINT_Q_VALUES) {
 				printQVals(this.nnOutput);
@@ -221,7 +410,10 @@ public class DQL implements Algorithm {
 
 	private void storeTranstion(StateTransition transition) {
 		if (!this.USING_EXTERNAL_QLEARNER) {
-			this.lastStates[(int) (this.stepNum % this.HISTORY_MAX)] = transition;
+			int slot = (int) (this.stepNum % this.HISTORY_MAX);
+			this.recycleTransition(this.lastStates[slot], (this.HISTORY_MAX == 1) ? transition
+					: this.lastStates[(slot + 1) % this.HISTORY_MAX]);
+			this.lastStates[slot] = transition;
 			this.stateHistorySize = Math.min(this.HISTORY_MAX, this.stepNum);
 		} else if (this.nn instanceof ExternalTorchNN) {
 			((ExternalTorchNN) this.nn).sendTransition(transition, this.EXTERNALNN_ALLOW_PARTIAL_TRANSITIONS);
@@ -229,16 +421,46 @@ public class DQL implements Algorithm {
 	}
 
 
+	/**
+	 * Frees the arrays of a transition that is leaving the history, and keeps the
+	 * transition itself for reuse. The transition's start state is only shared with
+	 * the transition before it, which has already left the history, so it can always
+	 * be reused. Its next state is usually the start state of the following
+	 * transition, which is still in use.
+	 * 
+	 * @param evicted
+	 *                the transition leaving the history, or null
+	 * @param following
+	 *                the transition after it
+	 */
+	private void recycleTransition(StateTransition evicted, StateTransition following) {
+		if (evicted == null) {
+			return;
+		}
+		this.releaseStateBuffer(evicted.nnInput);
+		if (evicted.nextInput != evicted.nnInput && (following == null || evicted.nextInput != following.nnInput)) {
+			this.releaseStateBuffer(evicted.nextInput);
+		}
+		evicted.nnInput = null;
+		evicted.nextInput = null;
+		this.freeTransition = evicted;
+	}
+
+
 	private double calcLoss(StateTransition transition) {
 		if (this.nnOutput == null) {
-			this.nnOutput = ensureNNOutput(transition.nnInput);
+			this.nnOutput = this.decisionOutputBuffer = ensureNNOutput(transition.nnInput, this.decisionOutputBuffer);
 		}
 
-		double[] initialOutputs = Arrays.copyOf(this.nnOutput, this.nnOutput.length);
+		if (this.lossInitialOutputs.length != this.nnOutput.length) {
+			this.lossInitialOutputs = new double[this.nnOutput.length];
+		}
+		double[] initialOutputs = this.lossInitialOutputs;
+		System.arraycopy(this.nnOutput, 0, initialOutputs, 0, this.nnOutput.length);
 		double correctQVal = transition.reward;
 
 		if (!transition.isTerminal) {
-			this.nnOutput = ensureNNOutput(transition.nextInput);
+			this.nnOutput = this.decisionOutputBuffer = ensureNNOutput(transition.nextInput, this.decisionOutputBuffer);
 			double maxVal = fastMax_DoubleArr5(this.nnOutput);
 
 			correctQVal += this.DISCOUNT_FACTOR * maxVal;
@@ -254,6 +476,10 @@ public class DQL implements Algorithm {
 
 
 	private void trainMinibatch() {
+		Object event = FLIGHT_RECORDER.beginDQLMinibatch();
+		long batchSize = 0;
+		double loss = Double.NaN;
+
 		if (this.USING_EXTERNAL_QLEARNER && (this.nn instanceof ExternalTorchNN)) {
 			long numCodesToSend = 1;
 			if (this.MINIBATCH_SEQ_TYPE == MinibatchSeqType.MANUAL) {
@@ -265,8 +491,14 @@ public class DQL implements Algorithm {
 			for (int i = 0; i < numCodesToSend; i++) {
 				((ExternalTorchNN) this.nn).runTorchMinibatch();
 			}
+			batchSize = numCodesToSend;
 		} else if (this.MINIBATCH_SIZE < this.stepNum) {
-			trainMinibatchFromHistory(this.MINIBATCH_SIZE);
+			loss = trainMinibatchFromHistory(this.MINIBATCH_SIZE);
+			batchSize = this.MINIBATCH_SIZE;
+		}
+
+		if (event != null && batchSize != 0) {
+			FLIGHT_RECORDER.endDQLMinibatch(event, batchSize, this.stepNum, loss);
 		}
 	}
 
@@ -277,21 +509,29 @@ public class DQL implements Algorithm {
 	}
 
 
-	private void trainMinibatchFromHistory(int batchSize) {
+	/**
+	 * Trains the network on a minibatch sampled from the history
+	 *
+	 * @return the mean squared TD error of the samples before training
+	 */
+	private double trainMinibatchFromHistory(int batchSize) {
+		double squaredLossSum = 0.0;
 		for (int i = 0; i < batchSize; i++) {
 			int sampleNum = this.randgen.nextInt((int) this.stateHistorySize);
 			StateTransition sample = this.lastStates[sampleNum];
 
-			double[] tmpnnOutput = ensureNNOutput(sample.nextInput);
+			double[] tmpnnOutput = this.trainingOutputBuffer = ensureNNOutput(sample.nextInput, this.trainingOutputBuffer);
 			double nextQVal = fastMax_DoubleArr5(tmpnnOutput);
 
-			tmpnnOutput = ensureNNOutput(sample.nnInput);
+			tmpnnOutput = this.trainingOutputBuffer = ensureNNOutput(sample.nnInput, this.trainingOutputBuffer);
 
-			double[] correctOut = new double[5];
+			double[] correctOut = this.correctOutputs;
 			for (int j = 0; j < tmpnnOutput.length; j++) {
 				correctOut[j] = tmpnnOutput[j];
 			}
 			correctOut[sample.action] = (sample.reward + (sample.isTerminal ? 0.0 : (this.DISCOUNT_FACTOR * nextQVal)));
+			double sampleLoss = correctOut[sample.action] - tmpnnOutput[sample.action];
+			squaredLossSum += sampleLoss * sampleLoss;
 
 			if (this.nn.trainingType == TrainingType.RMSPROP) {
 				this.nn.backPropagateFromLastSample_RMSProp(correctOut);
@@ -304,7 +544,7 @@ public class DQL implements Algorithm {
 		} else {
 			this.nn.finishBatch_Momentum();
 		}
-
+		return squaredLossSum / batchSize;
 	}
 
 
@@ -347,6 +587,7 @@ public class DQL implements Algorithm {
 			String prefix = SimulatorMain.settings.getString("deepql.external_torch_nn.io_file_prefix");
 			this.nn = new ExternalTorchNN(prefix + SimulatorMain.settings.getString("deepql.external_torch_nn.nninput_file_name"),
 					prefix + SimulatorMain.settings.getString("deepql.external_torch_nn.nnoutput_file_name"));
+			((ExternalTorchNN) this.nn).setupObservationCodec(this.preprocessor);
 			System.out.println("Using Torch neural network...");
 		} else {
 
@@ -395,6 +636,15 @@ public class DQL implements Algorithm {
 
 	public void setStatePreprocessor(DQLStatePreprocessor spp) {
 		this.preprocessor = spp;
+		this.lastNextInput = null;
+	}
+
+
+	/**
+	 * Sets the random number stream used for exploration and minibatch sampling
+	 */
+	public void setRandom(SplittableRandom random) {
+		this.randgen = random;
 	}
 
 
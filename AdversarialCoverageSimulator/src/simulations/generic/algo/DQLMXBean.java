@@ -0,0 +1,44 @@
+package simulations.generic.algo;
+
+/**
+ * JMX view of a {@link DQL} instance's training state
+ *
+ * @author Mike D'Arcy
+ *
+ */
+public interface DQLMXBean {
+
+	/**
+	 * Gets whether there is a DQL instance to report on
+	 */
+	public boolean isActive();
+
+
+	public double getGreedyEpsilon();
+
+
+	public long getStepCount();
+
+
+	/**
+	 * Gets the number of loss samples in the last loss report (the loss stats are
+	 * reported every <code>logging.deepql.loss_display_interval</code> steps)
+	 */
+	public long getLossSamples();
+
+
+	public double getLossMean();
+
+
+	public double getLossStddev();
+
+
+	/**
+	 * Gets the loss with the largest magnitude in the last loss report
+	 */
+	public double getLossExtreme();
+
+
+	public double getLossMeanMagnitude();
+
+}
@@ -0,0 +1,118 @@
+package simulations.generic.algo;
+
+/**
+ * Implements {@link DQLMXBean} for one DQL instance at a time (normally the first
+ * robot's, in the simulation the engine is running). Values are read from copies that
+ * the DQL publishes as it goes, so reading them never blocks (or is blocked by) the
+ * simulation thread.
+ *
+ * @author Mike D'Arcy
+ *
+ */
+public class DQLMonitor implements DQLMXBean {
+	private static final DQLMonitor instance = new DQLMonitor();
+	private static final LossSummary EMPTY_LOSS = new LossSummary(0, 0.0, 0.0, 0.0, 0.0);
+
+	private volatile DQL dql = null;
+
+
+	private DQLMonitor() {
+	}
+
+
+	public static DQLMonitor getInstance() {
+		return instance;
+	}
+
+
+	/**
+	 * Sets the DQL instance to report on
+	 *
+	 * @param dql
+	 *                the instance, or null for none
+	 */
+	public void setDQL(DQL dql) {
+		this.dql = dql;
+	}
+
+
+	@Override
+	public boolean isActive() {
+		return this.dql != null;
+	}
+
+
+	@Override
+	public double getGreedyEpsilon() {
+		DQL dql = this.dql;
+		return (dql == null) ? 0.0 : Double.longBitsToDouble(dql.publishedGreedyEpsilonBits.get());
+	}
+
+
+	@Override
+	public long getStepCount() {
+		DQL dql = this.dql;
+		return (dql == null) ? 0 : dql.publishedStepNum.get();
+	}
+
+
+	@Override
+	public long getLossSamples() {
+		return this.getLoss().samples;
+	}
+
+
+	@Override
+	public double getLossMean() {
+		return this.getLoss().mean;
+	}
+
+
+	@Override
+	public double getLossStddev() {
+		return this.getLoss().stddev;
+	}
+
+
+	@Override
+	public double getLossExtreme() {
+		return this.getLoss().extreme;
+	}
+
+
+	@Override
+	public double getLossMeanMagnitude() {
+		return this.getLoss().meanMagnitude;
+	}
+
+
+	private LossSummary getLoss() {
+		DQL dql = this.dql;
+		if (dql == null || dql.publishedLoss == null) {
+			return EMPTY_LOSS;
+		}
+		return dql.publishedLoss;
+	}
+
+
+	/**
+	 * The loss stats from one loss report. This is immutable, so a reader always sees
+	 * values from the same report.
+	 */
+	static class LossSummary {
+		final long samples;
+		final double mean;
+		final double stddev;
+		final double extreme;
+		final double meanMagnitude;
+
+
+		LossSummary(long samples, double mean, double stddev, double extreme, double meanMagnitude) {
+			this.samples = samples;
+			this.mean = mean;
+			this.stddev = stddev;
+			this.extreme = extreme;
+			this.meanMagnitude = meanMagnitude;
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package simulations.generic.algo;
+
+import adsim.Algorithm;
+import deeplearning.DQLActuator;
+import deeplearning.DQLStatePreprocessor;
+import deeplearning.StateTransition;
+import deeplearning.TransitionDatasetWriter;
+import gridenv.GridSensor;
+import simulations.coverage.CoverageStatePreprocessor;
+
+/**
+ * Records the transitions made by another algorithm to a
+ * {@link TransitionDatasetWriter}, so they can be used as demonstrations for
+ * pretraining. This works like {@link ExternalDQL}, but writes transitions to disk
+ * instead of sending them to an external process.
+ *
+ * @author Mike D'Arcy
+ *
+ */
+public class DemonstrationRecorder implements Algorithm {
+	private GridSensor sensor;
+	private DQLActuator actuator;
+	private Algorithm realCoverageAlgo;
+	private DQLStatePreprocessor preprocessor;
+	private TransitionDatasetWriter writer = null;
+	private StateTransition transition = new StateTransition();
+
+
+	/**
+	 * Constructs a new demonstration recorder. As with {@link ExternalDQL}, the
+	 * actuator given here MUST be the same one used by the real coverage algorithm,
+	 * so that its actions and rewards can be recorded.
+	 *
+	 * @param sensor
+	 *                the sensor to get information about the environment
+	 * @param actuator
+	 *                the actuator used by the real coverage algorithm
+	 * @param realCoverageAlgo
+	 *                the algorithm that chooses all the actions
+	 */
+	public DemonstrationRecorder(GridSensor sensor, DQLActuator actuator, Algorithm realCoverageAlgo) {
+		this.sensor = sensor;
+		this.actuator = actuator;
+		this.preprocessor = new CoverageStatePreprocessor(this.sensor);
+		this.realCoverageAlgo = realCoverageAlgo;
+	}
+
+
+	@Override
+	public void reloadSettings() {
+		this.actuator.reloadSettings();
+		this.sensor.reloadSettings();
+		this.realCoverageAlgo.reloadSettings();
+	}
+
+
+	@Override
+	public void init() {
+		if (this.transition.nnInput == null || this.transition.nnInput.length != this.preprocessor.getStateSize()) {
+			this.transition.nnInput = new double[this.preprocessor.getStateSize()];
+			this.transition.nextInput = new double[this.preprocessor.getStateSize()];
+		}
+		this.realCoverageAlgo.init();
+	}
+
+
+	@Override
+	public void step() {
+		if (this.writer == null) {
+			this.realCoverageAlgo.step();
+			return;
+		}
+
+		// The last next state is the current state, so swap the buffers and update
+		// it in case something else changed the environment since then
+		double[] tmp = this.transition.nnInput;
+		this.transition.nnInput = this.transition.nextInput;
+		this.transition.nextInput = tmp;
+		this.transition.nnInput = this.preprocessor.updatePreprocessedState(this.transition.nnInput, this.transition.nnInput);
+		this.realCoverageAlgo.step();
+		this.transition.action = this.actuator.getLastActionId();
+		this.transition.reward = this.actuator.getLastReward();
+		this.transition.isTerminal = this.sensor.isFinished();
+		this.transition.nextInput = this.preprocessor.updatePreprocessedState(this.transition.nnInput, this.transition.nextInput);
+
+		this.writer.write(this.transition);
+	}
+
+
+	public void setStatePreprocessor(DQLStatePreprocessor statePreprocessor) {
+		this.preprocessor = statePreprocessor;
+	}
+
+
+	public DQLStatePreprocessor getStatePreprocessor() {
+		return this.preprocessor;
+	}
+
+
+	/**
+	 * Sets the writer that transitions will be recorded to. If the writer is null,
+	 * transitions are not recorded.
+	 *
+	 * @param writer
+	 *                the dataset writer
+	 */
+	public void setWriter(TransitionDatasetWriter writer) {
+		this.writer = writer;
+	}
+}
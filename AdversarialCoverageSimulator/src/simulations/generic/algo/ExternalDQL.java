@@ -62,18 +62,24 @@ public class ExternalDQL implements Algorithm {
 		String prefix = SimulatorMain.settings.getString("deepql.external_torch_nn.io_file_prefix");
 		this.nn = new ExternalTorchNN(prefix + SimulatorMain.settings.getString("deepql.external_torch_nn.nninput_file_name"),
 				prefix + SimulatorMain.settings.getString("deepql.external_torch_nn.nnoutput_file_name"));
+		this.nn.setupObservationCodec(this.preprocessor);
 		this.realCoverageAlgo.init();
 	}
 
 
 	@Override
 	public void step() {
-		this.transition.nnInput = this.preprocessor.getPreprocessedState(this.transition.nnInput);
+		// The last next state is the current state, so swap the buffers and update
+		// it in case something else changed the environment since then
+		double[] tmp = this.transition.nnInput;
+		this.transition.nnInput = this.transition.nextInput;
+		this.transition.nextInput = tmp;
+		this.transition.nnInput = this.preprocessor.updatePreprocessedState(this.transition.nnInput, this.transition.nnInput);
 		this.realCoverageAlgo.step();
 		this.transition.action = this.actuator.getLastActionId();
 		this.transition.reward = this.actuator.getLastReward();
 		this.transition.isTerminal = this.sensor.isFinished();
-		this.transition.nextInput = this.preprocessor.getPreprocessedState(this.transition.nextInput);
+		this.transition.nextInput = this.preprocessor.updatePreprocessedState(this.transition.nnInput, this.transition.nextInput);
 
 		this.nn.sendTransition(this.transition, this.ALLOW_PARTIAL_TRANSITIONS);
 	}
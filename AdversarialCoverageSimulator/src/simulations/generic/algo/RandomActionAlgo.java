@@ -1,7 +1,9 @@
 package simulations.generic.algo;
 
+import java.util.SplittableRandom;
+
 import adsim.Actuator;
-import adsim.Algorithm;
+import adsim.TwoPhaseAlgorithm;
 import gridenv.GridSensor;
 
 /**
@@ -12,10 +14,11 @@ import gridenv.GridSensor;
  * @author Mike D'Arcy
  *
  */
-public class RandomActionAlgo implements Algorithm {
+public class RandomActionAlgo implements TwoPhaseAlgorithm {
 	GridSensor sensor;
 	Actuator actuator;
 	long stepNum = 0;
+	private SplittableRandom random = new SplittableRandom();
 
 
 	public RandomActionAlgo(GridSensor sensor, Actuator actuator) {
@@ -32,12 +35,28 @@ public class RandomActionAlgo implements Algorithm {
 
 	@Override
 	public void step() {
-		int direction = (int) (Math.random() * this.actuator.getNumActions());
-		this.actuator.takeActionById(direction);
+		this.commitAction(this.decideAction());
+	}
+
+
+	@Override
+	public int decideAction() {
+		return this.random.nextInt(this.actuator.getNumActions());
+	}
+
+
+	@Override
+	public void commitAction(int actionId) {
+		this.actuator.takeActionById(actionId);
 		this.stepNum++;
 	}
 
 
+	public void setRandom(SplittableRandom random) {
+		this.random = random;
+	}
+
+
 	@Override
 	public void reloadSettings() {
 
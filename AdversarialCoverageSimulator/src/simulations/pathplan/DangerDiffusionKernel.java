@@ -0,0 +1,522 @@
+package simulations.pathplan;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import adsim.stats.SampledVariableLong;
+import gridenv.GridEnvironment;
+import gridenv.GridNode;
+
+/**
+ * Computes the danger spread/decay update for pathplan environments on flat primitive
+ * arrays. This gives the same results as the original scatter-form update in
+ * {@link PathplanSimulation}, but each cell gathers the contributions from its
+ * neighbors instead, so rows can be computed independently. That allows the update to be
+ * tiled for cache and split across threads.
+ * <p>
+ * To keep results bit-identical to the scatter form, each cell adds up its
+ * contributions in the same order that the scatter form would have: left neighbor,
+ * lower neighbor, own fuel/decay term, upper neighbor, right neighbor.
+ * <p>
+ * Cell <code>(x, y)</code> is stored at index <code>x * height + y</code>, matching the
+ * environment's change log.
+ * <p>
+ * Since most cells usually have no danger, the kernel also keeps a bitset of the active
+ * cells (those with nonzero danger). A cell's danger and fuel can only change if it or
+ * one of its neighbors is active, so when few cells are active only the active cells and
+ * their one-cell halo are updated. Fuel is not needed in the active set, since it only
+ * takes effect once a cell has danger. When the active fraction goes over a threshold,
+ * the dense kernel is used instead.
+ *
+ * @author Mike D'Arcy
+ *
+ */
+public class DangerDiffusionKernel {
+	private GridEnvironment env;
+	private int width = 0;
+	private int height = 0;
+
+	// Double-buffered state. The "cur" arrays hold the current state, which
+	// always matches the environment between steps.
+	private double[] dangerCur = new double[0];
+	private double[] dangerNext = new double[0];
+	private double[] fuelCur = new double[0];
+	private double[] fuelNext = new double[0];
+	private double[] spreadability = new double[0];
+
+	// Bitsets of the cells with nonzero danger, and of the cells to update in the
+	// current sparse step
+	private long[] activeCells = new long[0];
+	private long[] updateCells = new long[0];
+	private int numActiveCells = 0;
+	private int lastUpdatedCellCount = 0;
+	private SampledVariableLong updatedCellStats = new SampledVariableLong();
+
+	private long lastChangeCount = -1;
+	private int lastGridVersion = -1;
+
+	private double spreadFactor;
+	private double decayFactor;
+	private double dangerCap;
+	private int tileSize = 256;
+	private int parallelThreshold = 65536;
+	private int temporalBlockSize = 1;
+	private double maxSparseFraction = 0.25;
+	private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+
+	/**
+	 * Creates a kernel for the given environment. The kernel loads its state from the
+	 * environment lazily, at the start of the first step.
+	 *
+	 * @param env
+	 *                the environment to update
+	 */
+	public DangerDiffusionKernel(GridEnvironment env) {
+		this.env = env;
+	}
+
+
+	/**
+	 * Sets the danger dynamics parameters
+	 */
+	public void setDangerParameters(double spreadFactor, double decayFactor, double dangerCap) {
+		this.spreadFactor = spreadFactor;
+		this.decayFactor = decayFactor;
+		this.dangerCap = dangerCap;
+	}
+
+
+	/**
+	 * Sets the performance tuning parameters.
+	 *
+	 * @param tileSize
+	 *                the number of cells in each column tile (for cache blocking)
+	 * @param parallelThreshold
+	 *                the minimum number of grid cells needed to compute in parallel
+	 * @param temporalBlockSize
+	 *                the maximum number of steps to compute per block when stepping
+	 *                more than once
+	 * @param maxSparseFraction
+	 *                the maximum fraction of active cells for which only the active
+	 *                region is updated. Above this, the whole grid is updated.
+	 */
+	public void setTuningParameters(int tileSize, int parallelThreshold, int temporalBlockSize, double maxSparseFraction) {
+		this.tileSize = Math.max(1, tileSize);
+		this.parallelThreshold = parallelThreshold;
+		this.temporalBlockSize = Math.max(1, temporalBlockSize);
+		this.maxSparseFraction = maxSparseFraction;
+	}
+
+
+	/**
+	 * Advances the danger by one step and writes the changes back to the environment
+	 */
+	public void step() {
+		this.step(1);
+	}
+
+
+	/**
+	 * Advances the danger by the given number of steps and writes the changes back to
+	 * the environment. If few enough cells are active, only the active region is
+	 * updated. Otherwise, the whole grid is updated, and when stepping more than once,
+	 * up to <code>temporalBlockSize</code> steps are computed per pass over the grid.
+	 *
+	 * @param numSteps
+	 *                the number of steps
+	 */
+	public void step(int numSteps) {
+		this.syncFromEnv();
+		if (this.width == 0 || this.height == 0) {
+			return;
+		}
+
+		int numCells = this.width * this.height;
+		while (0 < numSteps) {
+			if (this.numActiveCells <= this.maxSparseFraction * numCells) {
+				this.sparseStep();
+				this.updatedCellStats.addSample(this.lastUpdatedCellCount);
+				numSteps--;
+				continue;
+			}
+
+			int blockSteps = Math.min(numSteps, this.temporalBlockSize);
+			this.computeSteps(blockSteps);
+			this.writeBack();
+			this.swapBuffers();
+			this.lastUpdatedCellCount = numCells;
+			for (int i = 0; i < blockSteps; i++) {
+				this.updatedCellStats.addSample(numCells);
+			}
+			numSteps -= blockSteps;
+		}
+		this.lastChangeCount = this.env.getChangeCount();
+	}
+
+
+	/**
+	 * Loads any cells that changed in the environment since the last step. The whole
+	 * grid is reloaded if the grid itself changed.
+	 */
+	public void syncFromEnv() {
+		if (this.width != this.env.getWidth() || this.height != this.env.getHeight()) {
+			this.width = this.env.getWidth();
+			this.height = this.env.getHeight();
+			int size = this.width * this.height;
+			this.dangerCur = new double[size];
+			this.dangerNext = new double[size];
+			this.fuelCur = new double[size];
+			this.fuelNext = new double[size];
+			this.spreadability = new double[size];
+			this.activeCells = new long[(size + 63) >>> 6];
+			this.updateCells = new long[this.activeCells.length];
+			this.numActiveCells = 0;
+			this.lastGridVersion = -1;
+		}
+
+		long changeCount = this.env.getChangeCount();
+		if (this.lastGridVersion != this.env.getGridVersion() || this.lastChangeCount < 0
+				|| (this.lastChangeCount != changeCount && this.env.getChangedCell(this.lastChangeCount) == -1)) {
+			for (int x = 0; x < this.width; x++) {
+				for (int y = 0; y < this.height; y++) {
+					this.loadCell(x, y);
+				}
+			}
+		} else {
+			for (long changeNum = this.lastChangeCount; changeNum < changeCount; changeNum++) {
+				int cell = this.env.getChangedCell(changeNum);
+				this.loadCell(cell / this.height, cell % this.height);
+			}
+		}
+		this.lastChangeCount = changeCount;
+		this.lastGridVersion = this.env.getGridVersion();
+	}
+
+
+	private void loadCell(int x, int y) {
+		GridNode node = this.env.grid[x][y];
+		int i = x * this.height + y;
+		this.dangerCur[i] = node.getDangerProb();
+		this.fuelCur[i] = node.dangerFuel;
+		this.spreadability[i] = node.spreadability;
+		this.updateActiveBit(i);
+	}
+
+
+	/**
+	 * Sets or clears the active bit for the given cell based on its current danger
+	 */
+	private void updateActiveBit(int i) {
+		long mask = 1L << i;
+		boolean wasActive = (this.activeCells[i >>> 6] & mask) != 0;
+		boolean isActive = this.dangerCur[i] != 0.0;
+		if (isActive && !wasActive) {
+			this.activeCells[i >>> 6] |= mask;
+			this.numActiveCells++;
+		} else if (wasActive && !isActive) {
+			this.activeCells[i >>> 6] &= ~mask;
+			this.numActiveCells--;
+		}
+	}
+
+
+	/**
+	 * Updates only the active cells and their neighbors for one step, then writes the
+	 * changes back to the environment. Cells outside this region can't change, so the
+	 * "cur" buffers are updated in place for the updated cells instead of swapping.
+	 */
+	private void sparseStep() {
+		final int h = this.height;
+		final int numCells = this.width * h;
+		final long[] active = this.activeCells;
+		final long[] update = this.updateCells;
+
+		// Mark the active cells and their 4-neighbors. Marking a y-neighbor that wraps
+		// into the next row is harmless, since that cell just won't change.
+		Arrays.fill(update, 0L);
+		for (int word = 0; word < active.length; word++) {
+			long bits = active[word];
+			while (bits != 0) {
+				int i = (word << 6) + Long.numberOfTrailingZeros(bits);
+				bits &= bits - 1;
+				update[i >>> 6] |= 1L << i;
+				if (0 < i) {
+					update[(i - 1) >>> 6] |= 1L << (i - 1);
+				}
+				if (i + 1 < numCells) {
+					update[(i + 1) >>> 6] |= 1L << (i + 1);
+				}
+				if (h <= i) {
+					update[(i - h) >>> 6] |= 1L << (i - h);
+				}
+				if (i + h < numCells) {
+					update[(i + h) >>> 6] |= 1L << (i + h);
+				}
+			}
+		}
+
+		int numUpdated = 0;
+		for (int word = 0; word < update.length; word++) {
+			long bits = update[word];
+			while (bits != 0) {
+				int i = (word << 6) + Long.numberOfTrailingZeros(bits);
+				bits &= bits - 1;
+				int x = i / h;
+				this.computeCell(this.dangerCur, this.dangerNext, this.fuelCur, this.fuelNext, i, i, x, i - x * h);
+				numUpdated++;
+			}
+		}
+		this.lastUpdatedCellCount = numUpdated;
+
+		for (int word = 0; word < update.length; word++) {
+			long bits = update[word];
+			while (bits != 0) {
+				int i = (word << 6) + Long.numberOfTrailingZeros(bits);
+				bits &= bits - 1;
+				int x = i / h;
+				int y = i - x * h;
+				if (this.fuelNext[i] != this.fuelCur[i]) {
+					this.env.setDangerFuel(x, y, this.fuelNext[i]);
+					this.fuelCur[i] = this.fuelNext[i];
+				}
+				if (this.dangerNext[i] != this.dangerCur[i]) {
+					this.env.setDangerProb(x, y, this.dangerNext[i]);
+					this.dangerCur[i] = this.dangerNext[i];
+					this.updateActiveBit(i);
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Writes all cells that differ between the current and next buffers back to the
+	 * environment, and updates the active set to match the next buffers
+	 */
+	private void writeBack() {
+		for (int x = 0; x < this.width; x++) {
+			int row = x * this.height;
+			for (int y = 0; y < this.height; y++) {
+				int i = row + y;
+				if (this.fuelNext[i] != this.fuelCur[i]) {
+					this.env.setDangerFuel(x, y, this.fuelNext[i]);
+				}
+				if (this.dangerNext[i] != this.dangerCur[i]) {
+					this.env.setDangerProb(x, y, this.dangerNext[i]);
+					if ((this.dangerNext[i] != 0.0) != (this.dangerCur[i] != 0.0)) {
+						this.activeCells[i >>> 6] ^= 1L << i;
+						this.numActiveCells += (this.dangerNext[i] != 0.0) ? 1 : -1;
+					}
+				}
+			}
+		}
+	}
+
+
+	private void swapBuffers() {
+		double[] tmp = this.dangerCur;
+		this.dangerCur = this.dangerNext;
+		this.dangerNext = tmp;
+
+		tmp = this.fuelCur;
+		this.fuelCur = this.fuelNext;
+		this.fuelNext = tmp;
+	}
+
+
+	/**
+	 * Computes the given number of steps from the "cur" buffers into the "next"
+	 * buffers
+	 */
+	private void computeSteps(int numSteps) {
+		int rowsPerTask = this.width;
+		if (this.parallelThreshold <= this.width * this.height) {
+			rowsPerTask = Math.max(1, this.width / (4 * this.pool.getParallelism()));
+		}
+
+		RowBlockTask task = new RowBlockTask(0, this.width, rowsPerTask, numSteps);
+		if (rowsPerTask < this.width) {
+			this.pool.invoke(task);
+		} else {
+			task.compute();
+		}
+	}
+
+
+	/**
+	 * Computes a block of rows <code>[x0, x1)</code> for <code>numSteps</code>
+	 * steps, reading from the "cur" buffers and writing to the "next" buffers.
+	 */
+	private void computeBlock(int x0, int x1, int numSteps) {
+		if (numSteps == 1) {
+			this.computeRows(this.dangerCur, this.dangerNext, this.fuelCur, this.fuelNext, 0, x0, x1);
+			return;
+		}
+
+		// Temporal blocking: copy a slab with enough halo rows to compute all the
+		// steps locally. The halo shrinks by one row per step, except at the real
+		// grid edges.
+		int slabStart = Math.max(0, x0 - numSteps);
+		int slabEnd = Math.min(this.width, x1 + numSteps);
+		int slabSize = (slabEnd - slabStart) * this.height;
+		double[] dA = new double[slabSize];
+		double[] dB = new double[slabSize];
+		double[] fA = new double[slabSize];
+		double[] fB = new double[slabSize];
+		System.arraycopy(this.dangerCur, slabStart * this.height, dA, 0, slabSize);
+		System.arraycopy(this.fuelCur, slabStart * this.height, fA, 0, slabSize);
+
+		for (int stepNum = 1; stepNum <= numSteps; stepNum++) {
+			int lo = (slabStart == 0) ? 0 : slabStart + stepNum;
+			int hi = (slabEnd == this.width) ? this.width : slabEnd - stepNum;
+			this.computeRows(dA, dB, fA, fB, slabStart, lo, hi);
+
+			double[] tmp = dA;
+			dA = dB;
+			dB = tmp;
+			tmp = fA;
+			fA = fB;
+			fB = tmp;
+		}
+
+		int offset = (x0 - slabStart) * this.height;
+		int length = (x1 - x0) * this.height;
+		System.arraycopy(dA, offset, this.dangerNext, x0 * this.height, length);
+		System.arraycopy(fA, offset, this.fuelNext, x0 * this.height, length);
+	}
+
+
+	/**
+	 * Computes one step for rows <code>[x0, x1)</code>. The danger and fuel arrays
+	 * hold rows starting at <code>rowOffset</code>; the spreadability array always
+	 * holds the whole grid.
+	 */
+	private void computeRows(double[] dCur, double[] dNext, double[] fCur, double[] fNext, int rowOffset, int x0, int x1) {
+		final int h = this.height;
+		for (int yTile = 0; yTile < h; yTile += this.tileSize) {
+			int yEnd = Math.min(h, yTile + this.tileSize);
+			for (int x = x0; x < x1; x++) {
+				int localRow = (x - rowOffset) * h;
+				int globalRow = x * h;
+				for (int y = yTile; y < yEnd; y++) {
+					int i = localRow + y;
+					int g = globalRow + y;
+					this.computeCell(dCur, dNext, fCur, fNext, i, g, x, y);
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Computes one step for a single cell. <code>i</code> is the cell's index in the
+	 * danger and fuel arrays, and <code>g</code> is its index in the whole grid.
+	 */
+	private void computeCell(double[] dCur, double[] dNext, double[] fCur, double[] fNext, int i, int g, int x, int y) {
+		final int w = this.width;
+		final int h = this.height;
+		final double[] spread = this.spreadability;
+		final double sf = this.spreadFactor;
+		final double df = this.decayFactor;
+		final double cap = this.dangerCap;
+
+		double delta = 0.0;
+		if (0 < x) {
+			delta += dCur[i - h] * spread[g - h] * sf;
+		}
+		if (0 < y) {
+			delta += dCur[i - 1] * spread[g - 1] * sf;
+		}
+
+		double curDanger = dCur[i];
+		double fuel = fCur[i];
+		if (0.0 < fuel) {
+			double fuelDelta = Math.min(fuel, curDanger * df);
+			fNext[i] = fuel - fuelDelta;
+			delta += fuelDelta;
+		} else {
+			fNext[i] = fuel;
+			delta -= curDanger * df;
+		}
+
+		if ((y + 1) < h) {
+			delta += dCur[i + 1] * spread[g + 1] * sf;
+		}
+		if ((x + 1) < w) {
+			delta += dCur[i + h] * spread[g + h] * sf;
+		}
+
+		double newVal = curDanger + delta;
+		if (newVal < 0.0) {
+			newVal = 0;
+		} else if (cap < newVal) {
+			newVal = cap;
+		}
+		dNext[i] = newVal;
+	}
+
+
+	/**
+	 * Gets the number of cells that were updated in the last step. This is the whole
+	 * grid if the dense kernel was used.
+	 */
+	public int getLastUpdatedCellCount() {
+		return this.lastUpdatedCellCount;
+	}
+
+
+	/**
+	 * Gets the number of cells with nonzero danger
+	 */
+	public int getActiveCellCount() {
+		return this.numActiveCells;
+	}
+
+
+	/**
+	 * Gets statistics for the number of cells updated per step
+	 */
+	public SampledVariableLong getUpdatedCellStats() {
+		return this.updatedCellStats;
+	}
+
+
+	/**
+	 * Gets the current danger values, as a flat array indexed by
+	 * <code>x * height + y</code>. The array must not be modified.
+	 */
+	public double[] getDanger() {
+		return this.dangerCur;
+	}
+
+
+	private class RowBlockTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final int x0;
+		private final int x1;
+		private final int rowsPerTask;
+		private final int numSteps;
+
+
+		RowBlockTask(int x0, int x1, int rowsPerTask, int numSteps) {
+			this.x0 = x0;
+			this.x1 = x1;
+			this.rowsPerTask = rowsPerTask;
+			this.numSteps = numSteps;
+		}
+
+
+		@Override
+		protected void compute() {
+			if (this.x1 - this.x0 <= this.rowsPerTask) {
+				computeBlock(this.x0, this.x1, this.numSteps);
+				return;
+			}
+			int mid = (this.x0 + this.x1) >>> 1;
+			invokeAll(new RowBlockTask(this.x0, mid, this.rowsPerTask, this.numSteps),
+					new RowBlockTask(mid, this.x1, this.rowsPerTask, this.numSteps));
+		}
+	}
+}
@@ -1,5 +1,8 @@
 package simulations.pathplan;
 
+import java.util.SplittableRandom;
+
+import adsim.Metrics;
 import adsim.SimulatorMain;
 import adsim.SimulatorSettings;
 import deeplearning.DQLActuator;
@@ -9,6 +12,8 @@ import gridenv.GridRobot;
 import gridenv.NodeType;
 
 public class PathplanActuator implements DQLActuator {
+	private static final Metrics.Timer TAKE_ACTION_TIMER = Metrics.timer("actuator.take_action");
+
 	private PathplanSimulation simulation;
 	/**
 	 * The environment in which this actuator exists
@@ -18,6 +23,10 @@ public class PathplanActuator implements DQLActuator {
 	 * The robot to which this actuator is attached.
 	 */
 	private GridRobot robot;
+	/**
+	 * Decides threat outcomes
+	 */
+	private SplittableRandom random;
 	private double lastReward = 0.0;
 	private int lastActionId = -1;
 	private double REACH_GOAL_REWARD = SimulatorMain.settings.getDouble("pathplan.dql.reward.reach_goal");
@@ -37,6 +46,7 @@ public class PathplanActuator implements DQLActuator {
 		this.env = env;
 		this.robot = robot;
 		this.simulation = covSim;
+		this.random = covSim.getRandomStreams().threats;
 		this.registerSettings();
 	}
 
@@ -102,14 +112,16 @@ public class PathplanActuator implements DQLActuator {
 		if (this.robot.isBroken()) {
 			return;
 		}
+		long start = TAKE_ACTION_TIMER.start();
 
 		// Move, if possible
 		if (this.env.isOnGrid(newLoc.x, newLoc.y) && this.env.getGridNode(newLoc.x, newLoc.y).getNodeType() != NodeType.OBSTACLE
-				&& this.env.getRobotsByLocation(newLoc.x, newLoc.y).size() == 0) {
-			this.robot.setLocation(newLoc.x, newLoc.y);
+				&& !this.env.isRobotAt(newLoc.x, newLoc.y)) {
+			this.env.moveRobot(this.robot, newLoc.x, newLoc.y);
 		}
 
 		this.processCoveringCurrentNode();
+		TAKE_ACTION_TIMER.stop(start);
 	}
 
 
@@ -117,13 +129,15 @@ public class PathplanActuator implements DQLActuator {
 	 * Don't move, just cover the current node again.
 	 */
 	public void coverCurrentNode() {
+		long start = TAKE_ACTION_TIMER.start();
 		this.processCoveringCurrentNode();
+		TAKE_ACTION_TIMER.stop(start);
 		this.lastActionId = 4;
 	}
 
 
 	private void processCoveringCurrentNode() {
-		double rand = Math.random();
+		double rand = this.random.nextDouble();
 		boolean isThreat = rand < this.env.getGridNode(this.robot.getLocation().x, this.robot.getLocation().y).getDangerProb()
 				&& this.ROBOTS_BREAKABLE;
 
@@ -131,6 +145,7 @@ public class PathplanActuator implements DQLActuator {
 
 		SimulatorMain.getStats().updateCellCovered(this.robot);
 		this.env.getGridNode(this.robot.getLocation().x, this.robot.getLocation().y).incrementCoverCount();
+		this.env.markCellChanged(this.robot.getLocation().x, this.robot.getLocation().y);
 		if (isThreat) {
 			this.env.getRobotById(this.robot.getId()).setBroken(true);
 		}
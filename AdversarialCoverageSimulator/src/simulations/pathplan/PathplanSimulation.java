@@ -4,11 +4,13 @@ import java.awt.Dimension;
 import java.awt.GraphicsEnvironment;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Random;
+import java.util.SplittableRandom;
 
 import adsim.Algorithm;
 import adsim.ConsoleController;
 import adsim.Display;
+import adsim.Metrics;
+import adsim.RandomStreams;
 import adsim.SettingsReloadable;
 import adsim.Simulation;
 import adsim.SimulatorEngine;
@@ -17,25 +19,36 @@ import adsim.SimulatorSettings;
 import adsim.TerminalCommand;
 import adsim.stats.SampledVariableLong;
 import gridenv.Coordinate;
+import gridenv.GoalOwner;
 import gridenv.GridEnvironment;
+import gridenv.GridMap;
 import gridenv.GridNode;
 import gridenv.GridNodeGenerator;
 import gridenv.GridRobot;
 import gridenv.GridSensor;
+import gridenv.GridSnapshot;
 import gridenv.NodeType;
 import simulations.coverage.CoverageStats;
 import simulations.generic.algo.DQL;
 import simulations.generic.algo.ExternalDQL;
 import simulations.generic.algo.RandomActionAlgo;
+import simulations.pathplan.algo.DStarLitePlanner;
+import simulations.pathplan.algo.RolloutPlanner;
 import simulations.pathplan.display.PathplanGUIDisplay;
 
-public class PathplanSimulation implements Simulation, SettingsReloadable {
+public class PathplanSimulation implements Simulation, SettingsReloadable, GoalOwner {
+	private static final Metrics.Timer REGENERATE_GRID_TIMER = Metrics.timer("env.regenerate_grid");
 
 	private double[][] dangerDeltas = null;
 	private GridEnvironment env = null;
 	private SimulatorEngine engine = null;
 	private Coordinate goalPos = new Coordinate();
-	private Random random = new Random();
+	/**
+	 * Random number streams, recreated from the seed whenever the environment is
+	 * reset
+	 */
+	private RandomStreams randomStreams = null;
+	private int mapPackIndex = 0;
 	private GridNodeGenerator nodegen = new GridNodeGenerator();
 	private int MAX_STEPS_PER_RUN;
 	private boolean VARIABLE_GRID_SIZE;
@@ -47,6 +60,8 @@ public class PathplanSimulation implements Simulation, SettingsReloadable {
 	private double DANGER_SPREAD_FACTOR;
 	private double DANGER_DECAY_FACTOR;
 	private double DANGER_CAP;
+	private boolean USE_DANGER_KERNEL;
+	private DangerDiffusionKernel dangerKernel = null;
 	private List<SettingsReloadable> settingsReloadableObjs = new ArrayList<>();
 
 	private SampledVariableLong batch_goalReached = new SampledVariableLong();
@@ -66,6 +81,7 @@ public class PathplanSimulation implements Simulation, SettingsReloadable {
 		String metaCoverageAlgoName = "";
 
 		Algorithm algo = null;
+		SplittableRandom algoRandom = this.randomStreams.exploration.split();
 
 		if (coverageAlgoName.indexOf('+') != -1) {
 			metaCoverageAlgoName = coverageAlgoName.substring(0, coverageAlgoName.indexOf('+')).trim();
@@ -75,11 +91,19 @@ public class PathplanSimulation implements Simulation, SettingsReloadable {
 		if (coverageAlgoName.equalsIgnoreCase("DQL")) {
 			algo = new DQL(sensor, actuator);
 			((DQL) algo).setStatePreprocessor(new PathplanStatePreprocessor(sensor, this));
+			((DQL) algo).setRandom(algoRandom);
 		} else if (coverageAlgoName.equalsIgnoreCase("Random")) {
 			algo = new RandomActionAlgo(sensor, actuator);
+			((RandomActionAlgo) algo).setRandom(algoRandom);
+		} else if (coverageAlgoName.equalsIgnoreCase("Rollout")) {
+			algo = new RolloutPlanner(robot, actuator, this);
+			((RolloutPlanner) algo).setRandom(algoRandom);
+		} else if (coverageAlgoName.equalsIgnoreCase("DStarLite")) {
+			algo = new DStarLitePlanner(robot, actuator, this);
 		} else {
 			algo = new DQL(sensor, actuator);
 			((DQL) algo).setStatePreprocessor(new PathplanStatePreprocessor(sensor, this));
+			((DQL) algo).setRandom(algoRandom);
 		}
 
 		if (!metaCoverageAlgoName.isEmpty()) {
@@ -129,6 +153,76 @@ public class PathplanSimulation implements Simulation, SettingsReloadable {
 		if (!settings.hasProperty(settingName)) {
 			settings.setBoolean(settingName, true);
 		}
+
+		settingName = "pathplan.danger_kernel.enabled";
+		if (!settings.hasProperty(settingName)) {
+			settings.setBoolean(settingName, true);
+		}
+
+		settingName = "pathplan.danger_kernel.tile_size";
+		if (!settings.hasProperty(settingName)) {
+			settings.setInt(settingName, 256);
+		}
+
+		settingName = "pathplan.danger_kernel.parallel_threshold";
+		if (!settings.hasProperty(settingName)) {
+			settings.setInt(settingName, 65536);
+		}
+
+		settingName = "pathplan.danger_kernel.temporal_block_size";
+		if (!settings.hasProperty(settingName)) {
+			settings.setInt(settingName, 4);
+		}
+
+		settingName = "pathplan.danger_kernel.max_sparse_fraction";
+		if (!settings.hasProperty(settingName)) {
+			settings.setDouble(settingName, 0.25);
+		}
+
+		settingName = "pathplan.dstar.danger_weight";
+		if (!settings.hasProperty(settingName)) {
+			settings.setDouble(settingName, 10.0);
+		}
+
+		settingName = "pathplan.rollout.time_budget_ms";
+		if (!settings.hasProperty(settingName)) {
+			settings.setInt(settingName, 50);
+		}
+
+		settingName = "pathplan.rollout.max_rollouts";
+		if (!settings.hasProperty(settingName)) {
+			settings.setInt(settingName, 2000);
+		}
+
+		settingName = "pathplan.rollout.num_threads";
+		if (!settings.hasProperty(settingName)) {
+			settings.setInt(settingName, 0);
+		}
+
+		settingName = "pathplan.rollout.horizon";
+		if (!settings.hasProperty(settingName)) {
+			settings.setInt(settingName, 40);
+		}
+
+		settingName = "pathplan.rollout.discount";
+		if (!settings.hasProperty(settingName)) {
+			settings.setDouble(settingName, 0.98);
+		}
+
+		settingName = "pathplan.rollout.exploration_constant";
+		if (!settings.hasProperty(settingName)) {
+			settings.setDouble(settingName, 1.0);
+		}
+
+		settingName = "pathplan.rollout.default_policy_epsilon";
+		if (!settings.hasProperty(settingName)) {
+			settings.setDouble(settingName, 0.2);
+		}
+
+		settingName = "pathplan.rollout.distance_weight";
+		if (!settings.hasProperty(settingName)) {
+			settings.setDouble(settingName, 0.5);
+		}
 	}
 
 
@@ -182,12 +276,65 @@ public class PathplanSimulation implements Simulation, SettingsReloadable {
 			}
 		});
 
+
+		controller.registerCommand(":pathplan_danger_kernel_stats", new TerminalCommand() {
+			@Override
+			public void execute(String[] args) {
+				DangerDiffusionKernel kernel = PathplanSimulation.this.dangerKernel;
+				if (kernel == null) {
+					return;
+				}
+				SampledVariableLong updatedCells = kernel.getUpdatedCellStats();
+				System.out.printf("Active cells: %d, updated last step: %d, updated/step: %.1f (%.1f) over %d steps\n",
+						kernel.getActiveCellCount(), kernel.getLastUpdatedCellCount(), updatedCells.mean(), updatedCells.stddev(),
+						updatedCells.numSamples());
+			}
+		});
+
+
+		controller.registerCommand(":pathplan_verify_danger_kernel", new TerminalCommand() {
+			@Override
+			public void execute(String[] args) {
+				int numSteps = 10;
+				if (0 < args.length) {
+					try {
+						numSteps = Integer.parseInt(args[0]);
+					} catch (NumberFormatException e) {
+						System.err.println("Unable to parse input. Usage: :pathplan_verify_danger_kernel [steps]");
+						return;
+					}
+				}
+				PathplanSimulation.this.verifyDangerKernel(numSteps);
+			}
+		});
+
+
+		controller.registerCommand(":pathplan_verify_rollout_restore", new TerminalCommand() {
+			@Override
+			public void execute(String[] args) {
+				int numRollouts = 20;
+				int numSteps = 10;
+				try {
+					if (0 < args.length) {
+						numRollouts = Integer.parseInt(args[0]);
+					}
+					if (1 < args.length) {
+						numSteps = Integer.parseInt(args[1]);
+					}
+				} catch (NumberFormatException e) {
+					System.err.println("Unable to parse input. Usage: :pathplan_verify_rollout_restore [rollouts] [steps]");
+					return;
+				}
+				PathplanSimulation.this.verifyRolloutRestore(numRollouts, numSteps);
+			}
+		});
+
 	}
 
 
 	private void resetGoal() {
-		this.goalPos.x = this.random.nextInt(this.env.getWidth());
-		this.goalPos.y = this.random.nextInt(this.env.getHeight());
+		this.goalPos.x = this.randomStreams.placement.nextInt(this.env.getWidth());
+		this.goalPos.y = this.randomStreams.placement.nextInt(this.env.getHeight());
 		if (SimulatorMain.settings.getBoolean("pathplan.env.clear_obstacles_adjacent_to_goal")) {
 			this.env.clear4AdjactentCells(this.goalPos.x, this.goalPos.y);
 			this.env.getGridNode(this.goalPos.x, this.goalPos.y).setNodeType(NodeType.FREE);
@@ -208,13 +355,7 @@ public class PathplanSimulation implements Simulation, SettingsReloadable {
 			return false;
 		}
 
-		for (GridRobot r : this.env.robots) {
-			if (this.goalPos.equals(r.getLocation())) {
-				return true;
-			}
-		}
-
-		return false;
+		return this.env.isRobotAt(this.goalPos.x, this.goalPos.y);
 	}
 
 
@@ -287,6 +428,18 @@ public class PathplanSimulation implements Simulation, SettingsReloadable {
 		System.out.printf("Batch end (size=%d): steps=%.1f (%.1f), minMdst=%.1f (%.1f), success=%d (%.1f%%)\n", stats.getRunsInCurrentBatch(),
 				stepsPerRunInfo.mean(), stepsPerRunInfo.stddev(), this.batch_manhattanDist.mean(), this.batch_manhattanDist.stddev(),
 				(int) this.batch_goalReached.sum(), this.batch_goalReached.mean() * 100.0);
+		if (this.USE_DANGER_KERNEL && this.dangerKernel != null) {
+			SampledVariableLong updatedCells = this.dangerKernel.getUpdatedCellStats();
+			System.out.printf("Danger kernel: updated cells/step=%.1f (%.1f), max=%d\n", updatedCells.mean(), updatedCells.stddev(),
+					updatedCells.getMax());
+		}
+		for (GridRobot r : this.env.getRobotList()) {
+			if (r.coverAlgo instanceof DStarLitePlanner) {
+				SampledVariableLong expanded = ((DStarLitePlanner) r.coverAlgo).getExpandedNodeStats();
+				System.out.printf("D* Lite (robot %d): expanded cells/step=%.1f (%.1f), max=%d\n", r.getId(), expanded.mean(), expanded.stddev(),
+						expanded.getMax());
+			}
+		}
 		this.resetAllBatchStats();
 	}
 
@@ -295,6 +448,14 @@ public class PathplanSimulation implements Simulation, SettingsReloadable {
 		SimulatorMain.getStats().resetBatchStats();
 		this.batch_goalReached.reset();
 		this.batch_manhattanDist.reset();
+		if (this.dangerKernel != null) {
+			this.dangerKernel.getUpdatedCellStats().reset();
+		}
+		for (GridRobot r : this.env.getRobotList()) {
+			if (r.coverAlgo instanceof DStarLitePlanner) {
+				((DStarLitePlanner) r.coverAlgo).getExpandedNodeStats().reset();
+			}
+		}
 	}
 
 
@@ -306,6 +467,20 @@ public class PathplanSimulation implements Simulation, SettingsReloadable {
 
 
 	private void updateGridStep() {
+		if (this.USE_DANGER_KERNEL) {
+			this.dangerKernel.step();
+		} else {
+			this.updateGridStepScatter();
+		}
+	}
+
+
+	/**
+	 * Updates the danger in the grid by having each cell push its spread to its
+	 * neighbors. This is the original implementation, which {@link DangerDiffusionKernel}
+	 * must match exactly.
+	 */
+	private void updateGridStepScatter() {
 		GridNode[][] envgrid = this.env.grid;
 		int gridWidth = this.env.getWidth();
 		int gridHeight = this.env.getHeight();
@@ -321,7 +496,7 @@ public class PathplanSimulation implements Simulation, SettingsReloadable {
 				double dangerSpread = curDanger * envgrid[x][y].spreadability * this.DANGER_SPREAD_FACTOR;
 				if (0.0 < envgrid[x][y].dangerFuel) {
 					double fuelDelta = Math.min(envgrid[x][y].dangerFuel, curDanger * this.DANGER_DECAY_FACTOR);
-					envgrid[x][y].dangerFuel -= fuelDelta;
+					this.env.setDangerFuel(x, y, envgrid[x][y].dangerFuel - fuelDelta);
 					this.dangerDeltas[x][y] += fuelDelta;
 				} else {
 					this.dangerDeltas[x][y] -= curDanger * this.DANGER_DECAY_FACTOR;
@@ -350,9 +525,117 @@ public class PathplanSimulation implements Simulation, SettingsReloadable {
 				} else if (this.DANGER_CAP < newVal) {
 					newVal = this.DANGER_CAP;
 				}
-				envgrid[x][y].setDangerProb(newVal);
+				this.env.setDangerProb(x, y, newVal);
+			}
+		}
+	}
+
+
+	/**
+	 * Runs the given number of danger update steps with both the scatter
+	 * implementation and the diffusion kernel, and checks that they give the same
+	 * results. The grid is left as it was.
+	 *
+	 * @param numSteps
+	 *                the number of steps to run
+	 */
+	private void verifyDangerKernel(int numSteps) {
+		if (this.env == null) {
+			return;
+		}
+		int gridWidth = this.env.getWidth();
+		int gridHeight = this.env.getHeight();
+		double[][] origDanger = new double[gridWidth][gridHeight];
+		double[][] origFuel = new double[gridWidth][gridHeight];
+		for (int x = 0; x < gridWidth; x++) {
+			for (int y = 0; y < gridHeight; y++) {
+				origDanger[x][y] = this.env.grid[x][y].getDangerProb();
+				origFuel[x][y] = this.env.grid[x][y].dangerFuel;
+			}
+		}
+
+		long startTime = System.nanoTime();
+		for (int i = 0; i < numSteps; i++) {
+			this.updateGridStepScatter();
+		}
+		long scatterTime = System.nanoTime() - startTime;
+
+		double[][] expectedDanger = new double[gridWidth][gridHeight];
+		double[][] expectedFuel = new double[gridWidth][gridHeight];
+		for (int x = 0; x < gridWidth; x++) {
+			for (int y = 0; y < gridHeight; y++) {
+				expectedDanger[x][y] = this.env.grid[x][y].getDangerProb();
+				expectedFuel[x][y] = this.env.grid[x][y].dangerFuel;
+			}
+		}
+
+		this.restoreDangerState(origDanger, origFuel);
+		startTime = System.nanoTime();
+		this.dangerKernel.step(numSteps);
+		long kernelTime = System.nanoTime() - startTime;
+
+		int mismatches = 0;
+		for (int x = 0; x < gridWidth; x++) {
+			for (int y = 0; y < gridHeight; y++) {
+				if (Double.doubleToLongBits(expectedDanger[x][y]) != Double.doubleToLongBits(this.env.grid[x][y].getDangerProb())
+						|| Double.doubleToLongBits(expectedFuel[x][y]) != Double.doubleToLongBits(this.env.grid[x][y].dangerFuel)) {
+					mismatches++;
+				}
 			}
 		}
+		this.restoreDangerState(origDanger, origFuel);
+
+		System.out.printf("Danger kernel check (%d steps, %dx%d): %d mismatched cells, scatter=%.2f ms, kernel=%.2f ms\n", numSteps,
+				gridWidth, gridHeight, mismatches, scatterTime / 1e6, kernelTime / 1e6);
+	}
+
+
+	/**
+	 * Checks that restoring a snapshot undoes rollouts completely, fuel included. This
+	 * resets a forked copy of the environment from a snapshot and runs the danger
+	 * kernel on it, the way {@link RolloutPlanner}'s workers do, and after each
+	 * restore compares the copy with a fresh snapshot of this environment. The
+	 * environment itself isn't changed.
+	 *
+	 * @param numRollouts
+	 *                the number of rollouts
+	 * @param numSteps
+	 *                the number of danger steps in each rollout
+	 */
+	private void verifyRolloutRestore(int numRollouts, int numSteps) {
+		if (this.env == null) {
+			return;
+		}
+		GridEnvironment copy = this.env.fork();
+		DangerDiffusionKernel kernel = new DangerDiffusionKernel(copy);
+		kernel.setDangerParameters(this.DANGER_SPREAD_FACTOR, this.DANGER_DECAY_FACTOR, this.DANGER_CAP);
+		GridSnapshot root = this.env.saveSnapshot(null);
+		GridSnapshot expected = this.env.saveSnapshot(null);
+
+		int mismatches = 0;
+		int numIncremental = 0;
+		for (int i = 0; i < numRollouts; i++) {
+			if (root.canRestoreIncrementally(copy)) {
+				numIncremental++;
+			}
+			copy.restoreSnapshot(root);
+			mismatches += expected.countMismatchedCells(copy);
+			kernel.step(numSteps);
+		}
+
+		System.out.printf("Rollout restore check (%d rollouts of %d steps, %dx%d): %d mismatched cells, %d incremental restores\n",
+				numRollouts, numSteps, copy.getWidth(), copy.getHeight(), mismatches, numIncremental);
+	}
+
+
+	private void restoreDangerState(double[][] danger, double[][] fuel) {
+		for (int x = 0; x < this.env.getWidth(); x++) {
+			for (int y = 0; y < this.env.getHeight(); y++) {
+				this.env.grid[x][y].setDangerProb(danger[x][y]);
+				this.env.grid[x][y].dangerFuel = fuel[x][y];
+			}
+		}
+		this.env.markGridChanged();
 	}
 
 
@@ -361,6 +644,24 @@ public class PathplanSimulation implements Simulation, SettingsReloadable {
 	}
 
 
+	public RandomStreams getRandomStreams() {
+		return this.randomStreams;
+	}
+
+
+	@Override
+	public Coordinate getGoalLocation() {
+		return this.goalPos;
+	}
+
+
+	@Override
+	public void setGoalLocation(int x, int y) {
+		this.goalPos.x = x;
+		this.goalPos.y = y;
+	}
+
+
 	public int getGoalY() {
 		return this.goalPos.y;
 	}
@@ -406,6 +707,20 @@ public class PathplanSimulation implements Simulation, SettingsReloadable {
 		this.DANGER_DECAY_FACTOR = settings.getDouble("pathplan.env.danger_decay_factor");
 		this.DANGER_SPREAD_FACTOR = settings.getDouble("pathplan.env.danger_spread_factor");
 		this.DANGER_CAP = settings.getDouble("pathplan.env.danger_cap");
+		this.USE_DANGER_KERNEL = settings.getBoolean("pathplan.danger_kernel.enabled");
+		this.configureDangerKernel();
+	}
+
+
+	private void configureDangerKernel() {
+		if (this.dangerKernel == null) {
+			return;
+		}
+		final SimulatorSettings settings = SimulatorMain.settings;
+		this.dangerKernel.setDangerParameters(this.DANGER_SPREAD_FACTOR, this.DANGER_DECAY_FACTOR, this.DANGER_CAP);
+		this.dangerKernel.setTuningParameters(settings.getInt("pathplan.danger_kernel.tile_size"),
+				settings.getInt("pathplan.danger_kernel.parallel_threshold"), settings.getInt("pathplan.danger_kernel.temporal_block_size"),
+				settings.getDouble("pathplan.danger_kernel.max_sparse_fraction"));
 	}
 
 
@@ -415,13 +730,24 @@ public class PathplanSimulation implements Simulation, SettingsReloadable {
 	private void resetEnvironment() {
 		this.env = new GridEnvironment(
 				new Dimension(SimulatorMain.settings.getInt("env.grid.width"), SimulatorMain.settings.getInt("env.grid.height")));
+		this.env.setSimulation(this);
+		this.randomStreams = RandomStreams.fromSettings();
+		this.env.setRandom(this.randomStreams.placement);
+		this.nodegen.setSeedSource(this.randomStreams.generator);
+		this.nodegen.reloadSettings();
+		if (SimulatorMain.settings.getInt("env.grid.generator_seed") < 0) {
+			this.nodegen.setSeed(this.randomStreams.generator.nextLong());
+		}
+		this.dangerKernel = new DangerDiffusionKernel(this.env);
+		this.configureDangerKernel();
 		this.dangerDeltas = new double[SimulatorMain.settings.getInt("env.grid.width")][SimulatorMain.settings.getInt("env.grid.height")];
 		// Set up the coverage environment
 		this.regenerateGrid();
 
 		// Set up the robots
 		for (int i = 0; i < SimulatorMain.settings.getInt("robots.count"); i++) {
-			GridRobot robot = new GridRobot(i, (int) (Math.random() * this.env.getWidth()), (int) (Math.random() * this.env.getHeight()));
+			GridRobot robot = new GridRobot(i, this.randomStreams.placement.nextInt(this.env.getWidth()),
+					this.randomStreams.placement.nextInt(this.env.getHeight()));
 			robot.coverAlgo = this.createNewCoverageAlgoInstance(robot);
 			this.env.addRobot(robot);
 		}
@@ -433,9 +759,30 @@ public class PathplanSimulation implements Simulation, SettingsReloadable {
 
 
 	private void regenerateGrid() {
+		long start = REGENERATE_GRID_TIMER.start();
+		this.generateNextGrid();
+		REGENERATE_GRID_TIMER.stop(start);
+	}
+
+
+	/**
+	 * Loads or generates the next grid, and resets the goal
+	 */
+	private void generateNextGrid() {
+		String mapPackFile = SimulatorMain.settings.getString("env.grid.map_pack");
+		if (!mapPackFile.isEmpty()) {
+			GridMap map = this.env.loadMapFromPack(mapPackFile, this.mapPackIndex++);
+			if (map != null) {
+				if (map.goal == null) {
+					this.resetGoal();
+				}
+				return;
+			}
+		}
+
 		if (this.VARIABLE_GRID_SIZE) {
-			int newWidth = (int) (this.random.nextDouble() * (this.MAX_WIDTH - this.MIN_WIDTH) + this.MIN_WIDTH);
-			int newHeight = (int) (this.random.nextDouble() * (this.MAX_HEIGHT - this.MIN_HEIGHT) + this.MIN_HEIGHT);
+			int newWidth = (int) (this.randomStreams.generator.nextDouble() * (this.MAX_WIDTH - this.MIN_WIDTH) + this.MIN_WIDTH);
+			int newHeight = (int) (this.randomStreams.generator.nextDouble() * (this.MAX_HEIGHT - this.MIN_HEIGHT) + this.MIN_HEIGHT);
 			if (this.FORCE_SQUARE) {
 				newHeight = newWidth;
 			}
@@ -449,17 +796,9 @@ public class PathplanSimulation implements Simulation, SettingsReloadable {
 		if (!this.nodegen.getGeneratorString().equals(dangerValStr)) {
 			this.nodegen.setGeneratorString(dangerValStr);
 		}
+		this.nodegen.reloadSettings();
 
-		this.nodegen.setRandomMap();
-
-		int gridWidth = this.env.getWidth();
-		int gridHeight = this.env.getHeight();
-
-		for (int x = 0; x < gridWidth; x++) {
-			for (int y = 0; y < gridHeight; y++) {
-				this.nodegen.genNext(this.env.grid[x][y]);
-			}
-		}
+		this.nodegen.generateGrid(this.env.grid, this.env.getWidth(), this.env.getHeight());
 
 
 		this.resetGoal();
@@ -1,8 +1,12 @@
 package simulations.pathplan;
 
+import java.util.Arrays;
+
 import adsim.SettingsReloadable;
 import adsim.SimulatorMain;
 import deeplearning.DQLStatePreprocessor;
+import deeplearning.ObservationCodec;
+import gridenv.GridFeaturePlanes;
 import gridenv.GridSensor;
 
 public class PathplanStatePreprocessor implements DQLStatePreprocessor, SettingsReloadable {
@@ -17,6 +21,22 @@ public class PathplanStatePreprocessor implements DQLStatePreprocessor, Settings
 	private GridSensor sensor;
 	private final int NN_INPUT_SIZE;
 	private PathplanSimulation sim;
+	/**
+	 * What all inputs are divided by. This is 1 unless normalization is enabled.
+	 */
+	private double normDivisor = 1.0;
+
+	// Info about the last computed state, used for incremental updates
+	private double[] lastOutput = null;
+	private int lastXLowBound;
+	private int lastYLowBound;
+	private int lastRobotX;
+	private int lastRobotY;
+	private int lastGoalX;
+	private int lastGoalY;
+	private int lastGoalOffset;
+	private long lastChangeCount;
+	private int lastGridVersion;
 
 
 	public PathplanStatePreprocessor(GridSensor sensor, PathplanSimulation sim) {
@@ -38,71 +58,234 @@ public class PathplanStatePreprocessor implements DQLStatePreprocessor, Settings
 			return this.getPreprocessedState();
 		}
 
-		// Setting the grid coordinates of the upper-left corner of the vision
-		// For the centering of even-numbered vision sizes, they should work
-		// identically to the odd-numbered size one below them, so for example 5
-		// and 6 should give the same lower bounds for x and y.
-		int xLowBound = this.sensor.getX() - ((this.VISION_SIZE - 1) / 2);
-		int yLowBound = this.sensor.getY() - ((this.VISION_SIZE - 1) / 2);
+		int xLowBound = this.calcXLowBound();
+		int yLowBound = this.calcYLowBound();
+
+		GridFeaturePlanes planes = this.getFeaturePlanes();
+		if (planes.containsWindow(xLowBound, yLowBound, this.VISION_SIZE, this.VISION_SIZE)) {
+			// Each column of the window is contiguous in the planes, so it can be
+			// copied directly
+			int layerSize = this.VISION_SIZE * this.VISION_SIZE;
+			for (int x = 0; x < this.VISION_SIZE; x++) {
+				int srcIndex = planes.getIndex(xLowBound + x, yLowBound);
+				int cellNum = x * this.VISION_SIZE;
+				System.arraycopy(planes.danger, srcIndex, stateBuf, cellNum, this.VISION_SIZE);
+				System.arraycopy(planes.cover, srcIndex, stateBuf, layerSize + cellNum, this.VISION_SIZE);
+				if (this.NN_INPUT_OBSTACLE_LAYER) {
+					System.arraycopy(planes.obstacle, srcIndex, stateBuf, (3 * layerSize) + cellNum, this.VISION_SIZE);
+				}
+			}
+			// Goal layer
+			Arrays.fill(stateBuf, 2 * layerSize, 3 * layerSize, -1.0 / this.normDivisor);
+		} else {
+			for (int x = 0; x < this.VISION_SIZE; x++) {
+				for (int y = 0; y < this.VISION_SIZE; y++) {
+					this.fillCell(stateBuf, planes, x * this.VISION_SIZE + y, xLowBound + x, yLowBound + y);
+				}
+			}
+		}
+
+		this.fillGoalAndMiscInputs(stateBuf, xLowBound, yLowBound);
+		this.saveOutputInfo(stateBuf, xLowBound, yLowBound);
+
+		return stateBuf;
+	}
+
+
+	@Override
+	public double[] updatePreprocessedState(double[] prevState, double[] stateBuf) {
+		if (stateBuf == null || stateBuf.length < this.getStateSize()) {
+			return this.getPreprocessedState();
+		}
+		if (prevState == null || prevState != this.lastOutput || this.lastGridVersion != this.sensor.getGridVersion()
+				|| (this.lastChangeCount != this.sensor.getChangeCount() && this.sensor.getChangedCell(this.lastChangeCount) == -1)) {
+			return this.getPreprocessedState(stateBuf);
+		}
+
+		int xLowBound = this.calcXLowBound();
+		int yLowBound = this.calcYLowBound();
+		int dx = xLowBound - this.lastXLowBound;
+		int dy = yLowBound - this.lastYLowBound;
+		if (this.VISION_SIZE <= Math.abs(dx) || this.VISION_SIZE <= Math.abs(dy)) {
+			return this.getPreprocessedState(stateBuf);
+		}
+
+		if (prevState != stateBuf) {
+			System.arraycopy(prevState, 0, stateBuf, 0, this.NN_INPUT_SIZE);
+		}
 
 		int layerSize = this.VISION_SIZE * this.VISION_SIZE;
+		if (0 <= this.lastGoalOffset && this.lastGoalOffset < layerSize) {
+			// Clear the old goal so the goal layer is uniform before shifting
+			stateBuf[2 * layerSize + this.lastGoalOffset] = -1.0 / this.normDivisor;
+		}
+
+		if (dx != 0 || dy != 0) {
+			this.shiftWindow(stateBuf, dx, dy, xLowBound, yLowBound);
+		}
+
+		// Refresh any cells that changed since the last state was computed
+		GridFeaturePlanes planes = this.getFeaturePlanes();
+		int gridHeight = this.sensor.getGridHeight();
+		long changeCount = this.sensor.getChangeCount();
+		for (long changeNum = this.lastChangeCount; changeNum < changeCount; changeNum++) {
+			int cell = this.sensor.getChangedCell(changeNum);
+			int x = (cell / gridHeight) - xLowBound;
+			int y = (cell % gridHeight) - yLowBound;
+			if (0 <= x && x < this.VISION_SIZE && 0 <= y && y < this.VISION_SIZE) {
+				this.fillCell(stateBuf, planes, x * this.VISION_SIZE + y, xLowBound + x, yLowBound + y);
+			}
+		}
+
+		this.fillGoalAndMiscInputs(stateBuf, xLowBound, yLowBound);
+		this.saveOutputInfo(stateBuf, xLowBound, yLowBound);
+
+		return stateBuf;
+	}
+
+
+	@Override
+	public boolean hasStateChanged(double[] prevState) {
+		return prevState == null || prevState != this.lastOutput || this.lastGridVersion != this.sensor.getGridVersion()
+				|| this.lastChangeCount != this.sensor.getChangeCount() || this.lastRobotX != this.sensor.getX()
+				|| this.lastRobotY != this.sensor.getY() || this.lastGoalX != this.sim.getGoalX() || this.lastGoalY != this.sim.getGoalY();
+	}
+
+
+	/**
+	 * Shifts the contents of every layer in the state buffer to account for the
+	 * vision window moving by <code>(dx, dy)</code>, and fills in the cells that were
+	 * shifted in from outside the old window.
+	 */
+	private void shiftWindow(double[] stateBuf, int dx, int dy, int xLowBound, int yLowBound) {
+		int layerSize = this.VISION_SIZE * this.VISION_SIZE;
+		GridFeaturePlanes planes = this.getFeaturePlanes();
+		int numLayers = this.NN_INPUT_OBSTACLE_LAYER ? 4 : 3;
+		int yStart = Math.max(0, -dy);
+		int yEnd = Math.min(this.VISION_SIZE, this.VISION_SIZE - dy);
+
+		// Rows must be copied in an order that doesn't overwrite rows that are still
+		// needed as sources
+		boolean ascending = (0 < dx) || (dx == 0 && 0 < dy);
+		for (int i = 0; i < this.VISION_SIZE; i++) {
+			int x = ascending ? i : (this.VISION_SIZE - 1 - i);
+			int srcX = x + dx;
+			if (srcX < 0 || this.VISION_SIZE <= srcX) {
+				continue;
+			}
+			for (int layer = 0; layer < numLayers; layer++) {
+				int base = layer * layerSize;
+				System.arraycopy(stateBuf, base + (srcX * this.VISION_SIZE) + yStart + dy, stateBuf,
+						base + (x * this.VISION_SIZE) + yStart, yEnd - yStart);
+			}
+		}
 
 		for (int x = 0; x < this.VISION_SIZE; x++) {
+			int srcX = x + dx;
+			boolean wholeRow = (srcX < 0 || this.VISION_SIZE <= srcX);
 			for (int y = 0; y < this.VISION_SIZE; y++) {
-				int cellNum = x * this.VISION_SIZE + y;
-				int gridX = xLowBound + x;
-				int gridY = yLowBound + y;
-				boolean cellExists = this.sensor.nodeExists(gridX, gridY);
-				if (cellExists) {
-					// Danger level layer
-					stateBuf[cellNum] = this.sensor.getDangerLevelAt(gridX, gridY) * 3.0;
-
-					// Cover count layer
-					stateBuf[layerSize + cellNum] = this.sensor.getCoverCountAt(gridX, gridY) < 1 ? -1.0 : 1.0;
-
-					// Obstacle layer
-					if (this.NN_INPUT_OBSTACLE_LAYER) {
-						stateBuf[(3 * layerSize) + cellNum] = this.sensor.isObstacle(gridX, gridY) ? 1.0 : -1.0;
-					}
-				} else {
-					// Danger level layer
-					stateBuf[cellNum] = this.OUT_OF_BOUNDS_VALS_DANGER;
-
-					// Cover count layer
-					stateBuf[layerSize + cellNum] = this.OUT_OF_BOUNDS_VALS_COVER;
-
-					// Obstacle layer
-					if (this.NN_INPUT_OBSTACLE_LAYER) {
-						stateBuf[(3 * layerSize) + cellNum] = this.OUT_OF_BOUNDS_VALS_OBSTACLE;
-					}
+				if (wholeRow || y < yStart || yEnd <= y) {
+					this.fillCell(stateBuf, planes, x * this.VISION_SIZE + y, xLowBound + x, yLowBound + y);
 				}
-				stateBuf[2 * layerSize + cellNum] = -1.0;
 			}
 		}
+	}
+
+
+	/**
+	 * Writes all the layer values for a single cell in the vision window
+	 */
+	private void fillCell(double[] stateBuf, GridFeaturePlanes planes, int cellNum, int gridX, int gridY) {
+		int layerSize = this.VISION_SIZE * this.VISION_SIZE;
+		if (planes.containsWindow(gridX, gridY, 1, 1)) {
+			int index = planes.getIndex(gridX, gridY);
+			stateBuf[cellNum] = planes.danger[index];
+			stateBuf[layerSize + cellNum] = planes.cover[index];
+			if (this.NN_INPUT_OBSTACLE_LAYER) {
+				stateBuf[(3 * layerSize) + cellNum] = planes.obstacle[index];
+			}
+		} else if (this.sensor.nodeExists(gridX, gridY)) {
+			// Danger level layer
+			stateBuf[cellNum] = (this.sensor.getDangerLevelAt(gridX, gridY) * 3.0) / this.normDivisor;
+
+			// Cover count layer
+			stateBuf[layerSize + cellNum] = (this.sensor.getCoverCountAt(gridX, gridY) < 1 ? -1.0 : 1.0) / this.normDivisor;
 
-		int goalOffset = ((this.sim.getGoalX() - xLowBound) * 5) + (this.sim.getGoalY() - yLowBound);
+			// Obstacle layer
+			if (this.NN_INPUT_OBSTACLE_LAYER) {
+				stateBuf[(3 * layerSize) + cellNum] = (this.sensor.isObstacle(gridX, gridY) ? 1.0 : -1.0) / this.normDivisor;
+			}
+		} else {
+			// Danger level layer
+			stateBuf[cellNum] = this.OUT_OF_BOUNDS_VALS_DANGER / this.normDivisor;
+
+			// Cover count layer
+			stateBuf[layerSize + cellNum] = this.OUT_OF_BOUNDS_VALS_COVER / this.normDivisor;
+
+			// Obstacle layer
+			if (this.NN_INPUT_OBSTACLE_LAYER) {
+				stateBuf[(3 * layerSize) + cellNum] = this.OUT_OF_BOUNDS_VALS_OBSTACLE / this.normDivisor;
+			}
+		}
+		stateBuf[2 * layerSize + cellNum] = -1.0 / this.normDivisor;
+	}
+
+
+	private void fillGoalAndMiscInputs(double[] stateBuf, int xLowBound, int yLowBound) {
+		int layerSize = this.VISION_SIZE * this.VISION_SIZE;
+		int goalOffset = this.calcGoalOffset(xLowBound, yLowBound);
 		if (0 <= goalOffset && goalOffset < layerSize) {
-			stateBuf[2 * layerSize + goalOffset] = 1.0;
+			stateBuf[2 * layerSize + goalOffset] = 1.0 / this.normDivisor;
 		}
 
 		if (this.GIVE_GLOBAL_POS_AND_SIZE) {
-			stateBuf[this.NN_INPUT_SIZE - 4] = this.sensor.getLocation().x;
-			stateBuf[this.NN_INPUT_SIZE - 3] = this.sensor.getLocation().y;
-			stateBuf[this.NN_INPUT_SIZE - 2] = this.sensor.getGridWidth();
-			stateBuf[this.NN_INPUT_SIZE - 1] = this.sensor.getGridHeight();
-		}
-
-		if (this.ATTEMPT_NORMALIZATION) {
-			// Normalize the data
-			// The sum of squares should be around 27 (1 for danger levels +
-			// 25 for coverage + 1 for location)
-			double approxStdDev = Math.sqrt(27.0);
-			for (int i = 0; i < this.NN_INPUT_SIZE; i++) {
-				stateBuf[i] /= approxStdDev;
-			}
+			stateBuf[this.NN_INPUT_SIZE - 4] = this.sensor.getX() / this.normDivisor;
+			stateBuf[this.NN_INPUT_SIZE - 3] = this.sensor.getY() / this.normDivisor;
+			stateBuf[this.NN_INPUT_SIZE - 2] = this.sensor.getGridWidth() / this.normDivisor;
+			stateBuf[this.NN_INPUT_SIZE - 1] = this.sensor.getGridHeight() / this.normDivisor;
 		}
+	}
 
-		return stateBuf;
+
+	private int calcGoalOffset(int xLowBound, int yLowBound) {
+		return ((this.sim.getGoalX() - xLowBound) * 5) + (this.sim.getGoalY() - yLowBound);
+	}
+
+
+	private GridFeaturePlanes getFeaturePlanes() {
+		return this.sensor.getFeaturePlanes(this.VISION_SIZE, this.OUT_OF_BOUNDS_VALS_DANGER, this.OUT_OF_BOUNDS_VALS_COVER,
+				this.OUT_OF_BOUNDS_VALS_OBSTACLE, this.normDivisor);
+	}
+
+
+	/**
+	 * Remembers the information needed to incrementally update the given state later
+	 */
+	private void saveOutputInfo(double[] stateBuf, int xLowBound, int yLowBound) {
+		this.lastOutput = stateBuf;
+		this.lastXLowBound = xLowBound;
+		this.lastYLowBound = yLowBound;
+		this.lastRobotX = this.sensor.getX();
+		this.lastRobotY = this.sensor.getY();
+		this.lastGoalX = this.sim.getGoalX();
+		this.lastGoalY = this.sim.getGoalY();
+		this.lastGoalOffset = this.calcGoalOffset(xLowBound, yLowBound);
+		this.lastChangeCount = this.sensor.getChangeCount();
+		this.lastGridVersion = this.sensor.getGridVersion();
+	}
+
+
+	// Setting the grid coordinates of the upper-left corner of the vision
+	// For the centering of even-numbered vision sizes, they should work
+	// identically to the odd-numbered size one below them, so for example 5
+	// and 6 should give the same lower bounds for x and y.
+	private int calcXLowBound() {
+		return this.sensor.getX() - ((this.VISION_SIZE - 1) / 2);
+	}
+
+
+	private int calcYLowBound() {
+		return this.sensor.getY() - ((this.VISION_SIZE - 1) / 2);
 	}
 
 
@@ -112,6 +295,25 @@ public class PathplanStatePreprocessor implements DQLStatePreprocessor, Settings
 	}
 
 
+	@Override
+	public ObservationCodec createObservationCodec(int quantBits, int keyframeInterval) {
+		ObservationCodec codec = new ObservationCodec(this.NN_INPUT_SIZE, quantBits, keyframeInterval);
+		double norm = this.ATTEMPT_NORMALIZATION ? Math.sqrt(27.0) : 1.0;
+		int layerSize = this.VISION_SIZE * this.VISION_SIZE;
+
+		// Danger can go above 1 here, up to the danger cap
+		double maxDanger = Math.max(1.0, SimulatorMain.settings.getDouble("pathplan.env.danger_cap"));
+		codec.addQuantizedSegment(0, layerSize, 0.0, 3.0 * maxDanger / norm);
+		codec.addBinarySegment(layerSize, layerSize, -1.0 / norm, 1.0 / norm);
+		codec.addBinarySegment(2 * layerSize, layerSize, -1.0 / norm, 1.0 / norm);
+		if (this.NN_INPUT_OBSTACLE_LAYER) {
+			codec.addBinarySegment(3 * layerSize, layerSize, -1.0 / norm, 1.0 / norm);
+		}
+
+		return codec;
+	}
+
+
 	private int calcStateSize() {
 		this.reloadSettings();
 
@@ -140,6 +342,11 @@ public class PathplanStatePreprocessor implements DQLStatePreprocessor, Settings
 		this.OUT_OF_BOUNDS_VALS_DANGER = SimulatorMain.settings.getDouble("deepql.statepreprocessor.out_of_bounds_vals.danger");
 		this.OUT_OF_BOUNDS_VALS_COVER = SimulatorMain.settings.getDouble("deepql.statepreprocessor.out_of_bounds_vals.cover");
 		this.OUT_OF_BOUNDS_VALS_OBSTACLE = SimulatorMain.settings.getDouble("deepql.statepreprocessor.out_of_bounds_vals.obstacle");
+
+		// The sum of squares should be around 27 (1 for danger levels + 25 for
+		// coverage + 1 for location)
+		this.normDivisor = this.ATTEMPT_NORMALIZATION ? Math.sqrt(27.0) : 1.0;
+		this.lastOutput = null;
 	}
 
 	enum VisionType {
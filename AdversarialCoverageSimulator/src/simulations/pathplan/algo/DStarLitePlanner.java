@@ -0,0 +1,496 @@
+package simulations.pathplan.algo;
+
+import java.util.Arrays;
+
+import adsim.Algorithm;
+import adsim.SimulatorMain;
+import adsim.stats.SampledVariableLong;
+import gridenv.GridEnvironment;
+import gridenv.GridNode;
+import gridenv.GridRobot;
+import gridenv.NodeType;
+import simulations.pathplan.PathplanActuator;
+import simulations.pathplan.PathplanSimulation;
+
+/**
+ * A pathplan algorithm that follows the safest path to the goal, kept up to date
+ * with D* Lite as the danger changes.
+ * <p>
+ * Entering a cell costs <code>1 - w * ln(1 - danger)</code>, where <code>w</code> is
+ * the <code>pathplan.dstar.danger_weight</code> setting, so the path cost trades off
+ * path length against the chance of surviving the path. Obstacles can't be entered.
+ * The search runs backward from the goal, so its results stay valid as the robot
+ * moves. After each step, only the cells that changed (read from the environment's
+ * change log) are checked for cost changes, and the search is repaired from those. The
+ * search is rebuilt from scratch if the goal moves, the grid is replaced, or too many
+ * cells changed to still be in the log.
+ * <p>
+ * Cell <code>(x, y)</code> is stored at index <code>x * height + y</code>, matching
+ * the environment's change log.
+ *
+ * @author Mike D'Arcy
+ *
+ */
+public class DStarLitePlanner implements Algorithm {
+	private static final int[] ACTION_DX = { 1, 0, -1, 0 };
+	private static final int[] ACTION_DY = { 0, 1, 0, -1 };
+	private static final int STAY_ACTION = 4;
+
+	private final GridRobot robot;
+	private final PathplanActuator actuator;
+	private final PathplanSimulation simulation;
+	private GridEnvironment env = null;
+
+	private int width = 0;
+	private int height = 0;
+	private int goalX = -1;
+	private int goalY = -1;
+	private int goal = -1;
+	/**
+	 * The robot's location when the search was last repaired
+	 */
+	private int lastStart = -1;
+	private double km = 0.0;
+	private long lastChangeCount = -1;
+	private int lastGridVersion = -1;
+
+	private double[] cost = new double[0];
+	private double[] g = new double[0];
+	private double[] rhs = new double[0];
+	private CellHeap open = new CellHeap(0);
+
+	private long lastExpandedCount = 0;
+	private SampledVariableLong expandedNodeStats = new SampledVariableLong();
+
+	private double DANGER_WEIGHT;
+
+
+	public DStarLitePlanner(GridRobot robot, PathplanActuator actuator, PathplanSimulation simulation) {
+		this.robot = robot;
+		this.actuator = actuator;
+		this.simulation = simulation;
+		this.reloadSettings();
+	}
+
+
+	@Override
+	public void init() {
+		this.env = null;
+	}
+
+
+	@Override
+	public void step() {
+		GridEnvironment curEnv = this.simulation.getEnv();
+		int start = this.robot.getLocation().x * curEnv.getHeight() + this.robot.getLocation().y;
+		if (this.needsRebuild(curEnv)) {
+			this.rebuild(curEnv, start);
+		} else {
+			this.km += this.heuristic(this.lastStart, start);
+			this.lastStart = start;
+			this.applyChanges();
+		}
+
+		this.lastExpandedCount = this.computeShortestPath(start);
+		this.expandedNodeStats.addSample(this.lastExpandedCount);
+		this.actuator.takeActionById(this.chooseAction(start));
+		this.lastChangeCount = this.env.getChangeCount();
+	}
+
+
+	private boolean needsRebuild(GridEnvironment curEnv) {
+		if (this.env != curEnv || this.width != curEnv.getWidth() || this.height != curEnv.getHeight()
+				|| this.lastGridVersion != curEnv.getGridVersion()) {
+			return true;
+		}
+		if (this.goalX != this.simulation.getGoalX() || this.goalY != this.simulation.getGoalY()) {
+			return true;
+		}
+		long changeCount = curEnv.getChangeCount();
+		return changeCount != this.lastChangeCount && curEnv.getChangedCell(this.lastChangeCount) == -1;
+	}
+
+
+	/**
+	 * Starts a new search from scratch
+	 */
+	private void rebuild(GridEnvironment curEnv, int start) {
+		this.env = curEnv;
+		this.width = curEnv.getWidth();
+		this.height = curEnv.getHeight();
+		this.lastGridVersion = curEnv.getGridVersion();
+		this.goalX = this.simulation.getGoalX();
+		this.goalY = this.simulation.getGoalY();
+		this.goal = this.goalX * this.height + this.goalY;
+		this.lastStart = start;
+		this.km = 0.0;
+
+		int numCells = this.width * this.height;
+		if (this.cost.length != numCells) {
+			this.cost = new double[numCells];
+			this.g = new double[numCells];
+			this.rhs = new double[numCells];
+			this.open = new CellHeap(numCells);
+		}
+		this.open.clear();
+		for (int x = 0; x < this.width; x++) {
+			for (int y = 0; y < this.height; y++) {
+				int i = x * this.height + y;
+				this.cost[i] = this.calcCost(this.env.grid[x][y]);
+				this.g[i] = Double.POSITIVE_INFINITY;
+				this.rhs[i] = Double.POSITIVE_INFINITY;
+			}
+		}
+		this.rhs[this.goal] = 0.0;
+		this.open.insert(this.goal, this.heuristic(start, this.goal), 0.0);
+	}
+
+
+	/**
+	 * Checks the cells that changed since the last step, and updates the search for
+	 * the ones whose cost changed. Changing the cost of a cell changes the cost of
+	 * every edge into it, so its neighbors are updated.
+	 */
+	private void applyChanges() {
+		long changeCount = this.env.getChangeCount();
+		for (long changeNum = this.lastChangeCount; changeNum < changeCount; changeNum++) {
+			int cell = this.env.getChangedCell(changeNum);
+			int x = cell / this.height;
+			int y = cell % this.height;
+			double newCost = this.calcCost(this.env.grid[x][y]);
+			if (newCost == this.cost[cell]) {
+				continue;
+			}
+			this.cost[cell] = newCost;
+			for (int dir = 0; dir < 4; dir++) {
+				int nx = x + ACTION_DX[dir];
+				int ny = y + ACTION_DY[dir];
+				if (0 <= nx && nx < this.width && 0 <= ny && ny < this.height) {
+					this.updateVertex(nx * this.height + ny);
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Expands cells until the robot's cell is consistent and no cell with a lower key
+	 * is left
+	 *
+	 * @return the number of cells expanded
+	 */
+	private long computeShortestPath(int start) {
+		long numExpanded = 0;
+		while (!this.open.isEmpty()) {
+			double startK1 = Math.min(this.g[start], this.rhs[start]) + this.km;
+			double startK2 = Math.min(this.g[start], this.rhs[start]);
+			if (!this.open.isTopLess(startK1, startK2) && this.rhs[start] == this.g[start]) {
+				break;
+			}
+
+			int u = this.open.peek();
+			double oldK1 = this.open.getTopK1();
+			double oldK2 = this.open.getTopK2();
+			double newK2 = Math.min(this.g[u], this.rhs[u]);
+			double newK1 = newK2 + this.heuristic(start, u) + this.km;
+			if (oldK1 < newK1 || (oldK1 == newK1 && oldK2 < newK2)) {
+				this.open.update(u, newK1, newK2);
+				continue;
+			}
+
+			this.open.poll();
+			numExpanded++;
+			if (this.rhs[u] < this.g[u]) {
+				this.g[u] = this.rhs[u];
+				this.updateNeighbors(u);
+			} else {
+				this.g[u] = Double.POSITIVE_INFINITY;
+				this.updateVertex(u);
+				this.updateNeighbors(u);
+			}
+		}
+		return numExpanded;
+	}
+
+
+	private void updateNeighbors(int cell) {
+		int x = cell / this.height;
+		int y = cell % this.height;
+		for (int dir = 0; dir < 4; dir++) {
+			int nx = x + ACTION_DX[dir];
+			int ny = y + ACTION_DY[dir];
+			if (0 <= nx && nx < this.width && 0 <= ny && ny < this.height) {
+				this.updateVertex(nx * this.height + ny);
+			}
+		}
+	}
+
+
+	private void updateVertex(int cell) {
+		if (cell != this.goal) {
+			this.rhs[cell] = this.bestNeighborCost(cell);
+		}
+		if (this.g[cell] != this.rhs[cell]) {
+			double k2 = Math.min(this.g[cell], this.rhs[cell]);
+			this.open.insertOrUpdate(cell, k2 + this.heuristic(this.lastStart, cell) + this.km, k2);
+		} else {
+			this.open.remove(cell);
+		}
+	}
+
+
+	/**
+	 * Gets the lowest cost of going from the given cell to the goal through one of
+	 * its neighbors
+	 */
+	private double bestNeighborCost(int cell) {
+		int x = cell / this.height;
+		int y = cell % this.height;
+		double best = Double.POSITIVE_INFINITY;
+		for (int dir = 0; dir < 4; dir++) {
+			int nx = x + ACTION_DX[dir];
+			int ny = y + ACTION_DY[dir];
+			if (0 <= nx && nx < this.width && 0 <= ny && ny < this.height) {
+				int n = nx * this.height + ny;
+				double c = this.cost[n] + this.g[n];
+				if (c < best) {
+					best = c;
+				}
+			}
+		}
+		return best;
+	}
+
+
+	/**
+	 * Picks the move to the neighbor with the lowest cost to the goal, or stays if
+	 * the goal can't be reached
+	 */
+	private int chooseAction(int start) {
+		int x = start / this.height;
+		int y = start % this.height;
+		int bestAction = STAY_ACTION;
+		double best = Double.POSITIVE_INFINITY;
+		for (int dir = 0; dir < 4; dir++) {
+			int nx = x + ACTION_DX[dir];
+			int ny = y + ACTION_DY[dir];
+			if (0 <= nx && nx < this.width && 0 <= ny && ny < this.height) {
+				int n = nx * this.height + ny;
+				double c = this.cost[n] + this.g[n];
+				if (c < best) {
+					best = c;
+					bestAction = dir;
+				}
+			}
+		}
+		return bestAction;
+	}
+
+
+	/**
+	 * Gets the cost of entering the given cell
+	 */
+	private double calcCost(GridNode node) {
+		if (node.getNodeType() == NodeType.OBSTACLE) {
+			return Double.POSITIVE_INFINITY;
+		}
+		double danger = node.getDangerProb();
+		if (1.0 <= danger) {
+			return Double.POSITIVE_INFINITY;
+		}
+		return 1.0 - this.DANGER_WEIGHT * Math.log1p(-danger);
+	}
+
+
+	/**
+	 * Manhattan distance, which never overestimates since every move costs at least 1
+	 */
+	private double heuristic(int a, int b) {
+		return Math.abs(a / this.height - b / this.height) + Math.abs(a % this.height - b % this.height);
+	}
+
+
+	/**
+	 * Gets the number of cells expanded in the last step
+	 */
+	public long getLastExpandedCount() {
+		return this.lastExpandedCount;
+	}
+
+
+	/**
+	 * Gets the number of cells expanded per step
+	 */
+	public SampledVariableLong getExpandedNodeStats() {
+		return this.expandedNodeStats;
+	}
+
+
+	@Override
+	public void reloadSettings() {
+		double oldWeight = this.DANGER_WEIGHT;
+		this.DANGER_WEIGHT = SimulatorMain.settings.getDouble("pathplan.dstar.danger_weight");
+		if (oldWeight != this.DANGER_WEIGHT) {
+			// Every cost changed
+			this.env = null;
+		}
+	}
+
+
+	/**
+	 * A binary min-heap of cells ordered by their two-part D* Lite keys, which can
+	 * find, update, and remove any cell in it
+	 */
+	private static class CellHeap {
+		private int[] heap;
+		/**
+		 * The index of each cell in the heap, or -1 if it is not in the heap
+		 */
+		private int[] position;
+		private double[] k1;
+		private double[] k2;
+		private int size = 0;
+
+
+		CellHeap(int numCells) {
+			this.heap = new int[numCells];
+			this.position = new int[numCells];
+			this.k1 = new double[numCells];
+			this.k2 = new double[numCells];
+			Arrays.fill(this.position, -1);
+		}
+
+
+		void clear() {
+			for (int i = 0; i < this.size; i++) {
+				this.position[this.heap[i]] = -1;
+			}
+			this.size = 0;
+		}
+
+
+		boolean isEmpty() {
+			return this.size == 0;
+		}
+
+
+		int peek() {
+			return this.heap[0];
+		}
+
+
+		double getTopK1() {
+			return this.k1[this.heap[0]];
+		}
+
+
+		double getTopK2() {
+			return this.k2[this.heap[0]];
+		}
+
+
+		/**
+		 * Checks whether the top key is less than the given key
+		 */
+		boolean isTopLess(double otherK1, double otherK2) {
+			int top = this.heap[0];
+			return this.k1[top] < otherK1 || (this.k1[top] == otherK1 && this.k2[top] < otherK2);
+		}
+
+
+		int poll() {
+			int top = this.heap[0];
+			this.remove(top);
+			return top;
+		}
+
+
+		void insert(int cell, double key1, double key2) {
+			this.k1[cell] = key1;
+			this.k2[cell] = key2;
+			this.heap[this.size] = cell;
+			this.position[cell] = this.size;
+			this.size++;
+			this.siftUp(this.size - 1);
+		}
+
+
+		void insertOrUpdate(int cell, double key1, double key2) {
+			if (this.position[cell] == -1) {
+				this.insert(cell, key1, key2);
+			} else {
+				this.update(cell, key1, key2);
+			}
+		}
+
+
+		void update(int cell, double key1, double key2) {
+			this.k1[cell] = key1;
+			this.k2[cell] = key2;
+			int i = this.position[cell];
+			this.siftUp(i);
+			this.siftDown(this.position[cell]);
+		}
+
+
+		void remove(int cell) {
+			int i = this.position[cell];
+			if (i == -1) {
+				return;
+			}
+			this.position[cell] = -1;
+			this.size--;
+			if (i == this.size) {
+				return;
+			}
+			int last = this.heap[this.size];
+			this.heap[i] = last;
+			this.position[last] = i;
+			this.siftUp(i);
+			this.siftDown(this.position[last]);
+		}
+
+
+		private boolean less(int a, int b) {
+			return this.k1[a] < this.k1[b] || (this.k1[a] == this.k1[b] && this.k2[a] < this.k2[b]);
+		}
+
+
+		private void siftUp(int i) {
+			int cell = this.heap[i];
+			while (0 < i) {
+				int parent = (i - 1) >>> 1;
+				if (!this.less(cell, this.heap[parent])) {
+					break;
+				}
+				this.heap[i] = this.heap[parent];
+				this.position[this.heap[i]] = i;
+				i = parent;
+			}
+			this.heap[i] = cell;
+			this.position[cell] = i;
+		}
+
+
+		private void siftDown(int i) {
+			int cell = this.heap[i];
+			while (true) {
+				int child = 2 * i + 1;
+				if (this.size <= child) {
+					break;
+				}
+				if (child + 1 < this.size && this.less(this.heap[child + 1], this.heap[child])) {
+					child++;
+				}
+				if (!this.less(this.heap[child], cell)) {
+					break;
+				}
+				this.heap[i] = this.heap[child];
+				this.position[this.heap[i]] = i;
+				i = child;
+			}
+			this.heap[i] = cell;
+			this.position[cell] = i;
+		}
+	}
+}
@@ -0,0 +1,475 @@
+package simulations.pathplan.algo;
+
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import adsim.Algorithm;
+import adsim.SimulatorMain;
+import adsim.SimulatorSettings;
+import gridenv.GridEnvironment;
+import gridenv.GridRobot;
+import gridenv.GridSnapshot;
+import gridenv.NodeType;
+import simulations.pathplan.DangerDiffusionKernel;
+import simulations.pathplan.PathplanActuator;
+import simulations.pathplan.PathplanSimulation;
+
+/**
+ * A Monte-Carlo planner for pathplan simulations. At each step, it samples possible
+ * futures of the environment (the danger spreading and decaying, and robots being
+ * broken by the cells they cover) starting with each of the robot's actions, and takes
+ * the action that did best.
+ * <p>
+ * Rollouts are run on forked copies of the environment (see
+ * {@link GridEnvironment#fork()}), one per worker thread, which are reset between
+ * rollouts by restoring a snapshot. Each worker picks the action to try next with
+ * UCB1, and follows a default policy (mostly greedy toward the goal, avoiding danger)
+ * after that. A rollout ends when the goal is reached, the robot is broken, or the
+ * horizon is reached, in which case the robot's distance to the goal is used as the
+ * value. Planning stops when the time budget runs out or the maximum number of
+ * rollouts has been run, and the most-tried action is taken.
+ * <p>
+ * With no time budget, the results only depend on the random seed and the number of
+ * threads.
+ *
+ * @author Mike D'Arcy
+ *
+ */
+public class RolloutPlanner implements Algorithm {
+	private static final int NUM_ACTIONS = 5;
+	private static final int[] ACTION_DX = { 1, 0, -1, 0, 0 };
+	private static final int[] ACTION_DY = { 0, 1, 0, -1, 0 };
+
+	/**
+	 * Shared by all planners, and recreated if the number of threads changes
+	 */
+	private static ForkJoinPool pool = null;
+
+	private final GridRobot robot;
+	private final PathplanActuator actuator;
+	private final PathplanSimulation simulation;
+	private SplittableRandom random = new SplittableRandom();
+	private RolloutWorker[] workers = new RolloutWorker[0];
+
+	// Set at the start of each step, and only read by the workers
+	private GridEnvironment env = null;
+	private int robotIndex = 0;
+	private int goalX = 0;
+	private int goalY = 0;
+	private int stepsLeftInRun = 0;
+
+	private long lastNumRollouts = 0;
+
+	private long TIME_BUDGET_NANOS;
+	private int MAX_ROLLOUTS;
+	private int NUM_THREADS;
+	private int HORIZON;
+	private double DISCOUNT;
+	private double EXPLORATION_CONSTANT;
+	private double DEFAULT_POLICY_EPSILON;
+	private double DISTANCE_WEIGHT;
+	private double REACH_GOAL_REWARD;
+	private double DEATH_REWARD;
+	private boolean ROBOTS_BREAKABLE;
+	private int MAX_STEPS_PER_RUN;
+	private double DANGER_SPREAD_FACTOR;
+	private double DANGER_DECAY_FACTOR;
+	private double DANGER_CAP;
+	private int KERNEL_TILE_SIZE;
+	private double KERNEL_MAX_SPARSE_FRACTION;
+
+
+	public RolloutPlanner(GridRobot robot, PathplanActuator actuator, PathplanSimulation simulation) {
+		this.robot = robot;
+		this.actuator = actuator;
+		this.simulation = simulation;
+		this.reloadSettings();
+	}
+
+
+	@Override
+	public void init() {
+
+	}
+
+
+	@Override
+	public void step() {
+		this.env = this.simulation.getEnv();
+		this.robotIndex = this.env.getRobotList().indexOf(this.robot);
+		this.goalX = this.simulation.getGoalX();
+		this.goalY = this.simulation.getGoalY();
+		this.stepsLeftInRun = this.MAX_STEPS_PER_RUN - this.env.getStepCount();
+
+		int numWorkers = this.NUM_THREADS;
+		if (0 < this.MAX_ROLLOUTS) {
+			numWorkers = Math.min(numWorkers, this.MAX_ROLLOUTS);
+		}
+		if (this.workers.length != numWorkers) {
+			this.workers = new RolloutWorker[numWorkers];
+			for (int i = 0; i < numWorkers; i++) {
+				this.workers[i] = new RolloutWorker(i);
+			}
+		}
+
+		for (int i = 0; i < numWorkers; i++) {
+			RolloutWorker worker = this.workers[i];
+			if (worker.env == null || worker.env.getRobotList().size() != this.env.getRobotList().size()) {
+				worker.env = this.env.fork();
+				worker.kernel = new DangerDiffusionKernel(worker.env);
+				worker.configureKernel();
+			}
+			worker.random = this.random.split();
+			if (0 < this.MAX_ROLLOUTS) {
+				worker.quota = this.MAX_ROLLOUTS / numWorkers + (i < this.MAX_ROLLOUTS % numWorkers ? 1 : 0);
+			} else {
+				worker.quota = Long.MAX_VALUE;
+			}
+		}
+
+		long deadline = 0;
+		if (0 < this.TIME_BUDGET_NANOS) {
+			deadline = System.nanoTime() + this.TIME_BUDGET_NANOS;
+		}
+
+		if (numWorkers == 1) {
+			this.runWorker(this.workers[0], deadline, true);
+		} else {
+			getPool(numWorkers).invoke(new RolloutTask(0, numWorkers, deadline));
+		}
+
+		this.actuator.takeActionById(this.chooseAction());
+	}
+
+
+	/**
+	 * Combines the workers' results and picks the action that was tried the most,
+	 * breaking ties by the average value
+	 */
+	private int chooseAction() {
+		long[] visits = new long[NUM_ACTIONS];
+		double[] valueSums = new double[NUM_ACTIONS];
+		this.lastNumRollouts = 0;
+		for (RolloutWorker worker : this.workers) {
+			for (int a = 0; a < NUM_ACTIONS; a++) {
+				visits[a] += worker.visits[a];
+				valueSums[a] += worker.valueSums[a];
+			}
+			this.lastNumRollouts += worker.numRollouts;
+		}
+
+		int bestAction = NUM_ACTIONS - 1;
+		for (int a = 0; a < NUM_ACTIONS; a++) {
+			if (visits[bestAction] < visits[a] || (visits[bestAction] == visits[a] && 0 < visits[a]
+					&& valueSums[bestAction] / visits[bestAction] < valueSums[a] / visits[a])) {
+				bestAction = a;
+			}
+		}
+		return bestAction;
+	}
+
+
+	/**
+	 * Runs rollouts on one worker's copy of the environment until its quota or the
+	 * deadline is reached
+	 *
+	 * @param worker
+	 *                the worker
+	 * @param deadline
+	 *                the {@link System#nanoTime()} at which to stop, or 0 for no
+	 *                deadline
+	 * @param tryAllActions
+	 *                whether to keep going past the deadline until every action has
+	 *                been tried once, so there is always something to choose from
+	 */
+	private void runWorker(RolloutWorker worker, long deadline, boolean tryAllActions) {
+		worker.reset(this.env);
+		while (worker.numRollouts < worker.quota) {
+			if (deadline != 0 && (!tryAllActions || NUM_ACTIONS <= worker.numRollouts) && deadline <= System.nanoTime()) {
+				break;
+			}
+			int action = this.selectAction(worker);
+			worker.env.restoreSnapshot(worker.rootSnapshot);
+			double value = this.rollout(worker, action);
+			worker.visits[action]++;
+			worker.valueSums[action] += value;
+			worker.numRollouts++;
+		}
+	}
+
+
+	/**
+	 * Picks the action to try next using UCB1. Each worker starts its sweep through
+	 * the untried actions at a different action, so if the workers stop before
+	 * finishing the sweep (because of the deadline or a small quota), the combined
+	 * visit counts aren't biased toward the low-numbered actions.
+	 */
+	private int selectAction(RolloutWorker worker) {
+		if (worker.numRollouts < NUM_ACTIONS) {
+			return (int) ((worker.numRollouts + worker.index) % NUM_ACTIONS);
+		}
+
+		double logTotal = Math.log(worker.numRollouts);
+		int bestAction = 0;
+		double bestScore = Double.NEGATIVE_INFINITY;
+		for (int a = 0; a < NUM_ACTIONS; a++) {
+			double score = worker.valueSums[a] / worker.visits[a]
+					+ this.EXPLORATION_CONSTANT * Math.sqrt(logTotal / worker.visits[a]);
+			if (bestScore < score) {
+				bestScore = score;
+				bestAction = a;
+			}
+		}
+		return bestAction;
+	}
+
+
+	/**
+	 * Simulates one possible future on the worker's environment, starting with the
+	 * given action for this planner's robot. Robots are moved in order, as in
+	 * {@link GridEnvironment#step()}, so on the first step only the robots after this
+	 * one are moved.
+	 *
+	 * @return the discounted value of the rollout
+	 */
+	private double rollout(RolloutWorker worker, int firstAction) {
+		GridEnvironment rolloutEnv = worker.env;
+		List<GridRobot> robots = rolloutEnv.getRobotList();
+		double discount = 1.0;
+		int stepNum = 0;
+
+		while (true) {
+			int firstRobot = (stepNum == 0) ? this.robotIndex : 0;
+			for (int robotNum = firstRobot; robotNum < robots.size(); robotNum++) {
+				GridRobot r = robots.get(robotNum);
+				if (r.isBroken()) {
+					continue;
+				}
+
+				int action = (stepNum == 0 && robotNum == this.robotIndex) ? firstAction : this.defaultPolicyAction(worker, r);
+				this.moveRobot(rolloutEnv, r, action);
+				int x = r.getLocation().x;
+				int y = r.getLocation().y;
+				if (x == this.goalX && y == this.goalY) {
+					return discount * this.REACH_GOAL_REWARD;
+				}
+				if (this.ROBOTS_BREAKABLE && worker.random.nextDouble() < rolloutEnv.grid[x][y].getDangerProb()) {
+					r.setBroken(true);
+					if (robotNum == this.robotIndex) {
+						return discount * this.DEATH_REWARD;
+					}
+				}
+			}
+
+			stepNum++;
+			if (this.HORIZON <= stepNum || this.stepsLeftInRun <= stepNum) {
+				GridRobot self = robots.get(this.robotIndex);
+				int goalDist = Math.abs(self.getLocation().x - this.goalX) + Math.abs(self.getLocation().y - this.goalY);
+				return -discount * this.DISTANCE_WEIGHT * goalDist / (rolloutEnv.getWidth() + rolloutEnv.getHeight());
+			}
+			worker.kernel.step();
+			discount *= this.DISCOUNT;
+		}
+	}
+
+
+	/**
+	 * Picks an action for a robot during a rollout. Most of the time, this moves
+	 * toward the goal, picking the least dangerous cell if more than one move gets
+	 * closer. Otherwise (or if no move gets closer), it picks a random action.
+	 */
+	private int defaultPolicyAction(RolloutWorker worker, GridRobot r) {
+		if (worker.random.nextDouble() < this.DEFAULT_POLICY_EPSILON) {
+			return worker.random.nextInt(NUM_ACTIONS);
+		}
+
+		GridEnvironment rolloutEnv = worker.env;
+		int x = r.getLocation().x;
+		int y = r.getLocation().y;
+		int curDist = Math.abs(x - this.goalX) + Math.abs(y - this.goalY);
+		int bestAction = -1;
+		double bestDanger = Double.POSITIVE_INFINITY;
+		// Start at a random action so ties are broken randomly
+		int offset = worker.random.nextInt(4);
+		for (int i = 0; i < 4; i++) {
+			int a = (i + offset) & 3;
+			int nx = x + ACTION_DX[a];
+			int ny = y + ACTION_DY[a];
+			if (!this.canMoveTo(rolloutEnv, nx, ny) || curDist <= Math.abs(nx - this.goalX) + Math.abs(ny - this.goalY)) {
+				continue;
+			}
+			double danger = rolloutEnv.grid[nx][ny].getDangerProb();
+			if (danger < bestDanger) {
+				bestDanger = danger;
+				bestAction = a;
+			}
+		}
+
+		if (bestAction == -1) {
+			return worker.random.nextInt(NUM_ACTIONS);
+		}
+		return bestAction;
+	}
+
+
+	/**
+	 * Moves a robot the same way a {@link PathplanActuator} would, without recording
+	 * stats
+	 */
+	private void moveRobot(GridEnvironment rolloutEnv, GridRobot r, int action) {
+		int nx = r.getLocation().x + ACTION_DX[action];
+		int ny = r.getLocation().y + ACTION_DY[action];
+		if (action != 4 && this.canMoveTo(rolloutEnv, nx, ny)) {
+			rolloutEnv.moveRobot(r, nx, ny);
+		}
+	}
+
+
+	private boolean canMoveTo(GridEnvironment rolloutEnv, int x, int y) {
+		if (!rolloutEnv.isOnGrid(x, y) || rolloutEnv.grid[x][y].getNodeType() == NodeType.OBSTACLE) {
+			return false;
+		}
+		for (GridRobot r : rolloutEnv.getRobotList()) {
+			if (r.getLocation().x == x && r.getLocation().y == y) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	private static synchronized ForkJoinPool getPool(int parallelism) {
+		if (pool == null || pool.getParallelism() != parallelism) {
+			if (pool != null) {
+				pool.shutdown();
+			}
+			pool = new ForkJoinPool(parallelism);
+		}
+		return pool;
+	}
+
+
+	/**
+	 * Sets the random number stream used for sampling rollouts
+	 */
+	public void setRandom(SplittableRandom random) {
+		this.random = random;
+	}
+
+
+	/**
+	 * Gets the number of rollouts run in the last step
+	 */
+	public long getLastNumRollouts() {
+		return this.lastNumRollouts;
+	}
+
+
+	@Override
+	public void reloadSettings() {
+		final SimulatorSettings settings = SimulatorMain.settings;
+		this.TIME_BUDGET_NANOS = settings.getInt("pathplan.rollout.time_budget_ms") * 1000000L;
+		this.MAX_ROLLOUTS = settings.getInt("pathplan.rollout.max_rollouts");
+		this.NUM_THREADS = settings.getInt("pathplan.rollout.num_threads");
+		if (this.NUM_THREADS <= 0) {
+			this.NUM_THREADS = Runtime.getRuntime().availableProcessors();
+		}
+		if (this.TIME_BUDGET_NANOS <= 0 && this.MAX_ROLLOUTS <= 0) {
+			System.err.println("Rollout planner has no time budget or rollout limit. Using 1000 rollouts per step.");
+			this.MAX_ROLLOUTS = 1000;
+		}
+		this.HORIZON = Math.max(1, settings.getInt("pathplan.rollout.horizon"));
+		this.DISCOUNT = settings.getDouble("pathplan.rollout.discount");
+		this.EXPLORATION_CONSTANT = settings.getDouble("pathplan.rollout.exploration_constant");
+		this.DEFAULT_POLICY_EPSILON = settings.getDouble("pathplan.rollout.default_policy_epsilon");
+		this.DISTANCE_WEIGHT = settings.getDouble("pathplan.rollout.distance_weight");
+		this.REACH_GOAL_REWARD = settings.getDouble("pathplan.dql.reward.reach_goal");
+		this.DEATH_REWARD = settings.getDouble("pathplan.dql.reward.death");
+		this.ROBOTS_BREAKABLE = settings.getBoolean("robots.breakable");
+		this.MAX_STEPS_PER_RUN = settings.getInt("autorun.max_steps_per_run");
+		this.DANGER_SPREAD_FACTOR = settings.getDouble("pathplan.env.danger_spread_factor");
+		this.DANGER_DECAY_FACTOR = settings.getDouble("pathplan.env.danger_decay_factor");
+		this.DANGER_CAP = settings.getDouble("pathplan.env.danger_cap");
+		this.KERNEL_TILE_SIZE = settings.getInt("pathplan.danger_kernel.tile_size");
+		this.KERNEL_MAX_SPARSE_FRACTION = settings.getDouble("pathplan.danger_kernel.max_sparse_fraction");
+		for (RolloutWorker worker : this.workers) {
+			worker.configureKernel();
+		}
+	}
+
+
+	/**
+	 * The state of one rollout worker: its own copy of the environment and danger
+	 * kernel, and its results for the current step
+	 */
+	private class RolloutWorker {
+		final int index;
+		GridEnvironment env = null;
+		DangerDiffusionKernel kernel = null;
+		final GridSnapshot rootSnapshot = new GridSnapshot();
+		SplittableRandom random = null;
+		long quota = 0;
+		long numRollouts = 0;
+		final long[] visits = new long[NUM_ACTIONS];
+		final double[] valueSums = new double[NUM_ACTIONS];
+
+
+		RolloutWorker(int index) {
+			this.index = index;
+		}
+
+
+		/**
+		 * Copies the current state of the given environment into this worker's copy,
+		 * and clears the results. The environment is only read, so several workers can
+		 * do this at once.
+		 */
+		void reset(GridEnvironment source) {
+			source.saveSnapshot(this.rootSnapshot);
+			this.env.restoreSnapshot(this.rootSnapshot);
+			this.numRollouts = 0;
+			for (int a = 0; a < NUM_ACTIONS; a++) {
+				this.visits[a] = 0;
+				this.valueSums[a] = 0.0;
+			}
+		}
+
+
+		void configureKernel() {
+			if (this.kernel == null) {
+				return;
+			}
+			this.kernel.setDangerParameters(DANGER_SPREAD_FACTOR, DANGER_DECAY_FACTOR, DANGER_CAP);
+			// Workers already run in parallel, so each kernel stays on its own thread
+			this.kernel.setTuningParameters(KERNEL_TILE_SIZE, Integer.MAX_VALUE, 1, KERNEL_MAX_SPARSE_FRACTION);
+		}
+	}
+
+
+	private class RolloutTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final int first;
+		private final int last;
+		private final long deadline;
+
+
+		RolloutTask(int first, int last, long deadline) {
+			this.first = first;
+			this.last = last;
+			this.deadline = deadline;
+		}
+
+
+		@Override
+		protected void compute() {
+			if (this.last - this.first == 1) {
+				runWorker(workers[this.first], this.deadline, this.first == 0);
+				return;
+			}
+			int mid = (this.first + this.last) >>> 1;
+			invokeAll(new RolloutTask(this.first, mid, this.deadline), new RolloutTask(mid, this.last, this.deadline));
+		}
+	}
+}
@@ -325,6 +325,7 @@ public class PathplanGUIDisplay implements Display {
 				gridNode.setCost(((Number) costField.getValue()).doubleValue());
 				gridNode.setCoverCount(((Number) coverCountSpinner.getValue()).intValue());
 				gridNode.setNodeType(((ComboBoxNodeType) typeBox.getSelectedItem()).nodetype);
+				PathplanGUIDisplay.this.sim.getEnv().markCellChanged(gridNode.getX(), gridNode.getY());
 				PathplanGUIDisplay.this.mainPanel.repaint();
 				dialog.dispose();
 			}